@@ -0,0 +1,105 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Creates the store the benchmarks run against: a file store in a temporary
+ * directory or a single local Infinispan node with no transport.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractStoreBenchmark {
+
+	@Param({ "file", "infinispan" })
+	public String store;
+
+	protected ContentAddressableStore cas;
+
+	private Path tempDir;
+
+	@Setup(Level.Trial)
+	public final void setUpStore() throws IOException {
+		tempDir = Files.createTempDirectory("CassetteJBenchmark");
+		Properties properties = new Properties();
+		if (store.equals("file")) {
+			properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.resolve("store").toString());
+			cas = new ContentAddressableStoreFileImpl(properties);
+		} else if (store.equals("infinispan")) {
+			// The store needs the config as a file rather than a resource
+			Path configFile = tempDir.resolve("infinispan-benchmark.xml");
+			try (InputStream inputStream = AbstractStoreBenchmark.class
+					.getResourceAsStream("/infinispan-benchmark.xml")) {
+				Files.copy(inputStream, configFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+			properties.put(ContentAddressableStoreInfinispanImpl.configFilePropertyName, configFile.toString());
+			properties.put(ContentAddressableStoreInfinispanImpl.cacheNamePropertyName, "CassetteJ");
+			cas = new ContentAddressableStoreInfinispanImpl(properties);
+		} else {
+			throw new IllegalArgumentException("store");
+		}
+		populate();
+	}
+
+	@TearDown(Level.Trial)
+	public final void tearDownStore() throws IOException {
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	/**
+	 * Write any content the benchmarks need before they start.
+	 */
+	protected void populate() throws IOException {
+	}
+
+	/**
+	 * @return Random content which is reproducible from the seed
+	 */
+	protected static byte[] createContent(int size, long seed) {
+		byte[] content = new byte[size];
+		new Random(seed).nextBytes(content);
+		return content;
+	}
+
+	/**
+	 * Make content unique by overwriting its first bytes with a counter.
+	 */
+	protected static void stamp(byte[] content, long counter) {
+		for (int i = 0; i < Math.min(8, content.length); i++) {
+			content[i] = (byte) (counter >>> (8 * i));
+		}
+	}
+
+	protected Hash write(byte[] content) throws IOException {
+		return cas.write(new ByteArrayInputStream(content));
+	}
+
+	/**
+	 * Read content to the end, returning its length.
+	 */
+	protected static long drain(InputStream inputStream, byte[] buffer) throws IOException {
+		long length = 0;
+		try {
+			for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+				length += n;
+			}
+		} finally {
+			inputStream.close();
+		}
+		return length;
+	}
+}
@@ -0,0 +1,29 @@
+package org.sturrock.cassette.cassettej;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the store benchmarks once per thread count, writing the results of
+ * each run as JSON to jmh-result-t&lt;threads&gt;.json so they can be compared
+ * between builds.
+ * 
+ * Usage: BenchmarkRunner [regexp] [threads,...]
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "Store(Read|Write)Benchmark";
+		String[] threadCounts = (args.length > 1 ? args[1] : "1,2,4,8").split(",");
+
+		for (String threadCount : threadCounts) {
+			int threads = Integer.parseInt(threadCount.trim());
+			Options options = new OptionsBuilder().include(include).threads(threads)
+					.resultFormat(ResultFormatType.JSON).result("jmh-result-t" + threads + ".json").build();
+			new Runner(options).run();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the content encodings on semi-compressible text-like content. The
+ * ratio each achieves is printed when the trial starts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ContentEncodingBenchmark {
+
+	@Param({ "gzip", "gzip-parallel", "deflate-1", "deflate-6", "deflate-9", "snappy" })
+	public String encodingName;
+
+	@Param({ "65536", "4194304" })
+	public int size;
+
+	private ContentEncoding encoding;
+	private byte[] content;
+	private byte[] encoded;
+	private byte[] buffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		if (encodingName.equals("gzip")) {
+			encoding = new GZIPContentEncoding();
+		} else if (encodingName.equals("gzip-parallel")) {
+			encoding = new ParallelGZIPContentEncoding();
+		} else if (encodingName.startsWith("deflate-")) {
+			encoding = new DeflateContentEncoding(Integer.parseInt(encodingName.substring("deflate-".length())));
+		} else if (encodingName.equals("snappy")) {
+			encoding = new SnappyContentEncoding();
+		} else {
+			throw new IllegalArgumentException("encodingName");
+		}
+		String[] words = { "content", "addressable", "store", "hash", "encoding", "cassette", "the", "a", "of",
+				"stream", "chunk", "gzip", "deflate", "snappy", "manifest", "cache" };
+		Random random = new Random(0);
+		StringBuilder builder = new StringBuilder(size);
+		while (builder.length() < size) {
+			builder.append(words[random.nextInt(words.length)]);
+			builder.append(random.nextInt(100) == 0 ? '\n' : ' ');
+		}
+		content = builder.substring(0, size).getBytes(StandardCharsets.UTF_8);
+		encoded = encode();
+		buffer = new byte[64 * 1024];
+		System.out.printf("%n%s ratio=%.3f%n", encodingName, (double) encoded.length / content.length);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size);
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		return outputStream.toByteArray();
+	}
+
+	@Benchmark
+	public long decode() throws IOException {
+		long length = 0;
+		try (InputStream inputStream = encoding.decode(new ByteArrayInputStream(encoded))) {
+			for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+				length += n;
+			}
+		}
+		return length;
+	}
+}
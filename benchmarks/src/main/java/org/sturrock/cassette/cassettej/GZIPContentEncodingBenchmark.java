@@ -0,0 +1,75 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding text-like content with gzip.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GZIPContentEncodingBenchmark {
+
+	@Param({ "1024", "65536", "1048576" })
+	public int size;
+
+	private final ContentEncoding encoding = new GZIPContentEncoding();
+	private byte[] content;
+	private byte[] encoded;
+	private byte[] buffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String[] words = { "content", "addressable", "store", "hash", "encoding", "cassette", "the", "a", "of" };
+		Random random = new Random(0);
+		StringBuilder builder = new StringBuilder(size);
+		while (builder.length() < size) {
+			builder.append(words[random.nextInt(words.length)]).append(' ');
+		}
+		content = builder.substring(0, size).getBytes("UTF-8");
+		encoded = encode();
+		buffer = new byte[64 * 1024];
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size);
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		return outputStream.toByteArray();
+	}
+
+	@Benchmark
+	public long decode() throws IOException {
+		long length = 0;
+		try (InputStream inputStream = encoding.decode(new ByteArrayInputStream(encoded))) {
+			for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+				length += n;
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,42 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing a store holding different numbers of pieces of content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetHashesBenchmark extends AbstractStoreBenchmark {
+
+	@Param({ "100", "10000", "100000" })
+	public int count;
+
+	@Override
+	protected void populate() throws IOException {
+		byte[] content = createContent(64, 0);
+		for (int i = 0; i < count; i++) {
+			stamp(content, i);
+			write(content);
+		}
+	}
+
+	@Benchmark
+	public List<Hash> getHashes() throws IOException {
+		return cas.getHashes();
+	}
+}
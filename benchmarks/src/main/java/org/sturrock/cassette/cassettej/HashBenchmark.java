@@ -0,0 +1,73 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversions between hashes, bytes and strings, and the hash's use as a map
+ * key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HashBenchmark {
+
+	private byte[] bytes;
+	private String string;
+	private Hash hash;
+	private Hash equalHash;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		bytes = new byte[Hash.byteCount];
+		new Random(0).nextBytes(bytes);
+		hash = new Hash(bytes);
+		string = hash.getString();
+		equalHash = new Hash(string);
+	}
+
+	@Benchmark
+	public Hash fromBytes() {
+		return new Hash(bytes);
+	}
+
+	@Benchmark
+	public Hash fromString() {
+		return new Hash(string);
+	}
+
+	@Benchmark
+	public String toHexString() {
+		return Hash.getString(bytes);
+	}
+
+	@Benchmark
+	public byte[] toBytes() {
+		return Hash.getBytes(string);
+	}
+
+	@Benchmark
+	public int hashCodeOf() {
+		return hash.hashCode();
+	}
+
+	@Benchmark
+	public boolean equalTo() {
+		return hash.equals(equalHash);
+	}
+}
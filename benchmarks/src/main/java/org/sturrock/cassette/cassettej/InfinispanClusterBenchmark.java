@@ -0,0 +1,133 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the clustered cache configurations. Runs all the nodes in this JVM
+ * over the loopback JGroups stack, so it measures the cost of replication and
+ * marshalling rather than of the network. Writes go to the nodes in turn and
+ * reads go to a different node to the one that wrote the content.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InfinispanClusterBenchmark {
+
+	private static final int existingCount = 256;
+
+	@Param({ "CassetteJ", "CassetteJDist", "CassetteJDistAsync" })
+	public String cacheName;
+
+	@Param({ "4" })
+	public int nodeCount;
+
+	@Param({ "65536" })
+	public int size;
+
+	private final List<ContentAddressableStoreInfinispanImpl> nodes = new ArrayList<ContentAddressableStoreInfinispanImpl>();
+	private Hash[] existing;
+	private Path tempDir;
+
+	/**
+	 * Per thread content to write, and the new content it wrote so that can
+	 * be removed after each iteration to keep the cache a steady size.
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		private final List<Hash> written = new ArrayList<Hash>();
+		private Random random;
+		private byte[] content;
+		private byte[] buffer;
+		private long counter;
+
+		@Setup(Level.Trial)
+		public void setUp(InfinispanClusterBenchmark benchmark) {
+			random = new Random(Thread.currentThread().getId());
+			content = AbstractStoreBenchmark.createContent(benchmark.size, random.nextLong());
+			buffer = new byte[64 * 1024];
+		}
+
+		@TearDown(Level.Iteration)
+		public void deleteWritten(InfinispanClusterBenchmark benchmark) throws IOException {
+			for (Hash hash : written) {
+				benchmark.nodes.get(0).delete(hash);
+			}
+			written.clear();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("CassetteJBenchmark");
+		// The store needs the config as a file rather than a resource
+		Path configFile = tempDir.resolve("infinispan-benchmark-cluster.xml");
+		try (InputStream inputStream = InfinispanClusterBenchmark.class
+				.getResourceAsStream("/infinispan-benchmark-cluster.xml")) {
+			Files.copy(inputStream, configFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreInfinispanImpl.configFilePropertyName, configFile.toString());
+		properties.put(ContentAddressableStoreInfinispanImpl.cacheNamePropertyName, cacheName);
+		for (int i = 0; i < nodeCount; i++) {
+			nodes.add(new ContentAddressableStoreInfinispanImpl(properties));
+		}
+		existing = new Hash[existingCount];
+		for (int i = 0; i < existingCount; i++) {
+			existing[i] = nodes.get(i % nodeCount).write(new ByteArrayInputStream(
+					AbstractStoreBenchmark.createContent(size, i)));
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		for (ContentAddressableStore node : nodes) {
+			node.close();
+		}
+		nodes.clear();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	@Benchmark
+	public Hash write(Client client) throws IOException {
+		AbstractStoreBenchmark.stamp(client.content, ++client.counter);
+		ContentAddressableStore node = nodes.get((int) (client.counter % nodeCount));
+		Hash hash = node.write(new ByteArrayInputStream(client.content));
+		client.written.add(hash);
+		return hash;
+	}
+
+	@Benchmark
+	public long read(Client client) throws IOException {
+		int i = client.random.nextInt(existingCount);
+		ContentAddressableStore node = nodes.get((i + 1) % nodeCount);
+		return AbstractStoreBenchmark.drain(node.read(existing[i]), client.buffer);
+	}
+}
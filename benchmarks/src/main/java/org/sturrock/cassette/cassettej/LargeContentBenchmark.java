@@ -0,0 +1,64 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single writes and reads of content from 16MiB to 256MiB, timed one at a
+ * time. The Infinispan store keeps content on the heap, hence the larger
+ * heap for the forked JVM.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class LargeContentBenchmark extends AbstractStoreBenchmark {
+
+	@Param({ "16777216", "134217728", "268435456" })
+	public int size;
+
+	private byte[] content;
+	private Hash existing;
+	private Hash written;
+	private long counter;
+	private byte[] buffer;
+
+	@Override
+	protected void populate() throws IOException {
+		content = createContent(size, 0);
+		existing = write(content);
+		buffer = new byte[64 * 1024];
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteWritten() throws IOException {
+		if (written != null) {
+			cas.delete(written);
+			written = null;
+		}
+	}
+
+	@Benchmark
+	public Hash write() throws IOException {
+		stamp(content, ++counter);
+		written = write(content);
+		return written;
+	}
+
+	@Benchmark
+	public long read() throws IOException {
+		return drain(cas.read(existing), buffer);
+	}
+}
@@ -0,0 +1,70 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The overhead of metrics, measured by a contains, length and read of small
+ * content with metrics off and on.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreMetricsBenchmark extends AbstractStoreBenchmark {
+
+	private static final int existingCount = 1000;
+
+	@Param({ "false", "true" })
+	public boolean metrics;
+
+	private Hash[] existing;
+
+	@State(Scope.Thread)
+	public static class Reader {
+		private byte[] buffer;
+		private int next;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			buffer = new byte[64 * 1024];
+		}
+
+		Hash next(StoreMetricsBenchmark benchmark) {
+			next = (next + 1) % existingCount;
+			return benchmark.existing[next];
+		}
+	}
+
+	@Override
+	protected void populate() throws IOException {
+		existing = new Hash[existingCount];
+		for (int i = 0; i < existingCount; i++) {
+			existing[i] = write(("content " + i).getBytes(StandardCharsets.UTF_8));
+		}
+		((ContentAddressableStoreImpl) cas).setMetrics(metrics ? new JmxStoreMetrics("benchmark") : null);
+	}
+
+	@Benchmark
+	public long containsLengthRead(Reader reader) throws IOException {
+		Hash hash = reader.next(this);
+		if (!cas.contains(hash) || cas.getContentLength(hash) < 0)
+			throw new IllegalStateException(hash.getString());
+		return drain(cas.read(hash), reader.buffer);
+	}
+}
@@ -0,0 +1,83 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads and lookups of small to medium content. Run with -t, or use
+ * {@link BenchmarkRunner}, to vary the number of threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreReadBenchmark extends AbstractStoreBenchmark {
+
+	private static final int existingCount = 16;
+
+	@Param({ "16", "4096", "65536", "1048576" })
+	public int size;
+
+	private Hash[] existing;
+	private Hash missing;
+
+	@State(Scope.Thread)
+	public static class Reader {
+		private Random random;
+		private byte[] buffer;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			random = new Random(Thread.currentThread().getId());
+			buffer = new byte[64 * 1024];
+		}
+
+		Hash next(StoreReadBenchmark benchmark) {
+			return benchmark.existing[random.nextInt(existingCount)];
+		}
+	}
+
+	@Override
+	protected void populate() throws IOException {
+		existing = new Hash[existingCount];
+		for (int i = 0; i < existingCount; i++) {
+			existing[i] = write(createContent(size, i));
+		}
+		missing = new Hash(createContent(Hash.byteCount, -1));
+	}
+
+	@Benchmark
+	public long read(Reader reader) throws IOException {
+		return drain(cas.read(reader.next(this)), reader.buffer);
+	}
+
+	@Benchmark
+	public boolean contains(Reader reader) {
+		return cas.contains(reader.next(this));
+	}
+
+	@Benchmark
+	public boolean containsMissing() {
+		return cas.contains(missing);
+	}
+
+	@Benchmark
+	public long getContentLength(Reader reader) throws IOException {
+		return cas.getContentLength(reader.next(this));
+	}
+}
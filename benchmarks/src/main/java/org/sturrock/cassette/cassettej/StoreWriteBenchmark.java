@@ -0,0 +1,108 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writes and deletes of small to medium content. Writes are a mix of content
+ * already in the store and new content, set by duplicateRatio. Run with -t, or
+ * use {@link BenchmarkRunner}, to vary the number of threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreWriteBenchmark extends AbstractStoreBenchmark {
+
+	private static final int existingCount = 16;
+
+	@Param({ "16", "4096", "65536", "1048576" })
+	public int size;
+
+	@Param({ "0", "0.5", "0.9", "1" })
+	public double duplicateRatio;
+
+	private byte[][] existing;
+
+	/**
+	 * Per thread content to write, and the new content it wrote so that can
+	 * be removed after each iteration to keep the store a steady size.
+	 */
+	@State(Scope.Thread)
+	public static class Writer {
+		private final List<Hash> written = new ArrayList<Hash>();
+		private Random random;
+		private byte[] content;
+		private long counter;
+		private boolean unique;
+
+		@Setup(Level.Trial)
+		public void setUp(StoreWriteBenchmark benchmark) {
+			random = new Random(Thread.currentThread().getId());
+			content = createContent(benchmark.size, random.nextLong());
+		}
+
+		byte[] next(StoreWriteBenchmark benchmark) {
+			unique = random.nextDouble() >= benchmark.duplicateRatio;
+			if (!unique) {
+				return benchmark.existing[random.nextInt(existingCount)];
+			}
+			stamp(content, ++counter);
+			return content;
+		}
+
+		@TearDown(Level.Iteration)
+		public void deleteWritten(StoreWriteBenchmark benchmark) throws IOException {
+			for (Hash hash : written) {
+				benchmark.cas.delete(hash);
+			}
+			written.clear();
+		}
+	}
+
+	@Override
+	protected void populate() throws IOException {
+		existing = new byte[existingCount][];
+		for (int i = 0; i < existingCount; i++) {
+			existing[i] = createContent(size, i);
+			write(existing[i]);
+		}
+	}
+
+	@Benchmark
+	public Hash write(Writer writer) throws IOException {
+		Hash hash = write(writer.next(this));
+		if (writer.unique) {
+			writer.written.add(hash);
+		}
+		return hash;
+	}
+
+	@Benchmark
+	public boolean writeThenDelete(Writer writer) throws IOException {
+		Hash hash = write(writer.next(this));
+		// Keep the content which was already there
+		if (!writer.unique) {
+			return false;
+		}
+		return cas.delete(hash);
+	}
+}
@@ -0,0 +1,126 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryCreated;
+import org.infinispan.notifications.cachelistener.annotation.CacheEntryRemoved;
+import org.infinispan.notifications.cachelistener.event.CacheEntryCreatedEvent;
+import org.infinispan.notifications.cachelistener.event.CacheEntryRemovedEvent;
+
+/**
+ * Passes on content added to or removed from the cache by other nodes to the
+ * listeners of a ContentAddressableStoreInfinispanImpl. Changes made through
+ * the store itself are ignored as the store notifies its listeners of those
+ * directly.
+ * 
+ * The Infinispan notification thread only queues each change. A separate
+ * thread delivers them in batches, so slow listeners don't hold up the
+ * cluster.
+ * 
+ * In replicated mode every node sees every change. In distributed mode a node
+ * only sees changes to content it owns.
+ */
+@Listener
+public final class CacheEventBridge {
+
+	private static final class Change {
+		final Hash hash;
+		final boolean added;
+
+		Change(Hash hash, boolean added) {
+			this.hash = hash;
+			this.added = added;
+		}
+	}
+
+	private final ContentAddressableStoreImpl store;
+	private final int batchSize;
+	private final BlockingQueue<Change> changes = new LinkedBlockingQueue<Change>();
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	CacheEventBridge(ContentAddressableStoreImpl store, int batchSize) {
+		this.store = store;
+		this.batchSize = batchSize;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				deliver();
+			}
+		}, "CassetteJ-CacheEventBridge");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@CacheEntryCreated
+	public void cacheEntryCreated(CacheEntryCreatedEvent<Hash, CacheValue> event) {
+		if (!event.isPre() && !event.isOriginLocal()) {
+			changes.add(new Change(event.getKey(), true));
+		}
+	}
+
+	@CacheEntryRemoved
+	public void cacheEntryRemoved(CacheEntryRemovedEvent<Hash, CacheValue> event) {
+		if (!event.isPre() && !event.isOriginLocal()) {
+			changes.add(new Change(event.getKey(), false));
+		}
+	}
+
+	private void deliver() {
+		List<Change> batch = new ArrayList<Change>(batchSize);
+		List<Hash> hashes = new ArrayList<Hash>(batchSize);
+		while (running || !changes.isEmpty()) {
+			try {
+				batch.add(changes.take());
+			} catch (InterruptedException e) {
+				// close() wants us to finish up
+				continue;
+			}
+			changes.drainTo(batch, batchSize - 1);
+
+			// Deliver runs of adds and removes in the order they happened
+			boolean added = batch.get(0).added;
+			for (Change change : batch) {
+				if (change.added != added) {
+					notify(hashes, added);
+					hashes.clear();
+					added = change.added;
+				}
+				hashes.add(change.hash);
+			}
+			notify(hashes, added);
+			hashes.clear();
+			batch.clear();
+		}
+	}
+
+	private void notify(List<Hash> hashes, boolean added) {
+		try {
+			if (added) {
+				store.notifyListenersContentAdded(hashes);
+			} else {
+				store.notifyListenersContentRemoved(hashes);
+			}
+		} catch (RuntimeException e) {
+			// Report a broken listener but keep delivering to the others
+			Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(), e);
+		}
+	}
+
+	/**
+	 * Deliver any changes already queued and stop.
+	 */
+	void close() {
+		running = false;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
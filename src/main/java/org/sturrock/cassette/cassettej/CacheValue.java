@@ -0,0 +1,98 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The value stored against each hash by ContentAddressableStoreInfinispanImpl.
+ * Holds the raw content plus any encoded versions of it, keyed by the name of
+ * the encoding, and the names of the encodings that are still to be produced.
+ * 
+ * The content is held in ByteBuffers which may be direct, ie off the Java
+ * heap. The buffers are never read from directly, only through duplicates, so
+ * a CacheValue can be shared between threads.
+ */
+final class CacheValue {
+	public ByteBuffer raw;
+	public Map<String, ByteBuffer> encoded = new HashMap<String, ByteBuffer>();
+	/**
+	 * Kept with the content so that every node, and a restarted one, reports
+	 * the same encodings as available.
+	 */
+	public Set<String> pending = new HashSet<String>();
+	/**
+	 * One more than that of the value this was copied from, so that a
+	 * conditional replace can tell whether the value has changed without
+	 * comparing the content.
+	 */
+	public long version;
+
+	/**
+	 * @return A value with the same content and the next version which can be
+	 *         changed without affecting this one
+	 */
+	CacheValue copy() {
+		CacheValue cacheValue = new CacheValue();
+		cacheValue.version = version + 1;
+		cacheValue.raw = raw;
+		cacheValue.encoded.putAll(encoded);
+		cacheValue.pending.addAll(pending);
+		return cacheValue;
+	}
+
+	/**
+	 * Equal if the version and the names of the encodings are, so that a value
+	 * the cache has marshalled can be used in a conditional replace. The
+	 * content itself is not compared as every value for a hash holds the same
+	 * content.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CacheValue)) {
+			return false;
+		}
+		CacheValue other = (CacheValue) obj;
+		return version == other.version && encoded.keySet().equals(other.encoded.keySet())
+				&& pending.equals(other.pending);
+	}
+
+	@Override
+	public int hashCode() {
+		return Long.hashCode(version);
+	}
+
+	/**
+	 * Create a buffer holding the given bytes.
+	 * 
+	 * @param bytes
+	 *            The bytes to hold
+	 * @param offHeap
+	 *            Whether to copy the bytes off the heap into a direct buffer
+	 *            or just wrap them
+	 * @return The buffer
+	 */
+	static ByteBuffer toBuffer(byte[] bytes, boolean offHeap) {
+		if (!offHeap) {
+			return ByteBuffer.wrap(bytes);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return A stream reading the contents of the buffer, without affecting
+	 *         the buffer itself
+	 */
+	static InputStream toInputStream(ByteBuffer buffer) {
+		return new ByteBufferInputStream(buffer.duplicate());
+	}
+}
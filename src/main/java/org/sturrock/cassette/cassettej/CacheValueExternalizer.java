@@ -0,0 +1,151 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.infinispan.commons.marshall.AbstractExternalizer;
+
+/**
+ * Marshalls a CacheValue as length-prefixed byte arrays. The format is:
+ * 
+ * <pre>
+ * int    -2, marking the version as present
+ * long   version
+ * int    raw length
+ * byte[] raw content
+ * int    number of encodings
+ * then for each encoding:
+ *   UTF    encoding name
+ *   int    encoded length
+ *   byte[] encoded content
+ * </pre>
+ * 
+ * Values written before the version was kept start with the raw length and
+ * are read as version 0.
+ * 
+ * Content can be unmarshalled either onto the heap or into direct buffers off
+ * the heap.
+ */
+class CacheValueExternalizer extends AbstractExternalizer<CacheValue> {
+
+	private static final long serialVersionUID = 3175404406312519528L;
+
+	/**
+	 * Externalizer id. Must be unique within the cache manager and outside the
+	 * ranges reserved by Infinispan.
+	 */
+	public static final int id = 4781;
+
+	/**
+	 * Size of the chunks used to copy between direct buffers and the stream.
+	 */
+	private static final int bufferSize = 8192;
+
+	/**
+	 * Written in place of the length of an encoding which is pending.
+	 */
+	private static final int pendingLength = -1;
+
+	/**
+	 * Written before the version, in place of the raw length which can never
+	 * be negative.
+	 */
+	private static final int versionMarker = -2;
+
+	private final boolean offHeap;
+
+	/**
+	 * @param offHeap
+	 *            Whether to unmarshall content into direct buffers
+	 */
+	public CacheValueExternalizer(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	@Override
+	public Set<Class<? extends CacheValue>> getTypeClasses() {
+		return Collections.<Class<? extends CacheValue>> singleton(CacheValue.class);
+	}
+
+	@Override
+	public Integer getId() {
+		return id;
+	}
+
+	@Override
+	public void writeObject(ObjectOutput output, CacheValue cacheValue) throws IOException {
+		output.writeInt(versionMarker);
+		output.writeLong(cacheValue.version);
+		writeBytes(output, cacheValue.raw);
+		// Pending encodings are written as encodings with no length, so
+		// values written before they were kept can still be read
+		output.writeInt(cacheValue.encoded.size() + cacheValue.pending.size());
+		for (Map.Entry<String, ByteBuffer> entry : cacheValue.encoded.entrySet()) {
+			output.writeUTF(entry.getKey());
+			writeBytes(output, entry.getValue());
+		}
+		for (String name : cacheValue.pending) {
+			output.writeUTF(name);
+			output.writeInt(pendingLength);
+		}
+	}
+
+	@Override
+	public CacheValue readObject(ObjectInput input) throws IOException {
+		CacheValue cacheValue = new CacheValue();
+		int length = input.readInt();
+		if (length == versionMarker) {
+			cacheValue.version = input.readLong();
+			length = input.readInt();
+		}
+		cacheValue.raw = readBytes(input, length);
+		int count = input.readInt();
+		for (int i = 0; i < count; ++i) {
+			String name = input.readUTF();
+			length = input.readInt();
+			if (length == pendingLength) {
+				cacheValue.pending.add(name);
+			} else {
+				cacheValue.encoded.put(name, readBytes(input, length));
+			}
+		}
+		return cacheValue;
+	}
+
+	private static void writeBytes(ObjectOutput output, ByteBuffer buffer) throws IOException {
+		output.writeInt(buffer.remaining());
+		if (buffer.hasArray()) {
+			output.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		ByteBuffer source = buffer.duplicate();
+		byte[] bytes = new byte[Math.min(bufferSize, source.remaining())];
+		while (source.hasRemaining()) {
+			int length = Math.min(bytes.length, source.remaining());
+			source.get(bytes, 0, length);
+			output.write(bytes, 0, length);
+		}
+	}
+
+	private ByteBuffer readBytes(ObjectInput input, int length) throws IOException {
+		if (!offHeap) {
+			byte[] bytes = new byte[length];
+			input.readFully(bytes);
+			return ByteBuffer.wrap(bytes);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		byte[] bytes = new byte[Math.min(bufferSize, length)];
+		while (buffer.hasRemaining()) {
+			int chunk = Math.min(bytes.length, buffer.remaining());
+			input.readFully(bytes, 0, chunk);
+			buffer.put(bytes, 0, chunk);
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
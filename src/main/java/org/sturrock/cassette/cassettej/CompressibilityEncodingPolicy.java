@@ -0,0 +1,172 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Skips encodings that wouldn't make content usefully smaller. Content that
+ * starts with the signature of a common compressed format is skipped
+ * straight away. Otherwise the start of the content is trial encoded and the
+ * ratio achieved on it is taken as an estimate for the whole content.
+ * 
+ * Keeps counts of what it has skipped, including an estimate of the time
+ * skipping has saved based on how long the trial encodings took. The store
+ * also reports each skipped encoding to its {@link StoreMetrics}, so
+ * {@link JmxStoreMetrics} exposes the same counts over JMX.
+ */
+public class CompressibilityEncodingPolicy implements EncodingPolicy {
+
+	/**
+	 * Signatures of formats which are already compressed: JPEG, PNG, GIF,
+	 * gzip, zip (and so docx, jar etc), 7z, bzip2, xz, zstd and WebP/RIFF.
+	 */
+	private static final byte[][] compressedSignatures = { { (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+			{ (byte) 0x89, 'P', 'N', 'G' }, { 'G', 'I', 'F', '8' }, { 0x1f, (byte) 0x8b }, { 'P', 'K', 3, 4 },
+			{ '7', 'z', (byte) 0xbc, (byte) 0xaf }, { 'B', 'Z', 'h' }, { (byte) 0xfd, '7', 'z', 'X', 'Z' },
+			{ 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, { 'R', 'I', 'F', 'F' } };
+
+	private final int sampleSize;
+	private final double maxRatio;
+	private final long minSavings;
+
+	private final AtomicLong encoded = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong skippedBytes = new AtomicLong();
+	private final AtomicLong sampledBytes = new AtomicLong();
+	private final AtomicLong sampleNanos = new AtomicLong();
+
+	/**
+	 * Sample 64KiB and require encodings to save at least 10% and 512 bytes.
+	 */
+	public CompressibilityEncodingPolicy() {
+		this(64 * 1024, 0.9, 512);
+	}
+
+	/**
+	 * @param sampleSize
+	 *            How much of the start of the content to trial encode
+	 * @param maxRatio
+	 *            The largest encoded to raw size ratio worth keeping
+	 * @param minSavings
+	 *            The fewest bytes an encoding must be estimated to save
+	 */
+	public CompressibilityEncodingPolicy(int sampleSize, double maxRatio, long minSavings) {
+		if (sampleSize < 1)
+			throw new IllegalArgumentException("sampleSize");
+		if (maxRatio <= 0)
+			throw new IllegalArgumentException("maxRatio");
+		if (minSavings < 0)
+			throw new IllegalArgumentException("minSavings");
+		this.sampleSize = sampleSize;
+		this.maxRatio = maxRatio;
+		this.minSavings = minSavings;
+	}
+
+	@Override
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	@Override
+	public boolean shouldEncode(ContentEncoding encoding, byte[] sample, int sampleLength, long contentLength) {
+		if (isCompressedFormat(sample, sampleLength) || contentLength < minSavings) {
+			return skip(contentLength);
+		}
+
+		long start = System.nanoTime();
+		long encodedLength;
+		try {
+			encodedLength = trialEncode(encoding, sample, sampleLength);
+		} catch (IOException e) {
+			// Let the real encoding report the problem
+			return true;
+		}
+		sampleNanos.addAndGet(System.nanoTime() - start);
+		sampledBytes.addAndGet(sampleLength);
+
+		double ratio = sampleLength == 0 ? 1 : (double) encodedLength / sampleLength;
+		double savings = (1 - ratio) * contentLength;
+		if (ratio > maxRatio || savings < minSavings) {
+			return skip(contentLength);
+		}
+		encoded.incrementAndGet();
+		return true;
+	}
+
+	private boolean skip(long contentLength) {
+		skipped.incrementAndGet();
+		skippedBytes.addAndGet(contentLength);
+		return false;
+	}
+
+	private static boolean isCompressedFormat(byte[] sample, int sampleLength) {
+		for (byte[] signature : compressedSignatures) {
+			if (sampleLength < signature.length) {
+				continue;
+			}
+			boolean matches = true;
+			for (int i = 0; i < signature.length && matches; ++i) {
+				matches = sample[i] == signature[i];
+			}
+			if (matches) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long trialEncode(ContentEncoding encoding, byte[] sample, int sampleLength) throws IOException {
+		CountingOutputStream countingOutputStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+		try (OutputStream encodedOutputStream = encoding.encode(countingOutputStream)) {
+			encodedOutputStream.write(sample, 0, sampleLength);
+		}
+		return countingOutputStream.getByteCount();
+	}
+
+	/**
+	 * @return The number of encodings this policy has allowed
+	 */
+	public long getEncodedCount() {
+		return encoded.get();
+	}
+
+	/**
+	 * @return The number of encodings this policy has skipped
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return The total raw length of the content whose encodings were
+	 *         skipped
+	 */
+	public long getSkippedBytes() {
+		return skippedBytes.get();
+	}
+
+	/**
+	 * @return An estimate of the time that would have been spent producing
+	 *         the skipped encodings, based on the speed of the trial
+	 *         encodings. Doesn't take off the time the trials themselves took,
+	 *         see {@link #getSampleNanos()}.
+	 */
+	public long getEstimatedNanosSaved() {
+		long bytes = sampledBytes.get();
+		if (bytes == 0) {
+			return 0;
+		}
+		return (long) ((double) sampleNanos.get() / bytes * skippedBytes.get());
+	}
+
+	/**
+	 * @return The time spent on trial encodings
+	 */
+	public long getSampleNanos() {
+		return sampleNanos.get();
+	}
+}
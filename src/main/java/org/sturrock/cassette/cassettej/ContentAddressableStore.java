@@ -2,6 +2,7 @@ package org.sturrock.cassette.cassettej;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
 import java.util.List;
 
 /*
@@ -49,6 +50,40 @@ public interface ContentAddressableStore extends AutoCloseable {
 	 */
 	Hash write(InputStream stream, List<ContentEncoding> encodings) throws IOException;
 
+	/**
+	 * Write content whose hash the caller already knows. If the store already
+	 * contains the content the stream isn't read at all, though any of the
+	 * encodings the content isn't stored in yet are made from the stored
+	 * copy. Otherwise the content is hashed as it is read and, if it doesn't
+	 * have the expected hash, the write fails before anything is stored.
+	 * 
+	 * @param expected
+	 *            The hash of the content
+	 * @param stream
+	 *            Content to be written
+	 * @return hash of (raw) content, which is the expected hash
+	 * @throws HashMismatchException
+	 *             if the content doesn't have the expected hash
+	 * @throws IOException
+	 */
+	Hash write(Hash expected, InputStream stream, List<ContentEncoding> encodings) throws IOException;
+
+	/**
+	 * Write content that is already encoded, eg a gzipped upload. The content
+	 * is decoded once to find its hash and store it raw, and the encoded
+	 * content is kept as given as that encoding of it, rather than encoding
+	 * it again.
+	 * 
+	 * @param stream
+	 *            Encoded content to be written
+	 * @param contentEncoding
+	 *            The encoding of the stream
+	 * @return hash of the decoded (raw) content
+	 * @throws IOException
+	 *             including if the stream can't be decoded
+	 */
+	Hash writeEncoded(InputStream stream, ContentEncoding contentEncoding) throws IOException;
+
 	/**
 	 * Check whether content exists in the store with the specified hash
 	 * 
@@ -142,6 +177,28 @@ public interface ContentAddressableStore extends AutoCloseable {
 	 */
 	boolean delete(Hash hash) throws IOException;
 
+	/**
+	 * Delete many pieces of content from the store. This is quicker than
+	 * deleting each in turn, and listeners are told of the removals
+	 * together.
+	 * 
+	 * @param hashes
+	 *            Hashes of content to delete
+	 * @return The hashes of the content which existed and was deleted
+	 * @throws IOException
+	 */
+	List<Hash> deleteAll(Collection<Hash> hashes) throws IOException;
+
+	/**
+	 * Get how much content is in the store. The store keeps running counts
+	 * as content is written and deleted, so unlike adding up the lengths of
+	 * everything returned by getHashes() this doesn't scan the store.
+	 * 
+	 * @return The number of pieces of content in the store and their total
+	 *         length, raw and in each encoding.
+	 */
+	StoreStatistics getStatistics();
+
 	/**
 	 * Add a listener to this store.
 	 * 
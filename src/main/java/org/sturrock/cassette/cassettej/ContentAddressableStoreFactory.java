@@ -6,7 +6,7 @@ import java.util.Properties;
 public class ContentAddressableStoreFactory {
 
 	public enum ImplementationType {
-		FILE, INFINISPAN
+		FILE, INFINISPAN, REMOTE, SHARDED
 	}
 
 	public static ContentAddressableStore createContentAddressableStore(
@@ -19,6 +19,12 @@ public class ContentAddressableStoreFactory {
 		case INFINISPAN:
 			return new ContentAddressableStoreInfinispanImpl(properties);
 
+		case REMOTE:
+			return new ContentAddressableStoreRemoteImpl(properties);
+
+		case SHARDED:
+			return new ContentAddressableStoreShardedImpl(properties);
+
 		default:
 			throw new IllegalArgumentException(
 					"Unknown ContentAddressableStore implementation type: "
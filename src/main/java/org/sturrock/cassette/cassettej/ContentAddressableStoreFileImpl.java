@@ -23,19 +23,39 @@ import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.zip.DeflaterOutputStream;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 
@@ -87,6 +107,168 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 	public boolean isUsingAtomicMove() {
 		return useAtomicMove;
 	}
+
+	/**
+	 * Name of the property specifying whether to split new content into
+	 * content-defined chunks, storing each distinct chunk only once.
+	 */
+	public final static String chunkingPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".chunking";
+
+	/**
+	 * Name of the property specifying the average chunk size in bytes when
+	 * chunking. Defaults to 16KiB.
+	 */
+	public final static String chunkSizePropertyName = ContentAddressableStoreFileImpl.class.getName() + ".chunkSize";
+
+	private boolean useChunking = false;
+
+	private int chunkSize = 16 * 1024;
+
+	/**
+	 * @return whether this filestore splits new content into chunks
+	 */
+	public boolean isUsingChunking() {
+		return useChunking;
+	}
+
+	/**
+	 * Name of the property specifying an encoding to store new content in
+	 * instead of storing the raw content. Raw reads decode it on the fly. Not
+	 * set by default. Can't be combined with chunking. Content the encoding
+	 * policy says isn't worth encoding is stored raw.
+	 */
+	public final static String atRestEncodingPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".atRestEncoding";
+
+	private ContentEncoding atRestEncoding = null;
+
+	/**
+	 * @return the encoding new content is stored in, or null if new content
+	 *         is stored raw
+	 */
+	public ContentEncoding getAtRestEncoding() {
+		return atRestEncoding;
+	}
+
+	/**
+	 * Suffix of the manifest file describing content that isn't stored raw,
+	 * ie chunked or encoded content.
+	 */
+	private static final String manifestSuffix = ".manifest";
+
+	/**
+	 * The path for chunks, laid out in the same way as content under the root
+	 * path.
+	 */
+	private final Path chunksPath;
+
+	/**
+	 * Name of the property specifying when encodings are produced, one of the
+	 * {@link EncodingMode} names. Defaults to SYNC.
+	 */
+	public final static String encodingModePropertyName = ContentAddressableStoreFileImpl.class.getName() + ".encodingMode";
+
+	/**
+	 * Name of the property specifying the number of threads producing
+	 * encodings in BACKGROUND mode. Defaults to the number of processors.
+	 */
+	public final static String encodingThreadsPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".encodingThreads";
+
+	/**
+	 * Name of the property specifying how many writes can be queued for the
+	 * encoding threads in BACKGROUND mode before writers encode their own
+	 * content. Defaults to 1000.
+	 */
+	public final static String encodingQueueSizePropertyName = ContentAddressableStoreFileImpl.class.getName() + ".encodingQueueSize";
+
+	private final EncodingScheduler encodingScheduler;
+
+	/**
+	 * Name of the property specifying the number of threads deleting prefix
+	 * directories in deleteAll. Defaults to 4.
+	 */
+	public final static String deleteThreadsPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".deleteThreads";
+
+	private final int deleteThreads;
+
+	/**
+	 * The path for the pin counts of roots, one file per pinned hash.
+	 */
+	private final Path rootsPath;
+
+	/**
+	 * The path damaged files are moved to, laid out in the same way as the
+	 * rest of the store.
+	 */
+	private final Path quarantinePath;
+
+	/**
+	 * The path recording which encodings of content are still to be
+	 * produced, laid out in the same way as the rest of the store. Kept out
+	 * of the content directories so nothing listing them mistakes the
+	 * records for encodings.
+	 */
+	private final Path pendingPath;
+
+	/**
+	 * Locks which make checking for existing content or chunks and then
+	 * touching or writing them atomic with respect to the garbage collector
+	 * deleting them. Striped by hash.
+	 */
+	private final Object[] locks = new Object[256];
+
+	/**
+	 * Name of the property specifying how often, in milliseconds, the
+	 * statistics are saved so they survive the store not being closed
+	 * cleanly. Defaults to 60000. 0 only saves them when the store is closed.
+	 */
+	public final static String statisticsCheckpointIntervalPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".statisticsCheckpointInterval";
+
+	/**
+	 * Name of the property specifying how often, in milliseconds, the
+	 * statistics are audited against the content on disk. Defaults to 0,
+	 * which only audits them when they can't be trusted at startup.
+	 */
+	public final static String statisticsAuditIntervalPropertyName = ContentAddressableStoreFileImpl.class.getName() + ".statisticsAuditInterval";
+
+	/**
+	 * The file the statistics are saved in. Lower case so it is never taken
+	 * for content.
+	 */
+	private final Path statisticsPath;
+
+	/**
+	 * Tells whether another store has used the root while this one had it
+	 * open, in which case the statistics aren't saved as clean.
+	 */
+	private final RootLock rootLock;
+
+	/**
+	 * Whether the saved statistics were up to date when saved, ie the store
+	 * was closed cleanly.
+	 */
+	private static final String cleanStatisticsKey = "clean";
+
+	/**
+	 * Saves and audits the statistics in the background, or null if neither
+	 * is needed.
+	 */
+	private ScheduledExecutorService statisticsExecutor;
+
+	private final Object auditLock = new Object();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Summary of the content in the store, for comparing it with another
+	 */
+	private final StoreSummary summary = new StoreSummary(this);
+
+	/**
+	 * @return when this filestore produces encodings
+	 */
+	public EncodingMode getEncodingMode() {
+		return encodingScheduler.getMode();
+	}
 	
 	/**
 	 * Initialises the store.
@@ -95,7 +277,20 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 	 *                   properties are:
 	 *                   <code>ContentAddressableStoreFileImpl.class.getName() + ".rootPath"</code>
 	 *                   which specifies the path to the root directory of the
-	 *                   storage.
+	 *                   storage; <code>atomicMovePropertyName</code>;
+	 *                   and <code>chunkingPropertyName</code> and
+	 *                   <code>chunkSizePropertyName</code> which control
+	 *                   whether new content is split into chunks;
+	 *                   <code>atRestEncodingPropertyName</code> which stores
+	 *                   new content encoded rather than raw; and
+	 *                   <code>encodingModePropertyName</code>,
+	 *                   <code>encodingThreadsPropertyName</code> and
+	 *                   <code>encodingQueueSizePropertyName</code> which
+	 *                   control when encodings are produced;
+	 *                   <code>deleteThreadsPropertyName</code>; and
+	 *                   <code>statisticsCheckpointIntervalPropertyName</code>
+	 *                   and <code>statisticsAuditIntervalPropertyName</code>
+	 *                   which control how the statistics are kept.
 	 * @throws IOException
 	 */
 	public ContentAddressableStoreFileImpl(Properties properties) throws IOException {
@@ -104,24 +299,64 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 
 		String atomicMove = properties.getProperty(atomicMovePropertyName);
 		useAtomicMove = Boolean.parseBoolean(atomicMove); 
+
+		useChunking = Boolean.parseBoolean(properties.getProperty(chunkingPropertyName));
+		String chunkSize = properties.getProperty(chunkSizePropertyName);
+		if (chunkSize != null) {
+			this.chunkSize = Integer.parseInt(chunkSize);
+		}
+
+		String atRestEncodingName = properties.getProperty(atRestEncodingPropertyName);
+		if (atRestEncodingName != null && !atRestEncodingName.equals("")) {
+			atRestEncoding = ContentEncodingFactory.createEncoding(atRestEncodingName);
+			if (atRestEncoding == null) {
+				throw new IllegalArgumentException("Unknown encoding " + atRestEncodingName + " for " + atRestEncodingPropertyName);
+			}
+			if (useChunking) {
+				throw new IllegalArgumentException(atRestEncodingPropertyName + " can't be used with " + chunkingPropertyName);
+			}
+		}
 		
 		String rootPath = properties.getProperty(rootPathPropertyName);
 		if (rootPath == null || rootPath.equals("")) {
 			throw new IllegalArgumentException("No property " + rootPathPropertyName + " found");
 		}
 		this.rootPath = Paths.get(rootPath);
+		this.chunksPath = this.rootPath.resolve("chunks");
+		this.rootsPath = this.rootPath.resolve("roots");
+		this.statisticsPath = this.rootPath.resolve("statistics");
+		this.quarantinePath = this.rootPath.resolve("quarantine");
+		this.pendingPath = this.rootPath.resolve("pending");
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+
+		encodingScheduler = EncodingScheduler.create(properties, encodingModePropertyName,
+				encodingThreadsPropertyName, encodingQueueSizePropertyName, this::writeEncodings);
+
+		deleteThreads = Integer.parseInt(properties.getProperty(deleteThreadsPropertyName, "4"));
+		if (deleteThreads <= 0)
+			throw new IllegalArgumentException(deleteThreadsPropertyName);
+
+		long checkpointInterval = Long.parseLong(properties.getProperty(statisticsCheckpointIntervalPropertyName, "60000"));
+		if (checkpointInterval < 0)
+			throw new IllegalArgumentException(statisticsCheckpointIntervalPropertyName);
+		long auditInterval = Long.parseLong(properties.getProperty(statisticsAuditIntervalPropertyName, "0"));
+		if (auditInterval < 0)
+			throw new IllegalArgumentException(statisticsAuditIntervalPropertyName);
 
 		if (!Files.isDirectory(this.rootPath))
 			Files.createDirectories(this.rootPath);
-	}
 
-	@Override
-	public Hash write(InputStream inputStream) throws IOException {
-		return write(inputStream, new LinkedList<ContentEncoding>());
+		rootLock = new RootLock(this.rootPath);
+		boolean exact = loadStatistics();
+		// Until the store is closed the saved statistics may fall behind
+		saveStatistics(false);
+		startStatistics(checkpointInterval, auditInterval, !exact);
 	}
 
 	@Override
-	public Hash write(InputStream inputStream, List<ContentEncoding> encodings) throws IOException {
+	protected Hash doWrite(InputStream inputStream, List<ContentEncoding> encodings) throws IOException {
 		if (inputStream == null) {
 			throw new IllegalArgumentException("inputStream");
 		}
@@ -134,15 +369,106 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 			Files.copy(inputStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
 		} catch (Exception e) {
 			Files.delete(tmpFile);
-			throw new IOException(e);
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+
+		return write(tmpFile, null, encodings, null, null);
+	}
+
+	@Override
+	protected Hash doWrite(Hash expected, InputStream inputStream, List<ContentEncoding> encodings)
+			throws IOException {
+		if (expected != null) {
+			// Mark the content as in use before it is looked for, so the
+			// garbage collector can't delete it once it has been found
+			synchronized (lockFor(expected.getString())) {
+				touch(expected);
+			}
+		}
+		return super.doWrite(expected, inputStream, encodings);
+	}
+
+	/**
+	 * Encodes the stored content, as a write of content the store already
+	 * has would, rather than writing it again.
+	 */
+	@Override
+	protected boolean doAddEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		encodings = applyEncodingPolicy(hash, encodings);
+		synchronized (lockFor(hash.getString())) {
+			if (!doContains(hash)) {
+				return false;
+			}
+			// Mark the content as in use so the garbage collector keeps it
+			touch(hash);
+		}
+		encodingScheduler.schedule(hash, markPending(hash, encodings));
+		return true;
+	}
+
+	@Override
+	protected Hash doWriteEncoded(InputStream inputStream, ContentEncoding contentEncoding) throws IOException {
+		if (inputStream == null) {
+			throw new IllegalArgumentException("inputStream");
+		}
+		if (contentEncoding == null) {
+			throw new IllegalArgumentException("contentEncoding");
 		}
 
-		MessageDigest messageDigest;
+		// Keep the encoded content as it is and decode it once to get the raw
+		// content
+		Path encodedTmpFile = Files.createTempFile("CassetteJ", ".tmp");
+		Path tmpFile = null;
 		try {
-			messageDigest = MessageDigest.getInstance("SHA1");
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalArgumentException(e);
+			Files.copy(inputStream, encodedTmpFile, StandardCopyOption.REPLACE_EXISTING);
+			tmpFile = Files.createTempFile("CassetteJ", ".tmp");
+			try (InputStream decodedInputStream = contentEncoding
+					.decode(new BufferedInputStream(Files.newInputStream(encodedTmpFile)));) {
+				Files.copy(decodedInputStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (Exception e) {
+			Files.delete(encodedTmpFile);
+			if (tmpFile != null) {
+				Files.delete(tmpFile);
+			}
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+
+		return write(tmpFile, null, new LinkedList<ContentEncoding>(), contentEncoding, encodedTmpFile);
+	}
+
+	/**
+	 * Store content that has been written to a temporary file, which is moved
+	 * or deleted.
+	 * 
+	 * @param expected
+	 *            If not null, the hash the content must have for it to be
+	 *            stored
+	 * @param encodedTmpFile
+	 *            If not null, a temporary file with the content already in
+	 *            encodedWith, which is used as that encoding rather than
+	 *            encoding the content again.
+	 */
+	private Hash write(Path tmpFile, Hash expected, List<ContentEncoding> encodings, ContentEncoding encodedWith,
+			Path encodedTmpFile) throws IOException {
+		try {
+			return writeTmpFile(tmpFile, expected, encodings, encodedWith, encodedTmpFile);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+			if (encodedTmpFile != null) {
+				Files.deleteIfExists(encodedTmpFile);
+			}
 		}
+	}
+
+	private Hash writeTmpFile(Path tmpFile, Hash expected, List<ContentEncoding> encodings,
+			ContentEncoding encodedWith, Path encodedTmpFile) throws IOException {
+		MessageDigest messageDigest = createMessageDigest();
+
+		// Keep the start of the content for the encoding policy
+		EncodingPolicy encodingPolicy = getEncodingPolicy();
+		byte[] sample = new byte[encodingPolicy == null ? 0 : encodingPolicy.getSampleSize()];
+		int sampleLength = 0;
 
 		try (InputStream fileInputStream = new FileInputStream(tmpFile.toFile());) {
 			int n = 0;
@@ -151,6 +477,11 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 				n = fileInputStream.read(buffer);
 				if (n > 0) {
 					messageDigest.update(buffer, 0, n);
+					if (sampleLength < sample.length) {
+						int m = Math.min(n, sample.length - sampleLength);
+						System.arraycopy(buffer, 0, sample, sampleLength, m);
+						sampleLength += m;
+					}
 				}
 			}
 		}
@@ -158,42 +489,59 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 		final byte[] bytes = messageDigest.digest();
 
 		Hash hash = new Hash(bytes);
+		if (expected != null && !expected.equals(hash)) {
+			throw new HashMismatchException(expected, hash);
+		}
 
 		// Determine the location for the content file
 		Path contentPath = getContentPath(hash.getString());
 		Path subPath = getSubPath(hash.getString());
 
+		long contentLength = Files.size(tmpFile);
+		encodings = applyEncodingPolicy(hash, encodings, sample, sampleLength, contentLength);
+
 		// Write the file if it doesn't already exist
 		boolean contentAdded = false;
-		if (!Files.exists(contentPath)) {
-			// Ensure the sub-path exists
-			if (!Files.isDirectory(subPath))
-				Files.createDirectories(subPath);
+		synchronized (lockFor(hash.getString())) {
+			if (!doContains(hash)) {
+				// Ensure the sub-path exists
+				if (!Files.isDirectory(subPath))
+					Files.createDirectories(subPath);
 
-			if(useAtomicMove) {
-				Files.move(tmpFile, contentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				if (useChunking) {
+					writeChunks(tmpFile, getContentPath(hash.getString() + manifestSuffix));
+				} else if (atRestEncoding != null && atRestEncoding.getName().equals(getName(encodedWith))) {
+					// Already in the at rest encoding so no need to encode it
+					writeAtRest(tmpFile, hash, encodedTmpFile);
+				} else if (atRestEncoding != null && !applyEncodingPolicy(hash,
+						Collections.singletonList(atRestEncoding), sample, sampleLength, contentLength).isEmpty()) {
+					writeAtRest(tmpFile, hash, null);
+				} else {
+					move(tmpFile, contentPath);
+				}
+				contentAdded = true;
+				statistics.contentAdded(getPrefix(hash.getString()), contentLength);
 			} else {
-				Files.move(tmpFile, contentPath, StandardCopyOption.REPLACE_EXISTING);
+				// Mark the content as in use so the garbage collector keeps it
+				touch(hash);
 			}
-			contentAdded = true;
-		} else {
-			Files.delete(tmpFile);
 		}
 
-		// Now write the encoded versions
-		for (ContentEncoding encoding : encodings) {
-			Path encodedContentPath = getContentPath(hash.getString() + "." + encoding.getName());
-			if (Files.exists(encodedContentPath)) {
-				continue;
-			}
-			try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(encodedContentPath));
-					DeflaterOutputStream encodedOutputStream = encoding.encode(outputStream);
-					InputStream rawContents = Files.newInputStream(contentPath);) {
-				IOUtils.copy(rawContents, encodedOutputStream);
-				encodedOutputStream.finish();
+		// Keep any encoding we were given, unless it's already there
+		if (encodedTmpFile != null && Files.exists(encodedTmpFile)) {
+			Path encodedContentPath = getContentPath(hash.getString() + "." + encodedWith.getName());
+			synchronized (lockFor(hash.getString())) {
+				if (!Files.exists(encodedContentPath) && doContains(hash)) {
+					long encodedLength = Files.size(encodedTmpFile);
+					move(encodedTmpFile, encodedContentPath);
+					statistics.encodingAdded(getPrefix(hash.getString()), encodedWith.getName(), encodedLength);
+				}
 			}
 		}
 
+		// Now write the encoded versions, or arrange for them to be written
+		encodingScheduler.schedule(hash, markPending(hash, encodings));
+
 		// Only notify listeners after writing everything
 		if (contentAdded) {
 			notifyListenersContentAdded(hash);
@@ -204,22 +552,233 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 		return hash;
 	}
 
+	/**
+	 * Unless encodings are produced synchronously, record the ones the
+	 * content doesn't have yet as pending, so they are still reported and
+	 * produced if the store is reopened before they are.
+	 * 
+	 * @return The encodings to produce
+	 */
+	private List<ContentEncoding> markPending(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		if (encodingScheduler.getMode() == EncodingMode.SYNC || encodings.isEmpty()) {
+			return encodings;
+		}
+		String hashString = hash.getString();
+		List<ContentEncoding> marked = new ArrayList<ContentEncoding>(encodings.size());
+		synchronized (lockFor(hashString)) {
+			// Deleted since it was written
+			if (!doContains(hash)) {
+				return marked;
+			}
+			for (ContentEncoding encoding : encodings) {
+				if (Files.exists(getContentPath(hashString + "." + encoding.getName()))) {
+					continue;
+				}
+				Path pendingFile = getPendingPath(hashString, encoding.getName());
+				Files.createDirectories(pendingFile.getParent());
+				try {
+					Files.createFile(pendingFile);
+				} catch (FileAlreadyExistsException e) {
+					// Already asked for by another write
+				}
+				marked.add(encoding);
+			}
+		}
+		return marked;
+	}
+
+	/**
+	 * @return the file recording that an encoding of some content is still
+	 *         to be produced
+	 */
+	private Path getPendingPath(String hashString, String encodingName) {
+		return pendingPath.resolve(getPrefix(hashString))
+				.resolve(hashString.substring(hashPrefixLength) + "." + encodingName);
+	}
+
+	private boolean isPending(Hash hash, ContentEncoding encoding) {
+		return Files.exists(getPendingPath(hash.getString(), encoding.getName()));
+	}
+
+	/**
+	 * Write any of the encodings of some content that don't exist yet. Each
+	 * is written to a temporary file first so it only appears once complete.
+	 * The record that it is pending is removed once it does.
+	 */
+	private void writeEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		String hashString = hash.getString();
+		for (ContentEncoding encoding : encodings) {
+			Path encodedContentPath = getContentPath(hashString + "." + encoding.getName());
+			if (Files.exists(encodedContentPath)) {
+				Files.deleteIfExists(getPendingPath(hashString, encoding.getName()));
+				continue;
+			}
+			try (InputStream rawContents = doRead(hash);) {
+				if (rawContents == null) {
+					// Deleted since it was written
+					return;
+				}
+				// Not in the content's directory, so a delete racing with
+				// the encoding can still remove the directory
+				Path tmpFile = Files.createTempFile(rootPath, "tmp", ".tmp");
+				try {
+					long started = encodingStarted();
+					long rawBytes;
+					try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tmpFile));
+							OutputStream encodedOutputStream = encoding.encode(outputStream);) {
+						rawBytes = IOUtils.copyLarge(rawContents, encodedOutputStream);
+					}
+					encodingFinished(encoding, rawBytes, started);
+					synchronized (lockFor(hashString)) {
+						// A delete may have raced with a background encoding,
+						// in which case don't leave encodings of content that
+						// isn't there.
+						if (!doContains(hash)) {
+							return;
+						}
+						if (!Files.exists(encodedContentPath)) {
+							long encodedLength = Files.size(tmpFile);
+							move(tmpFile, encodedContentPath);
+							statistics.encodingAdded(getPrefix(hashString), encoding.getName(), encodedLength);
+						}
+						// Only once the encoding exists, so it is always
+						// either pending or there
+						Files.deleteIfExists(getPendingPath(hashString, encoding.getName()));
+					}
+				} finally {
+					Files.deleteIfExists(tmpFile);
+				}
+			}
+		}
+	}
+
+	private void move(Path source, Path target) throws IOException {
+		if(useAtomicMove) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} else {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String getName(ContentEncoding contentEncoding) {
+		return contentEncoding == null ? null : contentEncoding.getName();
+	}
+
+	/**
+	 * Store the content in a file in the at rest encoding and then write a
+	 * manifest recording the raw length.
+	 * 
+	 * @param encodedFile
+	 *            If not null, the content already in the at rest encoding
+	 */
+	private void writeAtRest(Path file, Hash hash, Path encodedFile) throws IOException {
+		String hashString = hash.getString();
+		Path subPath = getSubPath(hashString);
+		Path encodedContentPath = getContentPath(hashString + "." + atRestEncoding.getName());
+		Path tmpFile = Files.createTempFile(subPath, "tmp", ".tmp");
+		try {
+			long encodedLength;
+			if (encodedFile != null) {
+				encodedLength = Files.size(encodedFile);
+				move(encodedFile, encodedContentPath);
+			} else {
+				long started = encodingStarted();
+				long rawBytes;
+				try (InputStream rawContents = new BufferedInputStream(Files.newInputStream(file));
+						OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(tmpFile));
+						OutputStream encodedOutputStream = atRestEncoding.encode(outputStream);) {
+					rawBytes = IOUtils.copyLarge(rawContents, encodedOutputStream);
+				}
+				encodingFinished(atRestEncoding, rawBytes, started);
+				encodedLength = Files.size(tmpFile);
+				move(tmpFile, encodedContentPath);
+			}
+			statistics.encodingAdded(getPrefix(hashString), atRestEncoding.getName(), encodedLength);
+
+			// Write the manifest last so the content only appears once complete
+			new ContentManifest(Files.size(file), atRestEncoding.getName()).write(tmpFile);
+			move(tmpFile, getContentPath(hashString + manifestSuffix));
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Split the content in a file into chunks, store any chunks that aren't
+	 * already stored and then write a manifest listing them.
+	 */
+	private void writeChunks(Path file, Path manifestPath) throws IOException {
+		if (!Files.isDirectory(chunksPath))
+			Files.createDirectories(chunksPath);
+
+		List<Hash> chunkHashes = new LinkedList<Hash>();
+		List<Integer> chunkLengths = new LinkedList<Integer>();
+		try (InputStream inputStream = new BufferedInputStream(Files.newInputStream(file));) {
+			FastCDCChunker chunker = new FastCDCChunker(inputStream, chunkSize);
+			MessageDigest messageDigest = createMessageDigest();
+			for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+				Hash chunkHash = new Hash(messageDigest.digest(chunk));
+				String chunkHashString = chunkHash.getString();
+				Path chunkPath = getChunkPath(chunkHashString);
+				synchronized (lockFor(chunkHashString)) {
+					if (!Files.exists(chunkPath)) {
+						Path chunkSubPath = chunkPath.getParent();
+						if (!Files.isDirectory(chunkSubPath))
+							Files.createDirectories(chunkSubPath);
+						Path tmpChunk = Files.createTempFile(chunksPath, "tmp", ".tmp");
+						try {
+							Files.write(tmpChunk, chunk);
+							move(tmpChunk, chunkPath);
+						} finally {
+							Files.deleteIfExists(tmpChunk);
+						}
+					} else {
+						touch(chunkPath);
+					}
+				}
+				chunkHashes.add(chunkHash);
+				chunkLengths.add(chunk.length);
+			}
+		}
+
+		// Write the manifest last so the content only appears once complete
+		Path tmpManifest = Files.createTempFile(chunksPath, "tmp", ".tmp");
+		try {
+			new ContentManifest(chunkHashes, chunkLengths).write(tmpManifest);
+			move(tmpManifest, manifestPath);
+		} finally {
+			Files.deleteIfExists(tmpManifest);
+		}
+	}
+
+	private static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
 	@Override
-	public boolean contains(Hash hash) {
+	protected boolean doContains(Hash hash) {
 		if (hash == null)
 			throw new IllegalArgumentException("hash");
 
 		Path contentPath = getContentPath(hash.getString());
-		return Files.exists(contentPath);
+		return Files.exists(contentPath) || Files.exists(getContentPath(hash.getString() + manifestSuffix));
 	}
 
 	@Override
-	public boolean contains(Hash hash, ContentEncoding contentEncoding) {
+	protected boolean doContains(Hash hash, ContentEncoding contentEncoding) {
 		if (hash == null) {
 			throw new IllegalArgumentException("hash");
 		}
 		if (contentEncoding == null) {
-			return contains(hash);
+			return doContains(hash);
+		}
+		// Check for pending first as it stops being pending once written
+		if (isPending(hash, contentEncoding)) {
+			return doContains(hash);
 		}
 
 		Path encodedContentPath = getContentPath(hash.getString() + "." + contentEncoding.getName());
@@ -227,12 +786,15 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 	}
 
 	@Override
-	public InputStream read(Hash hash, ContentEncoding contentEncoding) throws IOException {
+	protected InputStream doRead(Hash hash, ContentEncoding contentEncoding) throws IOException {
 		if (hash == null)
 			throw new IllegalArgumentException("hash");
 		// null contentEncoding means use no encoding
 		if (contentEncoding == null) {
-			return read(hash);
+			return doRead(hash);
+		}
+		if (isPending(hash, contentEncoding)) {
+			encodingScheduler.await(hash, contentEncoding);
 		}
 
 		Path encodedContentPath = getContentPath(hash.getString() + "." + contentEncoding.getName());
@@ -245,74 +807,271 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 	}
 
 	@Override
-	public InputStream read(Hash hash) throws IOException {
+	protected InputStream doRead(Hash hash) throws IOException {
 		if (hash == null)
 			throw new IllegalArgumentException("hash");
 
 		Path contentPath = getContentPath(hash.getString());
 
 		if (!Files.exists(contentPath)) {
-			return null;
+			ContentManifest manifest = readManifest(hash);
+			if (manifest == null) {
+				return null;
+			}
+			if (manifest.isChunked()) {
+				return readChunks(manifest);
+			}
+			return readEncoded(hash, manifest.getEncodingName());
 		}
 
 		return new BufferedInputStream(Files.newInputStream(contentPath));
 	}
 
-	@Override
-	public long getContentLength(Hash hash) throws IOException {
-		if (hash == null)
-			throw new IllegalArgumentException("hash");
-
-		Path contentPath = getContentPath(hash.getString());
+	/**
+	 * @return The manifest for chunked content, or null if the content isn't
+	 *         chunked.
+	 */
+	private ContentManifest readManifest(Hash hash) throws IOException {
+		Path manifestPath = getContentPath(hash.getString() + manifestSuffix);
+		try {
+			return ContentManifest.read(manifestPath);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
 
-		if (!Files.exists(contentPath)) {
-			return -1;
+	/**
+	 * Decode content that is only stored encoded.
+	 */
+	private InputStream readEncoded(Hash hash, String encodingName) throws IOException {
+		ContentEncoding encoding = ContentEncodingFactory.createEncoding(encodingName);
+		if (encoding == null) {
+			throw new IOException("Content " + hash.getString() + " is stored in unknown encoding " + encodingName);
 		}
+		Path encodedContentPath = getContentPath(hash.getString() + "." + encodingName);
+		InputStream encodedContents = new BufferedInputStream(Files.newInputStream(encodedContentPath));
+		try {
+			return new BufferedInputStream(encoding.decode(encodedContents));
+		} catch (IOException e) {
+			encodedContents.close();
+			throw e;
+		}
+	}
 
-		BasicFileAttributes attrs;
-		attrs = Files.readAttributes(contentPath, BasicFileAttributes.class);
-		return attrs.size();
+	/**
+	 * Stream the chunks of some content in order, opening each chunk file
+	 * only when the previous one has been read.
+	 */
+	private InputStream readChunks(ContentManifest manifest) {
+		return new BufferedInputStream(new ChunkInputStream(manifest.getChunkHashes().iterator()));
 	}
 
-	@Override
-	public long getContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
-		if (hash == null)
-			throw new IllegalArgumentException("hash");
+	private class ChunkInputStream extends InputStream {
+		private final Iterator<Hash> chunkHashes;
+		private InputStream chunk;
 
-		if (contentEncoding == null) {
-			return getContentLength(hash);
+		ChunkInputStream(Iterator<Hash> chunkHashes) {
+			this.chunkHashes = chunkHashes;
 		}
 
-		Path encodedContentPath = getContentPath(hash.getString() + "." + contentEncoding.getName());
+		/**
+		 * @return false if there are no more chunks
+		 */
+		private boolean nextChunk() throws IOException {
+			if (chunk != null) {
+				chunk.close();
+				chunk = null;
+			}
+			if (!chunkHashes.hasNext()) {
+				return false;
+			}
+			chunk = Files.newInputStream(getChunkPath(chunkHashes.next().getString()));
+			return true;
+		}
 
-		if (!Files.exists(encodedContentPath)) {
-			return -1;
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n = read(b, 0, 1);
+			return n == -1 ? -1 : b[0] & 0xFF;
 		}
 
-		BasicFileAttributes attrs;
-		attrs = Files.readAttributes(encodedContentPath, BasicFileAttributes.class);
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (chunk != null || nextChunk()) {
+				int n = chunk.read(b, off, len);
+				if (n != -1) {
+					return n;
+				}
+				if (!nextChunk()) {
+					break;
+				}
+			}
+			return -1;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (chunk != null) {
+				chunk.close();
+				chunk = null;
+			}
+		}
+	}
+
+	@Override
+	protected long doGetContentLength(Hash hash) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+
+		Path contentPath = getContentPath(hash.getString());
+
+		if (!Files.exists(contentPath)) {
+			ContentManifest manifest = readManifest(hash);
+			if (manifest == null) {
+				return -1;
+			}
+			return manifest.getLength();
+		}
+
+		BasicFileAttributes attrs;
+		attrs = Files.readAttributes(contentPath, BasicFileAttributes.class);
 		return attrs.size();
 	}
 
 	@Override
-	public List<Hash> getHashes() throws IOException {
+	protected long doGetContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+
+		if (contentEncoding == null) {
+			return doGetContentLength(hash);
+		}
+		if (isPending(hash, contentEncoding)) {
+			encodingScheduler.await(hash, contentEncoding);
+		}
+
+		Path encodedContentPath = getContentPath(hash.getString() + "." + contentEncoding.getName());
+
+		if (!Files.exists(encodedContentPath)) {
+			return -1;
+		}
+
+		BasicFileAttributes attrs;
+		attrs = Files.readAttributes(encodedContentPath, BasicFileAttributes.class);
+		return attrs.size();
+	}
+
+	@Override
+	protected List<Hash> doGetHashes() throws IOException {
 		List<Hash> hashes = new LinkedList<Hash>();
+		for (Path directory : getPrefixDirectories(rootPath)) {
+			listHashes(directory, hashes);
+		}
+		return hashes;
+	}
 
-		try (DirectoryStream<Path> directories = Files.newDirectoryStream(rootPath, "[0-9A-F]*");) {
-			for (Path directory : directories) {
-				try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "[0-9A-F]*");) {
-					for (Path file : files) {
-						// Don't add in any encoded names
-						if (file.getFileName().toString().contains(".")) {
-							continue;
-						}
-						Hash hash = new Hash(directory.getFileName().toString() + file.getFileName().toString());
-						hashes.add(hash);
-					}
+	/**
+	 * @return The subdirectories named by hash prefix under a path, in order.
+	 *         Other names the glob matches, such as "chunks" on a case
+	 *         insensitive file system, are left out.
+	 */
+	List<Path> getPrefixDirectories(Path path) throws IOException {
+		return getPrefixDirectories(path, "");
+	}
+
+	/**
+	 * @param start
+	 *            The start of the prefixes to list, in upper case hex
+	 * @return The subdirectories named by hash prefix under a path whose
+	 *         names start with <code>start</code>, in order
+	 */
+	List<Path> getPrefixDirectories(Path path, String start) throws IOException {
+		List<Path> directories = new ArrayList<Path>();
+		if (!Files.isDirectory(path)) {
+			return directories;
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(path,
+				start.isEmpty() ? "[0-9A-F]*" : start + "*");) {
+			for (Path directory : stream) {
+				if (isPrefix(directory.getFileName().toString())) {
+					directories.add(directory);
 				}
 			}
-			return hashes;
 		}
+		Collections.sort(directories);
+		return directories;
+	}
+
+	private boolean isPrefix(String name) {
+		if (name.length() != hashPrefixLength) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'A' || c > 'F')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add the hashes of the content in one prefix directory.
+	 */
+	void listHashes(Path directory, Collection<Hash> hashes) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "[0-9A-F]*");) {
+			for (Path file : files) {
+				String fileName = file.getFileName().toString();
+				// Chunked content is listed by its manifest
+				if (fileName.endsWith(manifestSuffix)) {
+					fileName = fileName.substring(0, fileName.length() - manifestSuffix.length());
+				}
+				// Don't add in any encoded names
+				if (fileName.contains(".")) {
+					continue;
+				}
+				Hash hash = new Hash(directory.getFileName().toString() + fileName);
+				hashes.add(hash);
+			}
+		} catch (NoSuchFileException e) {
+			// Removed since it was listed
+		}
+	}
+
+	/**
+	 * Add the hashes of the dictionaries that content in one prefix
+	 * directory, of the root or of the pending encodings, is encoded with or
+	 * is to be.
+	 */
+	void listDictionaries(Path directory, Collection<Hash> dictionaries) throws IOException {
+		String glob = "[0-9A-F]*." + DictionaryContentEncoding.namePrefix + "[0-9A-F]*";
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob);) {
+			for (Path file : files) {
+				String fileName = file.getFileName().toString();
+				int start = fileName.indexOf('.') + 1 + DictionaryContentEncoding.namePrefix.length();
+				dictionaries.add(new Hash(fileName.substring(start)));
+			}
+		} catch (NoSuchFileException e) {
+			// Removed since it was listed
+		}
+	}
+
+	/**
+	 * @return The path chunks are stored under
+	 */
+	Path getChunksPath() {
+		return chunksPath;
+	}
+
+	/**
+	 * @return The path pending encodings are recorded under
+	 */
+	Path getPendingPath() {
+		return pendingPath;
 	}
 
 	/**
@@ -329,55 +1088,825 @@ public final class ContentAddressableStoreFileImpl extends ContentAddressableSto
 		}
 	}
 
+	/**
+	 * Delete content from the store. For chunked content the manifest is
+	 * deleted but the chunks are left as they may be shared with other
+	 * content.
+	 */
 	@Override
-	public boolean delete(Hash hash) throws IOException {
+	protected boolean doDelete(Hash hash) throws IOException {
+		return delete(hash, true);
+	}
+
+	private boolean delete(Hash hash, boolean removeEmptyDirectory) throws IOException {
 		String hashString = hash.getString();
-		Path contentPath = getContentPath(hashString);
+		String prefix = getPrefix(hashString);
 
-		if (!Files.exists(contentPath))
-			return false;
+		// Hold the lock so the statistics count each delete once
+		synchronized (lockFor(hashString)) {
+			long contentLength = doGetContentLength(hash);
+			if (contentLength == -1)
+				return false;
+
+			encodingScheduler.cancel(hash);
+
+			Path dirPath = getSubPath(hashString);
+			// Java's streams are so broken when it comes to checked exceptions...
+			try {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath,
+						hashString.substring(hashPrefixLength) + "*")) {
+					stream.forEach(file -> {
+						try {
+							deleteFile(file, prefix);
+						} catch (IOException e) {
+							throw new UncheckedIOException(e);
+						}
+					});
+				}
+			} catch (UncheckedIOException e) {
+				throw e.ioException;
+			}
+			deletePending(hashString);
+			statistics.contentRemoved(prefix, contentLength);
 
-		Path dirPath = getSubPath(hashString);
-		// Java's streams are so broken when it comes to checked exceptions...
+			// And delete the directory if it is empty now
+			if (removeEmptyDirectory) {
+				try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
+					if (!stream.iterator().hasNext()) {
+						Files.delete(dirPath);
+					}
+				}
+			}
+		}
+
+		notifyListenersContentRemoved(hash);
+		return true;
+	}
+
+	/**
+	 * Delete the records of any pending encodings of some content.
+	 */
+	private void deletePending(String hashString) throws IOException {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(pendingPath.resolve(getPrefix(hashString)),
+				hashString.substring(hashPrefixLength) + ".*")) {
+			for (Path file : stream) {
+				Files.deleteIfExists(file);
+			}
+		} catch (NoSuchFileException e) {
+			// Nothing with this prefix has been pending
+		}
+	}
+
+	/**
+	 * Delete one of the files of some content, counting it out of the
+	 * statistics if it is an encoding.
+	 */
+	private void deleteFile(Path file, String prefix) throws IOException {
+		String fileName = file.getFileName().toString();
+		long length = Files.size(file);
+		Files.delete(file);
+		int dot = fileName.indexOf('.');
+		if (dot != -1 && !fileName.endsWith(manifestSuffix)) {
+			statistics.encodingRemoved(prefix, fileName.substring(dot + 1), length);
+		}
+	}
+
+	/**
+	 * Delete content a prefix directory at a time, listing each directory
+	 * rather than each piece of content's files, and deleting in several
+	 * directories at once.
+	 */
+	@Override
+	protected List<Hash> doDeleteAll(Collection<Hash> hashes) throws IOException {
+		if (hashes == null)
+			throw new IllegalArgumentException("hashes");
+		Map<String, List<Hash>> prefixes = new TreeMap<String, List<Hash>>();
+		for (Hash hash : new LinkedHashSet<Hash>(hashes)) {
+			prefixes.computeIfAbsent(getPrefix(hash.getString()), prefix -> new ArrayList<Hash>()).add(hash);
+		}
+
+		List<Hash> deleted = Collections.synchronizedList(new ArrayList<Hash>());
+		try {
+			if (prefixes.size() <= 1 || deleteThreads == 1) {
+				for (Map.Entry<String, List<Hash>> prefix : prefixes.entrySet()) {
+					deleteAll(prefix.getKey(), prefix.getValue(), deleted);
+				}
+			} else {
+				deleteAllInParallel(prefixes, deleted);
+			}
+		} finally {
+			// Whatever was deleted before any failure
+			notifyListenersContentRemoved(deleted);
+		}
+		return new ArrayList<Hash>(deleted);
+	}
+
+	private void deleteAllInParallel(Map<String, List<Hash>> prefixes, List<Hash> deleted) throws IOException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService workers = Executors.newFixedThreadPool(Math.min(deleteThreads, prefixes.size()), runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-delete-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
 		try {
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath,
-					hashString.substring(hashPrefixLength) + "*")) {
-				stream.forEach(file -> {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>(prefixes.size());
+			for (Map.Entry<String, List<Hash>> prefix : prefixes.entrySet()) {
+				futures.add(workers.submit(() -> {
+					deleteAll(prefix.getKey(), prefix.getValue(), deleted);
+					return null;
+				}));
+			}
+			// Wait for them all, so the deletes aren't still going on after
+			// the caller has been told of a failure
+			Throwable failure = null;
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+				}
+			}
+			if (failure instanceof IOException)
+				throw (IOException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure != null)
+				throw new IOException(failure);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Delete content in one prefix directory, adding what was deleted to a
+	 * list.
+	 */
+	private void deleteAll(String prefix, List<Hash> hashes, List<Hash> deleted) throws IOException {
+		Path dirPath = rootPath.resolve(prefix);
+		Map<String, List<Path>> files = new HashMap<String, List<Path>>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
+			for (Path file : stream) {
+				files.computeIfAbsent(getHashSuffix(file), suffix -> new ArrayList<Path>()).add(file);
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		}
+
+		Map<String, Hash> deletedHere = new HashMap<String, Hash>();
+		for (Hash hash : hashes) {
+			String hashString = hash.getString();
+			List<Path> hashFiles = files.get(hashString.substring(hashPrefixLength));
+			if (hashFiles == null) {
+				continue;
+			}
+			synchronized (lockFor(hashString)) {
+				long contentLength = doGetContentLength(hash);
+				if (contentLength == -1) {
+					continue;
+				}
+				encodingScheduler.cancel(hash);
+				for (Path file : hashFiles) {
 					try {
-						Files.delete(file);
-					} catch (IOException e) {
-						throw new UncheckedIOException(e);
+						deleteFile(file, prefix);
+					} catch (NoSuchFileException e) {
+						// Deleted by someone else since it was listed
+					}
+				}
+				statistics.contentRemoved(prefix, contentLength);
+			}
+			deleted.add(hash);
+			deletedHere.put(hashString.substring(hashPrefixLength), hash);
+		}
+		if (deletedHere.isEmpty()) {
+			return;
+		}
+
+		// List the pending encodings once for all the deleted content
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(pendingPath.resolve(prefix))) {
+			for (Path file : stream) {
+				Hash hash = deletedHere.get(getHashSuffix(file));
+				if (hash != null) {
+					synchronized (lockFor(hash.getString())) {
+						// Unless written again since it was deleted
+						if (!doContains(hash)) {
+							Files.deleteIfExists(file);
+						}
 					}
-				});
+				}
 			}
-		} catch (UncheckedIOException e) {
-			throw e.ioException;
+		} catch (NoSuchFileException e) {
+			// Nothing with this prefix has been pending
 		}
-		// And delete the directory if it is empty now
+
+		// List the directory again for files of the deleted content which
+		// appeared after the first listing, such as encodings finished in the
+		// background, and to see whether it is empty now
+		boolean empty = true;
 		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dirPath)) {
-			if (!stream.iterator().hasNext()) {
+			for (Path file : stream) {
+				Hash hash = deletedHere.get(getHashSuffix(file));
+				if (hash != null) {
+					synchronized (lockFor(hash.getString())) {
+						// Unless written again since it was deleted
+						if (!doContains(hash)) {
+							try {
+								deleteFile(file, prefix);
+							} catch (NoSuchFileException e) {
+								// Deleted by someone else since it was listed
+							}
+							continue;
+						}
+					}
+				}
+				empty = false;
+			}
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		if (empty) {
+			try {
 				Files.delete(dirPath);
+			} catch (DirectoryNotEmptyException | NoSuchFileException e) {
+				// Written to or removed since it was listed
 			}
 		}
+	}
 
-		notifyListenersContentRemoved(hash);
+	/**
+	 * @return The part of the hash in the name of a file in a prefix
+	 *         directory
+	 */
+	private static String getHashSuffix(Path file) {
+		String fileName = file.getFileName().toString();
+		int dot = fileName.indexOf('.');
+		return dot == -1 ? fileName : fileName.substring(0, dot);
+	}
+
+	/**
+	 * @return The name of the prefix directory content is stored in, which
+	 *         is also its key in the statistics
+	 */
+	private String getPrefix(String hashString) {
+		return hashString.substring(0, hashPrefixLength);
+	}
+
+	/**
+	 * Restore the statistics saved when the store was last open.
+	 * 
+	 * @return false if they may not match the content on disk
+	 */
+	private boolean loadStatistics() throws IOException {
+		boolean exact;
+		Properties saved = new Properties();
+		try (InputStream inputStream = Files.newInputStream(statisticsPath);) {
+			saved.load(inputStream);
+			statistics.load(saved);
+			exact = Boolean.parseBoolean(saved.getProperty(cleanStatisticsKey));
+		} catch (NoSuchFileException e) {
+			// Either a new store or one written before statistics were kept
+			exact = getPrefixDirectories(rootPath).isEmpty();
+		} catch (IllegalArgumentException e) {
+			// Damaged, so start again
+			exact = false;
+		}
+		statistics.setExact(exact);
+		return exact;
+	}
+
+	/**
+	 * @param clean
+	 *            Whether the store is being closed, so the statistics won't
+	 *            change again until it is reopened
+	 */
+	private synchronized void saveStatistics(boolean clean) throws IOException {
+		Properties properties = statistics.toProperties();
+		properties.setProperty(cleanStatisticsKey,
+				Boolean.toString(clean && statistics.isExact() && !rootLock.wasShared()));
+		Path tmpFile = Files.createTempFile(rootPath, "tmp", ".tmp");
+		try {
+			try (OutputStream outputStream = Files.newOutputStream(tmpFile);) {
+				properties.store(outputStream, "CassetteJ statistics");
+			}
+			// Replace the file atomically where possible, as a move replacing
+			// an existing file otherwise deletes it first
+			try {
+				Files.move(tmpFile, statisticsPath, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				move(tmpFile, statisticsPath);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	private void startStatistics(long checkpointInterval, long auditInterval, boolean auditNow) {
+		if (checkpointInterval == 0 && auditInterval == 0 && !auditNow) {
+			return;
+		}
+		statisticsExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-statistics");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (checkpointInterval > 0) {
+			statisticsExecutor.scheduleWithFixedDelay(() -> inBackground(() -> saveStatistics(false)),
+					checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+		}
+		if (auditInterval > 0) {
+			statisticsExecutor.scheduleWithFixedDelay(() -> inBackground(this::auditStatistics),
+					auditNow ? 0 : auditInterval, auditInterval, TimeUnit.MILLISECONDS);
+		} else if (auditNow) {
+			statisticsExecutor.execute(() -> inBackground(this::auditStatistics));
+		}
+	}
+
+	/**
+	 * A background task which may fail.
+	 */
+	private interface StatisticsTask {
+		void run() throws IOException;
+	}
+
+	private void inBackground(StatisticsTask task) {
+		try {
+			task.run();
+		} catch (InterruptedIOException e) {
+			// The store is being closed
+		} catch (IOException e) {
+			// Report it but keep the task scheduled, as the next run may work
+			Thread.currentThread().getUncaughtExceptionHandler().uncaughtException(Thread.currentThread(),
+					new java.io.UncheckedIOException(e));
+		}
+	}
+
+	/**
+	 * Count the content on disk and correct the statistics to match, making
+	 * them exact. The store can be used as normal while this runs, but it
+	 * reads every directory and the manifest of all content that isn't
+	 * stored raw, so is as expensive as it sounds.
+	 * 
+	 * @return The corrected statistics
+	 */
+	public StoreStatistics auditStatistics() throws IOException {
+		synchronized (auditLock) {
+			StatisticsCounters.Audit audit = statistics.startAudit();
+			try {
+				List<Path> directories = getPrefixDirectories(rootPath);
+				List<String> prefixes = new ArrayList<String>(directories.size());
+				for (Path directory : directories) {
+					prefixes.add(directory.getFileName().toString());
+				}
+				audit.setKeys(prefixes);
+				for (Path directory : directories) {
+					if (closed)
+						throw new InterruptedIOException("Store closed");
+					auditDirectory(directory, audit);
+					audit.scanned(directory.getFileName().toString());
+				}
+			} catch (IOException | RuntimeException e) {
+				audit.abort();
+				throw e;
+			}
+			audit.finish();
+			return getStatistics();
+		}
+	}
+
+	private void auditDirectory(Path directory, StatisticsCounters.Audit audit) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "[0-9A-F]*");) {
+			for (Path file : files) {
+				String fileName = file.getFileName().toString();
+				try {
+					if (fileName.endsWith(manifestSuffix)) {
+						// Content that isn't stored raw is counted by its
+						// manifest
+						String rawName = fileName.substring(0, fileName.length() - manifestSuffix.length());
+						if (!Files.exists(directory.resolve(rawName))) {
+							audit.found(null, ContentManifest.read(file).getLength());
+						}
+					} else {
+						int dot = fileName.indexOf('.');
+						audit.found(dot == -1 ? null : fileName.substring(dot + 1), Files.size(file));
+					}
+				} catch (NoSuchFileException e) {
+					// Deleted since it was listed
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// Removed since it was listed
+		}
+	}
+
+	private Object lockFor(String hashString) {
+		return locks[(hashString.hashCode() & Integer.MAX_VALUE) % locks.length];
+	}
+
+	/**
+	 * @return The file whose modification time is when the content was last
+	 *         written, or null if the content isn't in the store
+	 */
+	private Path getTimestampPath(Hash hash) {
+		Path contentPath = getContentPath(hash.getString());
+		if (Files.exists(contentPath)) {
+			return contentPath;
+		}
+		Path manifestPath = getContentPath(hash.getString() + manifestSuffix);
+		if (Files.exists(manifestPath)) {
+			return manifestPath;
+		}
+		return null;
+	}
+
+	private void touch(Hash hash) throws IOException {
+		Path path = getTimestampPath(hash);
+		if (path != null) {
+			touch(path);
+		}
+	}
+
+	private static void touch(Path path) throws IOException {
+		try {
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (NoSuchFileException e) {
+			// Deleted by the caller since it was found
+		}
+	}
+
+	/**
+	 * @return When the content was last written, in milliseconds since the
+	 *         epoch, or -1 if it isn't in the store
+	 */
+	public long getLastModified(Hash hash) throws IOException {
+		Path path = getTimestampPath(hash);
+		if (path == null) {
+			return -1;
+		}
+		try {
+			return Files.getLastModifiedTime(path).toMillis();
+		} catch (NoSuchFileException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Pin content so the garbage collector keeps it, and everything it
+	 * references, whether or not anything else does. Pins are counted, so
+	 * content pinned twice must be unpinned twice. Pins are kept when
+	 * content is deleted.
+	 * 
+	 * @return false if the content isn't in the store
+	 */
+	public boolean pin(Hash hash) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+		synchronized (lockFor(hash.getString())) {
+			if (!doContains(hash)) {
+				return false;
+			}
+			writePinCount(hash, getPinCount(hash) + 1);
+			// A collection already running may not see the pin
+			touch(hash);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove one pin of some content.
+	 * 
+	 * @return false if the content wasn't pinned
+	 */
+	public boolean unpin(Hash hash) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+		synchronized (lockFor(hash.getString())) {
+			long count = getPinCount(hash);
+			if (count == 0) {
+				return false;
+			}
+			writePinCount(hash, count - 1);
+			return true;
+		}
+	}
+
+	/**
+	 * @return The number of times the content is pinned
+	 */
+	public long getPinCount(Hash hash) throws IOException {
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(rootsPath.resolve(hash.getString())), "US-ASCII").trim());
+		} catch (NoSuchFileException e) {
+			return 0;
+		}
+	}
+
+	private void writePinCount(Hash hash, long count) throws IOException {
+		Path pinPath = rootsPath.resolve(hash.getString());
+		if (count == 0) {
+			Files.deleteIfExists(pinPath);
+			return;
+		}
+		if (!Files.isDirectory(rootsPath))
+			Files.createDirectories(rootsPath);
+		Path tmpFile = Files.createTempFile(rootsPath, "tmp", ".tmp");
+		try {
+			Files.write(tmpFile, Long.toString(count).getBytes("US-ASCII"));
+			move(tmpFile, pinPath);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * @return The hashes of the pinned content
+	 */
+	public List<Hash> getRoots() throws IOException {
+		List<Hash> roots = new LinkedList<Hash>();
+		if (!Files.isDirectory(rootsPath)) {
+			return roots;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(rootsPath, "[0-9A-F]*");) {
+			for (Path file : files) {
+				roots.add(new Hash(file.getFileName().toString()));
+			}
+		}
+		return roots;
+	}
+
+	/**
+	 * Delete content unless it is pinned or has been written since the
+	 * cutoff. The check and delete are atomic with respect to writes of the
+	 * same content, so content isn't deleted from under a writer which found
+	 * it already in the store.
+	 * 
+	 * @param cutoff
+	 *            Milliseconds since the epoch
+	 * @return whether the content was deleted
+	 */
+	boolean deleteIfUnused(Hash hash, long cutoff) throws IOException {
+		synchronized (lockFor(hash.getString())) {
+			long lastModified = getLastModified(hash);
+			if (lastModified == -1 || lastModified >= cutoff || getPinCount(hash) > 0) {
+				return false;
+			}
+			// Leave the directory as a writer may be about to use it
+			return delete(hash, false);
+		}
+	}
+
+	/**
+	 * Add the hashes of the chunks in one prefix directory of the chunks path.
+	 */
+	void listChunks(Path directory, Collection<Hash> chunks) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "[0-9A-F]*");) {
+			for (Path file : files) {
+				chunks.add(new Hash(directory.getFileName().toString() + file.getFileName().toString()));
+			}
+		} catch (NoSuchFileException e) {
+			// Removed since it was listed
+		}
+	}
+
+	/**
+	 * Add the hashes of the chunks some content is made of, if it is chunked.
+	 */
+	void addChunks(Hash hash, Collection<Hash> chunks) throws IOException {
+		ContentManifest manifest = readManifest(hash);
+		if (manifest != null && manifest.isChunked()) {
+			chunks.addAll(manifest.getChunkHashes());
+		}
+	}
+
+	/**
+	 * Delete a chunk unless it has been written or reused since the cutoff.
+	 * 
+	 * @return the length of the chunk deleted, or -1 if it wasn't
+	 */
+	long deleteChunkIfUnused(Hash chunk, long cutoff) throws IOException {
+		String chunkHashString = chunk.getString();
+		Path chunkPath = getChunkPath(chunkHashString);
+		synchronized (lockFor(chunkHashString)) {
+			try {
+				BasicFileAttributes attrs = Files.readAttributes(chunkPath, BasicFileAttributes.class);
+				if (attrs.lastModifiedTime().toMillis() >= cutoff) {
+					return -1;
+				}
+				Files.delete(chunkPath);
+				return attrs.size();
+			} catch (NoSuchFileException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * @return The files of content, encodings or chunks in a prefix
+	 *         directory, leaving out temporary files
+	 */
+	List<Path> listFiles(Path directory) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "[0-9A-F]*");) {
+			for (Path file : stream) {
+				files.add(file);
+			}
+		} catch (NoSuchFileException e) {
+			// Removed since it was listed
+		}
+		return files;
+	}
+
+	/**
+	 * @return The suffix of manifest files
+	 */
+	static String getManifestSuffix() {
+		return manifestSuffix;
+	}
+
+	/**
+	 * @return The path damaged files are moved to
+	 */
+	public Path getQuarantinePath() {
+		return quarantinePath;
+	}
+
+	/**
+	 * Move a damaged file of some content, one of its encodings or a chunk
+	 * out of the store and into the quarantine path. If it was the content
+	 * itself or its manifest then the content is no longer in the store,
+	 * though any encodings that aren't damaged are kept.
+	 * 
+	 * @return false if the file isn't there any more
+	 */
+	boolean quarantine(Path file) throws IOException {
+		Path directory = file.getParent();
+		String fileName = file.getFileName().toString();
+		String prefix = directory.getFileName().toString();
+		int dot = fileName.indexOf('.');
+		Hash hash = new Hash(prefix + (dot == -1 ? fileName : fileName.substring(0, dot)));
+		Path target = quarantinePath.resolve(rootPath.relativize(file));
+
+		boolean contentRemoved = false;
+		synchronized (lockFor(hash.getString())) {
+			if (!Files.exists(file)) {
+				return false;
+			}
+			boolean chunk = directory.getParent().equals(chunksPath);
+			long length = Files.size(file);
+			if (!chunk && fileName.endsWith(manifestSuffix) && !Files.exists(getContentPath(hash.getString()))) {
+				try {
+					length = ContentManifest.read(file).getLength();
+				} catch (IOException | RuntimeException e) {
+					// A damaged manifest doesn't say how long the content was
+					statistics.setExact(false);
+					length = 0;
+				}
+			}
+			if (!Files.isDirectory(target.getParent()))
+				Files.createDirectories(target.getParent());
+			move(file, target);
+
+			if (chunk) {
+				// Chunks aren't counted
+			} else if (dot == -1 || fileName.endsWith(manifestSuffix)) {
+				contentRemoved = !doContains(hash);
+				if (contentRemoved) {
+					statistics.contentRemoved(prefix, length);
+				}
+			} else {
+				statistics.encodingRemoved(prefix, fileName.substring(dot + 1), length);
+			}
+		}
+		if (contentRemoved) {
+			notifyListenersContentRemoved(hash);
+		}
 		return true;
 	}
 
+	/**
+	 * @return A summary of the content in the store, for finding how it
+	 *         differs from another store
+	 */
+	public StoreSummary getSummary() {
+		return summary;
+	}
+
+	/**
+	 * Store content that has been copied to a temporary file, which is moved
+	 * or deleted.
+	 */
+	Hash writeFile(Path tmpFile) throws IOException {
+		return writeFile(tmpFile, new LinkedList<ContentEncoding>());
+	}
+
+	/**
+	 * Store content that has been copied to a temporary file, which is moved
+	 * or deleted, if it has the expected hash.
+	 * 
+	 * @throws HashMismatchException
+	 *             if it doesn't, in which case nothing is stored
+	 */
+	Hash writeFile(Path tmpFile, Hash expected) throws IOException {
+		return write(tmpFile, expected, new LinkedList<ContentEncoding>(), null, null);
+	}
+
+	/**
+	 * Store content that has been copied to a temporary file, which is moved
+	 * or deleted, and write or schedule the given encodings of it.
+	 */
+	Hash writeFile(Path tmpFile, List<ContentEncoding> encodings) throws IOException {
+		return write(tmpFile, null, encodings, null, null);
+	}
+
+	/**
+	 * Store content that has been copied to a temporary file, along with a
+	 * temporary file of it in an encoding which is kept as that encoding.
+	 * Both files are moved or deleted.
+	 */
+	Hash writeFile(Path tmpFile, ContentEncoding encodedWith, Path encodedTmpFile) throws IOException {
+		return write(tmpFile, null, new LinkedList<ContentEncoding>(), encodedWith, encodedTmpFile);
+	}
+
+	/**
+	 * Add an encoding of some content that has been copied to a temporary
+	 * file, which is moved or deleted.
+	 * 
+	 * @return false if the content isn't in the store or already has the
+	 *         encoding
+	 */
+	boolean writeEncodingFile(Hash hash, String encodingName, Path tmpFile) throws IOException {
+		String hashString = hash.getString();
+		Path encodedContentPath = getContentPath(hashString + "." + encodingName);
+		try {
+			synchronized (lockFor(hashString)) {
+				if (!doContains(hash) || Files.exists(encodedContentPath)) {
+					return false;
+				}
+				long encodedLength = Files.size(tmpFile);
+				move(tmpFile, encodedContentPath);
+				statistics.encodingAdded(getPrefix(hashString), encodingName, encodedLength);
+				return true;
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
 	public Path getContentPath(String hashString) {
 		Path subPath = getSubPath(hashString);
 		Path contentPath = subPath.resolve(hashString.substring(hashPrefixLength));
 		return contentPath;
 	}
 
+	/**
+	 * @return the path of the chunk with the given hash
+	 */
+	public Path getChunkPath(String hashString) {
+		Path subPath = chunksPath.resolve(hashString.substring(0, hashPrefixLength));
+		return subPath.resolve(hashString.substring(hashPrefixLength));
+	}
+
 	public Path getSubPath(String hashString) {
 		Path subPath = rootPath.resolve(hashString.substring(0, hashPrefixLength));
 		return subPath;
 	}
 
+	/**
+	 * Finish any background encodings and save the statistics.
+	 */
 	@Override
 	public void close() {
-		// Nothing to do here.
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
 		// Could delete all the content we own?
+		encodingScheduler.close();
+		if (statisticsExecutor != null) {
+			statisticsExecutor.shutdownNow();
+			try {
+				statisticsExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			if (Files.isDirectory(rootPath)) {
+				saveStatistics(true);
+			}
+		} catch (IOException e) {
+			// Not saving them only costs an audit when the store is reopened
+		}
+		try {
+			rootLock.close();
+		} catch (IOException e) {
+			// The operating system releases it anyway
+		}
 	}
 }
@@ -0,0 +1,962 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small HTTP/1.1 server for the content of a store, addressed by hash:
+ *
+ * <ul>
+ * <li>GET and HEAD /hash return the content. The hash, with the name of the
+ * encoding if one was used, is the content's strong ETag, and single byte
+ * ranges are supported. If the client accepts an encoding the store already
+ * has the content in, that is sent rather than encoding it again.</li>
+ * <li>PUT / stores the body. PUT /hash doesn't read the body if the store
+ * already has that hash, so a client which sends Expect: 100-continue needn't
+ * send it at all, and otherwise checks the body has that hash before storing
+ * it. A body with a Content-Encoding the store knows is stored with
+ * writeEncoded, and an encodings query parameter, eg ?encodings=gzip,deflate,
+ * says which encodings to store the content in.</li>
+ * <li>DELETE /hash deletes the content.</li>
+ * </ul>
+ *
+ * Files of a ContentAddressableStoreFileImpl are sent with channel transfers,
+ * so the operating system can send them without copying them through the
+ * JVM. Content from other stores is copied from their streams.
+ */
+public class ContentAddressableStoreHttpServer implements AutoCloseable {
+
+	/**
+	 * Name of the property specifying the port to listen on, or 0 for any
+	 * free port. Defaults to 8080.
+	 */
+	public final static String portPropertyName = ContentAddressableStoreHttpServer.class.getName() + ".port";
+
+	/**
+	 * Name of the property specifying the address to listen on. Defaults to
+	 * all addresses.
+	 */
+	public final static String bindAddressPropertyName = ContentAddressableStoreHttpServer.class.getName()
+			+ ".bindAddress";
+
+	/**
+	 * Name of the property specifying the number of connections served at
+	 * once. Further connections wait for one to close. Defaults to 16.
+	 */
+	public final static String threadsPropertyName = ContentAddressableStoreHttpServer.class.getName() + ".threads";
+
+	/**
+	 * Name of the property specifying how long an idle connection is kept
+	 * open, in milliseconds. Defaults to 30 seconds.
+	 */
+	public final static String idleTimeoutPropertyName = ContentAddressableStoreHttpServer.class.getName()
+			+ ".idleTimeout";
+
+	private static final int maxHeaderLength = 8192;
+	private static final int bufferSize = 64 * 1024;
+	private static final String allowedMethods = "GET, HEAD, PUT, DELETE";
+
+	private static final Map<Integer, String> reasons = new HashMap<Integer, String>();
+
+	static {
+		reasons.put(200, "OK");
+		reasons.put(201, "Created");
+		reasons.put(204, "No Content");
+		reasons.put(206, "Partial Content");
+		reasons.put(304, "Not Modified");
+		reasons.put(400, "Bad Request");
+		reasons.put(404, "Not Found");
+		reasons.put(405, "Method Not Allowed");
+		reasons.put(411, "Length Required");
+		reasons.put(415, "Unsupported Media Type");
+		reasons.put(416, "Range Not Satisfiable");
+		reasons.put(500, "Internal Server Error");
+		reasons.put(505, "HTTP Version Not Supported");
+	}
+
+	/**
+	 * A request which can't be served, answered with the status, after which
+	 * the connection is closed.
+	 */
+	private static class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final int status;
+
+		BadRequestException(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private static final class Request {
+		private String method;
+		private String path;
+		private String query;
+		private boolean keepAlive;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private BodyInputStream body;
+
+		String getHeader(String name) {
+			return headers.get(name.toLowerCase(Locale.ROOT));
+		}
+	}
+
+	private static final class Response {
+		private int status;
+		private final Map<String, String> headers = new LinkedHashMap<String, String>();
+		private byte[] bytes;
+		private FileChannel file;
+		private InputStream stream;
+		private long start;
+		private long length;
+
+		Response(int status) {
+			this.status = status;
+		}
+
+		Response(int status, String message) {
+			this(status);
+			bytes = (message + "\n").getBytes(StandardCharsets.UTF_8);
+			length = bytes.length;
+			headers.put("Content-Type", "text/plain; charset=utf-8");
+		}
+	}
+
+	private final ContentAddressableStore store;
+	private final int port;
+	private final InetAddress bindAddress;
+	private final int threads;
+	private final int idleTimeout;
+
+	private ServerSocketChannel serverChannel;
+	private ExecutorService executor;
+	private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/**
+	 * @param store
+	 *            The store to serve
+	 * @param properties
+	 *            <code>portPropertyName</code>,
+	 *            <code>bindAddressPropertyName</code>,
+	 *            <code>threadsPropertyName</code> and
+	 *            <code>idleTimeoutPropertyName</code>, all optional
+	 */
+	public ContentAddressableStoreHttpServer(ContentAddressableStore store, Properties properties) throws IOException {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		this.store = store;
+		port = Integer.parseInt(properties.getProperty(portPropertyName, "8080"));
+		String bindAddress = properties.getProperty(bindAddressPropertyName);
+		this.bindAddress = bindAddress == null || bindAddress.equals("") ? null : InetAddress.getByName(bindAddress);
+		threads = Integer.parseInt(properties.getProperty(threadsPropertyName, "16"));
+		idleTimeout = Integer.parseInt(properties.getProperty(idleTimeoutPropertyName, "30000"));
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException(portPropertyName);
+		if (threads <= 0)
+			throw new IllegalArgumentException(threadsPropertyName);
+		if (idleTimeout <= 0)
+			throw new IllegalArgumentException(idleTimeoutPropertyName);
+	}
+
+	/**
+	 * Start listening for connections.
+	 */
+	public synchronized void start() throws IOException {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		if (serverChannel != null)
+			return;
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(bindAddress, port));
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-http-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Thread acceptor = new Thread(this::accept, "CassetteJ-http-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	public synchronized int getPort() throws IOException {
+		if (serverChannel == null)
+			throw new IllegalStateException("Not started");
+		return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+	}
+
+	private void accept() {
+		while (!closed) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (IOException e) {
+				// Closed, or out of file descriptors, in which case wait for
+				// connections to close
+				if (!closed) {
+					pause();
+				}
+				continue;
+			}
+			connections.add(channel);
+			try {
+				executor.execute(() -> serve(channel));
+			} catch (RejectedExecutionException e) {
+				closeQuietly(channel);
+			}
+		}
+	}
+
+	private static void pause() {
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void serve(SocketChannel channel) {
+		try {
+			Socket socket = channel.socket();
+			socket.setSoTimeout(idleTimeout);
+			socket.setTcpNoDelay(true);
+			InputStream inputStream = new BufferedInputStream(socket.getInputStream(), bufferSize);
+			OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream(), bufferSize);
+			boolean keepAlive = true;
+			while (keepAlive && !closed) {
+				Request request;
+				try {
+					request = readRequest(inputStream);
+				} catch (BadRequestException e) {
+					writeResponse(channel, outputStream, new Response(e.status, e.getMessage()), false);
+					break;
+				}
+				if (request == null) {
+					break;
+				}
+				keepAlive = handle(request, channel, outputStream);
+			}
+		} catch (IOException e) {
+			// Timed out, reset or closed by the client
+		} finally {
+			connections.remove(channel);
+			closeQuietly(channel);
+		}
+	}
+
+	private static void closeQuietly(AutoCloseable closeable) {
+		try {
+			closeable.close();
+		} catch (Exception e) {
+			// Nothing to be done
+		}
+	}
+
+	/**
+	 * @return The request, with its body not yet read, or null if the client
+	 *         closed the connection between requests
+	 */
+	private static Request readRequest(InputStream inputStream) throws IOException {
+		int[] remaining = { maxHeaderLength };
+		String requestLine = readLine(inputStream, remaining);
+		// Clients may send blank lines between requests
+		while (requestLine != null && requestLine.isEmpty()) {
+			requestLine = readLine(inputStream, remaining);
+		}
+		if (requestLine == null) {
+			return null;
+		}
+		String[] parts = requestLine.split(" ");
+		if (parts.length != 3 || !parts[2].startsWith("HTTP/"))
+			throw new BadRequestException(400, "Bad request line");
+		if (!parts[2].equals("HTTP/1.1") && !parts[2].equals("HTTP/1.0"))
+			throw new BadRequestException(505, "Only HTTP/1.0 and 1.1 are supported");
+
+		Request request = new Request();
+		request.method = parts[0];
+		String target = parts[1];
+		int question = target.indexOf('?');
+		request.path = question == -1 ? target : target.substring(0, question);
+		request.query = question == -1 ? null : target.substring(question + 1);
+
+		while (true) {
+			String line = readLine(inputStream, remaining);
+			if (line == null)
+				throw new EOFException();
+			if (line.isEmpty())
+				break;
+			int colon = line.indexOf(':');
+			if (colon <= 0)
+				throw new BadRequestException(400, "Bad header");
+			String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+			String value = line.substring(colon + 1).trim();
+			String existing = request.headers.get(name);
+			request.headers.put(name, existing == null ? value : existing + ", " + value);
+		}
+
+		String connection = request.getHeader("Connection");
+		connection = connection == null ? "" : connection.toLowerCase(Locale.ROOT);
+		request.keepAlive = parts[2].equals("HTTP/1.1") ? !connection.contains("close")
+				: connection.contains("keep-alive");
+
+		if (request.getHeader("Transfer-Encoding") != null)
+			throw new BadRequestException(411, "Send a Content-Length rather than a Transfer-Encoding");
+		String contentLength = request.getHeader("Content-Length");
+		long length;
+		try {
+			length = contentLength == null ? 0 : Long.parseLong(contentLength);
+		} catch (NumberFormatException e) {
+			throw new BadRequestException(400, "Bad Content-Length");
+		}
+		if (length < 0)
+			throw new BadRequestException(400, "Bad Content-Length");
+		request.body = new BodyInputStream(inputStream, length);
+		return request;
+	}
+
+	/**
+	 * @return A line without its line ending, or null at the end of the
+	 *         stream before any of the line
+	 */
+	private static String readLine(InputStream inputStream, int[] remaining) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for (int b = inputStream.read(); b != '\n'; b = inputStream.read()) {
+			if (b == -1) {
+				if (line.size() == 0)
+					return null;
+				throw new EOFException();
+			}
+			if (--remaining[0] < 0)
+				throw new BadRequestException(400, "Request header too long");
+			line.write(b);
+		}
+		String string = new String(line.toByteArray(), StandardCharsets.ISO_8859_1);
+		return string.endsWith("\r") ? string.substring(0, string.length() - 1) : string;
+	}
+
+	/**
+	 * The body of a request, which ends at its Content-Length without closing
+	 * the connection.
+	 */
+	private static class BodyInputStream extends FilterInputStream {
+		private long remaining;
+		private OutputStream continueOutputStream;
+
+		BodyInputStream(InputStream inputStream, long length) {
+			super(inputStream);
+			remaining = length;
+		}
+
+		/**
+		 * Tell the client to send the body when it is first read.
+		 */
+		void expectContinue(OutputStream outputStream) {
+			continueOutputStream = remaining > 0 ? outputStream : null;
+		}
+
+		/**
+		 * @return Whether the client is still waiting to be told to send the
+		 *         body
+		 */
+		boolean isAwaitingContinue() {
+			return continueOutputStream != null;
+		}
+
+		private void sendContinue() throws IOException {
+			if (continueOutputStream != null) {
+				continueOutputStream.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				continueOutputStream.flush();
+				continueOutputStream = null;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			sendContinue();
+			int b = super.read();
+			if (b == -1)
+				throw new EOFException();
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			sendContinue();
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n == -1)
+				throw new EOFException();
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		/**
+		 * Skip what is left of the body, leaving the connection open, unless
+		 * the client hasn't been asked for it.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (continueOutputStream != null) {
+				return;
+			}
+			while (remaining > 0) {
+				long n = super.skip(remaining);
+				if (n <= 0) {
+					if (super.read() == -1)
+						throw new EOFException();
+					n = 1;
+				}
+				remaining -= n;
+			}
+		}
+	}
+
+	/**
+	 * Handle a request and send the response.
+	 *
+	 * @return Whether the connection can be used for another request
+	 */
+	private boolean handle(Request request, SocketChannel channel, OutputStream outputStream) throws IOException {
+		Response response;
+		try {
+			if ("100-continue".equalsIgnoreCase(request.getHeader("Expect"))) {
+				request.body.expectContinue(outputStream);
+			}
+			response = respond(request);
+			if (request.body.isAwaitingContinue()) {
+				// The client may or may not send the body it wasn't asked for
+				request.keepAlive = false;
+			} else {
+				// Consume any body the request was answered without reading
+				request.body.close();
+			}
+		} catch (BadRequestException e) {
+			// Don't read a body which won't be used
+			request.keepAlive = false;
+			response = new Response(e.status, e.getMessage());
+		} catch (IOException | RuntimeException e) {
+			// Don't know how much of the body was read
+			request.keepAlive = false;
+			response = new Response(500, e.toString());
+		}
+		if (request.method.equals("HEAD")) {
+			// The headers of a GET without the body
+			if (response.status != 204 && response.status != 304) {
+				response.headers.put("Content-Length", Long.toString(response.length));
+			}
+			response.length = 0;
+			response.bytes = null;
+		}
+		try {
+			writeResponse(channel, outputStream, response, request.keepAlive);
+		} finally {
+			if (response.file != null) {
+				response.file.close();
+			}
+			if (response.stream != null) {
+				response.stream.close();
+			}
+		}
+		return request.keepAlive;
+	}
+
+	private Response respond(Request request) throws IOException {
+		String method = request.method;
+		boolean isPut = method.equals("PUT");
+		Hash hash = null;
+		if (!(isPut && request.path.equals("/"))) {
+			hash = parseHash(request.path);
+			if (hash == null) {
+				return new Response(404, "Not found");
+			}
+		}
+		switch (method) {
+		case "GET":
+			return get(request, hash, true);
+		case "HEAD":
+			return get(request, hash, false);
+		case "PUT":
+			if (request.getHeader("Content-Length") == null)
+				throw new BadRequestException(411, "PUT needs a Content-Length");
+			return put(request, hash);
+		case "DELETE":
+			return store.delete(hash) ? new Response(204) : new Response(404, "Not found");
+		default:
+			Response response = new Response(405, "Method not allowed");
+			response.headers.put("Allow", allowedMethods);
+			return response;
+		}
+	}
+
+	/**
+	 * @return The hash in a path, or null if the path isn't a hash
+	 */
+	private static Hash parseHash(String path) {
+		if (path.length() != Hash.byteCount * 2 + 1 || path.charAt(0) != '/') {
+			return null;
+		}
+		String hashString = path.substring(1).toUpperCase(Locale.ROOT);
+		for (int i = 0; i < hashString.length(); i++) {
+			if (Character.digit(hashString.charAt(i), 16) == -1) {
+				return null;
+			}
+		}
+		return new Hash(hashString);
+	}
+
+	private Response get(Request request, Hash hash, boolean sendBody) throws IOException {
+		ContentEncoding encoding = chooseEncoding(hash, request.getHeader("Accept-Encoding"));
+		String etag = "\"" + hash.getString() + (encoding == null ? "" : "." + encoding.getName()) + "\"";
+
+		Response response = new Response(200);
+		response.headers.put("Content-Type", "application/octet-stream");
+		if (encoding != null) {
+			response.headers.put("Content-Encoding", encoding.getName());
+		}
+		response.headers.put("ETag", etag);
+		response.headers.put("Vary", "Accept-Encoding");
+		response.headers.put("Accept-Ranges", "bytes");
+		// Content never changes under its hash
+		response.headers.put("Cache-Control", "public, max-age=31536000, immutable");
+
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null && matches(ifNoneMatch, etag)) {
+			if (!store.contains(hash)) {
+				return new Response(404, "Not found");
+			}
+			response.status = 304;
+			return response;
+		}
+
+		// Open the content first so the length is of what will be sent
+		long length = -1;
+		Path file = getFile(hash, encoding);
+		if (file != null) {
+			try {
+				response.file = FileChannel.open(file, StandardOpenOption.READ);
+				length = response.file.size();
+			} catch (NoSuchFileException e) {
+				// Deleted, or stored chunked or in an encoding
+			}
+		}
+		if (response.file == null) {
+			length = encoding == null ? store.getContentLength(hash) : store.getContentLength(hash, encoding);
+			if (length != -1 && sendBody) {
+				response.stream = encoding == null ? store.read(hash) : store.read(hash, encoding);
+				if (response.stream == null) {
+					length = -1;
+				}
+			}
+		}
+		if (length == -1) {
+			return new Response(404, "Not found");
+		}
+		response.length = length;
+
+		String range = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		if (range != null && (ifRange == null || ifRange.equals(etag))) {
+			long[] bounds = parseRange(range, length);
+			if (bounds != null && bounds.length == 0) {
+				Response unsatisfiable = new Response(416, "Range not satisfiable");
+				unsatisfiable.headers.put("Content-Range", "bytes */" + length);
+				unsatisfiable.file = response.file;
+				unsatisfiable.stream = response.stream;
+				return unsatisfiable;
+			}
+			if (bounds != null) {
+				response.status = 206;
+				response.start = bounds[0];
+				response.length = bounds[1] - bounds[0] + 1;
+				response.headers.put("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+			}
+		}
+		return response;
+	}
+
+	/**
+	 * @return The file of a file store which holds the content in the
+	 *         encoding, or null if the store doesn't keep it in files
+	 */
+	private Path getFile(Hash hash, ContentEncoding encoding) {
+		if (!(store instanceof ContentAddressableStoreFileImpl)) {
+			return null;
+		}
+		return ((ContentAddressableStoreFileImpl) store)
+				.getContentPath(hash.getString() + (encoding == null ? "" : "." + encoding.getName()));
+	}
+
+	/**
+	 * @return Whether an If-None-Match header matches the ETag
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// Weak comparison, as for If-None-Match
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Choose the encoding to send content in from those the store already
+	 * has it in, by the client's preferences and then by size.
+	 *
+	 * @return The encoding, or null to send the content as it is
+	 */
+	private ContentEncoding chooseEncoding(Hash hash, String acceptEncoding) throws IOException {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		Map<String, Double> qualities = new HashMap<String, Double>();
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parameters = coding.split(";");
+			String name = parameters[0].trim().toLowerCase(Locale.ROOT);
+			double quality = 1;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (!name.isEmpty()) {
+				qualities.put(name, quality);
+			}
+		}
+		Double any = qualities.get("*");
+		// Unless the client ranks sending it as it is, any encoding it accepts
+		// is preferred
+		Double identity = qualities.get("identity");
+		double best = identity != null ? identity : 0;
+
+		ContentEncoding chosen = null;
+		long chosenLength = Long.MAX_VALUE;
+		for (String name : ContentEncodingFactory.getEncodingNames()) {
+			Double quality = qualities.get(name.toLowerCase(Locale.ROOT));
+			if (quality == null) {
+				quality = any;
+			}
+			if (quality == null || quality <= 0 || quality < best) {
+				continue;
+			}
+			ContentEncoding encoding = ContentEncodingFactory.createEncoding(name);
+			if (encoding == null || !store.contains(hash, encoding)) {
+				continue;
+			}
+			long length = store.getContentLength(hash, encoding);
+			if (length == -1) {
+				continue;
+			}
+			if (quality > best || length < chosenLength) {
+				best = quality;
+				chosen = encoding;
+				chosenLength = length;
+			}
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return The first and last byte of a single byte range, an empty array
+	 *         if the range can't be satisfied, or null if the range isn't
+	 *         understood, in which case it is ignored
+	 */
+	private static long[] parseRange(String range, long length) {
+		if (!range.startsWith("bytes=") || range.contains(",")) {
+			return null;
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash == -1) {
+			return null;
+		}
+		try {
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash + 1).trim();
+			if (first.isEmpty()) {
+				// The last n bytes
+				long suffix = Long.parseLong(last);
+				if (suffix <= 0 || length == 0) {
+					return new long[0];
+				}
+				return new long[] { Math.max(0, length - suffix), length - 1 };
+			}
+			long start = Long.parseLong(first);
+			long end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if (start < 0 || (!last.isEmpty() && Long.parseLong(last) < start)) {
+				return null;
+			}
+			if (start >= length) {
+				return new long[0];
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private Response put(Request request, Hash expected) throws IOException {
+		ContentEncoding contentEncoding = null;
+		String contentEncodingName = request.getHeader("Content-Encoding");
+		if (contentEncodingName != null && !contentEncodingName.equalsIgnoreCase("identity")) {
+			contentEncoding = ContentEncodingFactory.createEncoding(contentEncodingName.toLowerCase(Locale.ROOT));
+			if (contentEncoding == null)
+				throw new BadRequestException(415, "Unknown Content-Encoding " + contentEncodingName);
+		}
+		List<ContentEncoding> encodings = new ArrayList<ContentEncoding>();
+		for (String name : getQueryParameter(request.query, "encodings")) {
+			ContentEncoding encoding = ContentEncodingFactory.createEncoding(name);
+			if (encoding == null)
+				throw new BadRequestException(400, "Unknown encoding " + name);
+			encodings.add(encoding);
+		}
+
+		boolean existed = expected != null && store.contains(expected);
+		Hash hash;
+		if (contentEncoding == null && expected != null) {
+			try {
+				hash = store.write(expected, request.body, encodings);
+			} catch (HashMismatchException e) {
+				return new Response(400, "Content has hash " + e.getActual().getString());
+			}
+		} else if (contentEncoding == null) {
+			hash = store.write(request.body, encodings);
+		} else if (expected != null) {
+			// Like a raw body, only read if the store doesn't have it
+			if (!existed) {
+				Hash actual = writeEncoded(expected, request.body, contentEncoding);
+				if (!actual.equals(expected)) {
+					return new Response(400, "Content has hash " + actual.getString());
+				}
+			}
+			hash = expected;
+			addEncodings(hash, encodings);
+		} else {
+			hash = store.writeEncoded(request.body, contentEncoding);
+			addEncodings(hash, encodings);
+		}
+
+		Response response = new Response(existed ? 204 : 201);
+		response.headers.put("ETag", "\"" + hash.getString() + "\"");
+		if (!existed) {
+			response.headers.put("Location", "/" + hash.getString());
+			response.headers.put("Content-Length", "0");
+		}
+		return response;
+	}
+
+	/**
+	 * Spool an encoded body and decode it to check it has the expected hash
+	 * before storing it.
+	 * 
+	 * @return The hash of the body's content, which is only stored if that is
+	 *         the expected hash
+	 */
+	private Hash writeEncoded(Hash expected, InputStream body, ContentEncoding contentEncoding) throws IOException {
+		Path tmpFile = Files.createTempFile("CassetteJ", ".tmp");
+		try {
+			Files.copy(body, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+			MessageDigest messageDigest;
+			try {
+				messageDigest = MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException(e);
+			}
+			try (InputStream inputStream = contentEncoding.decode(new BufferedInputStream(Files.newInputStream(tmpFile)))) {
+				byte[] buffer = new byte[bufferSize];
+				for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+					messageDigest.update(buffer, 0, n);
+				}
+			}
+			Hash actual = new Hash(messageDigest.digest());
+			if (actual.equals(expected)) {
+				try (InputStream inputStream = Files.newInputStream(tmpFile)) {
+					store.writeEncoded(inputStream, contentEncoding);
+				}
+			}
+			return actual;
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Add encodings to content the store has. Given the hash, the store
+	 * encodes what it holds rather than having the content sent through it
+	 * again.
+	 */
+	private void addEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		if (encodings.isEmpty()) {
+			return;
+		}
+		try {
+			store.write(hash, new ByteArrayInputStream(new byte[0]), encodings);
+		} catch (HashMismatchException e) {
+			// Deleted since it was written
+		}
+	}
+
+	/**
+	 * @return The comma separated values of a query parameter
+	 */
+	private static List<String> getQueryParameter(String query, String name) {
+		List<String> values = new ArrayList<String>();
+		if (query == null) {
+			return values;
+		}
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith(name + "=")) {
+				for (String value : parameter.substring(name.length() + 1).split(",")) {
+					if (!value.isEmpty()) {
+						values.add(value);
+					}
+				}
+			}
+		}
+		return values;
+	}
+
+	private static void writeResponse(SocketChannel channel, OutputStream outputStream, Response response,
+			boolean keepAlive) throws IOException {
+		StringBuilder head = new StringBuilder();
+		head.append("HTTP/1.1 ").append(response.status).append(' ').append(reasons.get(response.status))
+				.append("\r\n");
+		head.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)))
+				.append("\r\n");
+		for (Map.Entry<String, String> header : response.headers.entrySet()) {
+			head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+		}
+		if (response.status != 204 && response.status != 304 && !response.headers.containsKey("Content-Length")) {
+			head.append("Content-Length: ").append(response.length).append("\r\n");
+		}
+		if (!keepAlive) {
+			head.append("Connection: close\r\n");
+		}
+		head.append("\r\n");
+		outputStream.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+		if (response.length == 0) {
+			outputStream.flush();
+		} else if (response.bytes != null) {
+			outputStream.write(response.bytes);
+			outputStream.flush();
+		} else if (response.file != null) {
+			// Send the headers, then let the operating system send the file
+			outputStream.flush();
+			long position = response.start;
+			long end = response.start + response.length;
+			while (position < end) {
+				long n = response.file.transferTo(position, end - position, channel);
+				if (n <= 0)
+					throw new EOFException();
+				position += n;
+			}
+		} else {
+			InputStream inputStream = response.stream;
+			long skipped = 0;
+			while (skipped < response.start) {
+				long n = inputStream.skip(response.start - skipped);
+				if (n <= 0) {
+					if (inputStream.read() == -1)
+						throw new EOFException();
+					n = 1;
+				}
+				skipped += n;
+			}
+			byte[] buffer = new byte[bufferSize];
+			long remaining = response.length;
+			while (remaining > 0) {
+				int n = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+				if (n == -1)
+					throw new EOFException();
+				outputStream.write(buffer, 0, n);
+				remaining -= n;
+			}
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Stop listening and close all connections. The store isn't closed.
+	 */
+	@Override
+	public void close() {
+		ServerSocketChannel serverChannel;
+		ExecutorService executor;
+		synchronized (this) {
+			closed = true;
+			serverChannel = this.serverChannel;
+			executor = this.executor;
+		}
+		if (serverChannel != null) {
+			closeQuietly(serverChannel);
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		for (SocketChannel channel : connections) {
+			closeQuietly(channel);
+		}
+	}
+}
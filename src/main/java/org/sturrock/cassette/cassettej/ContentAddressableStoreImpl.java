@@ -1,13 +1,505 @@
 package org.sturrock.cassette.cassettej;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Base class for stores. The public operations report to the store's
+ * {@link StoreMetrics} and then call the corresponding protected
+ * <code>doXxx</code> method which subclasses implement. Subclasses should call
+ * the <code>doXxx</code> methods rather than the public ones internally so
+ * only the caller's operations are measured.
+ */
 public abstract class ContentAddressableStoreImpl implements
 		ContentAddressableStore {
 
+	private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
 	private List<ContentAddressableStoreListener> listeners = new LinkedList<ContentAddressableStoreListener>();
 
+	private volatile EncodingPolicy encodingPolicy;
+
+	private volatile StoreMetrics metrics = StoreMetrics.NONE;
+
+	/**
+	 * The running counts behind getStatistics(), which implementations
+	 * update as they add and remove content and encodings.
+	 */
+	final StatisticsCounters statistics = new StatisticsCounters();
+
+	/**
+	 * Counts the operations callers have started, so background work can
+	 * tell when the store is busy.
+	 */
+	private final LongAdder operations = new LongAdder();
+
+	/**
+	 * An operation which may throw a checked exception.
+	 */
+	private interface Operation<T, E extends Exception> {
+		T run() throws E;
+	}
+
+	/**
+	 * Counts the bytes read from the store and reports them when closed.
+	 */
+	private static class MeteredInputStream extends CountingInputStream {
+		private final StoreMetrics metrics;
+		private final String encodingName;
+		private boolean reported;
+
+		MeteredInputStream(InputStream inputStream, StoreMetrics metrics, String encodingName) {
+			super(inputStream);
+			this.metrics = metrics;
+			this.encodingName = encodingName;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				if (!reported) {
+					reported = true;
+					metrics.bytesOut(encodingName, getByteCount());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The metrics the store reports to
+	 */
+	public StoreMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @param metrics
+	 *            The metrics for the store to report to, or null to stop
+	 *            reporting
+	 */
+	public void setMetrics(StoreMetrics metrics) {
+		this.metrics = metrics == null ? StoreMetrics.NONE : metrics;
+	}
+
+	/**
+	 * @return The policy deciding which requested encodings to produce, or
+	 *         null if all are produced
+	 */
+	public EncodingPolicy getEncodingPolicy() {
+		return encodingPolicy;
+	}
+
+	/**
+	 * @param encodingPolicy
+	 *            The policy deciding which requested encodings to produce, or
+	 *            null to produce them all
+	 */
+	public void setEncodingPolicy(EncodingPolicy encodingPolicy) {
+		this.encodingPolicy = encodingPolicy;
+	}
+
+	/**
+	 * Filter requested encodings through the encoding policy. Encodings the
+	 * store already has are left in without asking the policy.
+	 * 
+	 * @param hash
+	 *            The hash of the content
+	 * @param encodings
+	 *            The requested encodings
+	 * @param sample
+	 *            The start of the content, at least as long as the policy's
+	 *            sample size unless the content is shorter
+	 * @param sampleLength
+	 *            The number of bytes of the sample to use
+	 * @param contentLength
+	 *            The length of the whole content
+	 * @return The encodings to produce
+	 */
+	protected List<ContentEncoding> applyEncodingPolicy(Hash hash, List<ContentEncoding> encodings, byte[] sample,
+			int sampleLength, long contentLength) {
+		EncodingPolicy encodingPolicy = this.encodingPolicy;
+		if (encodingPolicy == null || encodings.isEmpty()) {
+			return encodings;
+		}
+		List<ContentEncoding> selected = new LinkedList<ContentEncoding>();
+		for (ContentEncoding encoding : encodings) {
+			int length = Math.min(sampleLength, encodingPolicy.getSampleSize());
+			if (doContains(hash, encoding) || encodingPolicy.shouldEncode(encoding, sample, length, contentLength)) {
+				selected.add(encoding);
+			} else {
+				metrics.encodingSkipped(encoding.getName(), contentLength);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Select the requested encodings the encoding policy allows for content
+	 * already in the store, reading the sample from the stored content.
+	 * 
+	 * @return The encodings to produce, none if the content isn't in the
+	 *         store
+	 */
+	protected List<ContentEncoding> applyEncodingPolicy(Hash hash, List<ContentEncoding> encodings)
+			throws IOException {
+		EncodingPolicy encodingPolicy = this.encodingPolicy;
+		if (encodingPolicy == null || encodings.isEmpty()) {
+			return encodings;
+		}
+		byte[] sample = new byte[encodingPolicy.getSampleSize()];
+		int sampleLength;
+		try (InputStream stream = doRead(hash)) {
+			if (stream == null) {
+				return new LinkedList<ContentEncoding>();
+			}
+			sampleLength = IOUtils.read(stream, sample);
+		}
+		return applyEncodingPolicy(hash, encodings, sample, sampleLength, doGetContentLength(hash));
+	}
+
+	private <T, E extends Exception> T measure(StoreOperation operation, Operation<T, E> body) throws E {
+		operations.increment();
+		StoreMetrics metrics = this.metrics;
+		if (metrics == StoreMetrics.NONE) {
+			return body.run();
+		}
+		metrics.operationStarted(operation);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = body.run();
+			failed = false;
+			return result;
+		} finally {
+			metrics.operationCompleted(operation, System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * An operation on the stream being written.
+	 */
+	private interface WriteOperation {
+		Hash run(InputStream stream) throws IOException;
+	}
+
+	private Hash measureWrite(StoreOperation operation, InputStream stream, String encodingName, WriteOperation body)
+			throws IOException {
+		StoreMetrics metrics = this.metrics;
+		if (metrics == StoreMetrics.NONE || stream == null) {
+			return measure(operation, () -> body.run(stream));
+		}
+		CountingInputStream countingStream = new CountingInputStream(stream);
+		try {
+			return measure(operation, () -> body.run(countingStream));
+		} finally {
+			metrics.bytesIn(encodingName, countingStream.getByteCount());
+		}
+	}
+
+	private InputStream meter(InputStream inputStream, ContentEncoding contentEncoding) {
+		StoreMetrics metrics = this.metrics;
+		if (inputStream == null || metrics == StoreMetrics.NONE) {
+			return inputStream;
+		}
+		return new MeteredInputStream(inputStream, metrics, getEncodingName(contentEncoding));
+	}
+
+	private static String getEncodingName(ContentEncoding contentEncoding) {
+		return contentEncoding == null ? StoreMetrics.IDENTITY : contentEncoding.getName();
+	}
+
+	@Override
+	public Hash write(InputStream stream) throws IOException {
+		return write(stream, new LinkedList<ContentEncoding>());
+	}
+
+	@Override
+	public Hash write(InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		return measureWrite(StoreOperation.WRITE, stream, StoreMetrics.IDENTITY, s -> doWrite(s, encodings));
+	}
+
+	@Override
+	public Hash writeEncoded(InputStream stream, ContentEncoding contentEncoding) throws IOException {
+		return measureWrite(StoreOperation.WRITE_ENCODED, stream, getEncodingName(contentEncoding),
+				s -> doWriteEncoded(s, contentEncoding));
+	}
+
+	@Override
+	public Hash write(Hash expected, InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		return measureWrite(StoreOperation.WRITE_EXPECTED, stream, StoreMetrics.IDENTITY,
+				s -> doWrite(expected, s, encodings));
+	}
+
+	@Override
+	public boolean contains(Hash hash) {
+		return measure(StoreOperation.CONTAINS, () -> doContains(hash));
+	}
+
+	@Override
+	public boolean contains(Hash hash, ContentEncoding contentEncoding) {
+		return measure(StoreOperation.CONTAINS, () -> doContains(hash, contentEncoding));
+	}
+
+	@Override
+	public InputStream read(Hash hash) throws IOException {
+		return meter(measure(StoreOperation.READ, () -> doRead(hash)), null);
+	}
+
+	@Override
+	public InputStream read(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		return meter(measure(StoreOperation.READ, () -> doRead(hash, contentEncoding)), contentEncoding);
+	}
+
+	@Override
+	public long getContentLength(Hash hash) throws IOException {
+		return measure(StoreOperation.GET_CONTENT_LENGTH, () -> doGetContentLength(hash));
+	}
+
+	@Override
+	public long getContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		return measure(StoreOperation.GET_CONTENT_LENGTH, () -> doGetContentLength(hash, contentEncoding));
+	}
+
+	@Override
+	public List<Hash> getHashes() throws IOException {
+		return measure(StoreOperation.GET_HASHES, () -> doGetHashes());
+	}
+
+	@Override
+	public boolean delete(Hash hash) throws IOException {
+		return measure(StoreOperation.DELETE, () -> doDelete(hash));
+	}
+
+	@Override
+	public List<Hash> deleteAll(Collection<Hash> hashes) throws IOException {
+		return measure(StoreOperation.DELETE_ALL, () -> doDeleteAll(hashes));
+	}
+
+	/**
+	 * @return The number of operations callers have started on the store
+	 */
+	long getOperationCount() {
+		return operations.sum();
+	}
+
+	@Override
+	public StoreStatistics getStatistics() {
+		return statistics.getStatistics();
+	}
+
+	/**
+	 * @see ContentAddressableStore#write(InputStream, List)
+	 */
+	protected abstract Hash doWrite(InputStream stream, List<ContentEncoding> encodings) throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#writeEncoded(InputStream, ContentEncoding)
+	 */
+	protected abstract Hash doWriteEncoded(InputStream stream, ContentEncoding contentEncoding) throws IOException;
+
+	/**
+	 * Looks for the content and otherwise writes it with
+	 * {@link #doWrite(InputStream, List)}, checking its hash as it is read.
+	 * Stores whose writes don't store anything until they have read the
+	 * whole stream get the check for nothing.
+	 * 
+	 * @see ContentAddressableStore#write(Hash, InputStream, List)
+	 */
+	protected Hash doWrite(Hash expected, InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		if (expected == null)
+			throw new IllegalArgumentException("expected");
+		if (stream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (doContains(expected)) {
+			List<ContentEncoding> missing = new ArrayList<ContentEncoding>();
+			if (encodings != null) {
+				for (ContentEncoding encoding : encodings) {
+					if (!doContains(expected, encoding)) {
+						missing.add(encoding);
+					}
+				}
+			}
+			// Unless it has been deleted since
+			if (missing.isEmpty() || doAddEncodings(expected, missing)) {
+				return expected;
+			}
+		}
+		return doWrite(new HashCheckingInputStream(stream, expected), encodings);
+	}
+
+	/**
+	 * Adds encodings to content already in the store. This reads the content
+	 * back and writes it again, so stores which can encode what they hold in
+	 * place override it.
+	 * 
+	 * @return false if the content isn't in the store, eg if it has been
+	 *         deleted since it was looked for
+	 */
+	protected boolean doAddEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		try (InputStream stored = doRead(hash)) {
+			if (stored == null) {
+				return false;
+			}
+			doWrite(stored, encodings);
+			return true;
+		}
+	}
+
+	/**
+	 * Fails the read which reaches the end of the content if the content
+	 * doesn't have the expected hash.
+	 */
+	private static class HashCheckingInputStream extends DigestInputStream {
+		private final Hash expected;
+		private Hash actual;
+
+		HashCheckingInputStream(InputStream stream, Hash expected) {
+			super(stream, createMessageDigest());
+			this.expected = expected;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b == -1) {
+				check();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n == -1) {
+				check();
+			}
+			return n;
+		}
+
+		private void check() throws HashMismatchException {
+			if (actual == null) {
+				actual = new Hash(getMessageDigest().digest());
+			}
+			if (!actual.equals(expected))
+				throw new HashMismatchException(expected, actual);
+		}
+
+		private static MessageDigest createMessageDigest() {
+			try {
+				return MessageDigest.getInstance("SHA1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	/**
+	 * @see ContentAddressableStore#contains(Hash)
+	 */
+	protected abstract boolean doContains(Hash hash);
+
+	/**
+	 * @see ContentAddressableStore#contains(Hash, ContentEncoding)
+	 */
+	protected abstract boolean doContains(Hash hash, ContentEncoding contentEncoding);
+
+	/**
+	 * @see ContentAddressableStore#read(Hash)
+	 */
+	protected abstract InputStream doRead(Hash hash) throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#read(Hash, ContentEncoding)
+	 */
+	protected abstract InputStream doRead(Hash hash, ContentEncoding contentEncoding) throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#getContentLength(Hash)
+	 */
+	protected abstract long doGetContentLength(Hash hash) throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#getContentLength(Hash, ContentEncoding)
+	 */
+	protected abstract long doGetContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#getHashes()
+	 */
+	protected abstract List<Hash> doGetHashes() throws IOException;
+
+	/**
+	 * @see ContentAddressableStore#delete(Hash)
+	 */
+	protected abstract boolean doDelete(Hash hash) throws IOException;
+
+	/**
+	 * Deletes each piece of content in turn. Stores which can delete in bulk
+	 * override this.
+	 * 
+	 * @see ContentAddressableStore#deleteAll(Collection)
+	 */
+	protected List<Hash> doDeleteAll(Collection<Hash> hashes) throws IOException {
+		if (hashes == null)
+			throw new IllegalArgumentException("hashes");
+		List<Hash> deleted = new ArrayList<Hash>();
+		for (Hash hash : new LinkedHashSet<Hash>(hashes)) {
+			if (doDelete(hash)) {
+				deleted.add(hash);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * @return A start time to pass to
+	 *         {@link #encodingFinished(ContentEncoding, long, long)}
+	 */
+	protected long encodingStarted() {
+		if (metrics == StoreMetrics.NONE) {
+			return 0;
+		}
+		return currentThreadCpuTime();
+	}
+
+	/**
+	 * Report that the store has produced an encoding of some content.
+	 * 
+	 * @param rawBytes
+	 *            The length of the content encoded
+	 * @param started
+	 *            The value {@link #encodingStarted()} returned
+	 */
+	protected void encodingFinished(ContentEncoding contentEncoding, long rawBytes, long started) {
+		StoreMetrics metrics = this.metrics;
+		if (metrics != StoreMetrics.NONE && started != 0) {
+			metrics.encoded(contentEncoding.getName(), rawBytes, currentThreadCpuTime() - started);
+		}
+	}
+
+	private static long currentThreadCpuTime() {
+		if (threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+			return threadMXBean.getCurrentThreadCpuTime();
+		}
+		return System.nanoTime();
+	}
+
 	@Override
 	public void addListener(
 			ContentAddressableStoreListener contentAddressableStoreListener) {
@@ -24,7 +516,12 @@ public abstract class ContentAddressableStoreImpl implements
 		}
 	}
 
+	/**
+	 * Notify listeners of content added by a write to this store, which also
+	 * counts it in the store's metrics.
+	 */
 	protected void notifyListenersContentAdded(Hash hash) {
+		metrics.contentAdded();
 		ContentAddressableStoreEvent contentAddressableStoreEvent = new ContentAddressableStoreEvent(
 				this, hash);
 		synchronized (listeners) {
@@ -35,6 +532,19 @@ public abstract class ContentAddressableStoreImpl implements
 		}
 	}
 
+	protected void notifyListenersContentAdded(Collection<Hash> hashes) {
+		synchronized (listeners) {
+			for (Hash hash : hashes) {
+				ContentAddressableStoreEvent contentAddressableStoreEvent = new ContentAddressableStoreEvent(
+						this, hash);
+				for (ContentAddressableStoreListener contentAddressableStoreListener : listeners) {
+					contentAddressableStoreListener
+							.contentAdded(contentAddressableStoreEvent);
+				}
+			}
+		}
+	}
+
 	protected void notifyListenersContentRemoved(Hash hash) {
 		ContentAddressableStoreEvent contentAddressableStoreEvent = new ContentAddressableStoreEvent(
 				this, hash);
@@ -45,4 +555,17 @@ public abstract class ContentAddressableStoreImpl implements
 			}
 		}
 	}
+
+	protected void notifyListenersContentRemoved(Collection<Hash> hashes) {
+		synchronized (listeners) {
+			for (Hash hash : hashes) {
+				ContentAddressableStoreEvent contentAddressableStoreEvent = new ContentAddressableStoreEvent(
+						this, hash);
+				for (ContentAddressableStoreListener contentAddressableStoreListener : listeners) {
+					contentAddressableStoreListener
+							.contentRemoved(contentAddressableStoreEvent);
+				}
+			}
+		}
+	}
 }
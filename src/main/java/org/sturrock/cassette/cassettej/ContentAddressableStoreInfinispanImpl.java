@@ -5,21 +5,47 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.zip.DeflaterOutputStream;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.commons.io.IOUtils;
 import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.cache.SingleFileStoreConfiguration;
+import org.infinispan.configuration.cache.StoreConfiguration;
+import org.infinispan.configuration.parsing.ConfigurationBuilderHolder;
+import org.infinispan.configuration.parsing.ParserRegistry;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DefaultExecutorService;
+import org.infinispan.distribution.DataLocality;
+import org.infinispan.distribution.DistributionManager;
 import org.infinispan.manager.DefaultCacheManager;
+import org.infinispan.marshall.core.MarshalledEntry;
+import org.infinispan.persistence.manager.PersistenceManager;
+import org.infinispan.persistence.spi.AdvancedCacheLoader.CacheLoaderTask;
+import org.infinispan.persistence.spi.AdvancedCacheLoader.KeyFilter;
+import org.infinispan.persistence.spi.AdvancedCacheLoader.TaskContext;
+import org.infinispan.remoting.transport.Address;
 
 public class ContentAddressableStoreInfinispanImpl extends ContentAddressableStoreImpl {
 
@@ -31,13 +57,131 @@ public class ContentAddressableStoreInfinispanImpl extends ContentAddressableSto
 	public final static String cacheNamePropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
 			+ ".cacheName";
 
-	private class CacheValue {
-		public byte[] raw;
-		public Map<ContentEncoding, byte[]> encoded = new HashMap<ContentEncoding, byte[]>();
+	/**
+	 * Name of the property overriding the number of owners of each entry in
+	 * distributed mode.
+	 */
+	public final static String numOwnersPropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".numOwners";
+
+	/**
+	 * Name of the property enabling or disabling the L1 near-cache in
+	 * distributed mode.
+	 */
+	public final static String l1PropertyName = ContentAddressableStoreInfinispanImpl.class.getName() + ".l1";
+
+	/**
+	 * Name of the property switching the cache between synchronous and
+	 * asynchronous replication/distribution.
+	 */
+	public final static String asyncPropertyName = ContentAddressableStoreInfinispanImpl.class.getName() + ".async";
+
+	/**
+	 * Name of the property specifying whether to hold content in direct
+	 * buffers off the Java heap. Defaults to false.
+	 */
+	public final static String offHeapPropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".offHeap";
+
+	private boolean offHeap = false;
+
+	/**
+	 * Name of the property specifying whether listeners should also be told
+	 * about content added or removed by other nodes in the cluster. Defaults
+	 * to false.
+	 */
+	public final static String clusterEventsPropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".clusterEvents";
+
+	/**
+	 * Name of the property specifying the most events from other nodes to
+	 * deliver in one go. Defaults to 100.
+	 */
+	public final static String eventBatchSizePropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".eventBatchSize";
+
+	private CacheEventBridge cacheEventBridge;
+
+	/**
+	 * Name of the property specifying when encodings are produced, one of the
+	 * {@link EncodingMode} names. Defaults to SYNC.
+	 */
+	public final static String encodingModePropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".encodingMode";
+
+	/**
+	 * Name of the property specifying the number of threads producing
+	 * encodings in BACKGROUND mode. Defaults to the number of processors.
+	 */
+	public final static String encodingThreadsPropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".encodingThreads";
+
+	/**
+	 * Name of the property specifying how many writes can be queued for the
+	 * encoding threads in BACKGROUND mode before writers encode their own
+	 * content. Defaults to 1000.
+	 */
+	public final static String encodingQueueSizePropertyName = ContentAddressableStoreInfinispanImpl.class.getName()
+			+ ".encodingQueueSize";
+
+	/**
+	 * Produces encodings on the node that was written to. Those still to be
+	 * produced are recorded in CacheValue.pending, so every node reports them
+	 * as available.
+	 */
+	private EncodingScheduler encodingScheduler;
+
+	/**
+	 * @return when this store produces encodings
+	 */
+	public EncodingMode getEncodingMode() {
+		return encodingScheduler.getMode();
+	}
+
+	/**
+	 * @return whether this store holds content off the Java heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
 	}
 
 	private Cache<Hash, CacheValue> cache;
 
+	/**
+	 * The most removes deleteAll has in flight at once.
+	 */
+	private static final int deleteWindow = 1000;
+
+	/**
+	 * Used to run small tasks on the owners of content that isn't held
+	 * locally, so that metadata queries don't pull the whole value across.
+	 */
+	private DefaultExecutorService executorService;
+
+	/**
+	 * Initialises the store.
+	 * 
+	 * @param properties Properties controlling construction. Supported
+	 *                   properties are:
+	 *                   <code>configFilePropertyName</code> and
+	 *                   <code>cacheNamePropertyName</code> which are required
+	 *                   and specify the Infinispan config file and the cache
+	 *                   within it to use; and
+	 *                   <code>numOwnersPropertyName</code>,
+	 *                   <code>l1PropertyName</code> and
+	 *                   <code>asyncPropertyName</code> which optionally
+	 *                   override the clustering settings of that cache; and
+	 *                   <code>offHeapPropertyName</code> which specifies
+	 *                   whether to hold content off the Java heap; and
+	 *                   <code>clusterEventsPropertyName</code> and
+	 *                   <code>eventBatchSizePropertyName</code> which control
+	 *                   whether listeners hear about changes made by other
+	 *                   nodes; and <code>encodingModePropertyName</code>,
+	 *                   <code>encodingThreadsPropertyName</code> and
+	 *                   <code>encodingQueueSizePropertyName</code> which
+	 *                   control when encodings are produced.
+	 * @throws IOException
+	 */
 	public ContentAddressableStoreInfinispanImpl(Properties properties) throws IOException {
 		if (properties == null)
 			throw new IllegalArgumentException("properties");
@@ -50,23 +194,157 @@ public class ContentAddressableStoreInfinispanImpl extends ContentAddressableSto
 		Path configFile = Paths.get(configFileName);
 		if (!Files.isRegularFile(configFile))
 			throw new IllegalArgumentException("No config file " + configFileName + " found");
-		cacheManager = new DefaultCacheManager(configFileName, true);
 
 		String cacheName = properties.getProperty(cacheNamePropertyName);
 		if (cacheName == null || cacheName.equals("")) {
 			throw new IllegalArgumentException("No property " + cacheNamePropertyName + " found");
 		}
 
+		offHeap = Boolean.parseBoolean(properties.getProperty(offHeapPropertyName));
+		encodingScheduler = EncodingScheduler.create(properties, encodingModePropertyName,
+				encodingThreadsPropertyName, encodingQueueSizePropertyName, this::addEncodings);
+
+		// Register our own externalizers so keys and values are marshalled
+		// compactly when replicated, whatever the config file says.
+		ConfigurationBuilderHolder holder = new ParserRegistry().parseFile(configFileName);
+		holder.getGlobalConfigurationBuilder().serialization()
+				.addAdvancedExternalizer(HashExternalizer.id, new HashExternalizer())
+				.addAdvancedExternalizer(CacheValueExternalizer.id, new CacheValueExternalizer(offHeap));
+		configureClustering(holder, cacheName, properties);
+		checkStoreLocations(holder, cacheName);
+		cacheManager = new DefaultCacheManager(holder, true);
+
 		cache = cacheManager.getCache(cacheName);
+		executorService = new DefaultExecutorService(cache);
+
+		// Start the statistics from whatever this node already holds, both in
+		// memory and, with passivation, in the cache store. Other nodes'
+		// changes aren't counted, so in a cluster they are only a guide.
+		final Set<Hash> counted = new HashSet<Hash>();
+		for (Map.Entry<Hash, CacheValue> entry : cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL)
+				.entrySet()) {
+			counted.add(entry.getKey());
+			count(entry.getKey(), entry.getValue(), true);
+		}
+		PersistenceManager persistenceManager = getPersistenceManager();
+		if (persistenceManager != null) {
+			persistenceManager.processOnAllStores(KeyFilter.LOAD_ALL_FILTER, new CacheLoaderTask<Hash, CacheValue>() {
+				@Override
+				public void processEntry(MarshalledEntry<Hash, CacheValue> marshalledEntry, TaskContext taskContext) {
+					synchronized (counted) {
+						if (counted.add(marshalledEntry.getKey())) {
+							count(marshalledEntry.getKey(), marshalledEntry.getValue(), true);
+						}
+					}
+				}
+			}, true, false);
+		}
+		statistics.setExact(!cache.getCacheConfiguration().clustering().cacheMode().isClustered());
+
+		if (Boolean.parseBoolean(properties.getProperty(clusterEventsPropertyName))) {
+			int batchSize = Integer.parseInt(properties.getProperty(eventBatchSizePropertyName, "100"));
+			cacheEventBridge = new CacheEventBridge(this, batchSize);
+			cache.addListener(cacheEventBridge);
+		}
 	}
 
-	@Override
-	public Hash write(InputStream inputStream) throws IOException {
-		return write(inputStream, new LinkedList<ContentEncoding>());
+	private void configureClustering(ConfigurationBuilderHolder holder, String cacheName, Properties properties) {
+		String numOwners = properties.getProperty(numOwnersPropertyName);
+		String l1 = properties.getProperty(l1PropertyName);
+		String async = properties.getProperty(asyncPropertyName);
+		if (numOwners == null && l1 == null && async == null) {
+			return;
+		}
+
+		ConfigurationBuilder builder = holder.getNamedConfigurationBuilders().get(cacheName);
+		if (builder == null) {
+			// Not named in the config file, so start from the default
+			builder = holder.newConfigurationBuilder(cacheName);
+			builder.read(holder.getDefaultConfigurationBuilder().build());
+		}
+		if (numOwners != null) {
+			builder.clustering().hash().numOwners(Integer.parseInt(numOwners));
+		}
+		if (l1 != null) {
+			builder.clustering().l1().enabled(Boolean.parseBoolean(l1));
+		}
+		if (async != null) {
+			CacheMode cacheMode = builder.build().clustering().cacheMode();
+			builder.clustering().cacheMode(Boolean.parseBoolean(async) ? cacheMode.toAsync() : cacheMode.toSync());
+		}
+	}
+
+	/**
+	 * A file store location which is still a property reference means the
+	 * property wasn't set. Refuse to start rather than share a directory
+	 * named after the reference with every other node on the machine.
+	 */
+	private static void checkStoreLocations(ConfigurationBuilderHolder holder, String cacheName) {
+		ConfigurationBuilder builder = holder.getNamedConfigurationBuilders().get(cacheName);
+		if (builder == null) {
+			return;
+		}
+		for (StoreConfiguration store : builder.build().persistence().stores()) {
+			if (store instanceof SingleFileStoreConfiguration) {
+				String location = ((SingleFileStoreConfiguration) store).location();
+				if (location.contains("${")) {
+					throw new IllegalArgumentException(
+							"File store location " + location + " of cache " + cacheName + " isn't set");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Whether this node owns a copy of the content with the specified hash.
+	 * Always true unless the cache is in distributed mode.
+	 * 
+	 * @param hash
+	 *            Hash of content to check
+	 * @return <code>true</code> if the content would be held on this node
+	 */
+	public boolean isLocal(Hash hash) {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+
+		DistributionManager distributionManager = cache.getAdvancedCache().getDistributionManager();
+		if (distributionManager == null) {
+			return true;
+		}
+		DataLocality dataLocality = distributionManager.getLocality(hash);
+		return dataLocality.isLocal() && !dataLocality.isUncertain();
+	}
+
+	/**
+	 * Get the length of the content, preferring the copy on this node. If this
+	 * node doesn't own the content and doesn't have it in L1 then the length
+	 * is looked up on an owner rather than fetching the content.
+	 * 
+	 * @return The length, -1 if there is no such content or
+	 *         <code>ContentLengthTask.pending</code> if the encoding is pending
+	 */
+	private long getLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+
+		String encodingName = (contentEncoding == null) ? null : contentEncoding.getName();
+		CacheValue cacheValue = cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL).get(hash);
+		if (cacheValue != null || isLocal(hash)) {
+			return ContentLengthTask.getLength(cacheValue, encodingName);
+		}
+		try {
+			Future<Long> future = executorService.submit(new ContentLengthTask(encodingName), hash);
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
 	}
 
 	@Override
-	public Hash write(InputStream inputStream, List<ContentEncoding> encodings) throws IOException {
+	protected Hash doWrite(InputStream inputStream, List<ContentEncoding> encodings) throws IOException {
 		if (inputStream == null) {
 			throw new IllegalArgumentException("inputStream");
 		}
@@ -75,7 +353,35 @@ public class ContentAddressableStoreInfinispanImpl extends ContentAddressableSto
 		}
 
 		byte[] bytes = IOUtils.toByteArray(inputStream);
+		return write(bytes, encodings, null, null);
+	}
+
+	@Override
+	protected Hash doWriteEncoded(InputStream inputStream, ContentEncoding contentEncoding) throws IOException {
+		if (inputStream == null) {
+			throw new IllegalArgumentException("inputStream");
+		}
+		if (contentEncoding == null) {
+			throw new IllegalArgumentException("contentEncoding");
+		}
+
+		// Keep the encoded content as it is and decode it once to get the raw
+		// content
+		byte[] encodedBytes = IOUtils.toByteArray(inputStream);
+		byte[] bytes;
+		try (InputStream decodedInputStream = contentEncoding.decode(new ByteArrayInputStream(encodedBytes));) {
+			bytes = IOUtils.toByteArray(decodedInputStream);
+		}
+		return write(bytes, new LinkedList<ContentEncoding>(), contentEncoding, encodedBytes);
+	}
 
+	/**
+	 * @param encodedWith
+	 *            If not null, the encoding of encodedBytes, which is used as
+	 *            that encoding rather than encoding the content again.
+	 */
+	private Hash write(byte[] bytes, List<ContentEncoding> encodings, ContentEncoding encodedWith,
+			byte[] encodedBytes) throws IOException {
 		MessageDigest messageDigest;
 		try {
 			messageDigest = MessageDigest.getInstance("SHA1");
@@ -85,134 +391,429 @@ public class ContentAddressableStoreInfinispanImpl extends ContentAddressableSto
 
 		messageDigest.update(bytes);
 		Hash hash = new Hash(messageDigest.digest());
+		encodings = applyEncodingPolicy(hash, encodings, bytes, bytes.length, bytes.length);
+
+		// Most writes are of content we already have, so check first rather
+		// than encoding everything and replicating the whole value again. In
+		// distributed mode the check is made on an owner, so only a length
+		// comes back rather than the value.
+		if (!doContains(hash)) {
+			CacheValue cacheValue = new CacheValue();
+			cacheValue.raw = CacheValue.toBuffer(bytes, offHeap);
+			if (encodedWith != null) {
+				cacheValue.encoded.put(encodedWith.getName(), CacheValue.toBuffer(encodedBytes, offHeap));
+			}
+			for (ContentEncoding encoding : encodings) {
+				if (encodingScheduler.getMode() == EncodingMode.SYNC) {
+					cacheValue.encoded.put(encoding.getName(), encode(cacheValue.raw, encoding));
+				} else {
+					cacheValue.pending.add(encoding.getName());
+				}
+			}
+			// Another writer may have got there first, in which case fall
+			// through and just add any encodings it didn't.
+			if (putIfAbsent(hash, cacheValue)) {
+				count(hash, cacheValue, true);
+				if (encodingScheduler.getMode() != EncodingMode.SYNC) {
+					encodingScheduler.schedule(hash, encodings);
+				}
+				notifyListenersContentAdded(hash);
+				return hash;
+			}
+		}
 
-		// Write the raw content to the cacheValue
-		CacheValue cacheValue = new CacheValue();
-		cacheValue.raw = bytes;
-
-		// Add encoded content to the cacheValue
+		// The content is already in the cache, so only add the encodings
+		// it is missing, fetching the value only if there are any. The hash
+		// guarantees the raw bytes are the same.
+		CacheValue existing = null;
+		// Including if it is pending, as the encoding we were given will do
+		if (encodedWith != null && getLength(hash, encodedWith) < 0) {
+			existing = cache.get(hash);
+			if (existing == null) {
+				// Deleted since it was written
+				return hash;
+			}
+		}
+		while (existing != null && !existing.encoded.containsKey(encodedWith.getName())) {
+			CacheValue cacheValue = existing.copy();
+			cacheValue.pending.remove(encodedWith.getName());
+			cacheValue.encoded.put(encodedWith.getName(), CacheValue.toBuffer(encodedBytes, offHeap));
+			// Replace only the value we started from so as not to lose
+			// another writer's encodings
+			if (cache.replace(hash, existing, cacheValue)) {
+				statistics.encodingAdded(hash.getString(), encodedWith.getName(), encodedBytes.length);
+				existing = cacheValue;
+			} else {
+				existing = cache.get(hash);
+				if (existing == null) {
+					// Deleted since it was written
+					return hash;
+				}
+			}
+		}
+		List<ContentEncoding> missing = new LinkedList<ContentEncoding>();
 		for (ContentEncoding encoding : encodings) {
-			try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-					DeflaterOutputStream encodedOutputStream = encoding.encode(outputStream);
-					ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);) {
-				IOUtils.copy(byteArrayInputStream, encodedOutputStream);
-				// Ensure everything is written to the stream before
-				// converting to byte array.
-				encodedOutputStream.finish();
-				cacheValue.encoded.put(encoding, outputStream.toByteArray());
+			if (existing == null ? !doContains(hash, encoding) : !existing.encoded.containsKey(encoding.getName())) {
+				missing.add(encoding);
 			}
 		}
-		// And add the value to the cache
-		CacheValue previous = cache.put(hash, cacheValue);
-
-		// Don't bother testing whether the previous bytes are
-		// equal to the written bytes - the hash should guarantee
-		// that anyway. Just assume that if there is nothing returned
-		// that it is new content and if something is returned it
-		// will be the same as we just added.
-		if (previous == null) {
-			notifyListenersContentAdded(hash);
+		if (missing.isEmpty()) {
+			return hash;
+		}
+		if (existing == null) {
+			existing = cache.get(hash);
+			if (existing == null) {
+				return hash;
+			}
 		}
+		encodeOrSchedule(hash, existing, missing);
 
 		return hash;
 	}
 
+	/**
+	 * Put a value unless the cache already has one for the hash. The put is
+	 * made on the primary owner of the hash, so if another writer got there
+	 * first only a boolean comes back rather than that writer's value.
+	 * 
+	 * @return Whether the value was put
+	 */
+	private boolean putIfAbsent(Hash hash, CacheValue cacheValue) throws IOException {
+		DistributionManager distributionManager = cache.getAdvancedCache().getDistributionManager();
+		Address primary = distributionManager == null ? null : distributionManager.getPrimaryLocation(hash);
+		if (primary == null || primary.equals(cacheManager.getAddress())) {
+			return cache.putIfAbsent(hash, cacheValue) == null;
+		}
+		try {
+			return executorService.submit(primary, new PutIfAbsentTask(hash, cacheValue, offHeap)).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Encodes the value in the cache rather than reading it back and writing
+	 * it again.
+	 */
 	@Override
-	public boolean contains(Hash hash) {
-		return cache.containsKey(hash);
+	protected boolean doAddEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		encodings = applyEncodingPolicy(hash, encodings);
+		CacheValue existing = cache.get(hash);
+		if (existing == null) {
+			return false;
+		}
+		encodeOrSchedule(hash, existing, encodings);
+		return true;
+	}
+
+	/**
+	 * Add encodings to a value now or, unless encodings are produced
+	 * synchronously, record them as pending and schedule them.
+	 */
+	private void encodeOrSchedule(Hash hash, CacheValue existing, List<ContentEncoding> encodings) throws IOException {
+		if (encodingScheduler.getMode() == EncodingMode.SYNC) {
+			addEncodings(hash, existing, encodings);
+		} else {
+			encodingScheduler.schedule(hash, markPending(hash, existing, encodings));
+		}
+	}
+
+	/**
+	 * Record encodings the content doesn't have yet as pending in its value.
+	 * 
+	 * @return The encodings recorded, none if the content has been deleted
+	 */
+	private List<ContentEncoding> markPending(Hash hash, CacheValue existing, List<ContentEncoding> encodings) {
+		while (existing != null) {
+			List<ContentEncoding> marked = new LinkedList<ContentEncoding>();
+			CacheValue cacheValue = existing.copy();
+			for (ContentEncoding encoding : encodings) {
+				if (!existing.encoded.containsKey(encoding.getName())) {
+					marked.add(encoding);
+					cacheValue.pending.add(encoding.getName());
+				}
+			}
+			if (cacheValue.pending.equals(existing.pending)) {
+				return marked;
+			}
+			// Replace only the value we started from so as not to lose
+			// another writer's changes
+			if (cache.replace(hash, existing, cacheValue)) {
+				return marked;
+			}
+			existing = cache.get(hash);
+		}
+		return new LinkedList<ContentEncoding>();
+	}
+
+	private void addEncodings(Hash hash, List<ContentEncoding> encodings) throws IOException {
+		CacheValue existing = cache.get(hash);
+		if (existing != null) {
+			addEncodings(hash, existing, encodings);
+		}
+	}
+
+	/**
+	 * Add any of the encodings the value doesn't already have, and stop
+	 * recording them as pending.
+	 */
+	private void addEncodings(Hash hash, CacheValue existing, List<ContentEncoding> encodings) throws IOException {
+		// Encode each only once, however many times the value is re-read
+		Map<String, ByteBuffer> encoded = new LinkedHashMap<String, ByteBuffer>();
+		while (existing != null) {
+			CacheValue cacheValue = null;
+			for (ContentEncoding encoding : encodings) {
+				if (existing.encoded.containsKey(encoding.getName()) && !existing.pending.contains(encoding.getName())) {
+					continue;
+				}
+				if (cacheValue == null) {
+					// Copy rather than modify the value the cache gave us
+					cacheValue = existing.copy();
+				}
+				if (!existing.encoded.containsKey(encoding.getName())) {
+					ByteBuffer encodedBuffer = encoded.get(encoding.getName());
+					if (encodedBuffer == null) {
+						encodedBuffer = encode(existing.raw, encoding);
+						encoded.put(encoding.getName(), encodedBuffer);
+					}
+					cacheValue.encoded.put(encoding.getName(), encodedBuffer);
+				}
+				cacheValue.pending.remove(encoding.getName());
+			}
+			if (cacheValue == null) {
+				return;
+			}
+			// Replace rather than put so a background encoding doesn't bring
+			// back content that has been deleted, and only the value we
+			// started from so as not to lose another writer's encodings
+			if (cache.replace(hash, existing, cacheValue)) {
+				for (Map.Entry<String, ByteBuffer> entry : cacheValue.encoded.entrySet()) {
+					if (!existing.encoded.containsKey(entry.getKey())) {
+						statistics.encodingAdded(hash.getString(), entry.getKey(), entry.getValue().remaining());
+					}
+				}
+				return;
+			}
+			existing = cache.get(hash);
+		}
+	}
+
+	/**
+	 * Add the content and encodings in a value to the statistics, or take
+	 * them away.
+	 * 
+	 * @param added
+	 *            Whether the value has been added rather than removed
+	 */
+	private void count(Hash hash, CacheValue cacheValue, boolean added) {
+		String key = hash.getString();
+		if (added) {
+			statistics.contentAdded(key, cacheValue.raw.remaining());
+		} else {
+			statistics.contentRemoved(key, cacheValue.raw.remaining());
+		}
+		for (Map.Entry<String, ByteBuffer> entry : cacheValue.encoded.entrySet()) {
+			if (added) {
+				statistics.encodingAdded(key, entry.getKey(), entry.getValue().remaining());
+			} else {
+				statistics.encodingRemoved(key, entry.getKey(), entry.getValue().remaining());
+			}
+		}
+	}
+
+	private ByteBuffer encode(ByteBuffer raw, ContentEncoding encoding) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		long started = encodingStarted();
+		long rawBytes;
+		// Closing the encoded stream ensures everything is written to the
+		// underlying stream before converting to byte array.
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream);
+				InputStream rawInputStream = CacheValue.toInputStream(raw);) {
+			rawBytes = IOUtils.copyLarge(rawInputStream, encodedOutputStream);
+		}
+		encodingFinished(encoding, rawBytes, started);
+		return CacheValue.toBuffer(outputStream.toByteArray(), offHeap);
+	}
+
+	@Override
+	protected boolean doContains(Hash hash) {
+		try {
+			return getLength(hash, null) != -1;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
 	}
 
 	@Override
-	public boolean contains(Hash hash, ContentEncoding contentEncoding) {
+	protected boolean doContains(Hash hash, ContentEncoding contentEncoding) {
 		if (hash == null) {
 			throw new IllegalArgumentException("hash");
 		}
-		if (contentEncoding == null) {
-			return contains(hash);
-		}
-
-		CacheValue cacheValue = cache.get(hash);
-		if (cacheValue == null) {
-			return false;
+		try {
+			return getLength(hash, contentEncoding) != -1;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		byte[] bytes = cacheValue.encoded.get(contentEncoding);
-		return (bytes != null);
 	}
 
 	@Override
-	public InputStream read(Hash hash) throws FileNotFoundException {
+	protected InputStream doRead(Hash hash) throws FileNotFoundException {
 		CacheValue cacheValue = cache.get(hash);
 		if (cacheValue == null) {
 			return null;
 		}
-		return new ByteArrayInputStream(cacheValue.raw);
+		return CacheValue.toInputStream(cacheValue.raw);
 	}
 
 	@Override
-	public InputStream read(Hash hash, ContentEncoding contentEncoding) throws FileNotFoundException {
+	protected InputStream doRead(Hash hash, ContentEncoding contentEncoding) throws IOException {
 		if (hash == null)
 			throw new IllegalArgumentException("hash");
 		// null contentEncoding means use no encoding
 		if (contentEncoding == null) {
-			return read(hash);
+			return doRead(hash);
 		}
-
 		CacheValue cacheValue = cache.get(hash);
+		if (cacheValue != null && cacheValue.pending.contains(contentEncoding.getName())) {
+			encodingScheduler.await(hash, contentEncoding);
+			cacheValue = cache.get(hash);
+		}
 		if (cacheValue == null) {
 			return null;
 		}
-		byte[] encoded = cacheValue.encoded.get(contentEncoding);
+		ByteBuffer encoded = cacheValue.encoded.get(contentEncoding.getName());
 		if (encoded == null) {
 			return null;
 		}
-		return new ByteArrayInputStream(encoded);
+		return CacheValue.toInputStream(encoded);
 	}
 
 	@Override
-	public long getContentLength(Hash hash) throws IOException {
-		CacheValue cacheValue = cache.get(hash);
-		if (cacheValue == null) {
-			return -1;
-		}
-		return cacheValue.raw.length;
+	protected long doGetContentLength(Hash hash) throws IOException {
+		return getLength(hash, null);
 	}
 
 	@Override
-	public long getContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
-		if (contentEncoding == null) {
-			return getContentLength(hash);
-		}
-		CacheValue cacheValue = cache.get(hash);
-		if (cacheValue == null) {
-			return -1;
+	protected long doGetContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+		long length = getLength(hash, contentEncoding);
+		if (length == ContentLengthTask.pending) {
+			encodingScheduler.await(hash, contentEncoding);
+			length = getLength(hash, contentEncoding);
 		}
+		// Still pending if producing it was cancelled by a delete
+		return length < 0 ? -1 : length;
+	}
 
-		byte[] encoded = cacheValue.encoded.get(contentEncoding);
-		if (encoded == null) {
-			return -1;
+	@Override
+	protected List<Hash> doGetHashes() throws IOException {
+		final Set<Hash> hashes = new HashSet<Hash>(cache.keySet());
+		// With passivation, content that has been evicted from memory is only
+		// in the cache store, so add in the keys from there too.
+		PersistenceManager persistenceManager = getPersistenceManager();
+		if (persistenceManager != null) {
+			persistenceManager.processOnAllStores(KeyFilter.LOAD_ALL_FILTER, new CacheLoaderTask<Hash, CacheValue>() {
+				@Override
+				public void processEntry(MarshalledEntry<Hash, CacheValue> marshalledEntry, TaskContext taskContext) {
+					synchronized (hashes) {
+						hashes.add(marshalledEntry.getKey());
+					}
+				}
+			}, false, false);
 		}
-		return encoded.length;
+		return new LinkedList<Hash>(hashes);
 	}
 
-	@Override
-	public List<Hash> getHashes() throws IOException {
-		List<Hash> hashes = new LinkedList<Hash>();
-		hashes.addAll(cache.keySet());
-		return hashes;
+	private PersistenceManager getPersistenceManager() {
+		return cache.getAdvancedCache().getComponentRegistry().getComponent(PersistenceManager.class);
 	}
 
 	@Override
-	public boolean delete(Hash hash) throws IOException {
+	protected boolean doDelete(Hash hash) throws IOException {
+		encodingScheduler.cancel(hash);
 		CacheValue contentRemoved = cache.remove(hash);
 		if (contentRemoved == null) {
 			return false;
 		}
+		count(hash, contentRemoved, false);
 		notifyListenersContentRemoved(hash);
 		return true;
 	}
 
+	/**
+	 * Remove content asynchronously, so many removes are in flight at once
+	 * rather than each waiting for the one before.
+	 */
+	@Override
+	protected List<Hash> doDeleteAll(Collection<Hash> hashes) throws IOException {
+		if (hashes == null)
+			throw new IllegalArgumentException("hashes");
+		List<Hash> deleted = new ArrayList<Hash>();
+		Map<Hash, Future<CacheValue>> removals = new LinkedHashMap<Hash, Future<CacheValue>>();
+		Throwable failure = null;
+		try {
+			for (Hash hash : new LinkedHashSet<Hash>(hashes)) {
+				encodingScheduler.cancel(hash);
+				removals.put(hash, cache.removeAsync(hash));
+				if (removals.size() == deleteWindow) {
+					failure = completeRemovals(removals, deleted, failure);
+				}
+			}
+			failure = completeRemovals(removals, deleted, failure);
+		} finally {
+			notifyListenersContentRemoved(deleted);
+		}
+		if (failure != null)
+			throw new IOException(failure);
+		return deleted;
+	}
+
+	/**
+	 * Wait for removes to finish, adding the hashes of the content they
+	 * removed to a list.
+	 * 
+	 * @return The first failure, which may have been passed in
+	 */
+	private Throwable completeRemovals(Map<Hash, Future<CacheValue>> removals, List<Hash> deleted, Throwable failure)
+			throws InterruptedIOException {
+		for (Map.Entry<Hash, Future<CacheValue>> removal : removals.entrySet()) {
+			try {
+				CacheValue contentRemoved = removal.getValue().get();
+				if (contentRemoved != null) {
+					count(removal.getKey(), contentRemoved, false);
+					deleted.add(removal.getKey());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+			}
+		}
+		removals.clear();
+		return failure;
+	}
+
 	@Override
 	public void close() {
+		// Finish background encodings while the cache is still running
+		if (encodingScheduler != null)
+			encodingScheduler.close();
+		encodingScheduler = null;
+		if (cacheEventBridge != null) {
+			cache.removeListener(cacheEventBridge);
+			cacheEventBridge.close();
+		}
+		cacheEventBridge = null;
+		if (executorService != null)
+			executorService.shutdownNow();
+		executorService = null;
 		if (cacheManager != null)
 			cacheManager.stop();
 		cacheManager = null;
@@ -0,0 +1,681 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sturrock.cassette.cassettej.RemoteProtocol.Frame;
+import org.sturrock.cassette.cassettej.RemoteProtocol.FrameWriter;
+import org.sturrock.cassette.cassettej.RemoteProtocol.Payload;
+
+/**
+ * A store served by a ContentAddressableStoreRemoteServer. Requests are sent
+ * over a small pool of connections, each shared by any number of requests at
+ * once, and requests made at the same time are sent together.
+ *
+ * contains and getStatistics can't throw IOException, so they throw
+ * UncheckedIOException if the server can't be reached. A connection which
+ * fails is opened again by the next request that uses it. Listeners are told
+ * of content added to and removed from the server's store by any client,
+ * though changes made while the connection carrying the events is being
+ * reopened are missed.
+ */
+public final class ContentAddressableStoreRemoteImpl extends ContentAddressableStoreImpl {
+
+	/**
+	 * Name of the property specifying the host of the server. Required.
+	 */
+	public final static String hostPropertyName = ContentAddressableStoreRemoteImpl.class.getName() + ".host";
+
+	/**
+	 * Name of the property specifying the port of the server. Defaults to
+	 * 7070.
+	 */
+	public final static String portPropertyName = ContentAddressableStoreRemoteImpl.class.getName() + ".port";
+
+	/**
+	 * Name of the property specifying the number of connections to the
+	 * server. Defaults to 4.
+	 */
+	public final static String connectionsPropertyName = ContentAddressableStoreRemoteImpl.class.getName()
+			+ ".connections";
+
+	private static final int bufferSize = 64 * 1024;
+
+	/**
+	 * Stands for the failure of the connection in a call's queue of frames.
+	 */
+	private static final Frame failed = new Frame(0, RemoteProtocol.ERROR, new byte[0]);
+
+	private final InetSocketAddress address;
+	private final Connection[] connections;
+	private final AtomicInteger nextConnection = new AtomicInteger();
+	private volatile boolean subscribed;
+	/**
+	 * Completes once the server is sending events.
+	 */
+	private CompletableFuture<Void> subscription;
+	private ExecutorService eventExecutor;
+	private volatile boolean closed;
+
+	/**
+	 * A request in flight, and the frames received for it.
+	 */
+	private static class Call {
+		private final int id;
+		private final Connection connection;
+		private final BlockingQueue<Frame> frames = new LinkedBlockingQueue<Frame>();
+
+		Call(int id, Connection connection) {
+			this.id = id;
+			this.connection = connection;
+		}
+
+		void send(byte type, byte[] payload) throws IOException {
+			connection.writer.write(id, type, payload);
+		}
+
+		/**
+		 * @return The next frame, which isn't an ERROR
+		 */
+		Frame next() throws IOException {
+			Frame frame;
+			try {
+				frame = frames.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (frame == failed) {
+				throw new IOException("Connection to server failed", connection.failure);
+			}
+			if (frame.type == RemoteProtocol.ERROR) {
+				RemoteProtocol.throwError(frame);
+			}
+			return frame;
+		}
+
+		/**
+		 * @return The payload of the RESULT frame
+		 */
+		DataInputStream result() throws IOException {
+			Frame frame = next();
+			if (frame.type != RemoteProtocol.RESULT)
+				throw new IOException("Expected a result but got frame type " + frame.type);
+			return frame.getPayloadInputStream();
+		}
+
+		void finish() {
+			connection.calls.remove(id);
+		}
+	}
+
+	private class Connection implements Runnable {
+		private final Socket socket;
+		private final DataInputStream inputStream;
+		private final FrameWriter writer;
+		private final Map<Integer, Call> calls = new ConcurrentHashMap<Integer, Call>();
+		private final AtomicInteger nextId = new AtomicInteger();
+		private volatile boolean open = true;
+		private volatile IOException failure;
+
+		Connection() throws IOException {
+			socket = new Socket();
+			socket.connect(address);
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			inputStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), bufferSize));
+			writer = new FrameWriter(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+			Thread thread = new Thread(this, "CassetteJ-remote-client-" + address);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		Call start(byte type, byte[] payload) throws IOException {
+			int id;
+			do {
+				// 0 is for events
+				id = nextId.incrementAndGet();
+			} while (id == 0);
+			Call call = new Call(id, this);
+			calls.put(id, call);
+			try {
+				call.send(type, payload);
+			} catch (IOException e) {
+				call.finish();
+				fail(e);
+				throw e;
+			}
+			return call;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (open) {
+					Frame frame = RemoteProtocol.readFrame(inputStream);
+					if (frame.id == 0) {
+						if (frame.type == RemoteProtocol.EVENT) {
+							event(frame);
+						}
+						continue;
+					}
+					Call call = calls.get(frame.id);
+					// Anything else is for an abandoned call
+					if (call != null) {
+						call.frames.add(frame);
+					}
+				}
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void event(Frame frame) throws IOException {
+			DataInputStream payload = frame.getPayloadInputStream();
+			byte kind = payload.readByte();
+			Hash hash = RemoteProtocol.readHash(payload);
+			// Not on this thread, as listeners may use the store
+			eventExecutor.execute(() -> {
+				// Content added by this client's writes is counted as they
+				// return, so events aren't counted again
+				if (kind == RemoteProtocol.CONTENT_ADDED) {
+					notifyListenersContentAdded(Collections.singletonList(hash));
+				} else {
+					notifyListenersContentRemoved(Collections.singletonList(hash));
+				}
+			});
+		}
+
+		void fail(IOException e) {
+			if (failure == null) {
+				failure = e;
+			}
+			close();
+			for (Call call : calls.values()) {
+				call.frames.add(failed);
+			}
+		}
+
+		void close() {
+			open = false;
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Nothing to be done
+			}
+		}
+	}
+
+	/**
+	 * @param properties
+	 *            <code>hostPropertyName</code>, and optionally
+	 *            <code>portPropertyName</code> and
+	 *            <code>connectionsPropertyName</code>
+	 * @throws IOException
+	 *             If the server can't be reached
+	 */
+	public ContentAddressableStoreRemoteImpl(Properties properties) throws IOException {
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		String host = properties.getProperty(hostPropertyName);
+		if (host == null || host.equals(""))
+			throw new IllegalArgumentException("No property " + hostPropertyName + " found");
+		int port = Integer.parseInt(properties.getProperty(portPropertyName, "7070"));
+		if (port <= 0 || port > 65535)
+			throw new IllegalArgumentException(portPropertyName);
+		int connections = Integer.parseInt(properties.getProperty(connectionsPropertyName, "4"));
+		if (connections <= 0)
+			throw new IllegalArgumentException(connectionsPropertyName);
+		address = new InetSocketAddress(host, port);
+		this.connections = new Connection[connections];
+		// Fail now if the server isn't there
+		getConnection(0);
+	}
+
+	private Connection getConnection() throws IOException {
+		return getConnection(Math.floorMod(nextConnection.getAndIncrement(), connections.length));
+	}
+
+	private Connection getConnection(int index) throws IOException {
+		synchronized (connections) {
+			if (closed)
+				throw new IOException("Store closed");
+			Connection connection = connections[index];
+			if (connection == null || !connection.open) {
+				connection = new Connection();
+				connections[index] = connection;
+				// Events come over the first connection. The reply is
+				// ignored.
+				if (index == 0 && subscribed) {
+					connection.writer.write(0, RemoteProtocol.SUBSCRIBE);
+				}
+			}
+			return connection;
+		}
+	}
+
+	private Call start(byte type, byte[] payload) throws IOException {
+		return getConnection().start(type, payload);
+	}
+
+	private static byte[] hashAndEncoding(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		if (hash == null)
+			throw new IllegalArgumentException("hash");
+		return new Payload().writeHash(hash).writeEncoding(contentEncoding).toByteArray();
+	}
+
+	@Override
+	protected Hash doWrite(InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		if (stream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (encodings == null) {
+			encodings = new LinkedList<ContentEncoding>();
+		}
+		Payload payload = new Payload();
+		RemoteProtocol.writeEncodings(payload, encodings);
+		return write(RemoteProtocol.WRITE, payload.toByteArray(), stream);
+	}
+
+	/**
+	 * The server looks for the content and checks its hash. The content is
+	 * only sent if the server asks for it.
+	 */
+	@Override
+	protected Hash doWrite(Hash expected, InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		if (expected == null)
+			throw new IllegalArgumentException("expected");
+		if (stream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (encodings == null) {
+			encodings = new LinkedList<ContentEncoding>();
+		}
+		Payload payload = new Payload().writeHash(expected);
+		RemoteProtocol.writeEncodings(payload, encodings);
+		return write(RemoteProtocol.WRITE_EXPECTED, payload.toByteArray(), stream);
+	}
+
+	@Override
+	protected Hash doWriteEncoded(InputStream stream, ContentEncoding contentEncoding) throws IOException {
+		if (stream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (contentEncoding == null)
+			throw new IllegalArgumentException("contentEncoding");
+		return write(RemoteProtocol.WRITE_ENCODED, new Payload().writeEncoding(contentEncoding).toByteArray(),
+				stream);
+	}
+
+	/**
+	 * Send the content as the server gives credit for it. A write given with
+	 * its hash starts with none, so the content is only sent if the server
+	 * asks for it.
+	 */
+	private Hash write(byte type, byte[] payload, InputStream stream) throws IOException {
+		Call call = start(type, payload);
+		try {
+			int credit = type == RemoteProtocol.WRITE_EXPECTED ? 0 : RemoteProtocol.window;
+			// Set if the server answers before all the content is sent
+			Frame response = null;
+			byte[] buffer = new byte[RemoteProtocol.chunkSize];
+			try {
+				while (true) {
+					// Take any credit the server has given, waiting if there
+					// is none left, before reading what to send with it
+					while (response == null && (credit == 0 || !call.frames.isEmpty())) {
+						Frame frame = call.next();
+						if (frame.type == RemoteProtocol.CREDIT) {
+							credit += frame.getPayloadInputStream().readInt();
+						} else {
+							response = frame;
+						}
+					}
+					if (response != null) {
+						break;
+					}
+					int n = stream.read(buffer);
+					if (n == -1) {
+						break;
+					}
+					if (n > 0) {
+						call.connection.writer.write(call.id, RemoteProtocol.DATA, buffer, 0, n);
+						credit--;
+					}
+				}
+			} catch (IOException | RuntimeException e) {
+				if (call.connection.open) {
+					call.send(RemoteProtocol.CANCEL, new byte[0]);
+				}
+				throw e;
+			}
+			if (response == null) {
+				call.send(RemoteProtocol.END, new byte[0]);
+				do {
+					response = call.next();
+				} while (response.type == RemoteProtocol.CREDIT);
+			}
+			if (response.type != RemoteProtocol.RESULT)
+				throw new IOException("Expected a result but got frame type " + response.type);
+			DataInputStream result = response.getPayloadInputStream();
+			Hash hash = RemoteProtocol.readHash(result);
+			if (result.readBoolean()) {
+				getMetrics().contentAdded();
+			}
+			return hash;
+		} finally {
+			call.finish();
+		}
+	}
+
+	@Override
+	protected boolean doContains(Hash hash) {
+		return doContains(hash, null);
+	}
+
+	@Override
+	protected boolean doContains(Hash hash, ContentEncoding contentEncoding) {
+		try {
+			Call call = start(RemoteProtocol.CONTAINS, hashAndEncoding(hash, contentEncoding));
+			try {
+				return call.result().readBoolean();
+			} finally {
+				call.finish();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	protected InputStream doRead(Hash hash) throws IOException {
+		return doRead(hash, null);
+	}
+
+	@Override
+	protected InputStream doRead(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		Call call = start(RemoteProtocol.READ, hashAndEncoding(hash, contentEncoding));
+		boolean found = false;
+		try {
+			found = call.result().readBoolean();
+			return found ? new RemoteInputStream(call) : null;
+		} finally {
+			if (!found) {
+				call.finish();
+			}
+		}
+	}
+
+	/**
+	 * Reads the DATA frames of a response, giving the server credit for more
+	 * as each is used.
+	 */
+	private static class RemoteInputStream extends InputStream {
+		private final Call call;
+		private byte[] chunk = new byte[0];
+		private int position;
+		private boolean ended;
+		private boolean closed;
+
+		RemoteInputStream(Call call) {
+			this.call = call;
+		}
+
+		/**
+		 * @return false at the end of the stream
+		 */
+		private boolean fill() throws IOException {
+			while (position == chunk.length) {
+				if (ended) {
+					return false;
+				}
+				if (closed)
+					throw new IOException("Stream closed");
+				Frame frame;
+				try {
+					frame = call.next();
+				} catch (IOException | RuntimeException e) {
+					ended = true;
+					call.finish();
+					throw e;
+				}
+				if (frame.type == RemoteProtocol.END) {
+					ended = true;
+					call.finish();
+					return false;
+				}
+				chunk = frame.payload;
+				position = 0;
+				call.send(RemoteProtocol.CREDIT, RemoteProtocol.writeCredit(1));
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return fill() ? chunk[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return chunk.length - position;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (!ended) {
+				ended = true;
+				call.finish();
+				if (call.connection.open) {
+					call.send(RemoteProtocol.CANCEL, new byte[0]);
+				}
+			}
+		}
+	}
+
+	@Override
+	protected long doGetContentLength(Hash hash) throws IOException {
+		return doGetContentLength(hash, null);
+	}
+
+	@Override
+	protected long doGetContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		Call call = start(RemoteProtocol.GET_CONTENT_LENGTH, hashAndEncoding(hash, contentEncoding));
+		try {
+			return call.result().readLong();
+		} finally {
+			call.finish();
+		}
+	}
+
+	@Override
+	protected List<Hash> doGetHashes() throws IOException {
+		List<Hash> hashes = new LinkedList<Hash>();
+		Call call = start(RemoteProtocol.GET_HASHES, new byte[0]);
+		try (InputStream inputStream = new RemoteInputStream(call)) {
+			call.result();
+			DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+			byte[] bytes = new byte[Hash.byteCount];
+			for (int n = dataInputStream.read(bytes); n != -1; n = dataInputStream.read(bytes)) {
+				dataInputStream.readFully(bytes, n, bytes.length - n);
+				hashes.add(new Hash(bytes));
+			}
+		} finally {
+			call.finish();
+		}
+		return hashes;
+	}
+
+	@Override
+	protected boolean doDelete(Hash hash) throws IOException {
+		Call call = start(RemoteProtocol.DELETE, hashAndEncoding(hash, null));
+		try {
+			return call.result().readBoolean();
+		} finally {
+			call.finish();
+		}
+	}
+
+	/**
+	 * Send the hashes in as few requests as fit in frames, all sent before
+	 * waiting for any of them.
+	 */
+	@Override
+	protected List<Hash> doDeleteAll(Collection<Hash> hashes) throws IOException {
+		if (hashes == null)
+			throw new IllegalArgumentException("hashes");
+		List<Hash> distinct = new ArrayList<Hash>(new LinkedHashSet<Hash>(hashes));
+		List<Call> calls = new ArrayList<Call>();
+		try {
+			for (int i = 0; i < distinct.size(); i += RemoteProtocol.hashesPerFrame) {
+				List<Hash> batch = distinct.subList(i, Math.min(i + RemoteProtocol.hashesPerFrame, distinct.size()));
+				calls.add(start(RemoteProtocol.DELETE_ALL, RemoteProtocol.writeHashes(batch)));
+			}
+			List<Hash> deleted = new ArrayList<Hash>();
+			for (Call call : calls) {
+				deleted.addAll(RemoteProtocol.readHashes(call.result()));
+			}
+			return deleted;
+		} finally {
+			for (Call call : calls) {
+				call.finish();
+			}
+		}
+	}
+
+	/**
+	 * @return The statistics of the server's store
+	 */
+	@Override
+	public StoreStatistics getStatistics() {
+		try {
+			Call call = start(RemoteProtocol.GET_STATISTICS, new byte[0]);
+			try {
+				return RemoteProtocol.readStatistics(call.result());
+			} finally {
+				call.finish();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Add a listener, asking the server for events if this is the first.
+	 * Returns once the server is sending events, so the listener hears of
+	 * changes made from then on.
+	 * 
+	 * @throws UncheckedIOException
+	 *             if the server couldn't be asked, in which case the listener
+	 *             isn't added
+	 */
+	@Override
+	public void addListener(ContentAddressableStoreListener contentAddressableStoreListener) {
+		super.addListener(contentAddressableStoreListener);
+		CompletableFuture<Void> subscription;
+		boolean subscribe = false;
+		synchronized (connections) {
+			if (closed) {
+				return;
+			}
+			if (this.subscription == null) {
+				if (eventExecutor == null) {
+					eventExecutor = Executors.newSingleThreadExecutor(runnable -> {
+						Thread thread = new Thread(runnable, "CassetteJ-remote-events");
+						thread.setDaemon(true);
+						return thread;
+					});
+				}
+				this.subscription = new CompletableFuture<Void>();
+				// So a reopened connection subscribes again
+				subscribed = true;
+				subscribe = true;
+			}
+			subscription = this.subscription;
+		}
+		try {
+			if (subscribe) {
+				// Not holding the lock, which other requests need
+				try {
+					Call call = getConnection(0).start(RemoteProtocol.SUBSCRIBE, new byte[0]);
+					try {
+						call.result();
+					} finally {
+						call.finish();
+					}
+					subscription.complete(null);
+				} catch (IOException e) {
+					synchronized (connections) {
+						subscribed = false;
+						this.subscription = null;
+					}
+					subscription.completeExceptionally(e);
+				}
+			}
+			subscription.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			removeListener(contentAddressableStoreListener);
+			throw new UncheckedIOException(new InterruptedIOException());
+		} catch (ExecutionException e) {
+			removeListener(contentAddressableStoreListener);
+			throw new UncheckedIOException((IOException) e.getCause());
+		}
+	}
+
+	/**
+	 * Close the connections to the server. The server's store stays open.
+	 */
+	@Override
+	public void close() {
+		synchronized (connections) {
+			closed = true;
+			for (Connection connection : connections) {
+				if (connection != null) {
+					connection.fail(new IOException("Store closed"));
+				}
+			}
+			if (eventExecutor != null) {
+				eventExecutor.shutdown();
+			}
+		}
+	}
+}
@@ -0,0 +1,670 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.sturrock.cassette.cassettej.RemoteProtocol.Frame;
+import org.sturrock.cassette.cassettej.RemoteProtocol.FrameWriter;
+import org.sturrock.cassette.cassettej.RemoteProtocol.Payload;
+
+/**
+ * Serves a store to ContentAddressableStoreRemoteImpl clients over the binary
+ * protocol described in {@link RemoteProtocol}. Each connection has a thread
+ * reading its frames, which hands every request to a pool of workers so
+ * requests on a connection don't wait for each other, and never waits on the
+ * store itself.
+ */
+public class ContentAddressableStoreRemoteServer implements AutoCloseable {
+
+	/**
+	 * Name of the property specifying the port to listen on, or 0 for any
+	 * free port. Defaults to 7070.
+	 */
+	public final static String portPropertyName = ContentAddressableStoreRemoteServer.class.getName() + ".port";
+
+	/**
+	 * Name of the property specifying the address to listen on. Defaults to
+	 * all addresses.
+	 */
+	public final static String bindAddressPropertyName = ContentAddressableStoreRemoteServer.class.getName()
+			+ ".bindAddress";
+
+	private static final int bufferSize = 64 * 1024;
+
+	/**
+	 * The most events queued for a connection. A client which falls this far
+	 * behind is disconnected rather than holding up the store.
+	 */
+	private static final int maxQueuedEvents = 10000;
+
+	/**
+	 * Content being written, passed from the thread reading the connection to
+	 * the worker writing it to the store. The worker gives the client credit
+	 * for another chunk as it takes each one, so there is always room for the
+	 * chunks the client sends.
+	 */
+	private static class Upload extends InputStream {
+		private static final byte[] end = new byte[0];
+
+		// Room for the end as well as a window of chunks
+		private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(RemoteProtocol.window + 1);
+		private final FrameWriter writer;
+		private final int id;
+		private volatile boolean finished;
+		private byte[] chunk = new byte[0];
+		private int position;
+		private boolean ended;
+		private boolean ask;
+
+		/**
+		 * @param ask
+		 *            Whether the client waits to be asked for the content,
+		 *            which is done when it is first read, rather than
+		 *            starting with a window of credit
+		 */
+		Upload(FrameWriter writer, int id, boolean ask) {
+			this.writer = writer;
+			this.id = id;
+			this.ask = ask;
+		}
+
+		/**
+		 * Add a chunk, unless the worker has finished.
+		 * 
+		 * @throws IOException
+		 *             if the client has sent more than its credit
+		 */
+		void add(byte[] bytes) throws IOException {
+			if (!chunks.offer(bytes) && !finished)
+				throw new IOException("Client sent more than its credit");
+		}
+
+		void end() throws IOException {
+			add(end);
+		}
+
+		/**
+		 * Make the worker's next read fail.
+		 */
+		void abort() {
+			finished = true;
+			chunks.clear();
+			chunks.offer(end);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (ask) {
+				writer.write(id, RemoteProtocol.CREDIT, RemoteProtocol.writeCredit(RemoteProtocol.window));
+				ask = false;
+			}
+			while (position == chunk.length) {
+				if (ended) {
+					return -1;
+				}
+				try {
+					chunk = chunks.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+				position = 0;
+				if (finished) {
+					throw new IOException("Write cancelled");
+				}
+				if (chunk == end) {
+					ended = true;
+				} else {
+					writer.write(id, RemoteProtocol.CREDIT, RemoteProtocol.writeCredit(1));
+				}
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(chunk, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		/**
+		 * Stop accepting chunks, so the reading thread doesn't wait for a
+		 * worker which has stopped reading.
+		 */
+		@Override
+		public void close() {
+			finished = true;
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * A stream of DATA frames being sent, limited by the credit the client
+	 * has given.
+	 */
+	private static class Download {
+		private final Semaphore credit = new Semaphore(RemoteProtocol.window);
+		private volatile boolean cancelled;
+
+		/**
+		 * @return false if the stream has been cancelled
+		 */
+		boolean acquire() throws InterruptedIOException {
+			try {
+				credit.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			return !cancelled;
+		}
+
+		void cancel() {
+			cancelled = true;
+			credit.release(RemoteProtocol.window);
+		}
+	}
+
+	private class Connection implements Runnable, ContentAddressableStoreListener {
+		private final Socket socket;
+		private final FrameWriter writer;
+		private final Map<Integer, Upload> uploads = new ConcurrentHashMap<Integer, Upload>();
+		private final Map<Integer, Download> downloads = new ConcurrentHashMap<Integer, Download>();
+		private volatile boolean subscribed;
+		// Written by a worker, so that listeners are never notified slowly
+		private final BlockingQueue<byte[]> events = new LinkedBlockingQueue<byte[]>(maxQueuedEvents);
+		private final AtomicBoolean sendingEvents = new AtomicBoolean();
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			writer = new FrameWriter(new BufferedOutputStream(socket.getOutputStream(), bufferSize));
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream inputStream = new DataInputStream(
+						new BufferedInputStream(socket.getInputStream(), bufferSize));
+				while (!closed) {
+					handle(RemoteProtocol.readFrame(inputStream));
+				}
+			} catch (IOException | RuntimeException e) {
+				// Closed by the client or the server, or a broken client
+			} finally {
+				close();
+			}
+		}
+
+		private void handle(Frame frame) throws IOException {
+			int id = frame.id;
+			switch (frame.type) {
+			case RemoteProtocol.READ:
+			case RemoteProtocol.GET_HASHES:
+				downloads.put(id, new Download());
+				execute(frame);
+				break;
+			case RemoteProtocol.WRITE:
+			case RemoteProtocol.WRITE_ENCODED:
+			case RemoteProtocol.WRITE_EXPECTED:
+				uploads.put(id, new Upload(writer, id, frame.type == RemoteProtocol.WRITE_EXPECTED));
+				execute(frame);
+				break;
+			case RemoteProtocol.CONTAINS:
+			case RemoteProtocol.GET_CONTENT_LENGTH:
+			case RemoteProtocol.DELETE:
+			case RemoteProtocol.DELETE_ALL:
+			case RemoteProtocol.GET_STATISTICS:
+				execute(frame);
+				break;
+			case RemoteProtocol.SUBSCRIBE:
+				if (!subscribed) {
+					subscribed = true;
+					store.addListener(this);
+				}
+				writer.write(id, RemoteProtocol.RESULT);
+				break;
+			case RemoteProtocol.DATA: {
+				Upload upload = uploads.get(id);
+				if (upload != null) {
+					upload.add(frame.payload);
+				}
+				break;
+			}
+			case RemoteProtocol.END: {
+				Upload upload = uploads.get(id);
+				if (upload != null) {
+					upload.end();
+				}
+				break;
+			}
+			case RemoteProtocol.CANCEL: {
+				Upload upload = uploads.remove(id);
+				if (upload != null) {
+					upload.abort();
+				}
+				Download download = downloads.remove(id);
+				if (download != null) {
+					download.cancel();
+				}
+				break;
+			}
+			case RemoteProtocol.CREDIT: {
+				Download download = downloads.get(id);
+				if (download != null) {
+					download.credit.release(frame.getPayloadInputStream().readInt());
+				}
+				break;
+			}
+			default:
+				writer.write(id, RemoteProtocol.ERROR,
+						RemoteProtocol.writeError(new IllegalArgumentException("Unknown request " + frame.type)));
+			}
+		}
+
+		private void execute(Frame frame) throws IOException {
+			try {
+				workers.execute(() -> {
+					try {
+						respond(frame);
+					} catch (IOException e) {
+						// The connection has failed, so the reading thread
+						// will close it
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				throw new IOException("Server closed");
+			}
+		}
+
+		/**
+		 * Carry out a request and send the response.
+		 */
+		private void respond(Frame frame) throws IOException {
+			int id = frame.id;
+			Upload upload = uploads.get(id);
+			Download download = downloads.get(id);
+			try {
+				DataInputStream request = frame.getPayloadInputStream();
+				switch (frame.type) {
+				case RemoteProtocol.CONTAINS: {
+					Hash hash = RemoteProtocol.readHash(request);
+					ContentEncoding contentEncoding = RemoteProtocol.readEncoding(request);
+					boolean contains = contentEncoding == null ? store.contains(hash)
+							: store.contains(hash, contentEncoding);
+					writer.write(id, RemoteProtocol.RESULT, new byte[] { (byte) (contains ? 1 : 0) });
+					break;
+				}
+				case RemoteProtocol.GET_CONTENT_LENGTH: {
+					Hash hash = RemoteProtocol.readHash(request);
+					ContentEncoding contentEncoding = RemoteProtocol.readEncoding(request);
+					long length = contentEncoding == null ? store.getContentLength(hash)
+							: store.getContentLength(hash, contentEncoding);
+					Payload payload = new Payload();
+					payload.writeLong(length);
+					writer.write(id, RemoteProtocol.RESULT, payload.toByteArray());
+					break;
+				}
+				case RemoteProtocol.READ: {
+					Hash hash = RemoteProtocol.readHash(request);
+					ContentEncoding contentEncoding = RemoteProtocol.readEncoding(request);
+					try (InputStream inputStream = contentEncoding == null ? store.read(hash)
+							: store.read(hash, contentEncoding)) {
+						writer.write(id, RemoteProtocol.RESULT, new byte[] { (byte) (inputStream == null ? 0 : 1) });
+						if (inputStream != null) {
+							send(id, inputStream, download);
+						}
+					}
+					break;
+				}
+				case RemoteProtocol.GET_HASHES: {
+					List<Hash> hashes = store.getHashes();
+					writer.write(id, RemoteProtocol.RESULT);
+					sendHashes(id, hashes, download);
+					break;
+				}
+				case RemoteProtocol.WRITE:
+				case RemoteProtocol.WRITE_ENCODED:
+				case RemoteProtocol.WRITE_EXPECTED: {
+					Hash hash;
+					List<Hash> added = new ArrayList<Hash>(1);
+					addedByWrite.set(added);
+					try (Upload body = upload) {
+						if (frame.type == RemoteProtocol.WRITE) {
+							hash = store.write(body, RemoteProtocol.readEncodings(request));
+						} else if (frame.type == RemoteProtocol.WRITE_EXPECTED) {
+							Hash expected = RemoteProtocol.readHash(request);
+							hash = store.write(expected, body, RemoteProtocol.readEncodings(request));
+						} else {
+							hash = store.writeEncoded(body, RemoteProtocol.readEncoding(request));
+						}
+					} finally {
+						addedByWrite.remove();
+					}
+					Payload payload = new Payload().writeHash(hash);
+					payload.writeBoolean(added.contains(hash));
+					writer.write(id, RemoteProtocol.RESULT, payload.toByteArray());
+					break;
+				}
+				case RemoteProtocol.DELETE: {
+					boolean deleted = store.delete(RemoteProtocol.readHash(request));
+					writer.write(id, RemoteProtocol.RESULT, new byte[] { (byte) (deleted ? 1 : 0) });
+					break;
+				}
+				case RemoteProtocol.DELETE_ALL: {
+					List<Hash> deleted = store.deleteAll(RemoteProtocol.readHashes(request));
+					writer.write(id, RemoteProtocol.RESULT, RemoteProtocol.writeHashes(deleted));
+					break;
+				}
+				case RemoteProtocol.GET_STATISTICS:
+					writer.write(id, RemoteProtocol.RESULT, RemoteProtocol.writeStatistics(store.getStatistics()));
+					break;
+				}
+			} catch (IOException | RuntimeException e) {
+				if (upload != null) {
+					upload.close();
+				}
+				if (closed || socket.isClosed()) {
+					throw e instanceof IOException ? (IOException) e : new IOException(e);
+				}
+				writer.write(id, RemoteProtocol.ERROR, RemoteProtocol.writeError(e));
+			} finally {
+				uploads.remove(id);
+				downloads.remove(id);
+			}
+		}
+
+		private void send(int id, InputStream inputStream, Download download) throws IOException {
+			byte[] buffer = new byte[RemoteProtocol.chunkSize];
+			while (true) {
+				// Fill the buffer, so frames are full however the stream reads
+				int n = 0;
+				for (int m = 0; m != -1 && n < buffer.length; m = inputStream.read(buffer, n, buffer.length - n)) {
+					n += m;
+				}
+				if (n > 0) {
+					if (!download.acquire()) {
+						return;
+					}
+					writer.write(id, RemoteProtocol.DATA, buffer, 0, n);
+				}
+				if (n < buffer.length) {
+					break;
+				}
+			}
+			writer.write(id, RemoteProtocol.END);
+		}
+
+		private void sendHashes(int id, List<Hash> hashes, Download download) throws IOException {
+			int perFrame = RemoteProtocol.hashesPerFrame;
+			for (int i = 0; i < hashes.size(); i += perFrame) {
+				Payload payload = new Payload();
+				for (Hash hash : hashes.subList(i, Math.min(i + perFrame, hashes.size()))) {
+					payload.writeHash(hash);
+				}
+				if (!download.acquire()) {
+					return;
+				}
+				writer.write(id, RemoteProtocol.DATA, payload.toByteArray());
+			}
+			writer.write(id, RemoteProtocol.END);
+		}
+
+		@Override
+		public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			sendEvent(RemoteProtocol.CONTENT_ADDED, contentAddressableStoreEvent.getHash());
+		}
+
+		@Override
+		public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			sendEvent(RemoteProtocol.CONTENT_REMOVED, contentAddressableStoreEvent.getHash());
+		}
+
+		/**
+		 * Queue an event for a worker to send, as the store's listeners
+		 * mustn't wait for the network.
+		 */
+		private void sendEvent(byte kind, Hash hash) {
+			try {
+				Payload payload = new Payload();
+				payload.writeByte(kind);
+				payload.writeHash(hash);
+				if (!events.offer(payload.toByteArray())) {
+					// The reading thread will close the rest of the connection
+					closeQuietly(socket);
+					return;
+				}
+			} catch (IOException e) {
+				// Only written to memory
+				return;
+			}
+			sendEvents();
+		}
+
+		/**
+		 * Have a worker send the queued events, unless one already is.
+		 */
+		private void sendEvents() {
+			if (!sendingEvents.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				workers.execute(() -> {
+					try {
+						byte[] event;
+						while ((event = events.poll()) != null) {
+							writer.write(0, RemoteProtocol.EVENT, event);
+						}
+					} catch (IOException e) {
+						// The connection has failed, so the reading thread
+						// will close it
+						events.clear();
+						closeQuietly(socket);
+						return;
+					} finally {
+						sendingEvents.set(false);
+					}
+					// Queued after the last poll but before the flag was
+					// cleared
+					if (!events.isEmpty()) {
+						sendEvents();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Server closed
+				sendingEvents.set(false);
+			}
+		}
+
+		void close() {
+			if (subscribed) {
+				store.removeListener(this);
+			}
+			for (Upload upload : uploads.values()) {
+				upload.abort();
+			}
+			for (Download download : downloads.values()) {
+				download.cancel();
+			}
+			closeQuietly(socket);
+			connections.remove(this);
+		}
+	}
+
+	private final ContentAddressableStore store;
+	private final int port;
+	private final InetAddress bindAddress;
+
+	private ServerSocket serverSocket;
+	private ExecutorService workers;
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger connectionNumber = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * The content added by the write a worker is making, so the result can
+	 * say whether it was added. Stores notify their listeners in the thread
+	 * which wrote the content.
+	 */
+	private final ThreadLocal<List<Hash>> addedByWrite = new ThreadLocal<List<Hash>>();
+	private final ContentAddressableStoreListener writeListener = new ContentAddressableStoreListener() {
+		@Override
+		public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			List<Hash> added = addedByWrite.get();
+			if (added != null) {
+				added.add(contentAddressableStoreEvent.getHash());
+			}
+		}
+
+		@Override
+		public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+		}
+	};
+
+	/**
+	 * @param store
+	 *            The store to serve
+	 * @param properties
+	 *            <code>portPropertyName</code> and
+	 *            <code>bindAddressPropertyName</code>, both optional
+	 */
+	public ContentAddressableStoreRemoteServer(ContentAddressableStore store, Properties properties)
+			throws IOException {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		this.store = store;
+		port = Integer.parseInt(properties.getProperty(portPropertyName, "7070"));
+		if (port < 0 || port > 65535)
+			throw new IllegalArgumentException(portPropertyName);
+		String bindAddress = properties.getProperty(bindAddressPropertyName);
+		this.bindAddress = bindAddress == null || bindAddress.equals("") ? null : InetAddress.getByName(bindAddress);
+	}
+
+	/**
+	 * Start listening for connections.
+	 */
+	public synchronized void start() throws IOException {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		if (serverSocket != null)
+			return;
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(bindAddress, port));
+		store.addListener(writeListener);
+		AtomicInteger threadNumber = new AtomicInteger();
+		workers = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-remote-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Thread acceptor = new Thread(this::accept, "CassetteJ-remote-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	public synchronized int getPort() throws IOException {
+		if (serverSocket == null)
+			throw new IllegalStateException("Not started");
+		return serverSocket.getLocalPort();
+	}
+
+	private void accept() {
+		while (!closed) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// Closed, or out of file descriptors, in which case wait for
+				// connections to close
+				if (!closed) {
+					try {
+						Thread.sleep(100);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				continue;
+			}
+			try {
+				Connection connection = new Connection(socket);
+				connections.add(connection);
+				if (closed) {
+					connection.close();
+					continue;
+				}
+				Thread thread = new Thread(connection,
+						"CassetteJ-remote-connection-" + connectionNumber.incrementAndGet());
+				thread.setDaemon(true);
+				thread.start();
+			} catch (IOException e) {
+				closeQuietly(socket);
+			}
+		}
+	}
+
+	private static void closeQuietly(AutoCloseable closeable) {
+		try {
+			closeable.close();
+		} catch (Exception e) {
+			// Nothing to be done
+		}
+	}
+
+	/**
+	 * Stop listening and close all connections. The store isn't closed.
+	 */
+	@Override
+	public void close() {
+		ServerSocket serverSocket;
+		ExecutorService workers;
+		synchronized (this) {
+			closed = true;
+			serverSocket = this.serverSocket;
+			workers = this.workers;
+		}
+		if (serverSocket != null) {
+			closeQuietly(serverSocket);
+			store.removeListener(writeListener);
+		}
+		for (Connection connection : connections) {
+			connection.close();
+		}
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,597 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A store which spreads its content across several root paths, such as one
+ * per disk, each holding a ContentAddressableStoreFileImpl. Each piece of
+ * content belongs to one root, chosen by consistent hashing of its hash, so
+ * operations on content in different roots use different disks and run in
+ * parallel.
+ *
+ * Roots are identified by their paths. When a root is added, only the content
+ * which now belongs to it is moved, which is about 1/n of it for n roots. This
+ * happens in the background when the store is opened, and until it has
+ * finished content is looked for in every root if it isn't in the one it
+ * belongs to. A root which is removed from the list takes its content with it.
+ *
+ * Content is hashed as it is written to a temporary file outside the roots,
+ * and is then moved into the root it belongs to, so the roots' stores only
+ * ever rename files within their own filesystems.
+ */
+public class ContentAddressableStoreShardedImpl extends ContentAddressableStoreImpl {
+
+	/**
+	 * Name of the property specifying the root paths, separated by commas.
+	 * Required. Any other properties are passed to the
+	 * ContentAddressableStoreFileImpl of each root.
+	 */
+	public final static String rootPathsPropertyName = ContentAddressableStoreShardedImpl.class.getName()
+			+ ".rootPaths";
+
+	/**
+	 * Name of the property specifying the number of points each root has on
+	 * the hash ring. More points spread content more evenly. Defaults to 64.
+	 */
+	public final static String virtualNodesPropertyName = ContentAddressableStoreShardedImpl.class.getName()
+			+ ".virtualNodes";
+
+	/**
+	 * The file in each root recording the roots it was last balanced with.
+	 */
+	private static final String layoutFileName = "shards";
+
+	private final ContentAddressableStoreFileImpl[] shards;
+	private final TreeMap<Long, ContentAddressableStoreFileImpl> ring = new TreeMap<Long, ContentAddressableStoreFileImpl>();
+	private final String layout;
+	private final ExecutorService executor;
+
+	/**
+	 * Locks which make moving content between roots atomic with respect to
+	 * deleting it. Striped by hash.
+	 */
+	private final Object[] locks = new Object[256];
+	private final CountDownLatch rebalanced = new CountDownLatch(1);
+	private volatile boolean rebalancing;
+	private volatile IOException rebalanceException;
+	private Thread rebalancer;
+	private volatile boolean closed;
+
+	/**
+	 * @param properties
+	 *            <code>rootPathsPropertyName</code>, optionally
+	 *            <code>virtualNodesPropertyName</code>, and the properties of
+	 *            the roots' stores
+	 * @throws IOException
+	 */
+	public ContentAddressableStoreShardedImpl(Properties properties) throws IOException {
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		String rootPaths = properties.getProperty(rootPathsPropertyName);
+		if (rootPaths == null || rootPaths.trim().equals(""))
+			throw new IllegalArgumentException("No property " + rootPathsPropertyName + " found");
+		int virtualNodes = Integer.parseInt(properties.getProperty(virtualNodesPropertyName, "64"));
+		if (virtualNodes <= 0)
+			throw new IllegalArgumentException(virtualNodesPropertyName);
+
+		List<String> roots = new ArrayList<String>();
+		for (String rootPath : rootPaths.split(",")) {
+			String root = Paths.get(rootPath.trim()).toAbsolutePath().normalize().toString();
+			if (roots.contains(root))
+				throw new IllegalArgumentException("Root " + root + " is listed twice in " + rootPathsPropertyName);
+			roots.add(root);
+		}
+		StringBuilder layout = new StringBuilder().append(virtualNodes).append('\n');
+		for (String root : roots) {
+			layout.append(root).append('\n');
+		}
+		this.layout = layout.toString();
+
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+		shards = new ContentAddressableStoreFileImpl[roots.size()];
+		try {
+			for (int i = 0; i < shards.length; i++) {
+				Properties shardProperties = new Properties();
+				shardProperties.putAll(properties);
+				shardProperties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, roots.get(i));
+				shards[i] = new ContentAddressableStoreFileImpl(shardProperties);
+				shards[i].addListener(new ContentAddressableStoreListener() {
+					@Override
+					public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+						// Moving content isn't adding or removing it
+						if (Thread.currentThread() != rebalancer) {
+							notifyListenersContentAdded(contentAddressableStoreEvent.getHash());
+						}
+					}
+
+					@Override
+					public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+						if (Thread.currentThread() != rebalancer) {
+							notifyListenersContentRemoved(contentAddressableStoreEvent.getHash());
+						}
+					}
+				});
+				for (int j = 0; j < virtualNodes; j++) {
+					ring.put(getPosition(digest((roots.get(i) + "#" + j).getBytes(StandardCharsets.UTF_8))),
+							shards[i]);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			for (ContentAddressableStoreFileImpl shard : shards) {
+				if (shard != null) {
+					shard.close();
+				}
+			}
+			throw e;
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(shards.length, runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-shard-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		if (isBalanced()) {
+			rebalanced.countDown();
+		} else {
+			rebalancing = true;
+			rebalancer = new Thread(this::rebalance, "CassetteJ-rebalance");
+			rebalancer.setDaemon(true);
+			rebalancer.start();
+		}
+	}
+
+	private static byte[] digest(byte[] bytes) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static long getPosition(byte[] bytes) {
+		return ByteBuffer.wrap(bytes).getLong();
+	}
+
+	/**
+	 * @return The store of the root some content belongs to
+	 */
+	ContentAddressableStoreFileImpl getShard(Hash hash) {
+		Map.Entry<Long, ContentAddressableStoreFileImpl> entry = ring.ceilingEntry(getPosition(hash.getBytes()));
+		return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+	}
+
+	/**
+	 * @return The stores of the roots, in the order they were listed
+	 */
+	public List<ContentAddressableStoreFileImpl> getShards() {
+		return Collections.unmodifiableList(Arrays.asList(shards));
+	}
+
+	/**
+	 * @return The store of the root holding some content, which is the one it
+	 *         belongs to unless it hasn't been moved there yet
+	 */
+	private ContentAddressableStoreFileImpl find(Hash hash) {
+		ContentAddressableStoreFileImpl owner = getShard(hash);
+		if (rebalancing && !owner.contains(hash)) {
+			for (ContentAddressableStoreFileImpl shard : shards) {
+				if (shard != owner && shard.contains(hash)) {
+					return shard;
+				}
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * @return true if every root was last balanced with the current roots
+	 */
+	private boolean isBalanced() throws IOException {
+		for (ContentAddressableStoreFileImpl shard : shards) {
+			Path layoutPath = shard.getRootPath().resolve(layoutFileName);
+			if (!Files.exists(layoutPath)
+					|| !new String(Files.readAllBytes(layoutPath), StandardCharsets.UTF_8).equals(layout)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Move any content which isn't in the root it belongs to, and record the
+	 * roots once everything is in place.
+	 */
+	private void rebalance() {
+		try {
+			StoreSynchronizer.Result result = new StoreSynchronizer.Result();
+			for (ContentAddressableStoreFileImpl shard : shards) {
+				for (Path directory : shard.getPrefixDirectories(shard.getRootPath())) {
+					if (closed) {
+						return;
+					}
+					rebalance(shard, directory.getFileName().toString(), result);
+				}
+			}
+			for (ContentAddressableStoreFileImpl shard : shards) {
+				Path layoutPath = shard.getRootPath().resolve(layoutFileName);
+				Path tmpFile = Files.createTempFile(shard.getRootPath(), "tmp", ".tmp");
+				try {
+					Files.write(tmpFile, layout.getBytes(StandardCharsets.UTF_8));
+					Files.move(tmpFile, layoutPath, StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					Files.deleteIfExists(tmpFile);
+				}
+			}
+			rebalancing = false;
+		} catch (IOException | RuntimeException e) {
+			// Tried again when the store is next opened, and until then
+			// content is still looked for in every root
+			rebalanceException = e instanceof IOException ? (IOException) e : new IOException(e);
+		} finally {
+			rebalanced.countDown();
+		}
+	}
+
+	private void rebalance(ContentAddressableStoreFileImpl shard, String prefix, StoreSynchronizer.Result result)
+			throws IOException {
+		// Content sorts before its encodings, so is moved first
+		Map<Hash, List<String>> entries = new LinkedHashMap<Hash, List<String>>();
+		for (String entry : shard.getSummary().getEntries(prefix)) {
+			int dot = entry.indexOf('.');
+			Hash hash = new Hash(dot == -1 ? entry : entry.substring(0, dot));
+			if (getShard(hash) != shard) {
+				entries.computeIfAbsent(hash, key -> new ArrayList<String>()).add(entry);
+			}
+		}
+		Map<ContentAddressableStoreFileImpl, StoreSynchronizer> synchronizers = new HashMap<ContentAddressableStoreFileImpl, StoreSynchronizer>();
+		for (Map.Entry<Hash, List<String>> entry : entries.entrySet()) {
+			Hash hash = entry.getKey();
+			ContentAddressableStoreFileImpl owner = getShard(hash);
+			StoreSynchronizer synchronizer = synchronizers.computeIfAbsent(owner,
+					target -> new StoreSynchronizer(shard, target, new Properties()));
+			// So a delete can't remove the content from both roots while it
+			// is being copied, leaving the copy behind
+			synchronized (lockFor(hash)) {
+				for (String name : entry.getValue()) {
+					synchronizer.copy(name, result);
+				}
+				// Damaged content isn't copied, so is left where it is
+				if (owner.contains(hash)) {
+					shard.delete(hash);
+				}
+			}
+		}
+	}
+
+	private Object lockFor(Hash hash) {
+		return locks[(hash.hashCode() & Integer.MAX_VALUE) % locks.length];
+	}
+
+	/**
+	 * @return true until content has been moved to the roots it belongs to
+	 */
+	public boolean isRebalancing() {
+		return rebalancing;
+	}
+
+	/**
+	 * @return The exception which stopped content being moved to the roots
+	 *         it belongs to, or null if it hasn't failed. It is tried again
+	 *         when the store is next opened.
+	 */
+	public IOException getRebalanceException() {
+		return rebalanceException;
+	}
+
+	/**
+	 * Wait for content to be moved to the roots it belongs to, or for that to
+	 * fail, see {@link #getRebalanceException()}.
+	 *
+	 * @return false if it hadn't finished in time
+	 */
+	public boolean awaitRebalance(long timeout, TimeUnit unit) throws InterruptedException {
+		return rebalanced.await(timeout, unit);
+	}
+
+	/**
+	 * Set the encoding policy of this store and of the roots' stores, which
+	 * apply it when content is written.
+	 */
+	@Override
+	public void setEncodingPolicy(EncodingPolicy encodingPolicy) {
+		super.setEncodingPolicy(encodingPolicy);
+		for (ContentAddressableStoreFileImpl shard : shards) {
+			shard.setEncodingPolicy(encodingPolicy);
+		}
+	}
+
+	/**
+	 * Move a temporary file into a root, copying it if the root is on another
+	 * filesystem, so the root's store can rename it into place.
+	 * 
+	 * @return The temporary file in the root
+	 */
+	private static Path moveInto(ContentAddressableStoreFileImpl shard, Path file) throws IOException {
+		Path tmpFile = Files.createTempFile(shard.getRootPath(), "tmp", ".tmp");
+		try {
+			Files.move(file, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmpFile);
+			throw e;
+		}
+		return tmpFile;
+	}
+
+	/**
+	 * Copy a stream to a file, returning the hash of what was copied.
+	 */
+	private static Hash copy(InputStream inputStream, Path file) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		try (InputStream digestInputStream = new DigestInputStream(inputStream, messageDigest)) {
+			Files.copy(digestInputStream, file, StandardCopyOption.REPLACE_EXISTING);
+		}
+		return new Hash(messageDigest.digest());
+	}
+
+	@Override
+	protected Hash doWrite(InputStream inputStream, List<ContentEncoding> encodings) throws IOException {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (encodings == null) {
+			encodings = new LinkedList<ContentEncoding>();
+		}
+		Path spoolFile = Files.createTempFile("CassetteJ", ".tmp");
+		Path tmpFile = null;
+		try {
+			ContentAddressableStoreFileImpl owner = getShard(copy(inputStream, spoolFile));
+			tmpFile = moveInto(owner, spoolFile);
+			return owner.writeFile(tmpFile, encodings);
+		} finally {
+			Files.deleteIfExists(spoolFile);
+			if (tmpFile != null) {
+				Files.deleteIfExists(tmpFile);
+			}
+		}
+	}
+
+	@Override
+	protected Hash doWriteEncoded(InputStream inputStream, ContentEncoding contentEncoding) throws IOException {
+		if (inputStream == null)
+			throw new IllegalArgumentException("inputStream");
+		if (contentEncoding == null)
+			throw new IllegalArgumentException("contentEncoding");
+		// Keep the encoded content as it is and decode it once to get the raw
+		// content
+		Path encodedSpoolFile = Files.createTempFile("CassetteJ", ".tmp");
+		Path spoolFile = null;
+		Path encodedTmpFile = null;
+		Path tmpFile = null;
+		try {
+			Files.copy(inputStream, encodedSpoolFile, StandardCopyOption.REPLACE_EXISTING);
+			spoolFile = Files.createTempFile("CassetteJ", ".tmp");
+			Hash hash;
+			try (InputStream decodedInputStream = contentEncoding
+					.decode(new BufferedInputStream(Files.newInputStream(encodedSpoolFile)))) {
+				hash = copy(decodedInputStream, spoolFile);
+			} catch (RuntimeException e) {
+				throw new IOException(e);
+			}
+			ContentAddressableStoreFileImpl owner = getShard(hash);
+			encodedTmpFile = moveInto(owner, encodedSpoolFile);
+			tmpFile = moveInto(owner, spoolFile);
+			return owner.writeFile(tmpFile, contentEncoding, encodedTmpFile);
+		} finally {
+			for (Path file : Arrays.asList(encodedSpoolFile, spoolFile, encodedTmpFile, tmpFile)) {
+				if (file != null) {
+					Files.deleteIfExists(file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The store of the root holding the content, or of the one it belongs to,
+	 * looks for it and writes it.
+	 */
+	@Override
+	protected Hash doWrite(Hash expected, InputStream inputStream, List<ContentEncoding> encodings)
+			throws IOException {
+		if (expected == null)
+			throw new IllegalArgumentException("expected");
+		return find(expected).write(expected, inputStream, encodings);
+	}
+
+	@Override
+	protected boolean doContains(Hash hash) {
+		return find(hash).contains(hash);
+	}
+
+	@Override
+	protected boolean doContains(Hash hash, ContentEncoding contentEncoding) {
+		return find(hash).contains(hash, contentEncoding);
+	}
+
+	@Override
+	protected InputStream doRead(Hash hash) throws IOException {
+		return find(hash).read(hash);
+	}
+
+	@Override
+	protected InputStream doRead(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		return find(hash).read(hash, contentEncoding);
+	}
+
+	@Override
+	protected long doGetContentLength(Hash hash) throws IOException {
+		return find(hash).getContentLength(hash);
+	}
+
+	@Override
+	protected long doGetContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		return find(hash).getContentLength(hash, contentEncoding);
+	}
+
+	/**
+	 * List the roots in parallel and merge the lists.
+	 */
+	@Override
+	protected List<Hash> doGetHashes() throws IOException {
+		List<Future<List<Hash>>> futures = new ArrayList<Future<List<Hash>>>(shards.length);
+		for (ContentAddressableStoreFileImpl shard : shards) {
+			futures.add(executor.submit(shard::getHashes));
+		}
+		// Content being moved may be in two roots
+		Set<Hash> hashes = new LinkedHashSet<Hash>();
+		for (Future<List<Hash>> future : futures) {
+			hashes.addAll(get(future));
+		}
+		return new ArrayList<Hash>(hashes);
+	}
+
+	private static <T> T get(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	protected boolean doDelete(Hash hash) throws IOException {
+		if (!rebalancing) {
+			return getShard(hash).delete(hash);
+		}
+		// Not while the content is being moved, as the copy would be left
+		synchronized (lockFor(hash)) {
+			boolean deleted = false;
+			for (ContentAddressableStoreFileImpl shard : shards) {
+				deleted |= shard.delete(hash);
+			}
+			return deleted;
+		}
+	}
+
+	/**
+	 * Delete from each root in parallel, each deleting in bulk, unless content
+	 * is being moved.
+	 */
+	@Override
+	protected List<Hash> doDeleteAll(Collection<Hash> hashes) throws IOException {
+		if (hashes == null)
+			throw new IllegalArgumentException("hashes");
+		if (rebalancing) {
+			// Each in turn, so none is deleted while it is being moved
+			return super.doDeleteAll(hashes);
+		}
+		Map<ContentAddressableStoreFileImpl, List<Hash>> byShard = new HashMap<ContentAddressableStoreFileImpl, List<Hash>>();
+		for (Hash hash : new LinkedHashSet<Hash>(hashes)) {
+			byShard.computeIfAbsent(getShard(hash), shard -> new ArrayList<Hash>()).add(hash);
+		}
+		List<Future<List<Hash>>> futures = new ArrayList<Future<List<Hash>>>(byShard.size());
+		for (Map.Entry<ContentAddressableStoreFileImpl, List<Hash>> entry : byShard.entrySet()) {
+			futures.add(executor.submit(() -> entry.getKey().deleteAll(entry.getValue())));
+		}
+		Set<Hash> deleted = new LinkedHashSet<Hash>();
+		for (Future<List<Hash>> future : futures) {
+			deleted.addAll(get(future));
+		}
+		return new ArrayList<Hash>(deleted);
+	}
+
+	/**
+	 * @return The statistics of the roots added together, which are only
+	 *         exact if they all are and no content is being moved
+	 */
+	@Override
+	public StoreStatistics getStatistics() {
+		long contentCount = 0;
+		long contentBytes = 0;
+		boolean exact = !rebalancing;
+		Map<String, Long> encodedCounts = new HashMap<String, Long>();
+		Map<String, Long> encodedBytes = new HashMap<String, Long>();
+		for (ContentAddressableStoreFileImpl shard : shards) {
+			StoreStatistics statistics = shard.getStatistics();
+			contentCount += statistics.getContentCount();
+			contentBytes += statistics.getContentBytes();
+			exact &= statistics.isExact();
+			for (String name : statistics.getEncodingNames()) {
+				encodedCounts.merge(name, statistics.getEncodedCount(name), Long::sum);
+				encodedBytes.merge(name, statistics.getEncodedBytes(name), Long::sum);
+			}
+		}
+		return new StoreStatistics(contentCount, contentBytes, encodedCounts, encodedBytes, exact);
+	}
+
+	/**
+	 * Stop any rebalancing and close the roots' stores.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		if (rebalancer != null) {
+			try {
+				rebalancer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		executor.shutdown();
+		for (ContentAddressableStoreFileImpl shard : shards) {
+			shard.close();
+		}
+	}
+}
@@ -3,7 +3,6 @@ package org.sturrock.cassette.cassettej;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * Defines an encoding for use with a ContentAddressableStore This allows data
@@ -21,18 +20,17 @@ public interface ContentEncoding {
 	public String getName();
 
 	/**
-	 * Encode a stream and return a new stream with this encoding type. Note
-	 * that this method explicitly returns a DeflaterOutputStream. The caller
-	 * can then call finish() on the stream. See
-	 * {@link java.util.zip.DeflaterOutputStream#finish()} for more
-	 * details.
+	 * Encode a stream and return a new stream with this encoding type. The
+	 * caller must close the returned stream once all the content has been
+	 * written to it, which writes any buffered data and trailer and then
+	 * closes the underlying stream.
 	 * 
 	 * @param stream
-	 *            The unencoded stream
-	 * @return The encoded stream
+	 *            The stream to write the encoded content to
+	 * @return A stream to write the unencoded content to
 	 * @throws IOException
 	 */
-	public DeflaterOutputStream encode(OutputStream stream) throws IOException;
+	public OutputStream encode(OutputStream stream) throws IOException;
 
 	/**
 	 * Decode a stream with this encoding type and return a new stream.
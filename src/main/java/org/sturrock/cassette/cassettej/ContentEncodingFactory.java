@@ -1,17 +1,72 @@
 package org.sturrock.cassette.cassettej;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
 /**
- * Factory to create concrete types of ContentEncoding
- * Currently only supports gzip
+ * Factory to create concrete types of ContentEncoding by name. gzip, deflate
+ * and Snappy are registered by default and others can be added with
+ * {@link #register(String, Supplier)}.
  *
  */
 public class ContentEncodingFactory {
 
+	private static final ConcurrentMap<String, Supplier<ContentEncoding>> encodings = new ConcurrentHashMap<String, Supplier<ContentEncoding>>();
+
+	static {
+		register(GZIPContentEncoding.name, GZIPContentEncoding::new);
+		register(DeflateContentEncoding.name, DeflateContentEncoding::new);
+		register(SnappyContentEncoding.name, SnappyContentEncoding::new);
+	}
+
+	/**
+	 * Register an encoding, replacing any existing one with the same name. This
+	 * can also be used to change the settings of a built in encoding, eg to
+	 * use a different deflate level.
+	 * 
+	 * @param encodingName
+	 *            The name the encoding will be created by. Should match the
+	 *            name the encoding itself returns.
+	 * @param supplier
+	 *            Creates instances of the encoding
+	 */
+	public static void register(String encodingName, Supplier<ContentEncoding> supplier) {
+		if (encodingName == null)
+			throw new IllegalArgumentException("encodingName");
+		if (supplier == null)
+			throw new IllegalArgumentException("supplier");
+		encodings.put(encodingName, supplier);
+	}
+
+	/**
+	 * @param encodingName
+	 * @return whether the encoding was registered
+	 */
+	public static boolean unregister(String encodingName) {
+		return encodings.remove(encodingName) != null;
+	}
+
+	/**
+	 * @return The names of all the registered encodings
+	 */
+	public static Set<String> getEncodingNames() {
+		return Collections.unmodifiableSet(new TreeSet<String>(encodings.keySet()));
+	}
+
+	/**
+	 * @param encodingName
+	 * @return A new instance of the encoding, or null if there is no encoding
+	 *         registered with that name
+	 */
 	public static ContentEncoding createEncoding(String encodingName) {
-		// For now only support gzip
-		if (encodingName.equals("gzip")) {
-			return new GZIPContentEncoding();
+		Supplier<ContentEncoding> supplier = encodings.get(encodingName);
+		if (supplier == null) {
+			return null;
 		}
-		return null;
+		return supplier.get();
 	}
 }
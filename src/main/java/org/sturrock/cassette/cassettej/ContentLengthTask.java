@@ -0,0 +1,71 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.infinispan.distexec.DistributedCallable;
+
+/**
+ * Looks up the length of some content on a node that owns it. Used by
+ * ContentAddressableStoreInfinispanImpl in distributed mode so that
+ * <code>contains</code> and <code>getContentLength</code> only return a long
+ * across the network rather than the whole of the content.
+ */
+class ContentLengthTask implements DistributedCallable<Hash, CacheValue, Long>, Serializable {
+
+	private static final long serialVersionUID = -6370941052813617452L;
+
+	private final String encodingName;
+
+	private transient Cache<Hash, CacheValue> cache;
+	private transient Set<Hash> hashes;
+
+	/**
+	 * @param encodingName
+	 *            Name of the encoding to get the length of, or null for the raw
+	 *            content.
+	 */
+	public ContentLengthTask(String encodingName) {
+		this.encodingName = encodingName;
+	}
+
+	@Override
+	public void setEnvironment(Cache<Hash, CacheValue> cache, Set<Hash> hashes) {
+		this.cache = cache;
+		this.hashes = hashes;
+	}
+
+	@Override
+	public Long call() {
+		Hash hash = hashes.iterator().next();
+		CacheValue cacheValue = cache.getAdvancedCache().withFlags(Flag.CACHE_MODE_LOCAL).get(hash);
+		return getLength(cacheValue, encodingName);
+	}
+
+	/**
+	 * Returned for an encoding which is pending.
+	 */
+	static final long pending = -2;
+
+	/**
+	 * @return The length of the raw or encoded content in cacheValue, -1 if
+	 *         there is no such content or <code>pending</code> if the
+	 *         encoding hasn't been produced yet.
+	 */
+	static long getLength(CacheValue cacheValue, String encodingName) {
+		if (cacheValue == null) {
+			return -1;
+		}
+		if (encodingName == null) {
+			return cacheValue.raw.remaining();
+		}
+		ByteBuffer encoded = cacheValue.encoded.get(encodingName);
+		if (encoded == null) {
+			return cacheValue.pending.contains(encodingName) ? pending : -1;
+		}
+		return encoded.remaining();
+	}
+}
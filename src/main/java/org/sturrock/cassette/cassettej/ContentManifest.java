@@ -0,0 +1,139 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes how to reassemble content which isn't stored as a single raw
+ * file. The format is:
+ * 
+ * <pre>
+ * byte   type
+ * long   length of the raw content
+ * then for chunked content:
+ *   int    number of chunks
+ *   then for each chunk:
+ *     byte[20] hash of the chunk
+ *     int      length of the chunk
+ * or for encoded content:
+ *   UTF    name of the encoding
+ * </pre>
+ */
+class ContentManifest {
+
+	/**
+	 * The content is the concatenation of the chunks.
+	 */
+	static final byte typeChunked = 1;
+
+	/**
+	 * The content is only stored in an encoded form.
+	 */
+	static final byte typeEncoded = 2;
+
+	private final byte type;
+	private final long length;
+	private final List<Hash> chunkHashes;
+	private final List<Integer> chunkLengths;
+	private final String encodingName;
+
+	ContentManifest(List<Hash> chunkHashes, List<Integer> chunkLengths) {
+		if (chunkHashes.size() != chunkLengths.size())
+			throw new IllegalArgumentException("chunkLengths");
+
+		long length = 0;
+		for (int chunkLength : chunkLengths) {
+			length += chunkLength;
+		}
+		this.type = typeChunked;
+		this.length = length;
+		this.chunkHashes = Collections.unmodifiableList(new ArrayList<Hash>(chunkHashes));
+		this.chunkLengths = Collections.unmodifiableList(new ArrayList<Integer>(chunkLengths));
+		this.encodingName = null;
+	}
+
+	ContentManifest(long length, String encodingName) {
+		if (encodingName == null)
+			throw new IllegalArgumentException("encodingName");
+
+		this.type = typeEncoded;
+		this.length = length;
+		this.chunkHashes = Collections.emptyList();
+		this.chunkLengths = Collections.emptyList();
+		this.encodingName = encodingName;
+	}
+
+	boolean isChunked() {
+		return type == typeChunked;
+	}
+
+	/**
+	 * @return The name of the encoding the content is stored in, or null if
+	 *         it is chunked.
+	 */
+	String getEncodingName() {
+		return encodingName;
+	}
+
+	/**
+	 * @return The length of the raw content
+	 */
+	long getLength() {
+		return length;
+	}
+
+	List<Hash> getChunkHashes() {
+		return chunkHashes;
+	}
+
+	List<Integer> getChunkLengths() {
+		return chunkLengths;
+	}
+
+	static ContentManifest read(Path path) throws IOException {
+		try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));) {
+			byte type = input.readByte();
+			if (type != typeChunked && type != typeEncoded) {
+				throw new IOException("Unknown manifest type " + type + " in " + path);
+			}
+			long length = input.readLong();
+			if (type == typeEncoded) {
+				return new ContentManifest(length, input.readUTF());
+			}
+			int count = input.readInt();
+			List<Hash> chunkHashes = new ArrayList<Hash>(count);
+			List<Integer> chunkLengths = new ArrayList<Integer>(count);
+			byte[] bytes = new byte[Hash.byteCount];
+			for (int i = 0; i < count; ++i) {
+				input.readFully(bytes);
+				chunkHashes.add(new Hash(bytes));
+				chunkLengths.add(input.readInt());
+			}
+			return new ContentManifest(chunkHashes, chunkLengths);
+		}
+	}
+
+	void write(Path path) throws IOException {
+		try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));) {
+			output.writeByte(type);
+			output.writeLong(length);
+			if (type == typeEncoded) {
+				output.writeUTF(encodingName);
+				return;
+			}
+			output.writeInt(chunkHashes.size());
+			for (int i = 0; i < chunkHashes.size(); ++i) {
+				output.write(chunkHashes.get(i).getBytes());
+				output.writeInt(chunkLengths.get(i));
+			}
+		}
+	}
+}
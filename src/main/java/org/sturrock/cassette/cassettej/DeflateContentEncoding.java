@@ -0,0 +1,82 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The HTTP "deflate" encoding, ie zlib format data, with a configurable
+ * compression level. Lower levels trade a little ratio for a lot of speed.
+ */
+public class DeflateContentEncoding implements ContentEncoding {
+
+	public static final String name = "deflate";
+
+	private final int level;
+
+	public DeflateContentEncoding() {
+		this(Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param level
+	 *            The compression level, 0-9 or
+	 *            {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 */
+	public DeflateContentEncoding(int level) {
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				&& level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("level");
+		this.level = level;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public OutputStream encode(OutputStream stream) throws IOException {
+		Deflater deflater = new Deflater(level);
+		return new DeflaterOutputStream(stream, deflater) {
+			@Override
+			public void close() throws IOException {
+				// We created the deflater so must release its native memory
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decode(InputStream stream) throws IOException {
+		return new InflaterInputStream(stream);
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		DeflateContentEncoding other = (DeflateContentEncoding) obj;
+		return this.getName().equals(other.getName());
+	}
+}
@@ -0,0 +1,212 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * zlib compression with a preset dictionary. Small documents which are
+ * similar to each other, eg JSON with the same keys, compress much better
+ * when the compressor starts off already knowing the strings they share.
+ * 
+ * The dictionary is stored in the content addressable store like any other
+ * content and the encoding is named after its hash, so different versions of
+ * a dictionary are different encodings and content encoded with an old one
+ * can still be read. Use {@link DictionaryTrainer} to build a dictionary and
+ * {@link #train(ContentAddressableStore, List, int)} to build and store one.
+ * 
+ * The zlib stream records a checksum of the dictionary, so decoding with the
+ * wrong one fails rather than producing garbage.
+ * 
+ * Content encoded with a dictionary can't be decoded without it, so the
+ * dictionary must outlive that content. In a file store
+ * {@link #train(ContentAddressableStore, List, int)} pins it and the
+ * {@link GarbageCollector} keeps it while any content is encoded with it.
+ * Nothing protects it in other stores, eg the shards of a
+ * {@link ContentAddressableStoreShardedImpl}, so anything that deletes
+ * content from them, including a collector run against a shard, can delete
+ * the dictionary and leave the content unreadable in that encoding.
+ */
+public class DictionaryContentEncoding implements ContentEncoding {
+
+	/**
+	 * Prefix of the name, which is followed by the hash of the dictionary.
+	 */
+	public static final String namePrefix = "deflate-";
+
+	private final Hash dictionaryHash;
+	private final byte[] dictionary;
+	private final int level;
+
+	/**
+	 * @param dictionaryHash
+	 *            The hash of the dictionary in the store
+	 * @param dictionary
+	 *            The dictionary
+	 * @param level
+	 *            The compression level, 0-9 or
+	 *            {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 */
+	public DictionaryContentEncoding(Hash dictionaryHash, byte[] dictionary, int level) {
+		if (dictionaryHash == null)
+			throw new IllegalArgumentException("dictionaryHash");
+		if (dictionary == null)
+			throw new IllegalArgumentException("dictionary");
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				&& level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("level");
+		this.dictionaryHash = dictionaryHash;
+		this.dictionary = Arrays.copyOf(dictionary, dictionary.length);
+		this.level = level;
+	}
+
+	/**
+	 * Load a dictionary from a store and register the encoding with
+	 * {@link ContentEncodingFactory}, eg when the application restarts.
+	 * 
+	 * @param store
+	 *            The store holding the dictionary
+	 * @param dictionaryHash
+	 *            The hash of the dictionary
+	 * @return The encoding, or null if the store doesn't contain the
+	 *         dictionary
+	 * @throws IOException
+	 */
+	public static DictionaryContentEncoding load(ContentAddressableStore store, Hash dictionaryHash)
+			throws IOException {
+		try (InputStream inputStream = store.read(dictionaryHash);) {
+			if (inputStream == null) {
+				return null;
+			}
+			DictionaryContentEncoding encoding = new DictionaryContentEncoding(dictionaryHash,
+					IOUtils.toByteArray(inputStream), Deflater.DEFAULT_COMPRESSION);
+			ContentEncodingFactory.register(encoding.getName(), () -> encoding);
+			return encoding;
+		}
+	}
+
+	/**
+	 * Train a dictionary from content in a store, write the dictionary to the
+	 * store and register the encoding with {@link ContentEncodingFactory}. In
+	 * a file store the dictionary is pinned, so the {@link GarbageCollector}
+	 * keeps it before any content is encoded with it. Other stores don't pin
+	 * it, see above.
+	 * 
+	 * @param store
+	 *            The store to read samples from and write the dictionary to
+	 * @param sampleHashes
+	 *            Hashes of content representative of what will be encoded
+	 * @param maxSize
+	 *            The largest dictionary to build. Anything over 32KiB is
+	 *            wasted as deflate can't refer back that far.
+	 * @return The encoding
+	 * @throws IOException
+	 */
+	public static DictionaryContentEncoding train(ContentAddressableStore store, List<Hash> sampleHashes,
+			int maxSize) throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>(sampleHashes.size());
+		for (Hash hash : sampleHashes) {
+			try (InputStream inputStream = store.read(hash);) {
+				if (inputStream != null) {
+					samples.add(IOUtils.toByteArray(inputStream));
+				}
+			}
+		}
+		byte[] dictionary = DictionaryTrainer.train(samples, maxSize);
+		Hash dictionaryHash;
+		try (InputStream inputStream = new ByteArrayInputStream(dictionary);) {
+			dictionaryHash = store.write(inputStream);
+		}
+		if (store instanceof ContentAddressableStoreFileImpl) {
+			((ContentAddressableStoreFileImpl) store).pin(dictionaryHash);
+		}
+		DictionaryContentEncoding encoding = new DictionaryContentEncoding(dictionaryHash, dictionary,
+				Deflater.DEFAULT_COMPRESSION);
+		ContentEncodingFactory.register(encoding.getName(), () -> encoding);
+		return encoding;
+	}
+
+	public Hash getDictionaryHash() {
+		return dictionaryHash;
+	}
+
+	@Override
+	public String getName() {
+		return namePrefix + dictionaryHash.getString();
+	}
+
+	@Override
+	public OutputStream encode(OutputStream stream) throws IOException {
+		Deflater deflater = new Deflater(level);
+		deflater.setDictionary(dictionary);
+		return new DeflaterOutputStream(stream, deflater) {
+			@Override
+			public void close() throws IOException {
+				// We created the deflater so must release its native memory
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decode(InputStream stream) throws IOException {
+		Inflater inflater = new Inflater();
+		return new InflaterInputStream(stream, inflater) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				// zlib only asks for the dictionary once it has read the
+				// header, at which point InflaterInputStream gives up
+				if (n == -1 && inflater.needsDictionary()) {
+					try {
+						inflater.setDictionary(dictionary);
+					} catch (IllegalArgumentException e) {
+						throw new IOException("Content was not encoded with dictionary " + dictionaryHash.getString());
+					}
+					n = super.read(b, off, len);
+				}
+				return n;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public int hashCode() {
+		return getName().hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		DictionaryContentEncoding other = (DictionaryContentEncoding) obj;
+		return this.getName().equals(other.getName());
+	}
+}
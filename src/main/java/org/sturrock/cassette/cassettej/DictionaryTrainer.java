@@ -0,0 +1,148 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Builds a preset dictionary for {@link DictionaryContentEncoding} from sample
+ * content, along the lines of the zstd "cover" algorithm.
+ * 
+ * Each sample is split into segments, and segments are scored by how many
+ * samples contain the short strings (k-mers) in them. The best segments are
+ * picked greedily, not counting k-mers already covered by a picked segment,
+ * until the dictionary is full. The best segments go at the end of the
+ * dictionary as deflate encodes nearer matches more cheaply.
+ */
+public class DictionaryTrainer {
+
+	/**
+	 * Length of the strings counted, a bit more than deflate's minimum match.
+	 */
+	private static final int k = 8;
+
+	/**
+	 * Length of the segments added to the dictionary.
+	 */
+	private static final int segmentSize = 64;
+
+	private static final class Segment implements Comparable<Segment> {
+		final byte[] sample;
+		final int offset;
+		final int length;
+		long score;
+
+		Segment(byte[] sample, int offset, int length) {
+			this.sample = sample;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return Long.compare(other.score, score);
+		}
+	}
+
+	/**
+	 * @param samples
+	 *            Content representative of what will be encoded
+	 * @param maxSize
+	 *            The largest dictionary to build
+	 * @return The dictionary, which may be shorter than maxSize if the samples
+	 *         don't have that much in common
+	 */
+	public static byte[] train(List<byte[]> samples, int maxSize) {
+		if (samples == null)
+			throw new IllegalArgumentException("samples");
+		if (maxSize < 1)
+			throw new IllegalArgumentException("maxSize");
+
+		// Count the number of samples each k-mer appears in
+		Map<Long, Integer> frequencies = new HashMap<Long, Integer>();
+		for (byte[] sample : samples) {
+			Set<Long> seen = new HashSet<Long>();
+			for (int i = 0; i + k <= sample.length; ++i) {
+				Long kmer = kmer(sample, i);
+				if (seen.add(kmer)) {
+					frequencies.merge(kmer, 1, Integer::sum);
+				}
+			}
+		}
+
+		PriorityQueue<Segment> segments = new PriorityQueue<Segment>();
+		for (byte[] sample : samples) {
+			for (int offset = 0; offset < sample.length; offset += segmentSize) {
+				Segment segment = new Segment(sample, offset, Math.min(segmentSize, sample.length - offset));
+				segment.score = score(segment, frequencies);
+				if (segment.score > 0) {
+					segments.add(segment);
+				}
+			}
+		}
+
+		// Scores only go down as k-mers are covered, so a segment whose
+		// rescored value is still at least the next best is the best.
+		List<Segment> selected = new ArrayList<Segment>();
+		int size = 0;
+		while (size < maxSize && !segments.isEmpty()) {
+			Segment segment = segments.poll();
+			long score = score(segment, frequencies);
+			if (score <= 0) {
+				continue;
+			}
+			if (!segments.isEmpty() && score < segments.peek().score) {
+				segment.score = score;
+				segments.add(segment);
+				continue;
+			}
+			selected.add(segment);
+			size += segment.length;
+			for (int i = segment.offset; i + k <= segment.offset + segment.length; ++i) {
+				frequencies.remove(kmer(segment.sample, i));
+			}
+		}
+
+		// Best last, trimming the worst if the last segment overfilled it
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(maxSize);
+		for (int i = selected.size() - 1; i >= 0; --i) {
+			Segment segment = selected.get(i);
+			dictionary.write(segment.sample, segment.offset, segment.length);
+		}
+		byte[] bytes = dictionary.toByteArray();
+		if (bytes.length > maxSize) {
+			byte[] trimmed = new byte[maxSize];
+			System.arraycopy(bytes, bytes.length - maxSize, trimmed, 0, maxSize);
+			return trimmed;
+		}
+		return bytes;
+	}
+
+	private static long kmer(byte[] bytes, int offset) {
+		long kmer = 0;
+		for (int i = 0; i < k; ++i) {
+			kmer = (kmer << 8) | (bytes[offset + i] & 0xff);
+		}
+		return kmer;
+	}
+
+	/**
+	 * Sum of the frequencies of the k-mers in the segment which appear in more
+	 * than one sample, so strings unique to one sample don't count.
+	 */
+	private static long score(Segment segment, Map<Long, Integer> frequencies) {
+		long score = 0;
+		for (int i = segment.offset; i + k <= segment.offset + segment.length; ++i) {
+			Integer frequency = frequencies.get(kmer(segment.sample, i));
+			if (frequency != null && frequency > 1) {
+				score += frequency;
+			}
+		}
+		return score;
+	}
+}
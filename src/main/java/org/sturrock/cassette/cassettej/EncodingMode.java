@@ -0,0 +1,20 @@
+package org.sturrock.cassette.cassettej;
+
+/**
+ * When a store produces the encodings requested in a write.
+ */
+public enum EncodingMode {
+	/**
+	 * Within the write, before it returns. The default.
+	 */
+	SYNC,
+	/**
+	 * On a bounded pool of background threads once the raw content has been
+	 * written. If the pool falls behind, writers encode their own content.
+	 */
+	BACKGROUND,
+	/**
+	 * On the first read of the encoding.
+	 */
+	LAZY
+}
@@ -0,0 +1,33 @@
+package org.sturrock.cassette.cassettej;
+
+/**
+ * Decides whether it is worth producing an encoding of some content, eg to
+ * avoid spending CPU gzipping content that is already compressed. Set on a
+ * store with
+ * {@link ContentAddressableStoreImpl#setEncodingPolicy(EncodingPolicy)}.
+ * Encodings that are skipped are not stored, so
+ * {@link ContentAddressableStore#contains(Hash, ContentEncoding)} reports them
+ * as absent.
+ */
+public interface EncodingPolicy {
+
+	/**
+	 * @return The number of bytes from the start of the content the policy
+	 *         wants to see
+	 */
+	int getSampleSize();
+
+	/**
+	 * @param encoding
+	 *            The requested encoding
+	 * @param sample
+	 *            The start of the content
+	 * @param sampleLength
+	 *            The number of bytes of the sample to use, which is less than
+	 *            the sample size if the content is short
+	 * @param contentLength
+	 *            The length of the whole content
+	 * @return whether to produce the encoding
+	 */
+	boolean shouldEncode(ContentEncoding encoding, byte[] sample, int sampleLength, long contentLength);
+}
@@ -0,0 +1,272 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Produces the encodings of content according to an {@link EncodingMode}.
+ * 
+ * Stores record which encodings are pending alongside the content itself, so
+ * that <code>contains</code> reports them the same after a restart, and only
+ * call {@link #await(Hash, ContentEncoding)} for an encoding their record says
+ * is pending. The scheduler only tracks the work that is queued or running,
+ * so a reader that wants a pending encoding runs the work itself if no
+ * background thread has started on it yet: lazy encodings are produced on
+ * first read and background encodings are never waited on behind a queue.
+ */
+final class EncodingScheduler implements AutoCloseable {
+
+	/**
+	 * Writes encodings of content that is already in the store, and clears
+	 * the store's record that they are pending.
+	 */
+	interface Encoder {
+		void encode(Hash hash, List<ContentEncoding> encodings) throws IOException;
+	}
+
+	private class PendingEncoding extends FutureTask<Void> {
+		private final Hash hash;
+		private final List<ContentEncoding> encodings;
+		/**
+		 * Set when a reader is waiting for the result and so will see any
+		 * failure.
+		 */
+		private volatile boolean awaited = false;
+
+		PendingEncoding(Hash hash, List<ContentEncoding> encodings) {
+			super(() -> {
+				encoder.encode(hash, encodings);
+				return null;
+			});
+			this.hash = hash;
+			this.encodings = encodings;
+		}
+
+		/**
+		 * Add this task for each of its encodings that doesn't already have
+		 * one.
+		 * 
+		 * @return whether it was added for any of them
+		 */
+		boolean addKeys() {
+			boolean[] added = { false };
+			queued.compute(hash, (key, byName) -> {
+				if (byName == null) {
+					byName = new ConcurrentHashMap<String, PendingEncoding>();
+				}
+				for (ContentEncoding encoding : encodings) {
+					added[0] |= byName.putIfAbsent(encoding.getName(), this) == null;
+				}
+				return byName;
+			});
+			return added[0];
+		}
+
+		void removeKeys() {
+			queued.computeIfPresent(hash, (key, byName) -> {
+				for (ContentEncoding encoding : encodings) {
+					byName.remove(encoding.getName(), this);
+				}
+				return byName.isEmpty() ? null : byName;
+			});
+		}
+
+		@Override
+		protected void done() {
+			removeKeys();
+			if (isCancelled() || awaited) {
+				return;
+			}
+			try {
+				get();
+			} catch (ExecutionException e) {
+				// Nobody is waiting for a background encoding so report the
+				// failure the same way an uncaught exception would be.
+				Thread thread = Thread.currentThread();
+				thread.getUncaughtExceptionHandler().uncaughtException(thread, e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private final EncodingMode mode;
+	private final Encoder encoder;
+	private final ThreadPoolExecutor executor;
+	/**
+	 * The work queued or running, by hash and then encoding name. Bounded by
+	 * the background queue plus the readers producing encodings themselves.
+	 */
+	private final ConcurrentMap<Hash, ConcurrentMap<String, PendingEncoding>> queued = new ConcurrentHashMap<Hash, ConcurrentMap<String, PendingEncoding>>();
+
+	/**
+	 * @param mode
+	 *            When to produce encodings
+	 * @param threads
+	 *            Size of the background pool
+	 * @param queueSize
+	 *            Number of writes that can be waiting for the background pool
+	 *            before writers have to encode their own content
+	 * @param encoder
+	 *            Does the actual encoding
+	 */
+	EncodingScheduler(EncodingMode mode, int threads, int queueSize, Encoder encoder) {
+		if (mode == null)
+			throw new IllegalArgumentException("mode");
+		if (encoder == null)
+			throw new IllegalArgumentException("encoder");
+		this.mode = mode;
+		this.encoder = encoder;
+		if (mode == EncodingMode.BACKGROUND) {
+			if (threads < 1)
+				throw new IllegalArgumentException("threads");
+			if (queueSize < 1)
+				throw new IllegalArgumentException("queueSize");
+			AtomicInteger threadNumber = new AtomicInteger();
+			executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize), runnable -> {
+						Thread thread = new Thread(runnable, "CassetteJ-encoder-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		} else {
+			executor = null;
+		}
+	}
+
+	/**
+	 * Create a scheduler from a store's properties.
+	 */
+	static EncodingScheduler create(Properties properties, String modePropertyName, String threadsPropertyName,
+			String queueSizePropertyName, Encoder encoder) {
+		EncodingMode mode = EncodingMode.valueOf(properties.getProperty(modePropertyName, "SYNC").toUpperCase());
+		int threads = Integer.parseInt(properties.getProperty(threadsPropertyName,
+				Integer.toString(Runtime.getRuntime().availableProcessors())));
+		int queueSize = Integer.parseInt(properties.getProperty(queueSizePropertyName, "1000"));
+		return new EncodingScheduler(mode, threads, queueSize, encoder);
+	}
+
+	EncodingMode getMode() {
+		return mode;
+	}
+
+	/**
+	 * Produce encodings of some content now or later depending on the mode.
+	 * Unless the mode is SYNC the store must already have recorded them as
+	 * pending.
+	 * 
+	 * @throws IOException
+	 *             if encoding synchronously and it fails
+	 */
+	void schedule(Hash hash, Collection<ContentEncoding> encodings) throws IOException {
+		List<ContentEncoding> toEncode = new ArrayList<ContentEncoding>(encodings);
+		if (toEncode.isEmpty()) {
+			return;
+		}
+		if (mode == EncodingMode.SYNC) {
+			encoder.encode(hash, toEncode);
+			return;
+		}
+		if (mode == EncodingMode.LAZY) {
+			// Produced when first read
+			return;
+		}
+
+		// The encoder skips anything that already exists, so if another
+		// write has asked for some of the same encodings they are at worst
+		// produced twice.
+		PendingEncoding task = new PendingEncoding(hash, toEncode);
+		if (task.addKeys()) {
+			executor.execute(task);
+		}
+	}
+
+	/**
+	 * Produce an encoding the store has recorded as pending now, or wait for
+	 * it if another thread is already producing it.
+	 * 
+	 * @throws IOException
+	 *             if producing the encoding fails
+	 */
+	void await(Hash hash, ContentEncoding encoding) throws IOException {
+		PendingEncoding task = getQueued(hash, encoding);
+		if (task == null) {
+			// Lazy, or queued by a store that has since been closed
+			PendingEncoding created = new PendingEncoding(hash, Collections.singletonList(encoding));
+			task = created.addKeys() ? created : getQueued(hash, encoding);
+			if (task == null) {
+				// Finished between looking and adding
+				return;
+			}
+		}
+		task.awaited = true;
+		task.run();
+		try {
+			task.get();
+		} catch (CancellationException e) {
+			// Content was deleted or the store closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private PendingEncoding getQueued(Hash hash, ContentEncoding encoding) {
+		Map<String, PendingEncoding> byName = queued.get(hash);
+		return byName == null ? null : byName.get(encoding.getName());
+	}
+
+	/**
+	 * Forget any encodings of the content that haven't been started.
+	 */
+	void cancel(Hash hash) {
+		Map<String, PendingEncoding> byName = queued.remove(hash);
+		if (byName != null) {
+			for (PendingEncoding task : byName.values()) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Finish any background encodings that have been queued. Lazy encodings
+	 * stay pending in the store until they are read.
+	 */
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				executor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+		}
+		for (Map<String, PendingEncoding> byName : queued.values()) {
+			for (PendingEncoding task : byName.values()) {
+				task.cancel(false);
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks using the FastCDC algorithm.
+ * Boundaries are chosen by a rolling Gear hash of the content itself, so an
+ * insertion or deletion only changes the chunks around it and the rest of the
+ * content splits into exactly the same chunks as before.
+ * 
+ * See Xia et al, "FastCDC: a Fast and Efficient Content-Defined Chunking
+ * Approach for Data Deduplication", USENIX ATC 2016. This uses normalised
+ * chunking, ie a harder boundary condition before the average size and an
+ * easier one after it, to keep chunk sizes close to the average.
+ */
+public class FastCDCChunker {
+
+	/**
+	 * Random value per byte for the Gear hash. Generated from a fixed seed as
+	 * changing it would change every chunk boundary and so lose all
+	 * deduplication against content that is already stored.
+	 */
+	private static final long[] gear = new long[256];
+	static {
+		Random random = new Random(0x4361737365747465L);
+		for (int i = 0; i < gear.length; ++i) {
+			gear[i] = random.nextLong();
+		}
+	}
+
+	private final InputStream stream;
+	private final int minSize;
+	private final int avgSize;
+	private final int maxSize;
+	private final long maskS;
+	private final long maskL;
+
+	private final byte[] buffer;
+	private int start = 0;
+	private int end = 0;
+	private boolean eof = false;
+
+	/**
+	 * Create a chunker with minimum and maximum chunk sizes of a quarter and
+	 * eight times the average.
+	 * 
+	 * @param stream
+	 *            The content to chunk
+	 * @param avgSize
+	 *            The desired average chunk size
+	 */
+	public FastCDCChunker(InputStream stream, int avgSize) {
+		this(stream, avgSize / 4, avgSize, avgSize * 8);
+	}
+
+	/**
+	 * @param stream
+	 *            The content to chunk
+	 * @param minSize
+	 *            The smallest chunk, other than the last
+	 * @param avgSize
+	 *            The desired average chunk size
+	 * @param maxSize
+	 *            The largest chunk
+	 */
+	public FastCDCChunker(InputStream stream, int minSize, int avgSize, int maxSize) {
+		if (stream == null)
+			throw new IllegalArgumentException("stream");
+		if (minSize < 1 || avgSize <= minSize || maxSize <= avgSize)
+			throw new IllegalArgumentException("Chunk sizes must satisfy 0 < minSize < avgSize < maxSize");
+
+		this.stream = stream;
+		this.minSize = minSize;
+		this.avgSize = avgSize;
+		this.maxSize = maxSize;
+		int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+		maskS = mask(bits + 2);
+		maskL = mask(Math.max(1, bits - 2));
+		buffer = new byte[maxSize];
+	}
+
+	/**
+	 * A mask of the top bits of the hash, which depend on the most bytes.
+	 */
+	private static long mask(int bits) {
+		return -1L << (64 - bits);
+	}
+
+	/**
+	 * Read the next chunk from the stream.
+	 * 
+	 * @return The next chunk, or null at the end of the stream.
+	 * @throws IOException
+	 */
+	public byte[] next() throws IOException {
+		fill();
+		int available = end - start;
+		if (available == 0) {
+			return null;
+		}
+		int length = cut(start, available);
+		byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+		start += length;
+		return chunk;
+	}
+
+	/**
+	 * Ensure there is a maximum size chunk in the buffer, unless the stream
+	 * has ended.
+	 */
+	private void fill() throws IOException {
+		if (eof || end - start >= maxSize) {
+			return;
+		}
+		System.arraycopy(buffer, start, buffer, 0, end - start);
+		end -= start;
+		start = 0;
+		while (end < buffer.length) {
+			int n = stream.read(buffer, end, buffer.length - end);
+			if (n == -1) {
+				eof = true;
+				break;
+			}
+			end += n;
+		}
+	}
+
+	/**
+	 * @return The length of the chunk starting at offset
+	 */
+	private int cut(int offset, int length) {
+		if (length <= minSize) {
+			return length;
+		}
+		int normalSize = Math.min(avgSize, length);
+		long hash = 0;
+		int i = minSize;
+		for (; i < normalSize; ++i) {
+			hash = (hash << 1) + gear[buffer[offset + i] & 0xFF];
+			if ((hash & maskS) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < length; ++i) {
+			hash = (hash << 1) + gear[buffer[offset + i] & 0xFF];
+			if ((hash & maskL) == 0) {
+				return i + 1;
+			}
+		}
+		return length;
+	}
+}
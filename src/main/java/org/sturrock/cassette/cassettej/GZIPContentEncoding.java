@@ -3,7 +3,6 @@ package org.sturrock.cassette.cassettej;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -17,7 +16,7 @@ public class GZIPContentEncoding implements ContentEncoding {
 	}
 
 	@Override
-	public DeflaterOutputStream encode(OutputStream stream) throws IOException {
+	public OutputStream encode(OutputStream stream) throws IOException {
 		return new GZIPOutputStream(stream);
 	}
 
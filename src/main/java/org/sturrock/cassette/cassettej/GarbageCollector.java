@@ -0,0 +1,382 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mark and sweep garbage collection for a file store. Content is kept if it
+ * is pinned with {@link ContentAddressableStoreFileImpl#pin(Hash)}, reachable
+ * from pinned content through the {@link ReferenceResolver}, or was written
+ * within the grace period. Everything else is deleted, so only use a
+ * collector on a store where everything the application needs is reachable
+ * from a pin. Chunks no longer used by any content are deleted too.
+ * Dictionaries which content is encoded with, or is waiting to be, with a
+ * {@link DictionaryContentEncoding} are kept as if they were pinned.
+ * 
+ * A collection works through the store one prefix directory at a time,
+ * pausing between directories so that it only uses a fraction of the time
+ * (the duty cycle) and deleting no faster than a maximum rate, to leave the
+ * disk to foreground reads and writes.
+ * 
+ * Writing content which is already in the store, or pinning it, updates its
+ * timestamp under a lock that the collector also takes to check the
+ * timestamp and delete, so content a writer has just been told is in the
+ * store is never deleted from under it. Content written since a collection
+ * started is never deleted by that collection. Applications must write or
+ * pin content before storing anything that refers to it.
+ * 
+ * Those locks belong to the store instance, so while a collector runs no
+ * other instance, in this process or another, may use the same root.
+ */
+public class GarbageCollector implements AutoCloseable {
+
+	/**
+	 * Name of the property specifying how long content is kept after it was
+	 * last written, in milliseconds, whether or not it is reachable. Defaults
+	 * to an hour.
+	 */
+	public final static String gracePeriodPropertyName = GarbageCollector.class.getName() + ".gracePeriod";
+
+	/**
+	 * Name of the property specifying the time between the end of one
+	 * background collection and the start of the next, in milliseconds.
+	 * Defaults to an hour.
+	 */
+	public final static String intervalPropertyName = GarbageCollector.class.getName() + ".interval";
+
+	/**
+	 * Name of the property specifying the fraction of the time a collection
+	 * spends working rather than paused. Defaults to 0.1.
+	 */
+	public final static String dutyCyclePropertyName = GarbageCollector.class.getName() + ".dutyCycle";
+
+	/**
+	 * Name of the property specifying the most content and chunks deleted
+	 * per second. Defaults to 1000.
+	 */
+	public final static String maxDeletesPerSecondPropertyName = GarbageCollector.class.getName()
+			+ ".maxDeletesPerSecond";
+
+	/**
+	 * The number of hashes marked between pauses.
+	 */
+	private static final int markBatchSize = 100;
+
+	/**
+	 * What a collection found and deleted.
+	 */
+	public static class Result {
+		private long marked;
+		private long examined;
+		private long deleted;
+		private long chunksExamined;
+		private long chunksDeleted;
+		private long chunkBytesDeleted;
+		private long durationNanos;
+
+		/**
+		 * @return The number of hashes reachable from the roots
+		 */
+		public long getMarked() {
+			return marked;
+		}
+
+		/**
+		 * @return The number of pieces of content looked at
+		 */
+		public long getExamined() {
+			return examined;
+		}
+
+		/**
+		 * @return The number of pieces of content deleted
+		 */
+		public long getDeleted() {
+			return deleted;
+		}
+
+		public long getChunksExamined() {
+			return chunksExamined;
+		}
+
+		public long getChunksDeleted() {
+			return chunksDeleted;
+		}
+
+		public long getChunkBytesDeleted() {
+			return chunkBytesDeleted;
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("marked=%d examined=%d deleted=%d chunksExamined=%d chunksDeleted=%d seconds=%.3f",
+					marked, examined, deleted, chunksExamined, chunksDeleted, durationNanos / 1e9);
+		}
+	}
+
+	private final ContentAddressableStoreFileImpl store;
+	private final ReferenceResolver referenceResolver;
+	private final long gracePeriod;
+	private final long interval;
+	private final double dutyCycle;
+	private final double maxDeletesPerSecond;
+
+	private ScheduledExecutorService executor;
+	private volatile boolean closed;
+	private volatile Result lastResult;
+	private volatile IOException lastException;
+
+	// State of the running collection
+	private final Object collectionLock = new Object();
+	private long collectionStart;
+	private long deletes;
+
+	/**
+	 * @param store
+	 *            The store to collect
+	 * @param referenceResolver
+	 *            Finds the content referred to by content, or null if only
+	 *            pinned content itself is reachable
+	 * @param properties
+	 *            <code>gracePeriodPropertyName</code>,
+	 *            <code>intervalPropertyName</code>,
+	 *            <code>dutyCyclePropertyName</code> and
+	 *            <code>maxDeletesPerSecondPropertyName</code>, all optional
+	 */
+	public GarbageCollector(ContentAddressableStoreFileImpl store, ReferenceResolver referenceResolver,
+			Properties properties) {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		this.store = store;
+		this.referenceResolver = referenceResolver;
+		gracePeriod = Long.parseLong(properties.getProperty(gracePeriodPropertyName, "3600000"));
+		interval = Long.parseLong(properties.getProperty(intervalPropertyName, "3600000"));
+		dutyCycle = Double.parseDouble(properties.getProperty(dutyCyclePropertyName, "0.1"));
+		maxDeletesPerSecond = Double.parseDouble(properties.getProperty(maxDeletesPerSecondPropertyName, "1000"));
+		if (gracePeriod < 0)
+			throw new IllegalArgumentException(gracePeriodPropertyName);
+		if (interval <= 0)
+			throw new IllegalArgumentException(intervalPropertyName);
+		if (dutyCycle <= 0 || dutyCycle > 1)
+			throw new IllegalArgumentException(dutyCyclePropertyName);
+		if (maxDeletesPerSecond <= 0)
+			throw new IllegalArgumentException(maxDeletesPerSecondPropertyName);
+	}
+
+	/**
+	 * Start collecting in the background, once every interval.
+	 */
+	public synchronized void start() {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-gc");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				collect();
+			} catch (IOException e) {
+				lastException = e;
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The result of the last collection to finish, or null if none
+	 *         have
+	 */
+	public Result getLastResult() {
+		return lastResult;
+	}
+
+	/**
+	 * @return The exception which stopped the last background collection
+	 *         that failed, or null if none have
+	 */
+	public IOException getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Run a complete collection now, in the calling thread. Only one
+	 * collection runs at a time.
+	 */
+	public Result collect() throws IOException {
+		synchronized (collectionLock) {
+			Result result = new Result();
+			long start = System.nanoTime();
+			collectionStart = start;
+			deletes = 0;
+			long cutoff = System.currentTimeMillis() - gracePeriod;
+
+			Set<Hash> marked = mark(result);
+			sweep(marked, cutoff, result);
+			sweepChunks(cutoff, result);
+
+			result.durationNanos = System.nanoTime() - start;
+			lastResult = result;
+			return result;
+		}
+	}
+
+	private Set<Hash> mark(Result result) throws IOException {
+		Set<Hash> marked = new HashSet<Hash>();
+		Deque<Hash> pending = new ArrayDeque<Hash>(store.getRoots());
+		pending.addAll(findDictionaries());
+		while (!pending.isEmpty()) {
+			long start = System.nanoTime();
+			for (int i = 0; i < markBatchSize && !pending.isEmpty(); i++) {
+				Hash hash = pending.pop();
+				// Not counted as a foreground operation, which the Scrubber
+				// would make way for
+				if (marked.add(hash) && referenceResolver != null && store.doContains(hash)) {
+					pending.addAll(referenceResolver.getReferences(store, hash));
+				}
+			}
+			pause(start);
+		}
+		result.marked = marked.size();
+		return marked;
+	}
+
+	/**
+	 * @return The dictionaries which content is encoded with, or is to be
+	 */
+	private Set<Hash> findDictionaries() throws IOException {
+		Set<Hash> dictionaries = new HashSet<Hash>();
+		List<Path> directories = store.getPrefixDirectories(store.getRootPath());
+		directories.addAll(store.getPrefixDirectories(store.getPendingPath()));
+		for (Path directory : directories) {
+			long start = System.nanoTime();
+			store.listDictionaries(directory, dictionaries);
+			pause(start);
+		}
+		return dictionaries;
+	}
+
+	private void sweep(Set<Hash> marked, long cutoff, Result result) throws IOException {
+		for (Path directory : store.getPrefixDirectories(store.getRootPath())) {
+			long start = System.nanoTime();
+			List<Hash> hashes = new ArrayList<Hash>();
+			store.listHashes(directory, hashes);
+			for (Hash hash : hashes) {
+				result.examined++;
+				if (!marked.contains(hash) && store.deleteIfUnused(hash, cutoff)) {
+					result.deleted++;
+					limitDeletes();
+				}
+			}
+			pause(start);
+		}
+	}
+
+	private void sweepChunks(long cutoff, Result result) throws IOException {
+		List<Path> chunkDirectories = store.getPrefixDirectories(store.getChunksPath());
+		if (chunkDirectories.isEmpty()) {
+			return;
+		}
+
+		// Find the chunks the content left after the sweep uses. Chunks
+		// reused or written since the collection started are newer than the
+		// cutoff, so content written from now on doesn't need to be seen.
+		Set<Hash> used = new HashSet<Hash>();
+		for (Path directory : store.getPrefixDirectories(store.getRootPath())) {
+			long start = System.nanoTime();
+			List<Hash> hashes = new ArrayList<Hash>();
+			store.listHashes(directory, hashes);
+			for (Hash hash : hashes) {
+				store.addChunks(hash, used);
+			}
+			pause(start);
+		}
+
+		for (Path directory : chunkDirectories) {
+			long start = System.nanoTime();
+			List<Hash> chunks = new ArrayList<Hash>();
+			store.listChunks(directory, chunks);
+			for (Hash chunk : chunks) {
+				result.chunksExamined++;
+				if (used.contains(chunk)) {
+					continue;
+				}
+				long length = store.deleteChunkIfUnused(chunk, cutoff);
+				if (length != -1) {
+					result.chunksDeleted++;
+					result.chunkBytesDeleted += length;
+					limitDeletes();
+				}
+			}
+			pause(start);
+		}
+	}
+
+	/**
+	 * Pause after a piece of work for long enough to keep to the duty cycle.
+	 */
+	private void pause(long workStart) throws IOException {
+		long work = System.nanoTime() - workStart;
+		sleep((long) (work * (1 - dutyCycle) / dutyCycle));
+	}
+
+	/**
+	 * Pause if deleting faster than the maximum rate.
+	 */
+	private void limitDeletes() throws IOException {
+		deletes++;
+		long due = collectionStart + (long) (deletes * 1e9 / maxDeletesPerSecond);
+		sleep(due - System.nanoTime());
+	}
+
+	private void sleep(long nanos) throws IOException {
+		if (closed) {
+			throw new InterruptedIOException("Garbage collector closed");
+		}
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Stop collecting in the background. A collection in progress stops at
+	 * its next pause.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.Collections;
+import java.util.Set;
+
+import org.infinispan.commons.marshall.AbstractExternalizer;
+
+/**
+ * Marshalls a Hash as its raw bytes only, with no class metadata. Used as the
+ * key marshaller for ContentAddressableStoreInfinispanImpl.
+ */
+class HashExternalizer extends AbstractExternalizer<Hash> {
+
+	private static final long serialVersionUID = -2410925412306147129L;
+
+	/**
+	 * Externalizer id. Must be unique within the cache manager and outside the
+	 * ranges reserved by Infinispan.
+	 */
+	public static final int id = 4780;
+
+	@Override
+	public Set<Class<? extends Hash>> getTypeClasses() {
+		return Collections.<Class<? extends Hash>> singleton(Hash.class);
+	}
+
+	@Override
+	public Integer getId() {
+		return id;
+	}
+
+	@Override
+	public void writeObject(ObjectOutput output, Hash hash) throws IOException {
+		output.write(hash.getBytes());
+	}
+
+	@Override
+	public Hash readObject(ObjectInput input) throws IOException {
+		byte[] bytes = new byte[Hash.byteCount];
+		input.readFully(bytes);
+		return new Hash(bytes);
+	}
+}
@@ -0,0 +1,35 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+
+/**
+ * Thrown when content written with
+ * {@link ContentAddressableStore#write(Hash, java.io.InputStream, java.util.List)}
+ * doesn't have the hash the caller gave for it. Nothing is stored.
+ */
+public class HashMismatchException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final Hash expected;
+	private final Hash actual;
+
+	public HashMismatchException(Hash expected, Hash actual) {
+		super("Content has hash " + actual.getString() + " rather than " + expected.getString());
+		this.expected = expected;
+		this.actual = actual;
+	}
+
+	/**
+	 * @return The hash the caller gave
+	 */
+	public Hash getExpected() {
+		return expected;
+	}
+
+	/**
+	 * @return The hash of the content
+	 */
+	public Hash getActual() {
+		return actual;
+	}
+}
@@ -0,0 +1,306 @@
+package org.sturrock.cassette.cassettej;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps {@link StoreMetrics} in memory and exposes them as MXBeans: one for
+ * the store named
+ * <code>org.sturrock.cassette.cassettej:type=ContentAddressableStore,name=&lt;name&gt;</code>
+ * and one per operation with <code>,operation=&lt;operation&gt;</code> added.
+ * 
+ * <pre>
+ * JmxStoreMetrics metrics = new JmxStoreMetrics("images");
+ * metrics.register();
+ * store.setMetrics(metrics);
+ * </pre>
+ */
+public class JmxStoreMetrics implements StoreMetrics, JmxStoreMetricsMXBean {
+
+	public static final String domain = "org.sturrock.cassette.cassettej";
+
+	/**
+	 * Latency and counts for one operation.
+	 */
+	public static class OperationStatistics implements OperationStatisticsMXBean {
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final LongAdder failures = new LongAdder();
+		private final LongAdder inFlight = new LongAdder();
+
+		/**
+		 * @return The latencies of the completed operations
+		 */
+		public LatencyHistogram getHistogram() {
+			return histogram;
+		}
+
+		@Override
+		public long getCount() {
+			return histogram.getCount();
+		}
+
+		@Override
+		public long getFailures() {
+			return failures.sum();
+		}
+
+		@Override
+		public long getInFlight() {
+			return inFlight.sum();
+		}
+
+		@Override
+		public double getMeanMicros() {
+			return histogram.getMean() / 1000;
+		}
+
+		@Override
+		public double getP50Micros() {
+			return histogram.getPercentile(50) / 1000.0;
+		}
+
+		@Override
+		public double getP99Micros() {
+			return histogram.getPercentile(99) / 1000.0;
+		}
+
+		@Override
+		public double getP999Micros() {
+			return histogram.getPercentile(99.9) / 1000.0;
+		}
+
+		@Override
+		public double getMaxMicros() {
+			return histogram.getMax() / 1000.0;
+		}
+	}
+
+	private final String name;
+	private final Map<StoreOperation, OperationStatistics> operations = new EnumMap<StoreOperation, OperationStatistics>(
+			StoreOperation.class);
+	private final LongAdder contentAdded = new LongAdder();
+	private final ConcurrentMap<String, LongAdder> bytesIn = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> bytesOut = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> encodedBytes = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> encodingCpuNanos = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> encodingsSkipped = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> skippedBytes = new ConcurrentHashMap<String, LongAdder>();
+
+	private MBeanServer mBeanServer;
+
+	/**
+	 * @param name
+	 *            The name of the store in the JMX object names
+	 */
+	public JmxStoreMetrics(String name) {
+		if (name == null || name.isEmpty())
+			throw new IllegalArgumentException("name");
+		this.name = name;
+		for (StoreOperation operation : StoreOperation.values()) {
+			operations.put(operation, new OperationStatistics());
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Register the MXBeans with the platform MBean server.
+	 */
+	public void register() throws JMException {
+		register(ManagementFactory.getPlatformMBeanServer());
+	}
+
+	/**
+	 * Register the MXBeans with an MBean server. They can be registered with
+	 * one server at a time.
+	 */
+	public synchronized void register(MBeanServer mBeanServer) throws JMException {
+		if (this.mBeanServer != null)
+			throw new IllegalStateException("Already registered");
+		mBeanServer.registerMBean(this, getObjectName());
+		try {
+			for (Map.Entry<StoreOperation, OperationStatistics> entry : operations.entrySet()) {
+				mBeanServer.registerMBean(entry.getValue(), getObjectName(entry.getKey()));
+			}
+		} catch (JMException e) {
+			unregister(mBeanServer);
+			throw e;
+		}
+		this.mBeanServer = mBeanServer;
+	}
+
+	/**
+	 * Unregister the MXBeans, if they are registered.
+	 */
+	public synchronized void unregister() throws JMException {
+		if (mBeanServer != null) {
+			unregister(mBeanServer);
+			mBeanServer = null;
+		}
+	}
+
+	private void unregister(MBeanServer mBeanServer) throws JMException {
+		if (mBeanServer.isRegistered(getObjectName()))
+			mBeanServer.unregisterMBean(getObjectName());
+		for (StoreOperation operation : StoreOperation.values()) {
+			if (mBeanServer.isRegistered(getObjectName(operation)))
+				mBeanServer.unregisterMBean(getObjectName(operation));
+		}
+	}
+
+	public ObjectName getObjectName() throws JMException {
+		return new ObjectName(domain + ":type=ContentAddressableStore,name=" + ObjectName.quote(name));
+	}
+
+	public ObjectName getObjectName(StoreOperation operation) throws JMException {
+		return new ObjectName(domain + ":type=ContentAddressableStore,name=" + ObjectName.quote(name) + ",operation="
+				+ operation.name().toLowerCase());
+	}
+
+	/**
+	 * @return The statistics for an operation
+	 */
+	public OperationStatistics getOperation(StoreOperation operation) {
+		return operations.get(operation);
+	}
+
+	@Override
+	public void operationStarted(StoreOperation operation) {
+		operations.get(operation).inFlight.increment();
+	}
+
+	@Override
+	public void operationCompleted(StoreOperation operation, long nanos, boolean failed) {
+		OperationStatistics statistics = operations.get(operation);
+		statistics.inFlight.decrement();
+		statistics.histogram.record(nanos);
+		if (failed) {
+			statistics.failures.increment();
+		}
+	}
+
+	@Override
+	public void contentAdded() {
+		contentAdded.increment();
+	}
+
+	@Override
+	public void bytesIn(String encodingName, long bytes) {
+		add(bytesIn, encodingName, bytes);
+	}
+
+	@Override
+	public void bytesOut(String encodingName, long bytes) {
+		add(bytesOut, encodingName, bytes);
+	}
+
+	@Override
+	public void encoded(String encodingName, long rawBytes, long cpuNanos) {
+		add(encodedBytes, encodingName, rawBytes);
+		add(encodingCpuNanos, encodingName, cpuNanos);
+	}
+
+	@Override
+	public void encodingSkipped(String encodingName, long rawBytes) {
+		add(encodingsSkipped, encodingName, 1);
+		add(skippedBytes, encodingName, rawBytes);
+	}
+
+	private static void add(ConcurrentMap<String, LongAdder> counters, String encodingName, long value) {
+		LongAdder counter = counters.get(encodingName);
+		if (counter == null) {
+			counter = counters.computeIfAbsent(encodingName, k -> new LongAdder());
+		}
+		counter.add(value);
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentMap<String, LongAdder> counters, TimeUnit unit) {
+		Map<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			long value = entry.getValue().sum();
+			snapshot.put(entry.getKey(), unit == null ? value : unit.toMillis(value));
+		}
+		return snapshot;
+	}
+
+	@Override
+	public long getWrites() {
+		return operations.get(StoreOperation.WRITE).getCount() + operations.get(StoreOperation.WRITE_ENCODED).getCount()
+				+ operations.get(StoreOperation.WRITE_EXPECTED).getCount();
+	}
+
+	@Override
+	public long getContentAdded() {
+		return contentAdded.sum();
+	}
+
+	@Override
+	public double getDedupeRatio() {
+		long writes = getWrites();
+		if (writes == 0) {
+			return 0;
+		}
+		return Math.max(0, 1 - (double) getContentAdded() / writes);
+	}
+
+	@Override
+	public long getInFlight() {
+		long inFlight = 0;
+		for (OperationStatistics statistics : operations.values()) {
+			inFlight += statistics.getInFlight();
+		}
+		return inFlight;
+	}
+
+	@Override
+	public Map<String, Long> getBytesIn() {
+		return snapshot(bytesIn, null);
+	}
+
+	@Override
+	public Map<String, Long> getBytesOut() {
+		return snapshot(bytesOut, null);
+	}
+
+	@Override
+	public Map<String, Long> getEncodedBytes() {
+		return snapshot(encodedBytes, null);
+	}
+
+	@Override
+	public Map<String, Long> getEncodingCpuMillis() {
+		return snapshot(encodingCpuNanos, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public Map<String, Long> getEncodingsSkipped() {
+		return snapshot(encodingsSkipped, null);
+	}
+
+	@Override
+	public Map<String, Long> getEstimatedCpuMillisSaved() {
+		Map<String, Long> saved = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : skippedBytes.entrySet()) {
+			LongAdder bytes = encodedBytes.get(entry.getKey());
+			LongAdder nanos = encodingCpuNanos.get(entry.getKey());
+			if (bytes == null || nanos == null || bytes.sum() == 0) {
+				continue;
+			}
+			double nanosPerByte = (double) nanos.sum() / bytes.sum();
+			saved.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis((long) (nanosPerByte * entry.getValue().sum())));
+		}
+		return saved;
+	}
+}
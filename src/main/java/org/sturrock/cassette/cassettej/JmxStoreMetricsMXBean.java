@@ -0,0 +1,59 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.Map;
+
+/**
+ * JMX view of a store's traffic, registered by {@link JmxStoreMetrics}. Maps
+ * are keyed by encoding name, with raw content as
+ * {@link StoreMetrics#IDENTITY}.
+ */
+public interface JmxStoreMetricsMXBean {
+
+	/**
+	 * @return The number of writes, including writes of encoded content and
+	 *         of content given with its hash
+	 */
+	long getWrites();
+
+	/**
+	 * @return The number of writes which added content to the store
+	 */
+	long getContentAdded();
+
+	/**
+	 * @return The fraction of writes whose content was already in the store
+	 */
+	double getDedupeRatio();
+
+	/**
+	 * @return The number of operations currently running
+	 */
+	long getInFlight();
+
+	Map<String, Long> getBytesIn();
+
+	Map<String, Long> getBytesOut();
+
+	/**
+	 * @return The raw bytes encoded by the store
+	 */
+	Map<String, Long> getEncodedBytes();
+
+	/**
+	 * @return The CPU time spent encoding
+	 */
+	Map<String, Long> getEncodingCpuMillis();
+
+	/**
+	 * @return The number of encodings the store's {@link EncodingPolicy}
+	 *         skipped
+	 */
+	Map<String, Long> getEncodingsSkipped();
+
+	/**
+	 * @return An estimate of the CPU time the skipped encodings would have
+	 *         taken, at the rate the store has produced each encoding. Only
+	 *         encodings the store has produced are included.
+	 */
+	Map<String, Long> getEstimatedCpuMillisSaved();
+}
@@ -0,0 +1,102 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock free histogram of durations in nanoseconds. Each power
+ * of two is split into 8 buckets, so percentiles are accurate to within
+ * 12.5% while recording is a couple of atomic increments.
+ */
+public class LatencyHistogram {
+
+	private static final int subBucketBits = 3;
+	private static final int subBuckets = 1 << subBucketBits;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(bucketIndex(Long.MAX_VALUE) + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos
+	 *            A duration, negative values are recorded as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		buckets.incrementAndGet(bucketIndex(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+		long previous = max.get();
+		while (nanos > previous && !max.compareAndSet(previous, nanos)) {
+			previous = max.get();
+		}
+	}
+
+	/**
+	 * @return The number of durations recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return The mean duration in nanoseconds, or 0 if none are recorded
+	 */
+	public double getMean() {
+		long count = this.count.get();
+		return count == 0 ? 0 : (double) total.get() / count;
+	}
+
+	/**
+	 * @return The longest duration in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile
+	 *            Between 0 and 100
+	 * @return The upper bound of the bucket containing the percentile, in
+	 *         nanoseconds, or 0 if none are recorded
+	 */
+	public long getPercentile(double percentile) {
+		if (percentile < 0 || percentile > 100)
+			throw new IllegalArgumentException("percentile");
+		long count = this.count.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < buckets.length(); i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(bucketUpperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int bucketIndex(long value) {
+		if (value < subBuckets) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+		return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+	}
+
+	static long bucketUpperBound(int index) {
+		if (index < subBuckets) {
+			return index;
+		}
+		int exponent = index / subBuckets + subBucketBits - 1;
+		long subBucket = index % subBuckets;
+		long lowerBound = (subBuckets + subBucket) << (exponent - subBucketBits);
+		return lowerBound + (1L << (exponent - subBucketBits)) - 1;
+	}
+}
@@ -0,0 +1,24 @@
+package org.sturrock.cassette.cassettej;
+
+/**
+ * JMX view of one {@link StoreOperation} on a store, registered by
+ * {@link JmxStoreMetrics}.
+ */
+public interface OperationStatisticsMXBean {
+
+	long getCount();
+
+	long getFailures();
+
+	long getInFlight();
+
+	double getMeanMicros();
+
+	double getP50Micros();
+
+	double getP99Micros();
+
+	double getP999Micros();
+
+	double getMaxMicros();
+}
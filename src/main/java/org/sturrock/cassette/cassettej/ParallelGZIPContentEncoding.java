@@ -0,0 +1,70 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+
+/**
+ * A gzip encoding which compresses large content using multiple cores, in the
+ * same way as pigz. The content is split into blocks which are deflated
+ * independently on a fork-join pool and then written out in order as a
+ * single standard gzip member, so anything that can read gzip can decode it.
+ * 
+ * Each block is primed with the last 32KiB of the block before it as a
+ * dictionary, so the ratio is very close to that of
+ * {@link GZIPContentEncoding}. The output is not byte for byte the same
+ * though.
+ * 
+ * This has the same name as {@link GZIPContentEncoding} and can be used in its
+ * place, eg with
+ * <code>ContentEncodingFactory.register("gzip", ParallelGZIPContentEncoding::new)</code>
+ */
+public class ParallelGZIPContentEncoding extends GZIPContentEncoding {
+
+	/**
+	 * Default block size. Large enough that the per-block overhead is
+	 * negligible and small enough to spread a few MB over many cores.
+	 */
+	public static final int defaultBlockSize = 128 * 1024;
+
+	private final ForkJoinPool pool;
+	private final int blockSize;
+	private final int level;
+
+	/**
+	 * Use the common fork-join pool, the default block size and the default
+	 * compression level.
+	 */
+	public ParallelGZIPContentEncoding() {
+		this(ForkJoinPool.commonPool(), defaultBlockSize, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param pool
+	 *            The pool to compress blocks on
+	 * @param blockSize
+	 *            The size of uncompressed blocks. Must be at least 32KiB so
+	 *            each block is a full dictionary for the next.
+	 * @param level
+	 *            The compression level, 0-9 or
+	 *            {@link java.util.zip.Deflater#DEFAULT_COMPRESSION}
+	 */
+	public ParallelGZIPContentEncoding(ForkJoinPool pool, int blockSize, int level) {
+		if (pool == null)
+			throw new IllegalArgumentException("pool");
+		if (blockSize < ParallelGZIPOutputStream.dictionarySize)
+			throw new IllegalArgumentException("blockSize");
+		if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+				&& level != Deflater.DEFAULT_COMPRESSION)
+			throw new IllegalArgumentException("level");
+		this.pool = pool;
+		this.blockSize = blockSize;
+		this.level = level;
+	}
+
+	@Override
+	public OutputStream encode(OutputStream stream) throws IOException {
+		return new ParallelGZIPOutputStream(stream, pool, blockSize, level);
+	}
+}
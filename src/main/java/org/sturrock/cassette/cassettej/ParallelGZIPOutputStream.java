@@ -0,0 +1,182 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a gzip stream, deflating blocks of the content in parallel. See
+ * {@link ParallelGZIPContentEncoding}.
+ * 
+ * Every block but the last is ended with a sync flush, which byte aligns the
+ * deflate output, so the compressed blocks can simply be concatenated. The
+ * CRC is calculated on the writing thread as it is cheap compared to
+ * deflating.
+ */
+class ParallelGZIPOutputStream extends FilterOutputStream {
+
+	/**
+	 * The deflate window size, and so the most useful dictionary.
+	 */
+	static final int dictionarySize = 32 * 1024;
+
+	private static final byte[] header = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private final ForkJoinPool pool;
+	private final int blockSize;
+	private final int level;
+	/**
+	 * Compressed blocks in the order they need to be written.
+	 */
+	private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	/**
+	 * Bounds the memory used when the writer is faster than the pool.
+	 */
+	private final int maxPending;
+
+	private final CRC32 crc = new CRC32();
+	private long length = 0;
+	private byte[] block;
+	private int blockLength = 0;
+	private byte[] dictionary = null;
+	private boolean closed = false;
+
+	ParallelGZIPOutputStream(OutputStream out, ForkJoinPool pool, int blockSize, int level) throws IOException {
+		super(out);
+		this.pool = pool;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.maxPending = pool.getParallelism() * 2;
+		this.block = new byte[blockSize];
+		out.write(header);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		crc.update(b, off, len);
+		length += len;
+		while (len > 0) {
+			int n = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == blockSize) {
+				submit(false);
+			}
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		final byte[] input = block;
+		final int inputLength = blockLength;
+		final byte[] blockDictionary = dictionary;
+		pending.add(pool.submit(() -> deflate(input, inputLength, blockDictionary, last)));
+
+		if (inputLength >= dictionarySize) {
+			dictionary = Arrays.copyOfRange(input, inputLength - dictionarySize, inputLength);
+		}
+		block = new byte[blockSize];
+		blockLength = 0;
+
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+	}
+
+	private byte[] deflate(byte[] input, int inputLength, byte[] dictionary, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary);
+			}
+			deflater.setInput(input, 0, inputLength);
+			if (last) {
+				deflater.finish();
+			}
+			byte[] output = new byte[inputLength / 2 + 64];
+			int outputLength = 0;
+			while (true) {
+				if (outputLength == output.length) {
+					output = Arrays.copyOf(output, output.length * 2);
+				}
+				int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+				int n = deflater.deflate(output, outputLength, output.length - outputLength, flush);
+				outputLength += n;
+				if (last ? deflater.finished() : outputLength < output.length && deflater.needsInput()) {
+					break;
+				}
+			}
+			return Arrays.copyOf(output, outputLength);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.remove().get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Writes out compressed blocks, but can't flush a partial block without
+	 * hurting the ratio so just flushes what is already compressed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		while (!pending.isEmpty() && pending.peek().isDone()) {
+			writeNext();
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			submit(true);
+			while (!pending.isEmpty()) {
+				writeNext();
+			}
+			writeInt((int) crc.getValue());
+			writeInt((int) length);
+			out.flush();
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(false);
+			}
+			out.close();
+		}
+	}
+
+	private void writeInt(int i) throws IOException {
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+}
@@ -0,0 +1,62 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Set;
+
+import org.infinispan.Cache;
+import org.infinispan.distexec.DistributedCallable;
+
+/**
+ * Puts a value on the primary owner of its hash unless the cache already has
+ * one. Used by ContentAddressableStoreInfinispanImpl in distributed mode so
+ * that writing content another node has already added only returns a boolean
+ * across the network rather than the existing value.
+ */
+class PutIfAbsentTask implements DistributedCallable<Hash, CacheValue, Boolean>, Serializable {
+
+	private static final long serialVersionUID = 2877010453216406521L;
+
+	private final String hashString;
+	private final boolean offHeap;
+
+	// Marshalled with CacheValueExternalizer as ByteBuffers aren't
+	// serializable
+	private transient CacheValue cacheValue;
+	private transient Cache<Hash, CacheValue> cache;
+
+	/**
+	 * @param offHeap
+	 *            Whether the owner holds content off the heap
+	 */
+	public PutIfAbsentTask(Hash hash, CacheValue cacheValue, boolean offHeap) {
+		this.hashString = hash.getString();
+		this.cacheValue = cacheValue;
+		this.offHeap = offHeap;
+	}
+
+	@Override
+	public void setEnvironment(Cache<Hash, CacheValue> cache, Set<Hash> hashes) {
+		this.cache = cache;
+	}
+
+	/**
+	 * @return Whether the value was put
+	 */
+	@Override
+	public Boolean call() {
+		return cache.putIfAbsent(new Hash(hashString), cacheValue) == null;
+	}
+
+	private void writeObject(ObjectOutputStream output) throws IOException {
+		output.defaultWriteObject();
+		new CacheValueExternalizer(offHeap).writeObject(output, cacheValue);
+	}
+
+	private void readObject(ObjectInputStream input) throws IOException, ClassNotFoundException {
+		input.defaultReadObject();
+		cacheValue = new CacheValueExternalizer(offHeap).readObject(input);
+	}
+}
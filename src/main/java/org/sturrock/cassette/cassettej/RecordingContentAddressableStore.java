@@ -0,0 +1,289 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.io.input.CountingInputStream;
+
+/**
+ * Decorates a store to record a trace of the calls made on it, which
+ * {@link WorkloadReplayer} can replay against another store. Content isn't
+ * recorded, only its hash and size.
+ * 
+ * Reads are recorded when the stream returned is closed, so that the size
+ * recorded is what the caller read. Their duration is that of the call to
+ * read. If writing the trace fails then recording stops, but calls carry on
+ * being passed to the store.
+ */
+public class RecordingContentAddressableStore implements ContentAddressableStore {
+
+	private final ContentAddressableStore store;
+	private final Writer trace;
+	private final long origin = System.nanoTime();
+	private volatile IOException traceException;
+
+	/**
+	 * @param store
+	 *            The store to pass calls to
+	 * @param trace
+	 *            Where to write the trace, which is closed when the store is
+	 */
+	public RecordingContentAddressableStore(ContentAddressableStore store, Writer trace) {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (trace == null)
+			throw new IllegalArgumentException("trace");
+		this.store = store;
+		this.trace = trace;
+	}
+
+	/**
+	 * @return The exception which stopped recording, or null if recording
+	 */
+	public IOException getTraceException() {
+		return traceException;
+	}
+
+	private void record(long start, StoreOperation operation, Hash hash, long size, List<String> encodingNames,
+			boolean failed) {
+		long end = System.nanoTime();
+		record(start, end - start, operation, hash, size, encodingNames, failed);
+	}
+
+	private void record(long start, long duration, StoreOperation operation, Hash hash, long size,
+			List<String> encodingNames, boolean failed) {
+		if (traceException != null) {
+			return;
+		}
+		String line = new TraceRecord(start - origin, duration, operation, hash, size, encodingNames, failed)
+				.toString();
+		synchronized (trace) {
+			try {
+				trace.write(line);
+				trace.write('\n');
+			} catch (IOException e) {
+				traceException = e;
+			}
+		}
+	}
+
+	private static List<String> names(List<ContentEncoding> encodings) {
+		if (encodings == null) {
+			return Collections.emptyList();
+		}
+		List<String> names = new LinkedList<String>();
+		for (ContentEncoding encoding : encodings) {
+			names.add(encoding.getName());
+		}
+		return names;
+	}
+
+	private static List<String> names(ContentEncoding encoding) {
+		return encoding == null ? Collections.<String>emptyList() : Collections.singletonList(encoding.getName());
+	}
+
+	@Override
+	public Hash write(InputStream stream) throws IOException {
+		return write(stream, new LinkedList<ContentEncoding>());
+	}
+
+	@Override
+	public Hash write(InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		return write(StoreOperation.WRITE, stream, names(encodings), s -> store.write(s, encodings));
+	}
+
+	@Override
+	public Hash write(Hash expected, InputStream stream, List<ContentEncoding> encodings) throws IOException {
+		return write(StoreOperation.WRITE_EXPECTED, stream, names(encodings), s -> store.write(expected, s, encodings));
+	}
+
+	@Override
+	public Hash writeEncoded(InputStream stream, ContentEncoding contentEncoding) throws IOException {
+		return write(StoreOperation.WRITE_ENCODED, stream, names(contentEncoding),
+				s -> store.writeEncoded(s, contentEncoding));
+	}
+
+	private interface WriteOperation {
+		Hash run(InputStream stream) throws IOException;
+	}
+
+	private Hash write(StoreOperation operation, InputStream stream, List<String> encodingNames,
+			WriteOperation body) throws IOException {
+		CountingInputStream countingStream = stream == null ? null : new CountingInputStream(stream);
+		long start = System.nanoTime();
+		Hash hash = null;
+		try {
+			hash = body.run(countingStream);
+			return hash;
+		} finally {
+			record(start, operation, hash, countingStream == null ? -1 : countingStream.getByteCount(), encodingNames,
+					hash == null);
+		}
+	}
+
+	@Override
+	public boolean contains(Hash hash) {
+		return contains(hash, null);
+	}
+
+	@Override
+	public boolean contains(Hash hash, ContentEncoding contentEncoding) {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			boolean contains = contentEncoding == null ? store.contains(hash) : store.contains(hash, contentEncoding);
+			failed = false;
+			return contains;
+		} finally {
+			record(start, StoreOperation.CONTAINS, hash, -1, names(contentEncoding), failed);
+		}
+	}
+
+	@Override
+	public InputStream read(Hash hash) throws IOException {
+		return read(hash, null);
+	}
+
+	@Override
+	public InputStream read(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		long start = System.nanoTime();
+		InputStream inputStream;
+		try {
+			inputStream = contentEncoding == null ? store.read(hash) : store.read(hash, contentEncoding);
+		} catch (IOException | RuntimeException e) {
+			record(start, StoreOperation.READ, hash, -1, names(contentEncoding), true);
+			throw e;
+		}
+		long duration = System.nanoTime() - start;
+		if (inputStream == null) {
+			record(start, duration, StoreOperation.READ, hash, -1, names(contentEncoding), false);
+			return null;
+		}
+		return new CountingInputStream(inputStream) {
+			private boolean recorded;
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					if (!recorded) {
+						recorded = true;
+						record(start, duration, StoreOperation.READ, hash, getByteCount(), names(contentEncoding),
+								false);
+					}
+				}
+			}
+		};
+	}
+
+	@Override
+	public long getContentLength(Hash hash) throws IOException {
+		return getContentLength(hash, null);
+	}
+
+	@Override
+	public long getContentLength(Hash hash, ContentEncoding contentEncoding) throws IOException {
+		long start = System.nanoTime();
+		long length = -1;
+		boolean failed = true;
+		try {
+			length = contentEncoding == null ? store.getContentLength(hash)
+					: store.getContentLength(hash, contentEncoding);
+			failed = false;
+			return length;
+		} finally {
+			record(start, StoreOperation.GET_CONTENT_LENGTH, hash, length, names(contentEncoding), failed);
+		}
+	}
+
+	@Override
+	public List<Hash> getHashes() throws IOException {
+		long start = System.nanoTime();
+		List<Hash> hashes = null;
+		try {
+			hashes = store.getHashes();
+			return hashes;
+		} finally {
+			record(start, StoreOperation.GET_HASHES, null, hashes == null ? -1 : hashes.size(),
+					Collections.<String>emptyList(), hashes == null);
+		}
+	}
+
+	@Override
+	public boolean delete(Hash hash) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			boolean deleted = store.delete(hash);
+			failed = false;
+			return deleted;
+		} finally {
+			record(start, StoreOperation.DELETE, hash, -1, Collections.<String>emptyList(), failed);
+		}
+	}
+
+	/**
+	 * Recorded as a record for each hash, all with the time of the call.
+	 */
+	@Override
+	public List<Hash> deleteAll(Collection<Hash> hashes) throws IOException {
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			List<Hash> deleted = store.deleteAll(hashes);
+			failed = false;
+			return deleted;
+		} finally {
+			long duration = System.nanoTime() - start;
+			if (hashes != null) {
+				for (Hash hash : hashes) {
+					record(start, duration, StoreOperation.DELETE_ALL, hash, -1, Collections.<String>emptyList(),
+							failed);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Statistics don't touch the content so aren't part of the workload.
+	 */
+	@Override
+	public StoreStatistics getStatistics() {
+		return store.getStatistics();
+	}
+
+	@Override
+	public void addListener(ContentAddressableStoreListener contentAddressableStoreListener) {
+		store.addListener(contentAddressableStoreListener);
+	}
+
+	@Override
+	public void removeListener(ContentAddressableStoreListener contentAddressableStoreListener) {
+		store.removeListener(contentAddressableStoreListener);
+	}
+
+	/**
+	 * Close the store and the trace.
+	 */
+	@Override
+	public void close() {
+		try {
+			store.close();
+		} finally {
+			synchronized (trace) {
+				try {
+					trace.close();
+				} catch (IOException e) {
+					if (traceException == null)
+						traceException = e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Finds the content a piece of content refers to, eg the entries of a
+ * directory listing stored as content. The {@link GarbageCollector} keeps
+ * everything reachable from the pinned roots through these references.
+ */
+public interface ReferenceResolver {
+
+	/**
+	 * @param store
+	 *            The store holding the content
+	 * @param hash
+	 *            The content, which is in the store
+	 * @return The hashes of the content it refers to
+	 */
+	Collection<Hash> getReferences(ContentAddressableStore store, Hash hash) throws IOException;
+}
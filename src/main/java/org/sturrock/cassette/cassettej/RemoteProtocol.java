@@ -0,0 +1,324 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The binary protocol between ContentAddressableStoreRemoteImpl and
+ * ContentAddressableStoreRemoteServer. Everything is sent in frames of a
+ * request id, a type and a payload, so any number of requests can be in
+ * flight on a connection at once and their frames can be interleaved.
+ *
+ * A request is one frame, except that a write is followed by the content in
+ * DATA frames and an END frame. Each response starts with a RESULT or ERROR
+ * frame, and reads and hash listings follow it with DATA frames and an END or
+ * ERROR frame.
+ *
+ * Streams in both directions are limited by credit. The sender of a stream
+ * sends at most {@link #window} DATA frames ahead of the CREDIT frames the
+ * receiver sends as it consumes them, so a slow reader doesn't hold up the
+ * other streams on its connection, and neither side's thread reading the
+ * connection ever waits for room for a frame. The content of a write given
+ * with its hash starts with no credit, so isn't sent until the server asks
+ * for it, which it doesn't if it already has the content. Either side can
+ * abandon a stream with a CANCEL frame. The RESULT of a write holds the hash
+ * and whether the write added the content, so the client can count its own
+ * writes. Once a connection has subscribed, events are sent on it with
+ * request id 0.
+ */
+final class RemoteProtocol {
+
+	// Requests
+	static final byte CONTAINS = 1;
+	static final byte GET_CONTENT_LENGTH = 2;
+	static final byte READ = 3;
+	static final byte WRITE = 4;
+	static final byte WRITE_ENCODED = 5;
+	static final byte DELETE = 6;
+	static final byte GET_HASHES = 7;
+	static final byte GET_STATISTICS = 8;
+	static final byte SUBSCRIBE = 9;
+	static final byte DELETE_ALL = 10;
+	static final byte WRITE_EXPECTED = 11;
+
+	// Streams, in either direction
+	static final byte DATA = 20;
+	static final byte END = 21;
+	static final byte CANCEL = 22;
+	static final byte CREDIT = 23;
+
+	// Responses
+	static final byte RESULT = 30;
+	static final byte ERROR = 31;
+	static final byte EVENT = 32;
+
+	// Kinds of error, rethrown as the same kind of exception
+	static final byte IO_ERROR = 0;
+	static final byte ARGUMENT_ERROR = 1;
+	static final byte RUNTIME_ERROR = 2;
+	static final byte HASH_MISMATCH_ERROR = 3;
+
+	// Kinds of event
+	static final byte CONTENT_ADDED = 0;
+	static final byte CONTENT_REMOVED = 1;
+
+	/**
+	 * The most content sent in one DATA frame.
+	 */
+	static final int chunkSize = 64 * 1024;
+
+	/**
+	 * The number of DATA frames of a stream sent before waiting for credit.
+	 */
+	static final int window = 16;
+
+	private static final int maxFrameLength = chunkSize + 1024;
+
+	static final class Frame {
+		final int id;
+		final byte type;
+		final byte[] payload;
+
+		Frame(int id, byte type, byte[] payload) {
+			this.id = id;
+			this.type = type;
+			this.payload = payload;
+		}
+
+		DataInputStream getPayloadInputStream() {
+			return new DataInputStream(new ByteArrayInputStream(payload));
+		}
+	}
+
+	/**
+	 * Writes frames from any number of threads. A thread which finds others
+	 * waiting to write leaves the flush to the last of them, so frames sent
+	 * at the same time, such as many small requests, go in one write to the
+	 * socket.
+	 */
+	static final class FrameWriter {
+		private final DataOutputStream outputStream;
+		private final AtomicInteger waiting = new AtomicInteger();
+
+		FrameWriter(OutputStream outputStream) {
+			this.outputStream = new DataOutputStream(outputStream);
+		}
+
+		void write(int id, byte type) throws IOException {
+			write(id, type, new byte[0], 0, 0);
+		}
+
+		void write(int id, byte type, byte[] payload) throws IOException {
+			write(id, type, payload, 0, payload.length);
+		}
+
+		void write(int id, byte type, byte[] payload, int offset, int length) throws IOException {
+			waiting.incrementAndGet();
+			synchronized (this) {
+				try {
+					outputStream.writeInt(id);
+					outputStream.writeByte(type);
+					outputStream.writeInt(length);
+					outputStream.write(payload, offset, length);
+				} finally {
+					if (waiting.decrementAndGet() == 0) {
+						outputStream.flush();
+					}
+				}
+			}
+		}
+	}
+
+	static Frame readFrame(DataInputStream inputStream) throws IOException {
+		int id = inputStream.readInt();
+		byte type = inputStream.readByte();
+		int length = inputStream.readInt();
+		if (length < 0 || length > maxFrameLength)
+			throw new IOException("Bad frame length " + length);
+		byte[] payload = new byte[length];
+		inputStream.readFully(payload);
+		return new Frame(id, type, payload);
+	}
+
+	/**
+	 * @return The payload of a CREDIT frame for some DATA frames
+	 */
+	static byte[] writeCredit(int frames) throws IOException {
+		Payload payload = new Payload();
+		payload.writeInt(frames);
+		return payload.toByteArray();
+	}
+
+	/**
+	 * Builds a payload.
+	 */
+	static final class Payload extends DataOutputStream {
+		Payload() {
+			super(new ByteArrayOutputStream());
+		}
+
+		Payload writeHash(Hash hash) throws IOException {
+			write(hash.getBytes());
+			return this;
+		}
+
+		/**
+		 * Write the name of an encoding, or of none if it is null.
+		 */
+		Payload writeEncoding(ContentEncoding contentEncoding) throws IOException {
+			writeUTF(contentEncoding == null ? "" : contentEncoding.getName());
+			return this;
+		}
+
+		byte[] toByteArray() {
+			return ((ByteArrayOutputStream) out).toByteArray();
+		}
+	}
+
+	/**
+	 * The most hashes sent in one frame.
+	 */
+	static final int hashesPerFrame = chunkSize / Hash.byteCount;
+
+	/**
+	 * Write a count and then the hashes.
+	 */
+	static byte[] writeHashes(Collection<Hash> hashes) throws IOException {
+		Payload payload = new Payload();
+		payload.writeInt(hashes.size());
+		for (Hash hash : hashes) {
+			payload.writeHash(hash);
+		}
+		return payload.toByteArray();
+	}
+
+	static List<Hash> readHashes(DataInputStream inputStream) throws IOException {
+		int count = inputStream.readInt();
+		if (count < 0 || count > hashesPerFrame)
+			throw new IOException("Bad hash count " + count);
+		List<Hash> hashes = new ArrayList<Hash>(count);
+		for (int i = 0; i < count; i++) {
+			hashes.add(readHash(inputStream));
+		}
+		return hashes;
+	}
+
+	/**
+	 * Write a count and then the names of the encodings.
+	 */
+	static void writeEncodings(Payload payload, List<ContentEncoding> encodings) throws IOException {
+		payload.writeInt(encodings.size());
+		for (ContentEncoding encoding : encodings) {
+			payload.writeEncoding(encoding);
+		}
+	}
+
+	static List<ContentEncoding> readEncodings(DataInputStream inputStream) throws IOException {
+		int count = inputStream.readInt();
+		if (count < 0 || count > 1000)
+			throw new IOException("Bad encoding count " + count);
+		List<ContentEncoding> encodings = new ArrayList<ContentEncoding>(count);
+		for (int i = 0; i < count; i++) {
+			encodings.add(readEncoding(inputStream));
+		}
+		return encodings;
+	}
+
+	static Hash readHash(DataInputStream inputStream) throws IOException {
+		byte[] bytes = new byte[Hash.byteCount];
+		inputStream.readFully(bytes);
+		return new Hash(bytes);
+	}
+
+	/**
+	 * @return The encoding, or null for none
+	 * @throws IllegalArgumentException
+	 *             if the encoding isn't known
+	 */
+	static ContentEncoding readEncoding(DataInputStream inputStream) throws IOException {
+		String name = inputStream.readUTF();
+		if (name.isEmpty()) {
+			return null;
+		}
+		ContentEncoding contentEncoding = ContentEncodingFactory.createEncoding(name);
+		if (contentEncoding == null)
+			throw new IllegalArgumentException("Unknown encoding " + name);
+		return contentEncoding;
+	}
+
+	static byte[] writeStatistics(StoreStatistics statistics) throws IOException {
+		Payload payload = new Payload();
+		payload.writeLong(statistics.getContentCount());
+		payload.writeLong(statistics.getContentBytes());
+		payload.writeBoolean(statistics.isExact());
+		payload.writeInt(statistics.getEncodingNames().size());
+		for (String name : statistics.getEncodingNames()) {
+			payload.writeUTF(name);
+			payload.writeLong(statistics.getEncodedCount(name));
+			payload.writeLong(statistics.getEncodedBytes(name));
+		}
+		return payload.toByteArray();
+	}
+
+	static StoreStatistics readStatistics(DataInputStream inputStream) throws IOException {
+		long contentCount = inputStream.readLong();
+		long contentBytes = inputStream.readLong();
+		boolean exact = inputStream.readBoolean();
+		int encodings = inputStream.readInt();
+		Map<String, Long> counts = new HashMap<String, Long>();
+		Map<String, Long> bytes = new HashMap<String, Long>();
+		for (int i = 0; i < encodings; i++) {
+			String name = inputStream.readUTF();
+			counts.put(name, inputStream.readLong());
+			bytes.put(name, inputStream.readLong());
+		}
+		return new StoreStatistics(contentCount, contentBytes, counts, bytes, exact);
+	}
+
+	static byte[] writeError(Exception exception) throws IOException {
+		Payload payload = new Payload();
+		payload.writeByte(exception instanceof HashMismatchException ? HASH_MISMATCH_ERROR
+				: exception instanceof IOException ? IO_ERROR
+						: exception instanceof IllegalArgumentException ? ARGUMENT_ERROR : RUNTIME_ERROR);
+		String message = String.valueOf(exception.getMessage());
+		// Within what writeUTF can send
+		payload.writeUTF(message.length() > 1000 ? message.substring(0, 1000) : message);
+		if (exception instanceof HashMismatchException) {
+			HashMismatchException hashMismatchException = (HashMismatchException) exception;
+			payload.writeHash(hashMismatchException.getExpected()).writeHash(hashMismatchException.getActual());
+		}
+		return payload.toByteArray();
+	}
+
+	/**
+	 * Throw the exception an ERROR frame carries.
+	 */
+	static void throwError(Frame frame) throws IOException {
+		DataInputStream inputStream = frame.getPayloadInputStream();
+		byte kind = inputStream.readByte();
+		String message = inputStream.readUTF();
+		switch (kind) {
+		case ARGUMENT_ERROR:
+			throw new IllegalArgumentException(message);
+		case RUNTIME_ERROR:
+			throw new IllegalStateException(message);
+		case HASH_MISMATCH_ERROR:
+			throw new HashMismatchException(readHash(inputStream), readHash(inputStream));
+		default:
+			throw new IOException(message);
+		}
+	}
+
+	private RemoteProtocol() {
+	}
+}
@@ -0,0 +1,134 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Tells a file store whether another store, in this process or another, has
+ * had the same root open at the same time. While one has, neither store's
+ * statistics have counted every change on disk, so neither may save them as
+ * clean.
+ * <p>
+ * The lock file starts with a count of the times the root has been opened,
+ * and each open store holds a lock on a byte of its own after that. A store
+ * which finds another byte locked when it opens, or the count moved on when
+ * it closes, has shared the root. The operating system releases the locks of
+ * a process which dies, so a crash doesn't leave the root looking shared for
+ * ever.
+ */
+final class RootLock implements Closeable {
+
+	/**
+	 * Length of the count at the start of the file, which is also locked
+	 * while a store checks for others.
+	 */
+	private static final long countLength = 8;
+
+	private final FileChannel channel;
+
+	/**
+	 * The count after this store opened the root
+	 */
+	private final long opened;
+
+	/**
+	 * Whether another store had the root open when this one opened it
+	 */
+	private final boolean sharedOnOpen;
+
+	/**
+	 * @param rootPath
+	 *            The root directory, which must exist
+	 */
+	RootLock(Path rootPath) throws IOException {
+		channel = FileChannel.open(rootPath.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			// Stores in this process would get an OverlappingFileLockException
+			// rather than wait for each other's lock on the count
+			synchronized (RootLock.class) {
+				try (FileLock countLock = channel.lock(0, countLength, false);) {
+					sharedOnOpen = !isFree(countLength, Long.MAX_VALUE - countLength);
+					// The lock is held until the channel is closed
+					long position = countLength;
+					while (tryLock(position) == null) {
+						position++;
+					}
+					opened = readCount() + 1;
+					ByteBuffer buffer = ByteBuffer.allocate((int) countLength);
+					buffer.putLong(opened).flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer, buffer.position());
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return Whether another store has had the root open at any time since
+	 *         this one opened it
+	 */
+	boolean wasShared() throws IOException {
+		if (sharedOnOpen) {
+			return true;
+		}
+		synchronized (RootLock.class) {
+			try (FileLock countLock = channel.lock(0, countLength, false);) {
+				return readCount() != opened;
+			}
+		}
+	}
+
+	private long readCount() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) countLength);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, buffer.position()) < 0) {
+				// A new lock file
+				return 0;
+			}
+		}
+		buffer.flip();
+		return buffer.getLong();
+	}
+
+	private boolean isFree(long position, long size) throws IOException {
+		FileLock lock = tryLock(position, size);
+		if (lock == null) {
+			return false;
+		}
+		lock.release();
+		return true;
+	}
+
+	private FileLock tryLock(long position) throws IOException {
+		return tryLock(position, 1);
+	}
+
+	/**
+	 * @return The lock, or null if another store, in any process, holds part
+	 *         of the range
+	 */
+	private FileLock tryLock(long position, long size) throws IOException {
+		try {
+			return channel.tryLock(position, size, false);
+		} catch (OverlappingFileLockException e) {
+			// Held by another store in this process
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
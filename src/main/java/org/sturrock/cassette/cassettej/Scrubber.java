@@ -0,0 +1,488 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks a file store for damage, such as bit rot, which would otherwise only
+ * be noticed when the content is read. Content and chunks are hashed again
+ * and compared with their names, encodings are decoded and hashed, and
+ * manifests are checked to still refer to what they are made of. Damaged
+ * files are reported in the result and can be moved to the store's
+ * quarantine path, so the store no longer serves them.
+ *
+ * Several threads scrub prefix directories at once but share a budget of
+ * bytes read per second. While callers are using the store the budget drops
+ * to a lower rate, so a scrub yields to foreground reads and writes, and it
+ * only speeds up again once the store has been idle for a second.
+ */
+public class Scrubber implements AutoCloseable {
+
+	/**
+	 * Name of the property specifying the number of threads scrubbing.
+	 * Defaults to 2.
+	 */
+	public final static String threadsPropertyName = Scrubber.class.getName() + ".threads";
+
+	/**
+	 * Name of the property specifying the most bytes read per second while
+	 * the store is idle. Defaults to 64MiB.
+	 */
+	public final static String bytesPerSecondPropertyName = Scrubber.class.getName() + ".bytesPerSecond";
+
+	/**
+	 * Name of the property specifying the most bytes read per second while
+	 * callers are using the store. Defaults to 4MiB.
+	 */
+	public final static String busyBytesPerSecondPropertyName = Scrubber.class.getName() + ".busyBytesPerSecond";
+
+	/**
+	 * Name of the property specifying the time between the end of one
+	 * background scrub and the start of the next, in milliseconds. Defaults
+	 * to a day.
+	 */
+	public final static String intervalPropertyName = Scrubber.class.getName() + ".interval";
+
+	/**
+	 * Name of the property specifying whether to move damaged files to the
+	 * quarantine path rather than only report them. Defaults to false.
+	 */
+	public final static String quarantinePropertyName = Scrubber.class.getName() + ".quarantine";
+
+	/**
+	 * How long after the last foreground operation the store counts as busy.
+	 */
+	private static final long busyPeriod = TimeUnit.SECONDS.toNanos(1);
+
+	private static final int bufferSize = 64 * 1024;
+
+	/**
+	 * What a scrub checked and found.
+	 */
+	public static class Result {
+		private final LongAdder examined = new LongAdder();
+		private final LongAdder skipped = new LongAdder();
+		private final LongAdder bytesRead = new LongAdder();
+		private final LongAdder quarantined = new LongAdder();
+		private final List<Path> damaged = Collections.synchronizedList(new ArrayList<Path>());
+		private long durationNanos;
+
+		/**
+		 * @return The number of files checked
+		 */
+		public long getExamined() {
+			return examined.sum();
+		}
+
+		/**
+		 * @return The number of files not checked, eg because their encoding
+		 *         isn't known
+		 */
+		public long getSkipped() {
+			return skipped.sum();
+		}
+
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+
+		/**
+		 * @return Where the damaged files were found
+		 */
+		public List<Path> getDamaged() {
+			synchronized (damaged) {
+				return new ArrayList<Path>(damaged);
+			}
+		}
+
+		/**
+		 * @return The number of damaged files moved to the quarantine path
+		 */
+		public long getQuarantined() {
+			return quarantined.sum();
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("examined=%d skipped=%d bytesRead=%d damaged=%d quarantined=%d seconds=%.3f",
+					getExamined(), getSkipped(), getBytesRead(), damaged.size(), getQuarantined(),
+					durationNanos / 1e9);
+		}
+	}
+
+	private final ContentAddressableStoreFileImpl store;
+	private final int threads;
+	private final double bytesPerSecond;
+	private final double busyBytesPerSecond;
+	private final long interval;
+	private final boolean quarantine;
+
+	private ScheduledExecutorService executor;
+	private volatile ExecutorService workers;
+	private volatile boolean closed;
+	private volatile Result lastResult;
+	private volatile IOException lastException;
+
+	// State of the running scrub
+	private final Object scrubLock = new Object();
+	private long due;
+	private long lastOperationCount;
+	private long lastActivity;
+
+	/**
+	 * @param store
+	 *            The store to scrub
+	 * @param properties
+	 *            <code>threadsPropertyName</code>,
+	 *            <code>bytesPerSecondPropertyName</code>,
+	 *            <code>busyBytesPerSecondPropertyName</code>,
+	 *            <code>intervalPropertyName</code> and
+	 *            <code>quarantinePropertyName</code>, all optional
+	 */
+	public Scrubber(ContentAddressableStoreFileImpl store, Properties properties) {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		this.store = store;
+		threads = Integer.parseInt(properties.getProperty(threadsPropertyName, "2"));
+		bytesPerSecond = Double.parseDouble(properties.getProperty(bytesPerSecondPropertyName, "67108864"));
+		busyBytesPerSecond = Double.parseDouble(properties.getProperty(busyBytesPerSecondPropertyName, "4194304"));
+		interval = Long.parseLong(properties.getProperty(intervalPropertyName, "86400000"));
+		quarantine = Boolean.parseBoolean(properties.getProperty(quarantinePropertyName));
+		if (threads <= 0)
+			throw new IllegalArgumentException(threadsPropertyName);
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException(bytesPerSecondPropertyName);
+		if (busyBytesPerSecond <= 0)
+			throw new IllegalArgumentException(busyBytesPerSecondPropertyName);
+		if (interval <= 0)
+			throw new IllegalArgumentException(intervalPropertyName);
+	}
+
+	/**
+	 * Start scrubbing in the background, once every interval.
+	 */
+	public synchronized void start() {
+		if (closed)
+			throw new IllegalStateException("Closed");
+		if (executor != null)
+			return;
+		executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "CassetteJ-scrubber");
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				scrub();
+			} catch (IOException e) {
+				lastException = e;
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The result of the last scrub to finish, or null if none have
+	 */
+	public Result getLastResult() {
+		return lastResult;
+	}
+
+	/**
+	 * @return The exception which stopped the last background scrub that
+	 *         failed, or null if none have
+	 */
+	public IOException getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Scrub the whole store now, returning when it is done. Only one scrub
+	 * runs at a time.
+	 */
+	public Result scrub() throws IOException {
+		synchronized (scrubLock) {
+			Result result = new Result();
+			long start = System.nanoTime();
+			synchronized (this) {
+				due = start;
+				lastOperationCount = store.getOperationCount();
+				lastActivity = start - busyPeriod;
+			}
+
+			List<Path> directories = new ArrayList<Path>(store.getPrefixDirectories(store.getRootPath()));
+			directories.addAll(store.getPrefixDirectories(store.getChunksPath()));
+
+			AtomicInteger threadNumber = new AtomicInteger();
+			ExecutorService workers = Executors.newFixedThreadPool(threads, runnable -> {
+				Thread thread = new Thread(runnable, "CassetteJ-scrubber-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.workers = workers;
+			try {
+				checkClosed();
+				List<Future<Void>> futures = new ArrayList<Future<Void>>(directories.size());
+				for (Path directory : directories) {
+					futures.add(workers.submit(() -> {
+						scrubDirectory(directory, result);
+						return null;
+					}));
+				}
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new IOException(cause);
+			} finally {
+				workers.shutdownNow();
+				this.workers = null;
+			}
+
+			result.durationNanos = System.nanoTime() - start;
+			lastResult = result;
+			return result;
+		}
+	}
+
+	private void scrubDirectory(Path directory, Result result) throws IOException {
+		String prefix = directory.getFileName().toString();
+		String manifestSuffix = ContentAddressableStoreFileImpl.getManifestSuffix();
+		for (Path file : store.listFiles(directory)) {
+			checkClosed();
+			String fileName = file.getFileName().toString();
+			int dot = fileName.indexOf('.');
+			String hashString = prefix + (dot == -1 ? fileName : fileName.substring(0, dot));
+			if (hashString.length() != Hash.byteCount * 2) {
+				// Not ours
+				result.skipped.increment();
+				continue;
+			}
+			Hash hash = new Hash(hashString);
+			try {
+				boolean intact;
+				if (dot == -1) {
+					intact = hash.equals(hashOf(file, null, result));
+				} else if (fileName.endsWith(manifestSuffix)) {
+					intact = checkManifest(hash, file, result);
+				} else {
+					ContentEncoding encoding = ContentEncodingFactory.createEncoding(fileName.substring(dot + 1));
+					if (encoding == null) {
+						result.skipped.increment();
+						continue;
+					}
+					intact = hash.equals(hashOf(file, encoding, result));
+					if (!intact) {
+						// Content stored only in this encoding is lost with it
+						Path manifestPath = store.getContentPath(hash.getString() + manifestSuffix);
+						if (encoding.getName().equals(getAtRestEncodingName(manifestPath))) {
+							damaged(manifestPath, result);
+						}
+					}
+				}
+				result.examined.increment();
+				if (!intact) {
+					damaged(file, result);
+				}
+			} catch (NoSuchFileException e) {
+				// Deleted since it was listed
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the manifest can be read and everything it refers to
+	 *         is there
+	 */
+	private boolean checkManifest(Hash hash, Path file, Result result) throws IOException {
+		ContentManifest manifest;
+		try {
+			manifest = ContentManifest.read(file);
+		} catch (NoSuchFileException e) {
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+		throttle(Files.size(file), result);
+		if (manifest.isChunked()) {
+			for (Hash chunk : manifest.getChunkHashes()) {
+				if (!Files.exists(store.getChunkPath(chunk.getString()))) {
+					return false;
+				}
+			}
+			return true;
+		}
+		return Files.exists(store.getContentPath(hash.getString() + "." + manifest.getEncodingName()));
+	}
+
+	/**
+	 * @return The encoding a manifest says the content is stored in, or null
+	 *         if there is no such manifest
+	 */
+	private static String getAtRestEncodingName(Path manifestPath) {
+		try {
+			return ContentManifest.read(manifestPath).getEncodingName();
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The hash of the file, decoded first if an encoding is given, or
+	 *         null if it can't be read or decoded
+	 */
+	private Hash hashOf(Path file, ContentEncoding encoding, Result result) throws IOException {
+		MessageDigest messageDigest;
+		try {
+			messageDigest = MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+		try (InputStream fileInputStream = new ThrottledInputStream(Files.newInputStream(file), result);
+				InputStream inputStream = encoding == null ? fileInputStream : encoding.decode(fileInputStream);) {
+			byte[] buffer = new byte[bufferSize];
+			for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+				messageDigest.update(buffer, 0, n);
+			}
+		} catch (InterruptedIOException | NoSuchFileException e) {
+			throw e;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+		return new Hash(messageDigest.digest());
+	}
+
+	private void damaged(Path file, Result result) throws IOException {
+		// It may have been deleted after it was read, so wasn't damaged
+		if (!Files.exists(file) || result.damaged.contains(file)) {
+			return;
+		}
+		result.damaged.add(file);
+		if (quarantine && store.quarantine(file)) {
+			result.quarantined.increment();
+		}
+	}
+
+	/**
+	 * Counts and limits the bytes read through it.
+	 */
+	private class ThrottledInputStream extends FilterInputStream {
+		private final Result result;
+
+		ThrottledInputStream(InputStream inputStream, Result result) {
+			super(inputStream);
+			this.result = result;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				throttle(1, result);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				throttle(n, result);
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * Pause for as long as reading the bytes takes at the current rate,
+	 * which is the lower one if callers have used the store recently.
+	 */
+	private void throttle(long bytes, Result result) throws IOException {
+		result.bytesRead.add(bytes);
+		long delay;
+		synchronized (this) {
+			long now = System.nanoTime();
+			long operationCount = store.getOperationCount();
+			if (operationCount != lastOperationCount) {
+				lastOperationCount = operationCount;
+				lastActivity = now;
+			}
+			double rate = now - lastActivity < busyPeriod ? busyBytesPerSecond : bytesPerSecond;
+			due = Math.max(due, now) + (long) (bytes * 1e9 / rate);
+			delay = due - now;
+		}
+		sleep(delay);
+	}
+
+	private void checkClosed() throws IOException {
+		if (closed) {
+			throw new InterruptedIOException("Scrubber closed");
+		}
+	}
+
+	private void sleep(long nanos) throws IOException {
+		checkClosed();
+		if (nanos <= 0) {
+			return;
+		}
+		try {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/**
+	 * Stop scrubbing in the background. A scrub in progress stops at its
+	 * next pause.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = this.executor;
+			this.executor = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		ExecutorService workers = this.workers;
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+}
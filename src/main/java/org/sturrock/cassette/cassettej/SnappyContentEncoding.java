@@ -0,0 +1,52 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.iq80.snappy.SnappyFramedInputStream;
+import org.iq80.snappy.SnappyFramedOutputStream;
+
+/**
+ * Snappy in the framing format, which compresses far faster than gzip at the
+ * cost of a lower ratio. Useful where content is read back by clients that
+ * understand it, or just to reduce storage and network use cheaply. As there
+ * is no registered HTTP content coding for Snappy the name is an extension
+ * token.
+ */
+public class SnappyContentEncoding implements ContentEncoding {
+
+	public static final String name = "x-snappy-framed";
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public OutputStream encode(OutputStream stream) throws IOException {
+		return new SnappyFramedOutputStream(stream);
+	}
+
+	@Override
+	public InputStream decode(InputStream stream) throws IOException {
+		return new SnappyFramedInputStream(stream, true);
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		SnappyContentEncoding other = (SnappyContentEncoding) obj;
+		return this.getName().equals(other.getName());
+	}
+}
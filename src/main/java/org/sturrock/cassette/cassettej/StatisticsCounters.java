@@ -0,0 +1,231 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The running counts behind a store's StoreStatistics. Stores report each
+ * piece of content and each encoding they add or remove, along with a key
+ * saying where in the store it is, eg the prefix directory.
+ *
+ * The counts can be reconciled with what is actually in the store by an
+ * audit, which scans the store in key order while it keeps changing. Changes
+ * at keys the audit has already scanned, or at keys it isn't going to scan,
+ * are added to what it found, and changes at keys it has yet to reach are left
+ * for it to find. Only a change racing with the scan of its own key can be
+ * miscounted, and the next audit corrects it.
+ */
+final class StatisticsCounters {
+
+	private static final String contentCountKey = "contentCount";
+	private static final String contentBytesKey = "contentBytes";
+	private static final String encodingKeyPrefix = "encoding.";
+	private static final String countKeySuffix = ".count";
+	private static final String bytesKeySuffix = ".bytes";
+
+	/**
+	 * Counts of content, or of an encoding of it when the encoding name isn't
+	 * null.
+	 */
+	private static final class Totals {
+		private final LongAdder contentCount = new LongAdder();
+		private final LongAdder contentBytes = new LongAdder();
+		private final ConcurrentMap<String, LongAdder> encodedCounts = new ConcurrentHashMap<String, LongAdder>();
+		private final ConcurrentMap<String, LongAdder> encodedBytes = new ConcurrentHashMap<String, LongAdder>();
+
+		void add(String encodingName, long count, long bytes) {
+			if (encodingName == null) {
+				contentCount.add(count);
+				contentBytes.add(bytes);
+			} else {
+				encodedCounts.computeIfAbsent(encodingName, name -> new LongAdder()).add(count);
+				encodedBytes.computeIfAbsent(encodingName, name -> new LongAdder()).add(bytes);
+			}
+		}
+
+		private void addAll(Totals totals) {
+			add(null, totals.contentCount.sum(), totals.contentBytes.sum());
+			for (Map.Entry<String, LongAdder> entry : totals.encodedCounts.entrySet()) {
+				add(entry.getKey(), entry.getValue().sum(), totals.encodedBytes.get(entry.getKey()).sum());
+			}
+		}
+
+		private StoreStatistics toStatistics(boolean exact) {
+			Map<String, Long> counts = new HashMap<String, Long>();
+			Map<String, Long> bytes = new HashMap<String, Long>();
+			for (Map.Entry<String, LongAdder> entry : encodedCounts.entrySet()) {
+				long count = entry.getValue().sum();
+				// Leave out encodings that have all been deleted
+				if (count != 0) {
+					counts.put(entry.getKey(), count);
+					bytes.put(entry.getKey(), encodedBytes.get(entry.getKey()).sum());
+				}
+			}
+			return new StoreStatistics(contentCount.sum(), contentBytes.sum(), counts, bytes, exact);
+		}
+	}
+
+	/**
+	 * An audit in progress.
+	 */
+	final class Audit {
+		private final Totals found = new Totals();
+		private final Totals changed = new Totals();
+		private Set<String> keys;
+		private String scanned;
+
+		/**
+		 * Say which keys are going to be scanned. Until this is called
+		 * changes are left for the scan to find.
+		 */
+		synchronized void setKeys(Collection<String> keys) {
+			this.keys = new HashSet<String>(keys);
+		}
+
+		/**
+		 * Count content, or an encoding of it, found by the scan.
+		 */
+		void found(String encodingName, long bytes) {
+			found.add(encodingName, 1, bytes);
+		}
+
+		/**
+		 * Record that everything at keys up to and including this one has
+		 * been scanned.
+		 */
+		synchronized void scanned(String key) {
+			scanned = key;
+		}
+
+		private synchronized void change(String key, String encodingName, long count, long bytes) {
+			totals.add(encodingName, count, bytes);
+			if (keys != null && (!keys.contains(key) || (scanned != null && key.compareTo(scanned) <= 0))) {
+				changed.add(encodingName, count, bytes);
+			}
+		}
+
+		/**
+		 * Replace the counts with what the scan found.
+		 */
+		synchronized void finish() {
+			found.addAll(changed);
+			totals = found;
+			exact = true;
+			audit = null;
+		}
+
+		/**
+		 * Stop the audit, leaving the counts as they were.
+		 */
+		synchronized void abort() {
+			audit = null;
+		}
+	}
+
+	private volatile Totals totals = new Totals();
+	private volatile boolean exact = true;
+	private volatile Audit audit;
+
+	void contentAdded(String key, long bytes) {
+		change(key, null, 1, bytes);
+	}
+
+	void contentRemoved(String key, long bytes) {
+		change(key, null, -1, -bytes);
+	}
+
+	void encodingAdded(String key, String encodingName, long bytes) {
+		change(key, encodingName, 1, bytes);
+	}
+
+	void encodingRemoved(String key, String encodingName, long bytes) {
+		change(key, encodingName, -1, -bytes);
+	}
+
+	private void change(String key, String encodingName, long count, long bytes) {
+		Audit audit = this.audit;
+		if (audit == null) {
+			totals.add(encodingName, count, bytes);
+		} else {
+			audit.change(key, encodingName, count, bytes);
+		}
+	}
+
+	/**
+	 * @return The current counts
+	 */
+	StoreStatistics getStatistics() {
+		return totals.toStatistics(exact);
+	}
+
+	boolean isExact() {
+		return exact;
+	}
+
+	/**
+	 * @param exact
+	 *            false if the counts may have drifted from the store
+	 */
+	void setExact(boolean exact) {
+		this.exact = exact;
+	}
+
+	/**
+	 * Start an audit. Only one audit may run at a time.
+	 *
+	 * @return The audit, which the caller must finish or abort
+	 */
+	synchronized Audit startAudit() {
+		if (audit != null)
+			throw new IllegalStateException("Audit already running");
+		audit = new Audit();
+		return audit;
+	}
+
+	/**
+	 * @return The current counts as properties, for saving
+	 */
+	Properties toProperties() {
+		StoreStatistics statistics = getStatistics();
+		Properties properties = new Properties();
+		properties.setProperty(contentCountKey, Long.toString(statistics.getContentCount()));
+		properties.setProperty(contentBytesKey, Long.toString(statistics.getContentBytes()));
+		for (String encodingName : statistics.getEncodingNames()) {
+			properties.setProperty(encodingKeyPrefix + encodingName + countKeySuffix,
+					Long.toString(statistics.getEncodedCount(encodingName)));
+			properties.setProperty(encodingKeyPrefix + encodingName + bytesKeySuffix,
+					Long.toString(statistics.getEncodedBytes(encodingName)));
+		}
+		return properties;
+	}
+
+	/**
+	 * Replace the counts with ones saved by toProperties.
+	 */
+	void load(Properties properties) {
+		Totals loaded = new Totals();
+		loaded.add(null, parse(properties, contentCountKey), parse(properties, contentBytesKey));
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(encodingKeyPrefix) && key.endsWith(countKeySuffix)) {
+				String encodingName = key.substring(encodingKeyPrefix.length(), key.length() - countKeySuffix.length());
+				loaded.add(encodingName, parse(properties, key),
+						parse(properties, encodingKeyPrefix + encodingName + bytesKeySuffix));
+			}
+		}
+		totals = loaded;
+	}
+
+	private static long parse(Properties properties, String key) {
+		String value = properties.getProperty(key);
+		if (value == null)
+			throw new IllegalArgumentException("No property " + key + " found");
+		return Long.parseLong(value);
+	}
+}
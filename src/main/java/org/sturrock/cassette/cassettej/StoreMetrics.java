@@ -0,0 +1,113 @@
+package org.sturrock.cassette.cassettej;
+
+/**
+ * Receives measurements of what a store is doing. Set on a store with
+ * {@link ContentAddressableStoreImpl#setMetrics(StoreMetrics)}, which defaults
+ * to {@link #NONE}. {@link JmxStoreMetrics} keeps the measurements and
+ * exposes them over JMX, or implement this to feed another metrics library.
+ * 
+ * Methods are called on the threads doing the work, so must be thread safe
+ * and should be cheap.
+ */
+public interface StoreMetrics {
+
+	/**
+	 * The encoding name used for raw content.
+	 */
+	String IDENTITY = "identity";
+
+	/**
+	 * Metrics that discard everything.
+	 */
+	StoreMetrics NONE = new StoreMetrics() {
+		@Override
+		public void operationStarted(StoreOperation operation) {
+		}
+
+		@Override
+		public void operationCompleted(StoreOperation operation, long nanos, boolean failed) {
+		}
+
+		@Override
+		public void contentAdded() {
+		}
+
+		@Override
+		public void bytesIn(String encodingName, long bytes) {
+		}
+
+		@Override
+		public void bytesOut(String encodingName, long bytes) {
+		}
+
+		@Override
+		public void encoded(String encodingName, long rawBytes, long cpuNanos) {
+		}
+
+		@Override
+		public void encodingSkipped(String encodingName, long rawBytes) {
+		}
+	};
+
+	/**
+	 * @param operation
+	 *            An operation which has started
+	 */
+	void operationStarted(StoreOperation operation);
+
+	/**
+	 * @param operation
+	 *            An operation which has finished
+	 * @param nanos
+	 *            How long it took
+	 * @param failed
+	 *            Whether it threw an exception
+	 */
+	void operationCompleted(StoreOperation operation, long nanos, boolean failed);
+
+	/**
+	 * A write stored content that wasn't already in the store. Writes that
+	 * don't call this found their content already there.
+	 */
+	void contentAdded();
+
+	/**
+	 * @param encodingName
+	 *            The encoding of the content written, or {@link #IDENTITY}
+	 * @param bytes
+	 *            The number of bytes written to the store
+	 */
+	void bytesIn(String encodingName, long bytes);
+
+	/**
+	 * @param encodingName
+	 *            The encoding of the content read, or {@link #IDENTITY}
+	 * @param bytes
+	 *            The number of bytes read from the store
+	 */
+	void bytesOut(String encodingName, long bytes);
+
+	/**
+	 * The store produced an encoding of some content.
+	 * 
+	 * @param encodingName
+	 *            The encoding
+	 * @param rawBytes
+	 *            The length of the content encoded
+	 * @param cpuNanos
+	 *            The CPU time spent encoding, or the elapsed time if the JVM
+	 *            doesn't measure thread CPU time
+	 */
+	void encoded(String encodingName, long rawBytes, long cpuNanos);
+
+	/**
+	 * The store's {@link EncodingPolicy} decided an encoding of some content
+	 * wasn't worth producing.
+	 * 
+	 * @param encodingName
+	 *            The encoding
+	 * @param rawBytes
+	 *            The length of the content which wasn't encoded
+	 */
+	void encodingSkipped(String encodingName, long rawBytes);
+}
@@ -0,0 +1,9 @@
+package org.sturrock.cassette.cassettej;
+
+/**
+ * The operations of a {@link ContentAddressableStore} that are reported to
+ * {@link StoreMetrics}.
+ */
+public enum StoreOperation {
+	WRITE, WRITE_ENCODED, CONTAINS, READ, GET_CONTENT_LENGTH, GET_HASHES, DELETE, DELETE_ALL, WRITE_EXPECTED;
+}
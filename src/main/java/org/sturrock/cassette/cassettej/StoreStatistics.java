@@ -0,0 +1,89 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A snapshot of how much content a store holds: the number of pieces of
+ * content and their total raw length, and for each encoding the number of
+ * encoded copies and their total length. Maintained by the store as content
+ * is written and deleted, so getting one doesn't need a scan of the store.
+ */
+public final class StoreStatistics {
+	private final long contentCount;
+	private final long contentBytes;
+	private final Map<String, Long> encodedCounts;
+	private final Map<String, Long> encodedBytes;
+	private final boolean exact;
+
+	StoreStatistics(long contentCount, long contentBytes, Map<String, Long> encodedCounts,
+			Map<String, Long> encodedBytes, boolean exact) {
+		this.contentCount = contentCount;
+		this.contentBytes = contentBytes;
+		this.encodedCounts = Collections.unmodifiableMap(new TreeMap<String, Long>(encodedCounts));
+		this.encodedBytes = Collections.unmodifiableMap(new TreeMap<String, Long>(encodedBytes));
+		this.exact = exact;
+	}
+
+	/**
+	 * @return The number of pieces of content in the store
+	 */
+	public long getContentCount() {
+		return contentCount;
+	}
+
+	/**
+	 * @return The total raw length of the content in the store
+	 */
+	public long getContentBytes() {
+		return contentBytes;
+	}
+
+	/**
+	 * @return The names of the encodings the store holds content in
+	 */
+	public Set<String> getEncodingNames() {
+		return encodedCounts.keySet();
+	}
+
+	/**
+	 * @return The number of pieces of content held in the encoding
+	 */
+	public long getEncodedCount(String encodingName) {
+		Long count = encodedCounts.get(encodingName);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * @return The total length of the content held in the encoding
+	 */
+	public long getEncodedBytes(String encodingName) {
+		Long bytes = encodedBytes.get(encodingName);
+		return bytes == null ? 0 : bytes;
+	}
+
+	/**
+	 * @return false if the counts may have drifted from what is actually in
+	 *         the store, eg because they were restored after the store wasn't
+	 *         closed cleanly and haven't been audited since
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(contentCount).append(" items, ").append(contentBytes).append(" bytes");
+		for (String encodingName : encodedCounts.keySet()) {
+			builder.append(", ").append(encodingName).append(": ").append(getEncodedCount(encodingName))
+					.append(" items, ").append(getEncodedBytes(encodingName)).append(" bytes");
+		}
+		if (!exact) {
+			builder.append(" (approximate)");
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,194 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Merkle summary of what a file store holds, so two stores can find how
+ * they differ without listing all their hashes. The leaves are the prefix
+ * directories, each summarised by a digest of the names of the content and
+ * encodings in it. Those are grouped by the first two characters of the
+ * prefix, and the groups are summarised by the root. Stores with the same
+ * root hold the same content in the same encodings; otherwise comparing the
+ * children of the nodes that differ leads to the prefix directories that do.
+ *
+ * Names are used rather than the files, so content counts the same whether
+ * it is stored raw, chunked or in an at rest encoding. Digests of prefix
+ * directories are cached until the directory is modified.
+ */
+public final class StoreSummary {
+
+	/**
+	 * Length of the name of a group of prefix directories.
+	 */
+	public static final int groupLength = 2;
+
+	/**
+	 * The coarsest modification time resolution of the file systems a store
+	 * may be on. A directory modified this recently may be modified again
+	 * without its time changing, so its digest isn't cached.
+	 */
+	private static final long timeResolution = TimeUnit.SECONDS.toMillis(2);
+
+	private static final class CachedDigest {
+		private final FileTime lastModified;
+		private final Hash digest;
+
+		CachedDigest(FileTime lastModified, Hash digest) {
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+	private final ContentAddressableStoreFileImpl store;
+	private final ConcurrentMap<String, CachedDigest> digests = new ConcurrentHashMap<String, CachedDigest>();
+
+	StoreSummary(ContentAddressableStoreFileImpl store) {
+		this.store = store;
+	}
+
+	/**
+	 * @return The digest of the whole store, or null if it is empty
+	 */
+	public Hash getRoot() throws IOException {
+		return digest(getChildren(""));
+	}
+
+	/**
+	 * @param node
+	 *            The empty string for the root, or the name of a group
+	 * @return The digests of the groups under the root, or of the prefix
+	 *         directories in a group, by name. Empty ones are left out.
+	 */
+	public SortedMap<String, Hash> getChildren(String node) throws IOException {
+		if (node == null || (node.length() != 0 && node.length() != groupLength) || !node.matches("[0-9A-F]*"))
+			throw new IllegalArgumentException("node");
+
+		SortedMap<String, Hash> prefixes = new TreeMap<String, Hash>();
+		// Only the group's own directories, as there can be thousands
+		for (Path directory : store.getPrefixDirectories(store.getRootPath(), node)) {
+			String prefix = directory.getFileName().toString();
+			if (prefix.length() == store.hashPrefixLength) {
+				Hash digest = getDigest(directory);
+				if (digest != null) {
+					prefixes.put(prefix, digest);
+				}
+			}
+		}
+		if (node.length() == groupLength) {
+			return prefixes;
+		}
+
+		SortedMap<String, Hash> groups = new TreeMap<String, Hash>();
+		while (!prefixes.isEmpty()) {
+			String group = prefixes.firstKey().substring(0, groupLength);
+			SortedMap<String, Hash> children = prefixes.subMap(group, group + Character.MAX_VALUE);
+			groups.put(group, digest(children));
+			children.clear();
+		}
+		return groups;
+	}
+
+	/**
+	 * @param prefix
+	 *            The name of a prefix directory
+	 * @return The hash strings of the content in the prefix directory, and
+	 *         the hash string and name of each encoding of it separated by a
+	 *         dot
+	 */
+	public SortedSet<String> getEntries(String prefix) throws IOException {
+		if (prefix == null || prefix.length() != store.hashPrefixLength)
+			throw new IllegalArgumentException("prefix");
+		return getEntries(store.getRootPath().resolve(prefix));
+	}
+
+	private SortedSet<String> getEntries(Path directory) throws IOException {
+		String prefix = directory.getFileName().toString();
+		String manifestSuffix = ContentAddressableStoreFileImpl.getManifestSuffix();
+		SortedSet<String> entries = new TreeSet<String>();
+		for (Path file : store.listFiles(directory)) {
+			String fileName = file.getFileName().toString();
+			// Chunked content is listed by its manifest
+			if (fileName.endsWith(manifestSuffix)) {
+				fileName = fileName.substring(0, fileName.length() - manifestSuffix.length());
+			}
+			int dot = fileName.indexOf('.');
+			if ((dot == -1 ? fileName.length() : dot) + prefix.length() == Hash.byteCount * 2) {
+				entries.add(prefix + fileName);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The digest of the entries in a prefix directory, or null if
+	 *         there are none
+	 */
+	private Hash getDigest(Path directory) throws IOException {
+		String prefix = directory.getFileName().toString();
+		FileTime lastModified;
+		try {
+			lastModified = Files.getLastModifiedTime(directory);
+		} catch (NoSuchFileException e) {
+			digests.remove(prefix);
+			return null;
+		}
+		CachedDigest cached = digests.get(prefix);
+		if (cached != null && cached.lastModified.equals(lastModified)) {
+			return cached.digest;
+		}
+
+		long started = System.currentTimeMillis();
+		MessageDigest messageDigest = createMessageDigest();
+		SortedSet<String> entries = getEntries(directory);
+		for (String entry : entries) {
+			messageDigest.update((entry + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		Hash digest = entries.isEmpty() ? null : new Hash(messageDigest.digest());
+
+		if (lastModified.toMillis() < started - timeResolution) {
+			digests.put(prefix, new CachedDigest(lastModified, digest));
+		} else {
+			digests.remove(prefix);
+		}
+		return digest;
+	}
+
+	/**
+	 * @return The digest of the names and digests of some nodes, or null if
+	 *         there are none
+	 */
+	private static Hash digest(Map<String, Hash> nodes) {
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		MessageDigest messageDigest = createMessageDigest();
+		for (Map.Entry<String, Hash> node : nodes.entrySet()) {
+			messageDigest.update((node.getKey() + " " + node.getValue().getString() + "\n")
+					.getBytes(StandardCharsets.UTF_8));
+		}
+		return new Hash(messageDigest.digest());
+	}
+
+	private static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
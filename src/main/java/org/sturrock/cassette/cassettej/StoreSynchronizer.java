@@ -0,0 +1,316 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies the content a file store is missing from another, along with any
+ * encodings of it that it is missing. The stores' summaries are compared from
+ * the root down, so only the prefix directories which differ are listed, and
+ * those are copied in parallel. Files are copied with channel transfers, so
+ * the operating system can copy them without them passing through the JVM.
+ *
+ * Synchronizing only adds to the target; content which is only in the target
+ * is left there. Copied content is hashed again as it is stored, so damage in
+ * the source isn't spread to the target.
+ */
+public class StoreSynchronizer {
+
+	/**
+	 * Name of the property specifying the number of threads copying prefix
+	 * directories. Defaults to 4.
+	 */
+	public final static String threadsPropertyName = StoreSynchronizer.class.getName() + ".threads";
+
+	/**
+	 * What a synchronization compared and copied.
+	 */
+	public static class Result {
+		private final LongAdder prefixesCompared = new LongAdder();
+		private final LongAdder prefixesDiffering = new LongAdder();
+		private final LongAdder contentCopied = new LongAdder();
+		private final LongAdder encodingsCopied = new LongAdder();
+		private final LongAdder bytesCopied = new LongAdder();
+		private final List<Hash> damaged = Collections.synchronizedList(new ArrayList<Hash>());
+		private long durationNanos;
+
+		/**
+		 * @return The number of prefix directories whose summaries were
+		 *         compared
+		 */
+		public long getPrefixesCompared() {
+			return prefixesCompared.sum();
+		}
+
+		/**
+		 * @return The number of prefix directories which were listed because
+		 *         their summaries differed
+		 */
+		public long getPrefixesDiffering() {
+			return prefixesDiffering.sum();
+		}
+
+		public long getContentCopied() {
+			return contentCopied.sum();
+		}
+
+		public long getEncodingsCopied() {
+			return encodingsCopied.sum();
+		}
+
+		public long getBytesCopied() {
+			return bytesCopied.sum();
+		}
+
+		/**
+		 * @return Content in the source which didn't match its hash, so
+		 *         wasn't copied
+		 */
+		public List<Hash> getDamaged() {
+			synchronized (damaged) {
+				return new ArrayList<Hash>(damaged);
+			}
+		}
+
+		public long getDurationNanos() {
+			return durationNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(
+					"prefixesCompared=%d prefixesDiffering=%d contentCopied=%d encodingsCopied=%d bytesCopied=%d damaged=%d seconds=%.3f",
+					getPrefixesCompared(), getPrefixesDiffering(), getContentCopied(), getEncodingsCopied(),
+					getBytesCopied(), damaged.size(), durationNanos / 1e9);
+		}
+	}
+
+	private final ContentAddressableStoreFileImpl source;
+	private final ContentAddressableStoreFileImpl target;
+	private final int threads;
+
+	/**
+	 * @param source
+	 *            The store to copy from
+	 * @param target
+	 *            The store to copy to
+	 * @param properties
+	 *            <code>threadsPropertyName</code>, optional
+	 */
+	public StoreSynchronizer(ContentAddressableStoreFileImpl source, ContentAddressableStoreFileImpl target,
+			Properties properties) {
+		if (source == null)
+			throw new IllegalArgumentException("source");
+		if (target == null)
+			throw new IllegalArgumentException("target");
+		if (source == target)
+			throw new IllegalArgumentException("source and target are the same store");
+		if (properties == null)
+			throw new IllegalArgumentException("properties");
+		this.source = source;
+		this.target = target;
+		threads = Integer.parseInt(properties.getProperty(threadsPropertyName, "4"));
+		if (threads <= 0)
+			throw new IllegalArgumentException(threadsPropertyName);
+	}
+
+	/**
+	 * Copy everything the target is missing from the source, returning when
+	 * it is done.
+	 */
+	public Result synchronize() throws IOException {
+		Result result = new Result();
+		long start = System.nanoTime();
+
+		StoreSummary sourceSummary = source.getSummary();
+		StoreSummary targetSummary = target.getSummary();
+		List<String> prefixes = new ArrayList<String>();
+		Hash sourceRoot = sourceSummary.getRoot();
+		if (sourceRoot != null && !sourceRoot.equals(targetSummary.getRoot())) {
+			for (String group : getDiffering(sourceSummary.getChildren(""), targetSummary.getChildren(""))) {
+				SortedMap<String, Hash> sourcePrefixes = sourceSummary.getChildren(group);
+				result.prefixesCompared.add(sourcePrefixes.size());
+				prefixes.addAll(getDiffering(sourcePrefixes, targetSummary.getChildren(group)));
+			}
+		}
+		result.prefixesDiffering.add(prefixes.size());
+
+		if (!prefixes.isEmpty()) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			ExecutorService workers = Executors.newFixedThreadPool(Math.min(threads, prefixes.size()), runnable -> {
+				Thread thread = new Thread(runnable, "CassetteJ-sync-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				List<Future<Void>> futures = new ArrayList<Future<Void>>(prefixes.size());
+				for (String prefix : prefixes) {
+					futures.add(workers.submit(() -> {
+						synchronize(prefix, result);
+						return null;
+					}));
+				}
+				for (Future<Void> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw new IOException(cause);
+			} finally {
+				workers.shutdownNow();
+			}
+		}
+
+		result.durationNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	/**
+	 * @return The names of the source's nodes which the target doesn't have
+	 *         or has with a different digest
+	 */
+	private static List<String> getDiffering(SortedMap<String, Hash> sourceNodes, SortedMap<String, Hash> targetNodes) {
+		List<String> differing = new ArrayList<String>();
+		for (Map.Entry<String, Hash> node : sourceNodes.entrySet()) {
+			if (!node.getValue().equals(targetNodes.get(node.getKey()))) {
+				differing.add(node.getKey());
+			}
+		}
+		return differing;
+	}
+
+	/**
+	 * Copy the content and encodings in a prefix directory of the source that
+	 * aren't in the target.
+	 */
+	private void synchronize(String prefix, Result result) throws IOException {
+		SortedSet<String> targetEntries = target.getSummary().getEntries(prefix);
+		// Content sorts before its encodings, so is copied first
+		for (String entry : source.getSummary().getEntries(prefix)) {
+			if (!targetEntries.contains(entry)) {
+				copy(entry, result);
+			}
+		}
+	}
+
+	/**
+	 * Copy an entry of the source's summary, which is either content or an
+	 * encoding of it, unless the target already has it. Encodings are only
+	 * copied once the target has their content.
+	 */
+	void copy(String entry, Result result) throws IOException {
+		int dot = entry.indexOf('.');
+		try {
+			if (dot == -1) {
+				Hash hash = new Hash(entry);
+				if (!target.contains(hash)) {
+					copyContent(hash, result);
+				}
+			} else {
+				copyEncoding(new Hash(entry.substring(0, dot)), entry.substring(dot + 1), result);
+			}
+		} catch (NoSuchFileException e) {
+			// Deleted from the source since it was listed
+		}
+	}
+
+	private void copyContent(Hash hash, Result result) throws IOException {
+		Path tmpFile = Files.createTempFile(target.getRootPath(), "tmp", ".tmp");
+		try {
+			Path contentPath = source.getContentPath(hash.getString());
+			long length;
+			if (Files.exists(contentPath)) {
+				length = transfer(contentPath, tmpFile);
+			} else {
+				// Chunked or stored in an encoding, so put it back together
+				try (InputStream inputStream = source.read(hash);) {
+					if (inputStream == null) {
+						return;
+					}
+					length = Files.copy(inputStream, tmpFile, StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			try {
+				target.writeFile(tmpFile, hash);
+			} catch (HashMismatchException e) {
+				// Damaged in the source, so rather than store it under
+				// another hash leave it for the scrubber
+				result.damaged.add(hash);
+				return;
+			}
+			result.contentCopied.increment();
+			result.bytesCopied.add(length);
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	private void copyEncoding(Hash hash, String encodingName, Result result) throws IOException {
+		String encodedName = hash.getString() + "." + encodingName;
+		if (!target.contains(hash) || Files.exists(target.getContentPath(encodedName))) {
+			// Not copied, or the target encoded it itself
+			return;
+		}
+		Path tmpFile = Files.createTempFile(target.getRootPath(), "tmp", ".tmp");
+		try {
+			long length = transfer(source.getContentPath(encodedName), tmpFile);
+			if (target.writeEncodingFile(hash, encodingName, tmpFile)) {
+				result.encodingsCopied.increment();
+				result.bytesCopied.add(length);
+			}
+		} finally {
+			Files.deleteIfExists(tmpFile);
+		}
+	}
+
+	/**
+	 * Copy a file with a channel transfer.
+	 *
+	 * @return The number of bytes copied
+	 */
+	private static long transfer(Path from, Path to) throws IOException {
+		try (FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);) {
+			long size = in.size();
+			long position = 0;
+			while (position < size) {
+				long n = in.transferTo(position, size - position, out);
+				if (n <= 0) {
+					// Truncated since its size was read
+					throw new EOFException();
+				}
+				position += n;
+			}
+			return size;
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.InputStream;
+
+/**
+ * Text-like content of a given length generated from a seed, so the same
+ * seed and length always give the same content. It compresses roughly as
+ * well as English text.
+ */
+class SyntheticContentInputStream extends InputStream {
+
+	private static final byte[][] words;
+
+	static {
+		String[] strings = { "the ", "of ", "and ", "to ", "in ", "is ", "that ", "for ", "content ", "store ",
+				"hash ", "stream ", "encoding ", "write ", "read ", "cache ", "file ", "node ", "cluster ", "chunk ",
+				"with ", "as ", "by ", "on ", "this ", "from ", "which ", "be ", "are ", "at ", "or ", ".\n" };
+		words = new byte[strings.length][];
+		for (int i = 0; i < strings.length; i++) {
+			words[i] = strings[i].getBytes();
+		}
+	}
+
+	private final long length;
+	private long position;
+	private long state;
+	private byte[] word = new byte[0];
+	private int wordPosition;
+
+	SyntheticContentInputStream(long seed, long length) {
+		if (length < 0)
+			throw new IllegalArgumentException("length");
+		this.length = length;
+		// xorshift needs a non-zero state
+		this.state = seed == 0 ? 0x9E3779B97F4A7C15L : seed;
+	}
+
+	private byte nextByte() {
+		if (wordPosition == word.length) {
+			state ^= state << 13;
+			state ^= state >>> 7;
+			state ^= state << 17;
+			word = words[(int) (state >>> 59)];
+			wordPosition = 0;
+		}
+		return word[wordPosition++];
+	}
+
+	@Override
+	public int read() {
+		if (position == length) {
+			return -1;
+		}
+		position++;
+		return nextByte() & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (position == length) {
+			return -1;
+		}
+		int n = (int) Math.min(len, length - position);
+		for (int i = 0; i < n; i++) {
+			b[off + i] = nextByte();
+		}
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, length - position);
+	}
+}
@@ -0,0 +1,148 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One call on a store in a workload trace. A trace is text with one record
+ * per line, tab separated:
+ * 
+ * <pre>
+ * start-nanos duration-nanos operation hash size encodings result
+ * </pre>
+ * 
+ * where hash is - for {@link StoreOperation#GET_HASHES}, size is -1 if
+ * unknown, encodings is a comma separated list of encoding names or - if
+ * none and result is ok or failed.
+ */
+public final class TraceRecord {
+
+	private static final String none = "-";
+
+	private final long startNanos;
+	private final long durationNanos;
+	private final StoreOperation operation;
+	private final Hash hash;
+	private final long size;
+	private final List<String> encodingNames;
+	private final boolean failed;
+
+	/**
+	 * @param startNanos
+	 *            When the call started, relative to the start of the trace
+	 * @param durationNanos
+	 *            How long the call took
+	 * @param hash
+	 *            The hash the call was for, or null
+	 * @param size
+	 *            The number of bytes written or read, the number of hashes
+	 *            for {@link StoreOperation#GET_HASHES}, or -1 if unknown
+	 * @param encodingNames
+	 *            The encodings requested, written or read
+	 * @param failed
+	 *            Whether the call threw an exception
+	 */
+	public TraceRecord(long startNanos, long durationNanos, StoreOperation operation, Hash hash, long size,
+			List<String> encodingNames, boolean failed) {
+		if (operation == null)
+			throw new IllegalArgumentException("operation");
+		if (encodingNames == null)
+			encodingNames = Collections.emptyList();
+		for (String encodingName : encodingNames) {
+			if (encodingName.isEmpty() || encodingName.equals(none) || encodingName.matches(".*[,\\s].*"))
+				throw new IllegalArgumentException("encodingNames");
+		}
+		this.startNanos = startNanos;
+		this.durationNanos = durationNanos;
+		this.operation = operation;
+		this.hash = hash;
+		this.size = size;
+		this.encodingNames = Collections.unmodifiableList(new ArrayList<String>(encodingNames));
+		this.failed = failed;
+	}
+
+	/**
+	 * @param line
+	 *            A line of a trace
+	 * @return The record the line holds
+	 */
+	public static TraceRecord parse(String line) {
+		String[] fields = line.split("\t");
+		if (fields.length != 7)
+			throw new IllegalArgumentException("Expected 7 fields in trace record: " + line);
+		try {
+			long startNanos = Long.parseLong(fields[0]);
+			long durationNanos = Long.parseLong(fields[1]);
+			StoreOperation operation = StoreOperation.valueOf(fields[2]);
+			Hash hash = fields[3].equals(none) ? null : new Hash(fields[3]);
+			long size = Long.parseLong(fields[4]);
+			List<String> encodingNames = fields[5].equals(none) ? Collections.<String>emptyList()
+					: Arrays.asList(fields[5].split(","));
+			boolean failed;
+			if (fields[6].equals("ok")) {
+				failed = false;
+			} else if (fields[6].equals("failed")) {
+				failed = true;
+			} else {
+				throw new IllegalArgumentException("Unknown result " + fields[6]);
+			}
+			return new TraceRecord(startNanos, durationNanos, operation, hash, size, encodingNames, failed);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Bad trace record: " + line, e);
+		}
+	}
+
+	public long getStartNanos() {
+		return startNanos;
+	}
+
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	public StoreOperation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return The hash the call was for, or null for
+	 *         {@link StoreOperation#GET_HASHES}
+	 */
+	public Hash getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return The number of bytes written or read, the number of hashes for
+	 *         {@link StoreOperation#GET_HASHES}, or -1 if unknown
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	public List<String> getEncodingNames() {
+		return encodingNames;
+	}
+
+	public boolean isFailed() {
+		return failed;
+	}
+
+	/**
+	 * @return The record as a line of a trace, without the line separator
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(startNanos).append('\t');
+		builder.append(durationNanos).append('\t');
+		builder.append(operation.name()).append('\t');
+		builder.append(hash == null ? none : hash.getString()).append('\t');
+		builder.append(size).append('\t');
+		builder.append(encodingNames.isEmpty() ? none : String.join(",", encodingNames)).append('\t');
+		builder.append(failed ? "failed" : "ok");
+		return builder.toString();
+	}
+}
@@ -0,0 +1,91 @@
+package org.sturrock.cassette.cassettej;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic traces for {@link WorkloadReplayer} when there is no
+ * recorded trace. Of the calls which aren't writes, 80% are reads, 15%
+ * contains and 5% getContentLength, all of content written earlier in the
+ * trace. Sizes are spread evenly on a log scale between the minimum and
+ * maximum, so there are as many 1-10KiB pieces of content as 10-100KiB.
+ */
+public final class WorkloadGenerator {
+
+	private WorkloadGenerator() {
+	}
+
+	/**
+	 * @param operations
+	 *            The number of calls
+	 * @param writeRatio
+	 *            The fraction of calls which are writes
+	 * @param duplicateRatio
+	 *            The fraction of writes which are of content already written
+	 * @param minSize
+	 *            The smallest content
+	 * @param maxSize
+	 *            The largest content
+	 * @param seed
+	 *            The same seed and other arguments give the same trace
+	 * @return The trace
+	 */
+	public static List<TraceRecord> generate(int operations, double writeRatio, double duplicateRatio, long minSize,
+			long maxSize, long seed) {
+		if (operations < 0)
+			throw new IllegalArgumentException("operations");
+		if (writeRatio <= 0 || writeRatio > 1)
+			throw new IllegalArgumentException("writeRatio");
+		if (duplicateRatio < 0 || duplicateRatio > 1)
+			throw new IllegalArgumentException("duplicateRatio");
+		if (minSize < 1 || maxSize < minSize)
+			throw new IllegalArgumentException("minSize");
+
+		Random random = new Random(seed);
+		List<TraceRecord> records = new ArrayList<TraceRecord>(operations);
+		List<Hash> hashes = new ArrayList<Hash>();
+		List<Long> sizes = new ArrayList<Long>();
+		List<String> noEncodings = Collections.emptyList();
+		double logMin = Math.log(minSize);
+		double logRange = Math.log(maxSize) - logMin;
+
+		for (int i = 0; i < operations; i++) {
+			double choice = random.nextDouble();
+			if (hashes.isEmpty() || choice < writeRatio) {
+				Hash hash;
+				long size;
+				if (!hashes.isEmpty() && random.nextDouble() < duplicateRatio) {
+					int index = random.nextInt(hashes.size());
+					hash = hashes.get(index);
+					size = sizes.get(index);
+				} else {
+					// Stands in for the hash of some content, the replayer
+					// generates content for it
+					byte[] bytes = new byte[Hash.byteCount];
+					random.nextBytes(bytes);
+					hash = new Hash(bytes);
+					size = Math.min(maxSize, Math.round(Math.exp(logMin + random.nextDouble() * logRange)));
+					hashes.add(hash);
+					sizes.add(size);
+				}
+				records.add(new TraceRecord(0, 0, StoreOperation.WRITE, hash, size, noEncodings, false));
+				continue;
+			}
+
+			int index = random.nextInt(hashes.size());
+			Hash hash = hashes.get(index);
+			long size = sizes.get(index);
+			double other = (choice - writeRatio) / (1 - writeRatio);
+			if (other < 0.8) {
+				records.add(new TraceRecord(0, 0, StoreOperation.READ, hash, size, noEncodings, false));
+			} else if (other < 0.95) {
+				records.add(new TraceRecord(0, 0, StoreOperation.CONTAINS, hash, -1, noEncodings, false));
+			} else {
+				records.add(new TraceRecord(0, 0, StoreOperation.GET_CONTENT_LENGTH, hash, size, noEncodings, false));
+			}
+		}
+		return records;
+	}
+}
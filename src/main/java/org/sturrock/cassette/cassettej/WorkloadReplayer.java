@@ -0,0 +1,461 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Replays a trace recorded by {@link RecordingContentAddressableStore}, or
+ * generated by {@link WorkloadGenerator}, against a store and measures the
+ * throughput and latency.
+ * 
+ * Content isn't in the trace, so the replayer generates content of the
+ * recorded size for each recorded hash, and uses the same content every time
+ * the hash appears so duplicate writes are still duplicates. Content the
+ * trace uses before writing is written before the replay starts. Failed calls
+ * in the trace are skipped, as are encodings not registered with
+ * {@link ContentEncodingFactory}.
+ * 
+ * With a rate, call i is due at i / rate seconds from the start and its
+ * latency is measured from when it was due rather than when it was made, so
+ * time spent waiting for a free thread counts. Without one, each thread makes
+ * the next call as soon as its last one finishes.
+ */
+public class WorkloadReplayer {
+
+	private static final long defaultSize = 1024;
+
+	private final ContentAddressableStore store;
+	private final int concurrency;
+	private final double rate;
+
+	/**
+	 * The content generated for a recorded hash.
+	 */
+	private static class Content {
+		final long seed;
+		long size = -1;
+		long encodedSize = -1;
+		Hash hash;
+
+		Content(long seed) {
+			this.seed = seed;
+		}
+
+		long getSize() {
+			if (size >= 0)
+				return size;
+			if (encodedSize >= 0)
+				return encodedSize;
+			return defaultSize;
+		}
+
+		InputStream open() {
+			return new SyntheticContentInputStream(seed, getSize());
+		}
+	}
+
+	/**
+	 * The throughput and latency of a replay.
+	 */
+	public static class Result {
+		private final Map<StoreOperation, LatencyHistogram> histograms = new EnumMap<StoreOperation, LatencyHistogram>(
+				StoreOperation.class);
+		private final LatencyHistogram all = new LatencyHistogram();
+		private final AtomicLong failures = new AtomicLong();
+		private long elapsedNanos;
+
+		Result() {
+			for (StoreOperation operation : StoreOperation.values()) {
+				histograms.put(operation, new LatencyHistogram());
+			}
+		}
+
+		void record(StoreOperation operation, long nanos, boolean failed) {
+			histograms.get(operation).record(nanos);
+			all.record(nanos);
+			if (failed) {
+				failures.incrementAndGet();
+			}
+		}
+
+		/**
+		 * @return The latencies of all calls
+		 */
+		public LatencyHistogram getLatency() {
+			return all;
+		}
+
+		/**
+		 * @return The latencies of one operation
+		 */
+		public LatencyHistogram getLatency(StoreOperation operation) {
+			return histograms.get(operation);
+		}
+
+		/**
+		 * @return The number of calls which threw an exception
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/**
+		 * @return Calls per second
+		 */
+		public double getThroughput() {
+			return elapsedNanos == 0 ? 0 : all.getCount() * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(String.format("calls=%d failures=%d seconds=%.3f calls/s=%.1f%n", all.getCount(),
+					getFailures(), elapsedNanos / 1e9, getThroughput()));
+			append(builder, "ALL", all);
+			for (Map.Entry<StoreOperation, LatencyHistogram> entry : histograms.entrySet()) {
+				if (entry.getValue().getCount() > 0) {
+					append(builder, entry.getKey().name(), entry.getValue());
+				}
+			}
+			return builder.toString();
+		}
+
+		private static void append(StringBuilder builder, String name, LatencyHistogram histogram) {
+			builder.append(String.format("%-18s count=%d p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus%n", name,
+					histogram.getCount(), histogram.getPercentile(50) / 1e3, histogram.getPercentile(99) / 1e3,
+					histogram.getPercentile(99.9) / 1e3, histogram.getMax() / 1e3));
+		}
+	}
+
+	/**
+	 * @param store
+	 *            The store to replay against
+	 * @param concurrency
+	 *            The number of threads making calls
+	 * @param rate
+	 *            Calls per second, or 0 to make them as fast as possible
+	 */
+	public WorkloadReplayer(ContentAddressableStore store, int concurrency, double rate) {
+		if (store == null)
+			throw new IllegalArgumentException("store");
+		if (concurrency < 1)
+			throw new IllegalArgumentException("concurrency");
+		if (rate < 0)
+			throw new IllegalArgumentException("rate");
+		this.store = store;
+		this.concurrency = concurrency;
+		this.rate = rate;
+	}
+
+	/**
+	 * @param reader
+	 *            A trace
+	 * @return The records in it
+	 */
+	public static List<TraceRecord> readTrace(Reader reader) throws IOException {
+		List<TraceRecord> records = new ArrayList<TraceRecord>();
+		BufferedReader bufferedReader = new BufferedReader(reader);
+		for (String line = bufferedReader.readLine(); line != null; line = bufferedReader.readLine()) {
+			if (!line.isEmpty()) {
+				records.add(TraceRecord.parse(line));
+			}
+		}
+		return records;
+	}
+
+	/**
+	 * Replay a trace. The content it needs is written first and isn't
+	 * measured.
+	 * 
+	 * @return The throughput and latency of the calls in the trace
+	 */
+	public Result replay(List<TraceRecord> trace) throws IOException {
+		List<TraceRecord> records = new ArrayList<TraceRecord>();
+		Map<Hash, Content> contents = prepare(trace, records);
+
+		Result result = new Result();
+		AtomicInteger next = new AtomicInteger();
+		List<Throwable> errors = new LinkedList<Throwable>();
+		long origin = System.nanoTime();
+		double interval = rate == 0 ? 0 : 1e9 / rate;
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < concurrency; t++) {
+			Thread thread = new Thread(() -> {
+				byte[] buffer = new byte[64 * 1024];
+				try {
+					for (int i = next.getAndIncrement(); i < records.size(); i = next.getAndIncrement()) {
+						TraceRecord record = records.get(i);
+						Content content = record.getHash() == null ? null : contents.get(record.getHash());
+						byte[] encoded = prepareEncoded(record, content);
+						long begin;
+						if (interval > 0) {
+							begin = origin + (long) (i * interval);
+							for (long wait = begin - System.nanoTime(); wait > 0; wait = begin - System.nanoTime()) {
+								LockSupport.parkNanos(wait);
+							}
+						} else {
+							begin = System.nanoTime();
+						}
+						boolean failed = false;
+						try {
+							execute(record, content, encoded, buffer);
+						} catch (IOException | RuntimeException e) {
+							failed = true;
+						}
+						result.record(record.getOperation(), System.nanoTime() - begin, failed);
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			}, "CassetteJ-replay-" + t);
+			threads.add(thread);
+			thread.start();
+		}
+		try {
+			for (Thread thread : threads) {
+				thread.join();
+			}
+		} catch (InterruptedException e) {
+			for (Thread thread : threads) {
+				thread.interrupt();
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		result.elapsedNanos = System.nanoTime() - origin;
+		if (!errors.isEmpty()) {
+			throw new IOException(errors.get(0));
+		}
+		return result;
+	}
+
+	/**
+	 * Work out the content for each hash in the trace, write any the trace
+	 * reads before writing and collect the records to replay.
+	 */
+	private Map<Hash, Content> prepare(List<TraceRecord> trace, List<TraceRecord> records) throws IOException {
+		Map<Hash, Content> contents = new HashMap<Hash, Content>();
+		List<Content> existing = new LinkedList<Content>();
+		for (TraceRecord record : trace) {
+			if (record.isFailed()) {
+				continue;
+			}
+			records.add(record);
+			Hash hash = record.getHash();
+			if (hash == null) {
+				continue;
+			}
+			Content content = contents.get(hash);
+			boolean first = content == null;
+			if (first) {
+				content = new Content(seed(hash));
+				contents.put(hash, content);
+			}
+			StoreOperation operation = record.getOperation();
+			// Writes of content given with its hash which found it already
+			// stored read none of it
+			boolean sized = record.getSize() >= 0
+					&& (operation == StoreOperation.READ || operation == StoreOperation.GET_CONTENT_LENGTH
+							|| operation == StoreOperation.WRITE || operation == StoreOperation.WRITE_ENCODED)
+					|| record.getSize() > 0 && operation == StoreOperation.WRITE_EXPECTED;
+			if (sized) {
+				if (record.getEncodingNames().isEmpty() && operation != StoreOperation.WRITE_ENCODED) {
+					content.size = record.getSize();
+				} else {
+					content.encodedSize = Math.max(content.encodedSize, record.getSize());
+				}
+			}
+			// Content first read or looked up rather than written must
+			// already have been in the store, as must content first written
+			// with its hash which wasn't read. Reads and lengths which found
+			// nothing are recorded without a size.
+			boolean written = operation == StoreOperation.WRITE || operation == StoreOperation.WRITE_ENCODED
+					|| operation == StoreOperation.WRITE_EXPECTED && record.getSize() != 0;
+			if (first && !written && operation != StoreOperation.DELETE && (operation == StoreOperation.CONTAINS
+					|| operation == StoreOperation.WRITE_EXPECTED || sized)) {
+				existing.add(content);
+			}
+		}
+
+		MessageDigest messageDigest = createMessageDigest();
+		byte[] buffer = new byte[64 * 1024];
+		for (Content content : contents.values()) {
+			try (InputStream inputStream = content.open()) {
+				for (int n = inputStream.read(buffer); n != -1; n = inputStream.read(buffer)) {
+					messageDigest.update(buffer, 0, n);
+				}
+			}
+			content.hash = new Hash(messageDigest.digest());
+		}
+		for (Content content : existing) {
+			try (InputStream inputStream = content.open()) {
+				store.write(inputStream);
+			}
+		}
+		return contents;
+	}
+
+	private static long seed(Hash hash) {
+		long seed = 0;
+		byte[] bytes = hash.getBytes();
+		for (int i = 0; i < 8 && i < bytes.length; i++) {
+			seed = (seed << 8) | (bytes[i] & 0xff);
+		}
+		return seed;
+	}
+
+	private static MessageDigest createMessageDigest() {
+		try {
+			return MessageDigest.getInstance("SHA1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static List<ContentEncoding> encodings(TraceRecord record) {
+		List<ContentEncoding> encodings = new LinkedList<ContentEncoding>();
+		for (String encodingName : record.getEncodingNames()) {
+			ContentEncoding encoding = ContentEncodingFactory.createEncoding(encodingName);
+			if (encoding != null) {
+				encodings.add(encoding);
+			}
+		}
+		return encodings;
+	}
+
+	private static ContentEncoding encoding(TraceRecord record) {
+		List<ContentEncoding> encodings = encodings(record);
+		return encodings.isEmpty() ? null : encodings.get(0);
+	}
+
+	/**
+	 * Encode the content for an encoded write before the call is timed.
+	 */
+	private static byte[] prepareEncoded(TraceRecord record, Content content) throws IOException {
+		if (record.getOperation() != StoreOperation.WRITE_ENCODED || encoding(record) == null) {
+			return null;
+		}
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (InputStream inputStream = content.open();
+				OutputStream encodedOutputStream = encoding(record).encode(outputStream)) {
+			IOUtils.copyLarge(inputStream, encodedOutputStream);
+		}
+		return outputStream.toByteArray();
+	}
+
+	private void execute(TraceRecord record, Content content, byte[] encoded, byte[] buffer) throws IOException {
+		switch (record.getOperation()) {
+		case WRITE:
+			try (InputStream inputStream = content.open()) {
+				store.write(inputStream, encodings(record));
+			}
+			break;
+		case WRITE_ENCODED:
+			if (encoded == null) {
+				try (InputStream inputStream = content.open()) {
+					store.write(inputStream);
+				}
+			} else {
+				store.writeEncoded(new ByteArrayInputStream(encoded), encoding(record));
+			}
+			break;
+		case WRITE_EXPECTED:
+			try (InputStream inputStream = content.open()) {
+				store.write(content.hash, inputStream, encodings(record));
+			}
+			break;
+		case CONTAINS:
+			store.contains(content.hash, encoding(record));
+			break;
+		case READ:
+			try (InputStream inputStream = store.read(content.hash, encoding(record))) {
+				if (inputStream != null) {
+					while (inputStream.read(buffer) != -1) {
+					}
+				}
+			}
+			break;
+		case GET_CONTENT_LENGTH:
+			store.getContentLength(content.hash, encoding(record));
+			break;
+		case GET_HASHES:
+			store.getHashes();
+			break;
+		case DELETE:
+			store.delete(content.hash);
+			break;
+		case DELETE_ALL:
+			store.deleteAll(Collections.singletonList(content.hash));
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown operation " + record.getOperation());
+		}
+	}
+
+	/**
+	 * Usage: WorkloadReplayer FILE|INFINISPAN store.properties
+	 * trace-file|synthetic:operations [concurrency] [rate]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: WorkloadReplayer FILE|INFINISPAN store.properties "
+					+ "trace-file|synthetic:operations [concurrency] [rate]");
+			System.exit(1);
+		}
+		ContentAddressableStoreFactory.ImplementationType implementationType = ContentAddressableStoreFactory.ImplementationType
+				.valueOf(args[0]);
+		Properties properties = new Properties();
+		try (InputStream inputStream = new FileInputStream(args[1])) {
+			properties.load(inputStream);
+		}
+		List<TraceRecord> trace;
+		if (args[2].startsWith("synthetic:")) {
+			int operations = Integer.parseInt(args[2].substring("synthetic:".length()));
+			trace = WorkloadGenerator.generate(operations, 0.2, 0.3, 100, 1024 * 1024, 0);
+		} else {
+			try (Reader reader = Files.newBufferedReader(Paths.get(args[2]), StandardCharsets.UTF_8)) {
+				trace = readTrace(reader);
+			}
+		}
+		int concurrency = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		double rate = args.length > 4 ? Double.parseDouble(args[4]) : 0;
+
+		try (ContentAddressableStore store = ContentAddressableStoreFactory
+				.createContentAddressableStore(implementationType, properties)) {
+			Result result = new WorkloadReplayer(store, concurrency, rate).replay(trace);
+			System.out.print(result);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CompressibilityEncodingPolicyTest {
+
+	private final CompressibilityEncodingPolicy policy = new CompressibilityEncodingPolicy();
+	private final ContentEncoding encoding = new GZIPContentEncoding();
+
+	private static byte[] text(int length) {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < length) {
+			builder.append("Some very compressible text. ");
+		}
+		return builder.substring(0, length).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testCompressible() {
+		byte[] content = text(100000);
+		assertTrue(policy.shouldEncode(encoding, content, policy.getSampleSize(), content.length));
+		assertEquals(1, policy.getEncodedCount());
+		assertEquals(0, policy.getSkippedCount());
+	}
+
+	@Test
+	public void testIncompressible() {
+		byte[] content = new byte[100000];
+		new Random(42).nextBytes(content);
+		assertFalse(policy.shouldEncode(encoding, content, policy.getSampleSize(), content.length));
+		assertEquals(1, policy.getSkippedCount());
+		assertEquals(content.length, policy.getSkippedBytes());
+		assertTrue(policy.getSampleNanos() > 0);
+		assertTrue(policy.getEstimatedNanosSaved() > 0);
+	}
+
+	@Test
+	public void testCompressedFormat() {
+		// Compressible, but starts like a JPEG
+		byte[] content = text(100000);
+		content[0] = (byte) 0xff;
+		content[1] = (byte) 0xd8;
+		content[2] = (byte) 0xff;
+		assertFalse(policy.shouldEncode(encoding, content, policy.getSampleSize(), content.length));
+		// Skipped without a trial encoding
+		assertEquals(0, policy.getSampleNanos());
+	}
+
+	@Test
+	public void testTooSmallToSave() {
+		byte[] content = text(100);
+		assertFalse(policy.shouldEncode(encoding, content, content.length, content.length));
+
+		CompressibilityEncodingPolicy noMinimum = new CompressibilityEncodingPolicy(1024, 0.9, 0);
+		assertTrue(noMinimum.shouldEncode(encoding, content, content.length, content.length));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadRatio() {
+		new CompressibilityEncodingPolicy(1024, 0, 0);
+	}
+}
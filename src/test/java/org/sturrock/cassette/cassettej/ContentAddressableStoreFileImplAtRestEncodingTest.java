@@ -0,0 +1,123 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests of how the file store keeps content gzipped rather than raw.
+ */
+public class ContentAddressableStoreFileImplAtRestEncodingTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	@Override
+	protected Properties getProperties() {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.atRestEncodingPropertyName, GZIPContentEncoding.name);
+		return properties;
+	}
+
+	@Test
+	public void testStoredEncoded() throws IOException {
+		assertEquals(new GZIPContentEncoding(), fileCas.getAtRestEncoding());
+
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; ++i) {
+			builder.append("Highly compressible ");
+		}
+		byte[] content = builder.toString().getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+
+		Path encodedContentPath = fileCas.getContentPath(hash.getString() + "." + GZIPContentEncoding.name);
+		assertFalse(Files.exists(fileCas.getContentPath(hash.getString())));
+		assertTrue(Files.size(encodedContentPath) < content.length);
+
+		assertTrue(cas.contains(hash));
+		assertTrue(cas.contains(hash, new GZIPContentEncoding()));
+		assertEquals(content.length, cas.getContentLength(hash));
+		assertEquals(Files.size(encodedContentPath), cas.getContentLength(hash, new GZIPContentEncoding()));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+		try (InputStream inputStream = cas.read(hash, new GZIPContentEncoding())) {
+			assertArrayEquals(Files.readAllBytes(encodedContentPath), IOUtils.toByteArray(inputStream));
+		}
+		assertEquals(1, cas.getHashes().size());
+	}
+
+	@Test
+	public void testEncodingAddedToExistingContent() throws IOException {
+		// gzip is always there as that is what the content is stored in, so
+		// check another encoding can still be added
+		ContentEncoding encoding = new DeflateContentEncoding();
+		byte[] content = "Hello World".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		assertTrue(cas.contains(hash, new GZIPContentEncoding()));
+		assertFalse(cas.contains(hash, encoding));
+
+		cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+		assertTrue(cas.contains(hash, encoding));
+		try (InputStream inputStream = encoding.decode(cas.read(hash, encoding))) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+	}
+
+	@Test
+	public void testReadsRawContent() throws IOException {
+		// Content written before the store was switched to encoding at rest
+		ContentAddressableStoreFileImpl rawCas = createCas(new Properties());
+		byte[] content = "Stored raw".getBytes(StandardCharsets.UTF_8);
+		Hash hash = rawCas.write(new ByteArrayInputStream(content));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+		rawCas.close();
+	}
+
+	@Test
+	public void testWriteEncodedKeptAtRest() throws IOException {
+		byte[] content = "Already gzipped".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = new ParallelGZIPContentEncoding().encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		byte[] encodedBytes = outputStream.toByteArray();
+
+		Hash hash = cas.writeEncoded(new ByteArrayInputStream(encodedBytes), new GZIPContentEncoding());
+		assertFalse(Files.exists(fileCas.getContentPath(hash.getString())));
+		assertArrayEquals(encodedBytes,
+				Files.readAllBytes(fileCas.getContentPath(hash.getString() + "." + GZIPContentEncoding.name)));
+		assertEquals(content.length, cas.getContentLength(hash));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownEncoding() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.atRestEncodingPropertyName, "unknown");
+		createCas(properties);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWithChunking() throws IOException {
+		Properties properties = getProperties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		createCas(properties);
+	}
+}
@@ -0,0 +1,95 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests that writes to a file store which produces encodings in the
+ * background don't wait for them.
+ */
+public class ContentAddressableStoreFileImplBackgroundEncodingTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	/**
+	 * gzip, but doesn't start encoding until released.
+	 */
+	static class BlockedContentEncoding extends GZIPContentEncoding {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public OutputStream encode(OutputStream stream) throws IOException {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return super.encode(stream);
+		}
+	}
+
+	@Override
+	protected Properties getProperties() {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.encodingModePropertyName, "background");
+		return properties;
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		// Let any background encodings finish before deleting the files
+		fileCas.close();
+		super.tearDown();
+	}
+
+	@Test
+	public void testWriteDoesNotWaitForEncoding() throws IOException, InterruptedException {
+		assertEquals(EncodingMode.BACKGROUND, fileCas.getEncodingMode());
+		BlockedContentEncoding encoding = new BlockedContentEncoding();
+		byte[] content = "Encode me later".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+
+		// The raw content is there and the encoding is reported as available
+		// even though it hasn't been written yet
+		encoding.started.await();
+		assertTrue(cas.contains(hash));
+		assertTrue(cas.contains(hash, encoding));
+		assertFalse(Files.exists(fileCas.getContentPath(hash.getString() + "." + encoding.getName())));
+
+		encoding.release.countDown();
+		try (InputStream inputStream = encoding.decode(cas.read(hash, encoding))) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+		assertTrue(Files.exists(fileCas.getContentPath(hash.getString() + "." + encoding.getName())));
+	}
+
+	@Test
+	public void testDeleteWhileEncoding() throws IOException, InterruptedException {
+		BlockedContentEncoding encoding = new BlockedContentEncoding();
+		byte[] content = "Delete me before encoding".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+		encoding.started.await();
+		assertTrue(cas.delete(hash));
+		encoding.release.countDown();
+		fileCas.close();
+
+		assertFalse(cas.contains(hash));
+		assertFalse(cas.contains(hash, encoding));
+	}
+}
@@ -0,0 +1,70 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests of how the file store splits content into chunks.
+ */
+public class ContentAddressableStoreFileImplChunkingTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	@Override
+	protected Properties getProperties() {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		properties.put(ContentAddressableStoreFileImpl.chunkSizePropertyName, "1024");
+		return properties;
+	}
+
+	private long countChunks() throws IOException {
+		Path chunksPath = fileCas.getRootPath().resolve("chunks");
+		try (Stream<Path> paths = Files.walk(chunksPath)) {
+			return paths.filter(Files::isRegularFile).count();
+		}
+	}
+
+	@Test
+	public void testLargeContent() throws IOException {
+		assertTrue(fileCas.isUsingChunking());
+		byte[] content = new byte[100000];
+		new Random(42).nextBytes(content);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+
+		assertTrue(countChunks() > 1);
+		assertEquals(content.length, cas.getContentLength(hash));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+	}
+
+	@Test
+	public void testChunksShared() throws IOException {
+		byte[] content = new byte[100000];
+		new Random(42).nextBytes(content);
+		cas.write(new ByteArrayInputStream(content));
+		long chunks = countChunks();
+
+		// Changing a few bytes at the start should only add a chunk or two
+		byte[] edited = content.clone();
+		edited[10] ^= 1;
+		Hash hash = cas.write(new ByteArrayInputStream(edited));
+		assertTrue(countChunks() <= chunks + 2);
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(edited, IOUtils.toByteArray(inputStream));
+		}
+		assertEquals(2, cas.getHashes().size());
+	}
+}
@@ -0,0 +1,48 @@
+package org.sturrock.cassette.cassettej;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * A file store in a temporary directory for the tests of one feature. The
+ * store tests themselves run against every configuration in
+ * {@link ContentAddressableStoreFileImplTest}.
+ */
+public abstract class ContentAddressableStoreFileImplFeatureTest {
+	protected Path tempDir;
+	protected ContentAddressableStoreFileImpl fileCas;
+	protected ContentAddressableStore cas;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory(getClass().getSimpleName());
+		fileCas = createCas();
+		cas = fileCas;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		fileCas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	/**
+	 * @return The properties of the store being tested, apart from its root
+	 */
+	protected abstract Properties getProperties();
+
+	protected ContentAddressableStoreFileImpl createCas() throws IOException {
+		return createCas(getProperties());
+	}
+
+	protected ContentAddressableStoreFileImpl createCas(Properties properties) throws IOException {
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		return new ContentAddressableStoreFileImpl(properties);
+	}
+}
@@ -0,0 +1,86 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests that a file store which produces encodings on first read doesn't
+ * produce them before, or forget them.
+ */
+public class ContentAddressableStoreFileImplLazyEncodingTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	@Override
+	protected Properties getProperties() {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.encodingModePropertyName, "lazy");
+		return properties;
+	}
+
+	@Test
+	public void testEncodedOnFirstRead() throws IOException {
+		assertEquals(EncodingMode.LAZY, fileCas.getEncodingMode());
+		ContentEncoding encoding = new GZIPContentEncoding();
+		byte[] content = "Encode me when asked".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+
+		Path encodedContentPath = fileCas.getContentPath(hash.getString() + "." + encoding.getName());
+		assertTrue(cas.contains(hash, encoding));
+		assertFalse(Files.exists(encodedContentPath));
+
+		try (InputStream inputStream = encoding.decode(cas.read(hash, encoding))) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+		assertTrue(Files.exists(encodedContentPath));
+		assertTrue(cas.contains(hash, encoding));
+	}
+
+	@Test
+	public void testUnrequestedEncoding() throws IOException {
+		Hash hash = cas.write(new ByteArrayInputStream("Not encoded".getBytes(StandardCharsets.UTF_8)));
+		ContentEncoding encoding = new GZIPContentEncoding();
+		assertFalse(cas.contains(hash, encoding));
+		assertEquals(null, cas.read(hash, encoding));
+	}
+
+	@Test
+	public void testPendingAfterReopening() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		byte[] content = "Still pending after a restart".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+		cas.close();
+
+		fileCas = createCas();
+		cas = fileCas;
+		assertTrue(cas.contains(hash, encoding));
+		try (InputStream inputStream = encoding.decode(cas.read(hash, encoding))) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+	}
+
+	@Test
+	public void testDeletePending() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		byte[] content = "Deleted before it was read".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+		assertTrue(cas.delete(hash));
+		assertFalse(cas.contains(hash, encoding));
+
+		// Writing it again without the encoding doesn't bring it back
+		cas.write(new ByteArrayInputStream(content));
+		assertFalse(cas.contains(hash, encoding));
+	}
+}
@@ -0,0 +1,191 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+/**
+ * Tests of what the file store's metrics record.
+ */
+public class ContentAddressableStoreFileImplMetricsTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	private JmxStoreMetrics metrics;
+
+	@Override
+	protected Properties getProperties() {
+		return new Properties();
+	}
+
+	@Override
+	protected ContentAddressableStoreFileImpl createCas(Properties properties) throws IOException {
+		ContentAddressableStoreFileImpl store = super.createCas(properties);
+		metrics = new JmxStoreMetrics("test");
+		store.setMetrics(metrics);
+		return store;
+	}
+
+	@Test
+	public void testOperationsCounted() throws IOException {
+		byte[] content = "Count me".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		assertTrue(cas.contains(hash));
+		assertEquals(content.length, cas.getContentLength(hash));
+		try (InputStream inputStream = cas.read(hash)) {
+			IOUtils.toByteArray(inputStream);
+		}
+		cas.getHashes();
+		assertTrue(cas.delete(hash));
+
+		for (StoreOperation operation : new StoreOperation[] { StoreOperation.WRITE, StoreOperation.CONTAINS,
+				StoreOperation.GET_CONTENT_LENGTH, StoreOperation.READ, StoreOperation.GET_HASHES,
+				StoreOperation.DELETE }) {
+			assertEquals(operation.toString(), 1, metrics.getOperation(operation).getCount());
+			assertEquals(0, metrics.getOperation(operation).getInFlight());
+		}
+		assertEquals(0, metrics.getOperation(StoreOperation.WRITE_ENCODED).getCount());
+		assertEquals(0, metrics.getInFlight());
+		assertEquals(Long.valueOf(content.length), metrics.getBytesIn().get(StoreMetrics.IDENTITY));
+		assertEquals(Long.valueOf(content.length), metrics.getBytesOut().get(StoreMetrics.IDENTITY));
+	}
+
+	@Test
+	public void testDedupeRatio() throws IOException {
+		byte[] content = "Write me twice".getBytes(StandardCharsets.UTF_8);
+		cas.write(new ByteArrayInputStream(content));
+		cas.write(new ByteArrayInputStream(content));
+		cas.write(new ByteArrayInputStream(content));
+		cas.write(new ByteArrayInputStream("Once".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(4, metrics.getWrites());
+		assertEquals(2, metrics.getContentAdded());
+		assertEquals(0.5, metrics.getDedupeRatio(), 0);
+	}
+
+	@Test
+	public void testEncodingMeasured() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			builder.append("Some text to encode. ");
+		}
+		byte[] content = builder.toString().getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+
+		assertEquals(Long.valueOf(content.length), metrics.getEncodedBytes().get(encoding.getName()));
+		assertTrue(metrics.getEncodingCpuMillis().containsKey(encoding.getName()));
+
+		long encodedLength = cas.getContentLength(hash, encoding);
+		try (InputStream inputStream = cas.read(hash, encoding)) {
+			IOUtils.toByteArray(inputStream);
+		}
+		assertEquals(Long.valueOf(encodedLength), metrics.getBytesOut().get(encoding.getName()));
+		assertFalse(metrics.getBytesOut().containsKey(StoreMetrics.IDENTITY));
+	}
+
+	@Test
+	public void testEncodingSkippedCounted() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		fileCas.setEncodingPolicy(new CompressibilityEncodingPolicy());
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			builder.append("Some text to encode. ");
+		}
+		cas.write(new ByteArrayInputStream(builder.toString().getBytes(StandardCharsets.UTF_8)),
+				Collections.singletonList(encoding));
+		byte[] random = new byte[10000];
+		new java.util.Random(1).nextBytes(random);
+		cas.write(new ByteArrayInputStream(random), Collections.singletonList(encoding));
+
+		assertEquals(Long.valueOf(1), metrics.getEncodingsSkipped().get(encoding.getName()));
+		assertTrue(metrics.getEstimatedCpuMillisSaved().containsKey(encoding.getName()));
+	}
+
+	@Test
+	public void testFailureCounted() throws IOException {
+		try {
+			cas.read(null);
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(1, metrics.getOperation(StoreOperation.READ).getCount());
+		assertEquals(1, metrics.getOperation(StoreOperation.READ).getFailures());
+		assertEquals(0, metrics.getInFlight());
+	}
+
+	@Test
+	public void testInternalCallsNotCounted() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		cas.write(new ByteArrayInputStream("Only the write".getBytes(StandardCharsets.UTF_8)),
+				Collections.singletonList(encoding));
+		assertEquals(1, metrics.getOperation(StoreOperation.WRITE).getCount());
+		assertEquals(0, metrics.getOperation(StoreOperation.CONTAINS).getCount());
+		assertEquals(0, metrics.getOperation(StoreOperation.READ).getCount());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		fileCas.setMetrics(null);
+		assertEquals(StoreMetrics.NONE, fileCas.getMetrics());
+		cas.write(new ByteArrayInputStream("Not counted".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(0, metrics.getWrites());
+	}
+
+	@Test
+	public void testJmx() throws IOException, JMException {
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		metrics.register(mBeanServer);
+		try {
+			byte[] content = "Look at me over JMX".getBytes(StandardCharsets.UTF_8);
+			cas.write(new ByteArrayInputStream(content));
+			cas.write(new ByteArrayInputStream(content));
+
+			assertEquals(2L, mBeanServer.getAttribute(metrics.getObjectName(), "Writes"));
+			assertEquals(0.5, (Double) mBeanServer.getAttribute(metrics.getObjectName(), "DedupeRatio"), 0);
+			TabularData bytesIn = (TabularData) mBeanServer.getAttribute(metrics.getObjectName(), "BytesIn");
+			CompositeData row = bytesIn.get(new Object[] { StoreMetrics.IDENTITY });
+			assertEquals(2L * content.length, row.get("value"));
+
+			assertEquals(2L,
+					mBeanServer.getAttribute(metrics.getObjectName(StoreOperation.WRITE), "Count"));
+			assertTrue((Double) mBeanServer.getAttribute(metrics.getObjectName(StoreOperation.WRITE),
+					"P99Micros") > 0);
+		} finally {
+			metrics.unregister();
+		}
+		assertFalse(mBeanServer.isRegistered(metrics.getObjectName()));
+		assertFalse(mBeanServer.isRegistered(metrics.getObjectName(StoreOperation.WRITE)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testRegisterTwice() throws JMException {
+		metrics.register();
+		try {
+			metrics.register();
+		} finally {
+			metrics.unregister();
+		}
+	}
+
+	@Test
+	public void testSnapshotIsCopy() throws IOException {
+		cas.write(new ByteArrayInputStream("Snapshot".getBytes(StandardCharsets.UTF_8)));
+		Map<String, Long> bytesIn = metrics.getBytesIn();
+		cas.write(new ByteArrayInputStream("Snapshot again".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(Long.valueOf(8), bytesIn.get(StoreMetrics.IDENTITY));
+	}
+}
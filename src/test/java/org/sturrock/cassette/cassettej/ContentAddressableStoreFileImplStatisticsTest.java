@@ -0,0 +1,172 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests of saving, restoring and auditing the file store's statistics, which
+ * are checkpointed often.
+ */
+public class ContentAddressableStoreFileImplStatisticsTest extends ContentAddressableStoreFileImplFeatureTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	@Override
+	protected Properties getProperties() {
+		Properties properties = new Properties();
+		properties.setProperty(ContentAddressableStoreFileImpl.statisticsCheckpointIntervalPropertyName, "10");
+		return properties;
+	}
+
+	private void writeContent(ContentAddressableStore store, int count, int seed) throws IOException {
+		Random random = new Random(seed);
+		for (int i = 0; i < count; i++) {
+			byte[] content = new byte[random.nextInt(100000)];
+			// Compressible but different every time
+			for (int j = 0; j < content.length; j += 100) {
+				content[j] = (byte) random.nextInt();
+			}
+			store.write(new ByteArrayInputStream(content), gzip);
+		}
+	}
+
+	private static void assertStatisticsEqual(StoreStatistics expected, StoreStatistics actual) {
+		assertEquals(expected.toString(), actual.toString().replace(" (approximate)", ""));
+	}
+
+	@Test
+	public void testStatisticsSurviveReopening() throws IOException {
+		writeContent(cas, 10, 1);
+		cas.delete(cas.getHashes().get(0));
+		StoreStatistics statistics = cas.getStatistics();
+		assertEquals(9, statistics.getContentCount());
+		assertEquals(9, statistics.getEncodedCount("gzip"));
+		cas.close();
+		assertEquals("true", readSavedStatistics().getProperty("clean"));
+
+		fileCas = createCas();
+		cas = fileCas;
+		assertTrue(cas.getStatistics().isExact());
+		assertStatisticsEqual(statistics, cas.getStatistics());
+	}
+
+	@Test
+	public void testStatisticsAfterUncleanShutdown() throws IOException {
+		writeContent(cas, 10, 2);
+		StoreStatistics statistics = cas.getStatistics();
+
+		// The saved statistics can't be trusted until the store is closed
+		assertEquals("false", readSavedStatistics().getProperty("clean"));
+
+		// Open the store again without closing it, as if it had crashed
+		ContentAddressableStoreFileImpl crashed = fileCas;
+		fileCas = createCas();
+		cas = fileCas;
+		assertStatisticsEqual(statistics, fileCas.auditStatistics());
+		assertTrue(cas.getStatistics().isExact());
+		crashed.close();
+	}
+
+	@Test
+	public void testStatisticsOfSharedRootNotClean() throws IOException {
+		writeContent(cas, 5, 6);
+
+		// Another store changes the root while this one is open, then closes
+		// first, so this one sees no other store when it closes
+		try (ContentAddressableStoreFileImpl other = createCas()) {
+			writeContent(other, 5, 7);
+		}
+		assertEquals("false", readSavedStatistics().getProperty("clean"));
+		cas.close();
+		assertEquals("false", readSavedStatistics().getProperty("clean"));
+
+		fileCas = createCas();
+		cas = fileCas;
+		assertEquals(10, fileCas.auditStatistics().getContentCount());
+
+		// Once the root is no longer shared the statistics are clean again
+		cas.close();
+		assertEquals("true", readSavedStatistics().getProperty("clean"));
+		fileCas = createCas();
+		cas = fileCas;
+		assertTrue(cas.getStatistics().isExact());
+		assertEquals(10, cas.getStatistics().getContentCount());
+	}
+
+	private Properties readSavedStatistics() throws IOException {
+		Properties saved = new Properties();
+		try (InputStream inputStream = Files.newInputStream(tempDir.resolve("statistics"))) {
+			saved.load(inputStream);
+		}
+		return saved;
+	}
+
+	@Test
+	public void testStatisticsOfExistingStoreAudited() throws IOException {
+		writeContent(cas, 10, 3);
+		StoreStatistics statistics = cas.getStatistics();
+		cas.close();
+		// As if written before statistics were kept
+		Files.delete(tempDir.resolve("statistics"));
+
+		fileCas = createCas();
+		cas = fileCas;
+		assertStatisticsEqual(statistics, fileCas.auditStatistics());
+	}
+
+	@Test
+	public void testAuditCorrectsStatistics() throws IOException {
+		Hash hash = cas.write(new ByteArrayInputStream("Delete me behind the store's back".getBytes(StandardCharsets.UTF_8)));
+		Files.delete(fileCas.getContentPath(hash.getString()));
+		assertEquals(1, cas.getStatistics().getContentCount());
+
+		StoreStatistics statistics = fileCas.auditStatistics();
+		assertEquals(0, statistics.getContentCount());
+		assertEquals(0, statistics.getContentBytes());
+		assertTrue(statistics.isExact());
+	}
+
+	@Test
+	public void testAuditMatchesChunkedAndEncodedContent() throws IOException {
+		for (String property : new String[] { ContentAddressableStoreFileImpl.chunkingPropertyName,
+				ContentAddressableStoreFileImpl.atRestEncodingPropertyName }) {
+			Properties properties = new Properties();
+			properties.setProperty(property,
+					property.equals(ContentAddressableStoreFileImpl.chunkingPropertyName) ? "true" : "deflate");
+			properties.setProperty(ContentAddressableStoreFileImpl.rootPathPropertyName,
+					tempDir.resolve(property).toString());
+			try (ContentAddressableStoreFileImpl store = new ContentAddressableStoreFileImpl(properties)) {
+				writeContent(store, 10, 4);
+				store.delete(store.getHashes().get(0));
+				StoreStatistics statistics = store.getStatistics();
+				assertEquals(9, statistics.getContentCount());
+				assertStatisticsEqual(statistics, store.auditStatistics());
+			}
+		}
+	}
+
+	@Test
+	public void testStatisticsCheckpointed() throws IOException, InterruptedException {
+		writeContent(cas, 1, 5);
+		String expected = cas.getStatistics().getContentBytes() + "";
+		Properties saved = readSavedStatistics();
+		for (int i = 0; i < 100 && !expected.equals(saved.getProperty("contentBytes")); i++) {
+			Thread.sleep(10);
+			saved = readSavedStatistics();
+		}
+		assertEquals(expected, saved.getProperty("contentBytes"));
+		assertEquals("false", saved.getProperty("clean"));
+	}
+}
@@ -1,29 +1,86 @@
 package org.sturrock.cassette.cassettej;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Properties;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 
 /**
- * Unit test for simple ContentAddressableStoreFileImpl.
+ * Runs the store tests, and those of the file store, against each
+ * configuration of the file store. What a configuration does is tested by
+ * its own test, eg {@link ContentAddressableStoreFileImplChunkingTest}.
  */
+@RunWith(Parameterized.class)
 public class ContentAddressableStoreFileImplTest extends ContentAddressableStoreTest {
 	private Path tempDir;
 	private ContentAddressableStoreFileImpl fileCas;
 
+	private final Properties properties;
+	private final boolean metrics;
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> configurations() {
+		return Arrays.asList(new Object[][] {
+				{ "default", properties(), false },
+				// Not gzip, which the tests add to content themselves
+				{ "atRestEncoding", properties(ContentAddressableStoreFileImpl.atRestEncodingPropertyName,
+						DeflateContentEncoding.name), false },
+				{ "backgroundEncoding", properties(ContentAddressableStoreFileImpl.encodingModePropertyName,
+						"background"), false },
+				{ "chunking", properties(ContentAddressableStoreFileImpl.chunkingPropertyName, "true",
+						ContentAddressableStoreFileImpl.chunkSizePropertyName, "1024"), false },
+				{ "lazyEncoding", properties(ContentAddressableStoreFileImpl.encodingModePropertyName, "lazy"),
+						false },
+				{ "metrics", properties(), true },
+				{ "statistics", properties(
+						ContentAddressableStoreFileImpl.statisticsCheckpointIntervalPropertyName, "10"), false } });
+	}
+
+	private static Properties properties(String... namesAndValues) {
+		Properties properties = new Properties();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			properties.setProperty(namesAndValues[i], namesAndValues[i + 1]);
+		}
+		return properties;
+	}
+
+	/**
+	 * @param name
+	 *            The name of the configuration
+	 * @param properties
+	 *            The store's properties, apart from its root
+	 * @param metrics
+	 *            Whether the store records metrics
+	 */
+	public ContentAddressableStoreFileImplTest(String name, Properties properties, boolean metrics) {
+		this.properties = properties;
+		this.metrics = metrics;
+	}
+
 	@Before
 	public void setUp() throws IOException {
 		tempDir = Files.createTempDirectory("ContentAddressableStoreFileImplTest");
@@ -33,17 +90,27 @@ public class ContentAddressableStoreFileImplTest extends ContentAddressableStore
 
 	@After
 	public void tearDown() throws IOException {
+		fileCas.close();
 		deleteTempDirectory();
 	}
 	
-	private ContentAddressableStoreFileImpl createCas() throws IOException {
+	private Properties getProperties() {
 		Properties properties = new Properties();
-		return createCas(properties);
+		properties.putAll(this.properties);
+		return properties;
+	}
+
+	private ContentAddressableStoreFileImpl createCas() throws IOException {
+		return createCas(getProperties());
 	}
 	
 	private ContentAddressableStoreFileImpl createCas(Properties properties) throws IOException {
 		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
-		return new ContentAddressableStoreFileImpl(properties);
+		ContentAddressableStoreFileImpl store = new ContentAddressableStoreFileImpl(properties);
+		if (metrics) {
+			store.setMetrics(new JmxStoreMetrics("test"));
+		}
+		return store;
 	}
 
 	private void deleteTempDirectory() throws IOException {
@@ -95,6 +162,18 @@ public class ContentAddressableStoreFileImplTest extends ContentAddressableStore
 		assertEquals(expected, subPath);
 	}
 
+	@Test
+	public void testOnlyPrefixDirectoriesListed() throws IOException {
+		Path rootPath = fileCas.getRootPath();
+		// Matched by the glob, as "chunks" is on a case insensitive file system
+		Files.createDirectories(rootPath.resolve("ABCDEF").resolve("0123"));
+		Files.createDirectories(rootPath.resolve("abcd"));
+		Hash hash = cas.write(IOUtils.toInputStream("Listed", "UTF-8"));
+		assertEquals(Collections.singletonList(rootPath.resolve(hash.getString().substring(0, fileCas.hashPrefixLength))),
+				fileCas.getPrefixDirectories(rootPath));
+		assertEquals(Collections.singletonList(hash), cas.getHashes());
+	}
+
 	@Test
 	public void testGetContentPath() {
 		String hashString = "1234567890";
@@ -158,8 +237,50 @@ public class ContentAddressableStoreFileImplTest extends ContentAddressableStore
 		if(e != null) {
 			throw e;
 		}
+		fileCas2.close();
 	}
 	
+	@Test
+	public void testDeleteAllInBulk() throws IOException {
+		Properties properties = getProperties();
+		properties.put(ContentAddressableStoreFileImpl.deleteThreadsPropertyName, "3");
+		fileCas.close();
+		fileCas = createCas(properties);
+		cas = fileCas;
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 200; i++) {
+			byte[] bytes = ("Content " + i).getBytes(StandardCharsets.UTF_8);
+			hashes.add(fileCas.write(new ByteArrayInputStream(bytes),
+					Collections.<ContentEncoding>singletonList(new GZIPContentEncoding())));
+		}
+		List<Hash> removed = Collections.synchronizedList(new ArrayList<Hash>());
+		fileCas.addListener(new ContentAddressableStoreListener() {
+			@Override
+			public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+				fail();
+			}
+
+			@Override
+			public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+				removed.add(contentAddressableStoreEvent.getHash());
+			}
+		});
+
+		List<Hash> toDelete = new ArrayList<Hash>(hashes.subList(0, 150));
+		assertEquals(new HashSet<Hash>(toDelete), new HashSet<Hash>(fileCas.deleteAll(toDelete)));
+		assertEquals(new HashSet<Hash>(toDelete), new HashSet<Hash>(removed));
+		assertEquals(new HashSet<Hash>(hashes.subList(150, 200)), new HashSet<Hash>(fileCas.getHashes()));
+		assertEquals(50, fileCas.getStatistics().getContentCount());
+
+		fileCas.deleteAll(hashes);
+		assertEquals(200, removed.size());
+		// Nothing is left behind, not even the prefix directories
+		assertTrue(fileCas.getPrefixDirectories(tempDir).isEmpty());
+		assertEquals(0, fileCas.getStatistics().getContentCount());
+		assertEquals(0, fileCas.getStatistics().getContentBytes());
+		assertEquals(0, fileCas.getStatistics().getEncodedCount(new GZIPContentEncoding().getName()));
+	}
+
 	@Test
 	public void testSetAtomicMoveProperty() throws IOException {
 		// Default is false
@@ -170,5 +291,6 @@ public class ContentAddressableStoreFileImplTest extends ContentAddressableStore
 		properties.put(ContentAddressableStoreFileImpl.atomicMovePropertyName, "true");
 		ContentAddressableStoreFileImpl fileCas2 = createCas(properties);
 		assertEquals(true, fileCas2.isUsingAtomicMove());
+		fileCas2.close();
 	}
 }
@@ -0,0 +1,478 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentAddressableStoreHttpServerTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	private Path tempDir;
+	private ContentAddressableStoreFileImpl cas;
+	private ContentAddressableStoreHttpServer server;
+	private Random random = new Random(1);
+
+	private static class Reply {
+		private int status;
+		private HttpURLConnection connection;
+		private byte[] body;
+
+		String getHeader(String name) {
+			return connection.getHeaderField(name);
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("ContentAddressableStoreHttpServerTest");
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		cas = new ContentAddressableStoreFileImpl(properties);
+		server = startServer(cas);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		server.close();
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private static ContentAddressableStoreHttpServer startServer(ContentAddressableStore store) throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreHttpServer.portPropertyName, "0");
+		properties.put(ContentAddressableStoreHttpServer.bindAddressPropertyName, "127.0.0.1");
+		ContentAddressableStoreHttpServer server = new ContentAddressableStoreHttpServer(store, properties);
+		server.start();
+		return server;
+	}
+
+	private byte[] createContent(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < content.length; i += 10) {
+			content[i] = (byte) random.nextInt();
+		}
+		return content;
+	}
+
+	private Reply request(String method, String path, byte[] body, String... headers) throws IOException {
+		return request(server, method, path, body, headers);
+	}
+
+	private static Reply request(ContentAddressableStoreHttpServer server, String method, String path, byte[] body,
+			String... headers) throws IOException {
+		URL url = new URL("http://127.0.0.1:" + server.getPort() + path);
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod(method);
+		for (int i = 0; i < headers.length; i += 2) {
+			connection.setRequestProperty(headers[i], headers[i + 1]);
+		}
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setFixedLengthStreamingMode(body.length);
+			try (OutputStream outputStream = connection.getOutputStream()) {
+				outputStream.write(body);
+			}
+		}
+		Reply reply = new Reply();
+		reply.connection = connection;
+		reply.status = connection.getResponseCode();
+		InputStream inputStream = reply.status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		reply.body = inputStream == null ? new byte[0] : IOUtils.toByteArray(inputStream);
+		if (inputStream != null) {
+			inputStream.close();
+		}
+		return reply;
+	}
+
+	@Test
+	public void testGetAndHead() throws IOException {
+		byte[] content = createContent(100000);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+
+		Reply reply = request("GET", "/" + hash.getString(), null);
+		assertEquals(200, reply.status);
+		assertArrayEquals(content, reply.body);
+		assertEquals("\"" + hash.getString() + "\"", reply.getHeader("ETag"));
+		assertEquals("bytes", reply.getHeader("Accept-Ranges"));
+		assertNull(reply.getHeader("Content-Encoding"));
+
+		// Hashes are accepted in either case
+		reply = request("HEAD", "/" + hash.getString().toLowerCase(), null);
+		assertEquals(200, reply.status);
+		assertEquals(Integer.toString(content.length), reply.getHeader("Content-Length"));
+		assertEquals(0, reply.body.length);
+	}
+
+	@Test
+	public void testNotFound() throws IOException {
+		assertEquals(404, request("GET", "/" + new Hash(new byte[Hash.byteCount]).getString(), null).status);
+		assertEquals(404, request("GET", "/not-a-hash", null).status);
+		assertEquals(404, request("HEAD", "/", null).status);
+		assertEquals(404, request("DELETE", "/" + new Hash(new byte[Hash.byteCount]).getString(), null).status);
+	}
+
+	@Test
+	public void testConditionalGet() throws IOException {
+		Hash hash = cas.write(new ByteArrayInputStream(createContent(1000)));
+		String etag = "\"" + hash.getString() + "\"";
+
+		Reply reply = request("GET", "/" + hash.getString(), null, "If-None-Match", etag);
+		assertEquals(304, reply.status);
+		assertEquals(etag, reply.getHeader("ETag"));
+		assertEquals(0, reply.body.length);
+
+		assertEquals(200, request("GET", "/" + hash.getString(), null, "If-None-Match", "\"other\"").status);
+	}
+
+	@Test
+	public void testRanges() throws IOException {
+		byte[] content = createContent(1000);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		checkRanges(server, hash, content);
+	}
+
+	private static void checkRanges(ContentAddressableStoreHttpServer server, Hash hash, byte[] content)
+			throws IOException {
+		String path = "/" + hash.getString();
+		Reply reply = request(server, "GET", path, null, "Range", "bytes=10-19");
+		assertEquals(206, reply.status);
+		assertEquals("bytes 10-19/1000", reply.getHeader("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(content, 10, 20), reply.body);
+
+		reply = request(server, "GET", path, null, "Range", "bytes=-5");
+		assertEquals(206, reply.status);
+		assertArrayEquals(Arrays.copyOfRange(content, 995, 1000), reply.body);
+
+		reply = request(server, "GET", path, null, "Range", "bytes=990-");
+		assertEquals(206, reply.status);
+		assertArrayEquals(Arrays.copyOfRange(content, 990, 1000), reply.body);
+
+		reply = request(server, "GET", path, null, "Range", "bytes=990-5000");
+		assertEquals("bytes 990-999/1000", reply.getHeader("Content-Range"));
+
+		reply = request(server, "GET", path, null, "Range", "bytes=1000-");
+		assertEquals(416, reply.status);
+		assertEquals("bytes */1000", reply.getHeader("Content-Range"));
+
+		// Ranges of an older version are ignored
+		reply = request(server, "GET", path, null, "Range", "bytes=10-19", "If-Range", "\"other\"");
+		assertEquals(200, reply.status);
+		assertArrayEquals(content, reply.body);
+
+		// As are several ranges
+		reply = request(server, "GET", path, null, "Range", "bytes=1-2,5-6");
+		assertEquals(200, reply.status);
+	}
+
+	@Test
+	public void testEncodingNegotiation() throws IOException {
+		byte[] content = createContent(10000);
+		Hash hash = cas.write(new ByteArrayInputStream(content), gzip);
+		checkEncodingNegotiation(server, hash, content);
+
+		// Not stored in gzip, so not sent in it
+		Hash plain = cas.write(new ByteArrayInputStream(createContent(10000)));
+		Reply reply = request("GET", "/" + plain.getString(), null, "Accept-Encoding", "gzip");
+		assertNull(reply.getHeader("Content-Encoding"));
+	}
+
+	private static void checkEncodingNegotiation(ContentAddressableStoreHttpServer server, Hash hash, byte[] content)
+			throws IOException {
+		String path = "/" + hash.getString();
+		Reply reply = request(server, "GET", path, null, "Accept-Encoding", "br, gzip;q=0.8");
+		assertEquals(200, reply.status);
+		assertEquals("gzip", reply.getHeader("Content-Encoding"));
+		assertEquals("\"" + hash.getString() + ".gzip\"", reply.getHeader("ETag"));
+		assertEquals("Accept-Encoding", reply.getHeader("Vary"));
+		assertTrue(reply.body.length < content.length);
+		assertArrayEquals(content, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(reply.body))));
+
+		// Ranges are of the encoded content
+		reply = request(server, "GET", path, null, "Accept-Encoding", "gzip", "Range", "bytes=0-1");
+		assertEquals(206, reply.status);
+		assertArrayEquals(new byte[] { 0x1f, (byte) 0x8b }, reply.body);
+
+		reply = request(server, "GET", path, null, "Accept-Encoding", "gzip;q=0");
+		assertNull(reply.getHeader("Content-Encoding"));
+		assertArrayEquals(content, reply.body);
+
+		reply = request(server, "GET", path, null, "Accept-Encoding", "identity, gzip;q=0.5");
+		assertNull(reply.getHeader("Content-Encoding"));
+	}
+
+	@Test
+	public void testPutAndDelete() throws IOException {
+		byte[] content = createContent(10000);
+		Reply reply = request("PUT", "/?encodings=gzip", content);
+		assertEquals(201, reply.status);
+		Hash hash = new Hash(reply.getHeader("Location").substring(1));
+		assertTrue(cas.contains(hash));
+		assertTrue(cas.contains(hash, new GZIPContentEncoding()));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+
+		// Already there
+		reply = request("PUT", "/" + hash.getString(), content);
+		assertEquals(204, reply.status);
+		// Not what was asked for, but as the store has that hash the body
+		// isn't read
+		reply = request("PUT", "/" + hash.getString(), createContent(100));
+		assertEquals(204, reply.status);
+		reply = request("PUT", "/" + new Hash(new byte[Hash.byteCount]).getString(), createContent(100));
+		assertEquals(400, reply.status);
+
+		assertEquals(204, request("DELETE", "/" + hash.getString(), null).status);
+		assertFalse(cas.contains(hash));
+		assertEquals(404, request("GET", "/" + hash.getString(), null).status);
+	}
+
+	@Test
+	public void testPutWithHash() throws IOException {
+		byte[] content = createContent(10000);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		// Content which doesn't have the hash isn't stored
+		Reply reply = request("PUT", "/" + new Hash(new byte[Hash.byteCount]).getString(), content);
+		assertEquals(400, reply.status);
+		assertEquals(Collections.singletonList(hash), cas.getHashes());
+
+		// Content the store has isn't asked for
+		String head = " HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + content.length
+				+ "\r\nExpect: 100-continue\r\n\r\n";
+		try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+			OutputStream outputStream = socket.getOutputStream();
+			outputStream.write(("PUT /" + hash.getString() + head).getBytes(StandardCharsets.ISO_8859_1));
+			outputStream.flush();
+			assertEquals("HTTP/1.1 204 No Content", readLine(socket.getInputStream()));
+		}
+
+		// Content it doesn't have is
+		byte[] otherContent = createContent(10000);
+		Hash otherHash = cas.write(new ByteArrayInputStream(otherContent));
+		cas.delete(otherHash);
+		try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+			OutputStream outputStream = socket.getOutputStream();
+			InputStream inputStream = socket.getInputStream();
+			outputStream.write(("PUT /" + otherHash.getString() + head).getBytes(StandardCharsets.ISO_8859_1));
+			outputStream.flush();
+			assertEquals("HTTP/1.1 100 Continue", readLine(inputStream));
+			assertEquals("", readLine(inputStream));
+			outputStream.write(otherContent);
+			outputStream.flush();
+			assertEquals("HTTP/1.1 201 Created", readLine(inputStream));
+		}
+		assertTrue(cas.contains(otherHash));
+	}
+
+	@Test
+	public void testPutEncodedWithHash() throws IOException {
+		byte[] content = createContent(10000);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try (OutputStream outputStream = new GZIPContentEncoding().encode(encoded)) {
+			outputStream.write(content);
+		}
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		cas.delete(hash);
+
+		// Content which doesn't have the hash isn't stored, encoded or not
+		Reply reply = request("PUT", "/" + new Hash(new byte[Hash.byteCount]).getString(), encoded.toByteArray(),
+				"Content-Encoding", "gzip");
+		assertEquals(400, reply.status);
+		assertTrue(cas.getHashes().isEmpty());
+
+		reply = request("PUT", "/" + hash.getString() + "?encodings=deflate", encoded.toByteArray(),
+				"Content-Encoding", "gzip");
+		assertEquals(201, reply.status);
+		try (InputStream inputStream = cas.read(hash, new GZIPContentEncoding())) {
+			assertArrayEquals(encoded.toByteArray(), IOUtils.toByteArray(inputStream));
+		}
+		assertTrue(cas.contains(hash, new DeflateContentEncoding()));
+
+		// Content the store has isn't read, but still gets the encodings
+		reply = request("PUT", "/" + hash.getString() + "?encodings=" + SnappyContentEncoding.name, new byte[] { 1, 2, 3 },
+				"Content-Encoding", "gzip");
+		assertEquals(204, reply.status);
+		assertTrue(cas.contains(hash, new SnappyContentEncoding()));
+	}
+
+	@Test
+	public void testPutEncoded() throws IOException {
+		byte[] content = createContent(10000);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		try (OutputStream outputStream = new GZIPContentEncoding().encode(encoded)) {
+			outputStream.write(content);
+		}
+		Reply reply = request("PUT", "/", encoded.toByteArray(), "Content-Encoding", "gzip");
+		assertEquals(201, reply.status);
+		Hash hash = new Hash(reply.getHeader("Location").substring(1));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+		// Kept as it was sent
+		try (InputStream inputStream = cas.read(hash, new GZIPContentEncoding())) {
+			assertArrayEquals(encoded.toByteArray(), IOUtils.toByteArray(inputStream));
+		}
+
+		assertEquals(415, request("PUT", "/", content, "Content-Encoding", "unknown").status);
+	}
+
+	@Test
+	public void testOtherMethods() throws IOException {
+		Reply reply = request("OPTIONS", "/" + new Hash(new byte[Hash.byteCount]).getString(), null);
+		assertEquals(405, reply.status);
+		assertEquals("GET, HEAD, PUT, DELETE", reply.getHeader("Allow"));
+	}
+
+	@Test
+	public void testStoreWithoutFiles() throws IOException {
+		// Served from the store's streams rather than its files
+		try (RecordingContentAddressableStore recording = new RecordingContentAddressableStore(cas,
+				new StringWriter()); ContentAddressableStoreHttpServer streamServer = startServer(recording)) {
+			byte[] content = createContent(1000);
+			Hash hash = recording.write(new ByteArrayInputStream(content), gzip);
+			Reply reply = request(streamServer, "GET", "/" + hash.getString(), null);
+			assertArrayEquals(content, reply.body);
+			checkRanges(streamServer, hash, content);
+			checkEncodingNegotiation(streamServer, hash, content);
+		}
+		// Closing the recording store closed the file store too
+		cas = new ContentAddressableStoreFileImpl(getFileProperties());
+	}
+
+	private Properties getFileProperties() {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		return properties;
+	}
+
+	@Test
+	public void testKeepAliveAndBadRequests() throws IOException {
+		byte[] content = createContent(100);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		try (Socket socket = new Socket("127.0.0.1", server.getPort())) {
+			OutputStream outputStream = socket.getOutputStream();
+			InputStream inputStream = socket.getInputStream();
+			for (int i = 0; i < 3; i++) {
+				outputStream.write(("GET /" + hash.getString() + " HTTP/1.1\r\nHost: localhost\r\n\r\n")
+						.getBytes(StandardCharsets.ISO_8859_1));
+				outputStream.flush();
+				assertEquals("HTTP/1.1 200 OK", readLine(inputStream));
+				int length = -1;
+				for (String line = readLine(inputStream); !line.isEmpty(); line = readLine(inputStream)) {
+					if (line.startsWith("Content-Length: ")) {
+						length = Integer.parseInt(line.substring("Content-Length: ".length()));
+					}
+				}
+				byte[] body = new byte[length];
+				IOUtils.readFully(inputStream, body);
+				assertArrayEquals(content, body);
+			}
+
+			outputStream.write("NONSENSE\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+			outputStream.flush();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.ISO_8859_1));
+			assertEquals("HTTP/1.1 400 Bad Request", reader.readLine());
+			// And the connection is closed
+			while (reader.readLine() != null) {
+			}
+		}
+	}
+
+	private static String readLine(InputStream inputStream) throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int b = inputStream.read(); b != '\n'; b = inputStream.read()) {
+			if (b != '\r') {
+				line.append((char) b);
+			}
+		}
+		return line.toString();
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		int count = 50;
+		List<Hash> hashes = new ArrayList<Hash>();
+		List<byte[]> contents = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			byte[] content = createContent(1000 + random.nextInt(200000));
+			contents.add(content);
+			hashes.add(cas.write(new ByteArrayInputStream(content), i % 2 == 0 ? gzip : null));
+		}
+
+		int clients = 16;
+		int requests = 100;
+		ExecutorService executor = Executors.newFixedThreadPool(clients);
+		try {
+			List<Future<Long>> futures = new ArrayList<Future<Long>>();
+			for (int c = 0; c < clients; c++) {
+				int seed = c;
+				futures.add(executor.submit(() -> {
+					Random clientRandom = new Random(seed);
+					long bytes = 0;
+					for (int r = 0; r < requests; r++) {
+						int i = clientRandom.nextInt(count);
+						byte[] content = contents.get(i);
+						String path = "/" + hashes.get(i).getString();
+						if (clientRandom.nextBoolean()) {
+							int start = clientRandom.nextInt(content.length);
+							Reply reply = request("GET", path, null, "Range", "bytes=" + start + "-");
+							assertArrayEquals(Arrays.copyOfRange(content, start, content.length), reply.body);
+							bytes += reply.body.length;
+						} else {
+							Reply reply = request("GET", path, null, "Accept-Encoding", "gzip");
+							byte[] body = reply.body;
+							if ("gzip".equals(reply.getHeader("Content-Encoding"))) {
+								body = IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(body)));
+							}
+							assertArrayEquals(content, body);
+							bytes += reply.body.length;
+						}
+					}
+					return bytes;
+				}));
+			}
+			long bytes = 0;
+			for (Future<Long> future : futures) {
+				bytes += future.get();
+			}
+			assertTrue(bytes > 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sturrock.cassette.cassettej.ContentAddressableStoreFileImplBackgroundEncodingTest.BlockedContentEncoding;
+
+/**
+ * Runs the Infinispan store tests with encodings produced in the background.
+ */
+public class ContentAddressableStoreInfinispanImplBackgroundEncodingTest extends ContentAddressableStoreInfinispanImplTest {
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreInfinispanImpl.configFilePropertyName, "infinispan.xml");
+		properties.put(ContentAddressableStoreInfinispanImpl.cacheNamePropertyName, "CassetteJ");
+		properties.put(ContentAddressableStoreInfinispanImpl.encodingModePropertyName, "background");
+		cas = new ContentAddressableStoreInfinispanImpl(properties);
+	}
+
+	@Test
+	public void testWriteDoesNotWaitForEncoding() throws IOException, InterruptedException {
+		assertEquals(EncodingMode.BACKGROUND, ((ContentAddressableStoreInfinispanImpl) cas).getEncodingMode());
+		BlockedContentEncoding encoding = new BlockedContentEncoding();
+		byte[] content = "Encode me later".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+
+		encoding.started.await();
+		assertTrue(cas.contains(hash));
+		assertTrue(cas.contains(hash, encoding));
+
+		encoding.release.countDown();
+		try (InputStream inputStream = encoding.decode(cas.read(hash, encoding))) {
+			assertArrayEquals(content, IOUtils.toByteArray(inputStream));
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs several distributed mode nodes in this JVM, talking to each other over
+ * the in-process loopback JGroups stack.
+ */
+public class ContentAddressableStoreInfinispanImplClusterTest {
+
+	private static final int nodeCount = 3;
+	private static List<ContentAddressableStoreInfinispanImpl> nodes = new LinkedList<ContentAddressableStoreInfinispanImpl>();
+
+	private String helloWorldString = "Hello World";
+	private Hash helloWorldHash = new Hash("0A4D55A8D778E5022FAB701977C5D840BBC486D0");
+
+	static ContentAddressableStoreInfinispanImpl createNode(String cacheName, Properties overrides)
+			throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreInfinispanImpl.configFilePropertyName, "infinispan-loopback.xml");
+		properties.put(ContentAddressableStoreInfinispanImpl.cacheNamePropertyName, cacheName);
+		properties.putAll(overrides);
+		return new ContentAddressableStoreInfinispanImpl(properties);
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		// Only one owner so that most nodes have to go elsewhere for content
+		Properties overrides = new Properties();
+		overrides.put(ContentAddressableStoreInfinispanImpl.numOwnersPropertyName, "1");
+		for (int i = 0; i < nodeCount; ++i) {
+			nodes.add(createNode("CassetteJDist", overrides));
+		}
+	}
+
+	@AfterClass
+	public static void tearDownClass() {
+		for (ContentAddressableStore node : nodes) {
+			node.close();
+		}
+		nodes.clear();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Hash hash : nodes.get(0).getHashes()) {
+			nodes.get(0).delete(hash);
+		}
+	}
+
+	private Hash writeHelloWorld(ContentAddressableStore node) throws IOException {
+		List<ContentEncoding> encodings = new LinkedList<ContentEncoding>();
+		encodings.add(new GZIPContentEncoding());
+		try (InputStream stream = new ByteArrayInputStream(helloWorldString.getBytes(StandardCharsets.UTF_8));) {
+			return node.write(stream, encodings);
+		}
+	}
+
+	@Test
+	public void testContentVisibleOnAllNodes() throws IOException {
+		writeHelloWorld(nodes.get(0));
+
+		ContentEncoding encoding = new GZIPContentEncoding();
+		long encodedLength = nodes.get(0).getContentLength(helloWorldHash, encoding);
+		for (ContentAddressableStore node : nodes) {
+			assertEquals(true, node.contains(helloWorldHash));
+			assertEquals(true, node.contains(helloWorldHash, encoding));
+			assertEquals(helloWorldString.length(), node.getContentLength(helloWorldHash));
+			assertEquals(encodedLength, node.getContentLength(helloWorldHash, encoding));
+			try (InputStream stream = node.read(helloWorldHash);) {
+				assertNotNull(stream);
+				assertEquals(helloWorldString, IOUtils.toString(stream, StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Test
+	public void testMissingContentOnAllNodes() throws IOException {
+		for (ContentAddressableStore node : nodes) {
+			assertEquals(false, node.contains(helloWorldHash));
+			assertEquals(-1, node.getContentLength(helloWorldHash));
+		}
+	}
+
+	@Test
+	public void testWriteFromEveryNode() throws IOException {
+		AtomicInteger added = new AtomicInteger();
+		ContentAddressableStoreListener listener = new ContentAddressableStoreListener() {
+			@Override
+			public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+				added.incrementAndGet();
+			}
+
+			@Override
+			public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			}
+		};
+		for (ContentAddressableStore node : nodes) {
+			node.addListener(listener);
+		}
+		List<Hash> hashes = new LinkedList<Hash>();
+		try {
+			// Whichever node owns the content, only the first write adds it
+			for (int i = 0; i < 10; i++) {
+				byte[] content = ("Content " + i).getBytes(StandardCharsets.UTF_8);
+				for (ContentAddressableStore node : nodes) {
+					hashes.add(node.write(new ByteArrayInputStream(content)));
+				}
+				assertEquals(i + 1, added.get());
+				for (ContentAddressableStore node : nodes) {
+					try (InputStream stream = node.read(hashes.get(0))) {
+						assertNotNull(stream);
+					}
+				}
+			}
+		} finally {
+			for (ContentAddressableStore node : nodes) {
+				node.removeListener(listener);
+			}
+			// Not all listed by any one node
+			nodes.get(0).deleteAll(hashes);
+		}
+	}
+
+	@Test
+	public void testNumOwners() throws IOException {
+		writeHelloWorld(nodes.get(1));
+		int owners = 0;
+		for (ContentAddressableStoreInfinispanImpl node : nodes) {
+			if (node.isLocal(helloWorldHash)) {
+				++owners;
+			}
+		}
+		assertEquals(1, owners);
+	}
+
+	@Test
+	public void testAsync() throws IOException, InterruptedException {
+		Properties overrides = new Properties();
+		try (ContentAddressableStoreInfinispanImpl node1 = createNode("CassetteJDistAsync", overrides);
+				ContentAddressableStoreInfinispanImpl node2 = createNode("CassetteJDistAsync", overrides);) {
+			writeHelloWorld(node1);
+			// The write may not have reached the other node yet
+			for (int i = 0; i < 100 && !node2.contains(helloWorldHash); ++i) {
+				Thread.sleep(50);
+			}
+			assertEquals(true, node2.contains(helloWorldHash));
+		}
+	}
+
+	private static class QueueingListener implements ContentAddressableStoreListener {
+		final BlockingQueue<Hash> added = new LinkedBlockingQueue<Hash>();
+		final BlockingQueue<Hash> removed = new LinkedBlockingQueue<Hash>();
+
+		@Override
+		public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			added.add(contentAddressableStoreEvent.getHash());
+		}
+
+		@Override
+		public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			removed.add(contentAddressableStoreEvent.getHash());
+		}
+	}
+
+	@Test
+	public void testClusterEvents() throws IOException, InterruptedException {
+		Properties overrides = new Properties();
+		overrides.put(ContentAddressableStoreInfinispanImpl.clusterEventsPropertyName, "true");
+		try (ContentAddressableStoreInfinispanImpl node1 = createNode("CassetteJ", overrides);
+				ContentAddressableStoreInfinispanImpl node2 = createNode("CassetteJ", overrides);) {
+			QueueingListener listener1 = new QueueingListener();
+			QueueingListener listener2 = new QueueingListener();
+			node1.addListener(listener1);
+			node2.addListener(listener2);
+
+			writeHelloWorld(node1);
+			assertEquals(helloWorldHash, listener2.added.poll(5, TimeUnit.SECONDS));
+			node1.delete(helloWorldHash);
+			assertEquals(helloWorldHash, listener2.removed.poll(5, TimeUnit.SECONDS));
+
+			// The writing node should only have been told once about each
+			assertEquals(1, listener1.added.size());
+			assertEquals(1, listener1.removed.size());
+			assertEquals(0, listener2.added.size());
+			assertEquals(0, listener2.removed.size());
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Runs the standard tests against a cache which holds content off the heap
+ * and passivates it to a file store.
+ */
+public class ContentAddressableStoreInfinispanImplPersistentTest extends ContentAddressableStoreTest {
+
+	private static Path tempDir;
+
+	private static ContentAddressableStoreInfinispanImpl createCas() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreInfinispanImpl.configFilePropertyName, "infinispan.xml");
+		properties.put(ContentAddressableStoreInfinispanImpl.cacheNamePropertyName, "CassetteJPersistent");
+		properties.put(ContentAddressableStoreInfinispanImpl.offHeapPropertyName, "true");
+		return new ContentAddressableStoreInfinispanImpl(properties);
+	}
+
+	@BeforeClass
+	public static void setUpClass() throws IOException {
+		tempDir = Files.createTempDirectory("ContentAddressableStoreInfinispanImplPersistentTest");
+		System.setProperty("cassettej.store.location", tempDir.toString());
+		cas = createCas();
+	}
+
+	@AfterClass
+	public static void tearDownClass() throws IOException {
+		cas.close();
+		System.clearProperty("cassettej.store.location");
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		for (Hash hash : cas.getHashes()) {
+			cas.delete(hash);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoLocation() throws IOException {
+		System.clearProperty("cassettej.store.location");
+		try (ContentAddressableStore cas = createCas()) {
+		} finally {
+			System.setProperty("cassettej.store.location", tempDir.toString());
+		}
+	}
+
+	@Test
+	public void testOffHeap() {
+		assertEquals(true, ((ContentAddressableStoreInfinispanImpl) cas).isOffHeap());
+	}
+
+	@Test
+	public void testRestart() throws IOException {
+		String helloWorldString = "Hello World";
+		try (InputStream stream = new ByteArrayInputStream(helloWorldString.getBytes(StandardCharsets.UTF_8));) {
+			cas.write(stream);
+		}
+
+		// Content should be reloaded from disk
+		cas.close();
+		cas = createCas();
+
+		assertEquals(true, cas.contains(helloWorldHash));
+		assertEquals(1, cas.getHashes().size());
+		try (InputStream stream = cas.read(helloWorldHash);) {
+			assertNotNull(stream);
+			assertEquals(helloWorldString, IOUtils.toString(stream, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void testRestartStatistics() throws IOException {
+		String helloWorldString = "Hello World";
+		try (InputStream stream = new ByteArrayInputStream(helloWorldString.getBytes(StandardCharsets.UTF_8));) {
+			cas.write(stream);
+		}
+
+		// Content passivated to disk should still be counted
+		cas.close();
+		cas = createCas();
+
+		StoreStatistics statistics = cas.getStatistics();
+		assertEquals(1, statistics.getContentCount());
+		assertEquals(helloWorldString.length(), statistics.getContentBytes());
+	}
+}
@@ -1,8 +1,17 @@
 package org.sturrock.cassette.cassettej;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.infinispan.Cache;
 import org.junit.After;
@@ -42,6 +51,35 @@ public class ContentAddressableStoreInfinispanImplTest extends ContentAddressabl
 		}
 	}
 
+	@Test
+	public void testConcurrentEncodingsKept() throws Exception {
+		byte[] content = "Encoded concurrently".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+
+		// Encodings with different names, added at the same time
+		List<Callable<Hash>> writes = new ArrayList<Callable<Hash>>();
+		List<ContentEncoding> encodings = new ArrayList<ContentEncoding>();
+		for (int i = 0; i < 16; i++) {
+			byte[] dictionaryHash = new byte[20];
+			dictionaryHash[0] = (byte) i;
+			ContentEncoding encoding = new DictionaryContentEncoding(new Hash(dictionaryHash),
+					("Dictionary " + i).getBytes(StandardCharsets.UTF_8), 9);
+			encodings.add(encoding);
+			writes.add(() -> cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding)));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(encodings.size());
+		try {
+			for (Future<Hash> future : executor.invokeAll(writes)) {
+				Assert.assertEquals(hash, future.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		for (ContentEncoding encoding : encodings) {
+			Assert.assertTrue(encoding.getName(), cas.contains(hash, encoding));
+		}
+	}
+
 	@Test(expected = IllegalArgumentException.class)
 	public void testConstructor() throws IOException {
 		Properties properties = new Properties();
@@ -0,0 +1,434 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentAddressableStoreRemoteImplTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	private Path tempDir;
+	private ContentAddressableStoreFileImpl cas;
+	private ContentAddressableStoreRemoteServer server;
+	private ContentAddressableStoreRemoteImpl remote;
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("ContentAddressableStoreRemoteImplTest");
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		cas = new ContentAddressableStoreFileImpl(properties);
+		Properties serverProperties = new Properties();
+		serverProperties.put(ContentAddressableStoreRemoteServer.portPropertyName, "0");
+		serverProperties.put(ContentAddressableStoreRemoteServer.bindAddressPropertyName, "127.0.0.1");
+		server = new ContentAddressableStoreRemoteServer(cas, serverProperties);
+		server.start();
+		remote = createRemote();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		remote.close();
+		server.close();
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private ContentAddressableStoreRemoteImpl createRemote() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreRemoteImpl.hostPropertyName, "127.0.0.1");
+		properties.put(ContentAddressableStoreRemoteImpl.portPropertyName, Integer.toString(server.getPort()));
+		return (ContentAddressableStoreRemoteImpl) ContentAddressableStoreFactory
+				.createContentAddressableStore(ContentAddressableStoreFactory.ImplementationType.REMOTE, properties);
+	}
+
+	private byte[] createContent(int length) {
+		byte[] content = new byte[length];
+		for (int i = 0; i < content.length; i += 10) {
+			content[i] = (byte) random.nextInt();
+		}
+		return content;
+	}
+
+	private static Hash hashOf(byte[] content) throws NoSuchAlgorithmException {
+		return new Hash(MessageDigest.getInstance("SHA-1").digest(content));
+	}
+
+	private static byte[] read(ContentAddressableStore store, Hash hash, ContentEncoding contentEncoding)
+			throws IOException {
+		try (InputStream inputStream = contentEncoding == null ? store.read(hash)
+				: store.read(hash, contentEncoding)) {
+			return inputStream == null ? null : IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	@Test
+	public void testOperations() throws Exception {
+		byte[] content = createContent(1000);
+		Hash hash = remote.write(new ByteArrayInputStream(content), gzip);
+		assertEquals(hashOf(content), hash);
+		assertTrue(cas.contains(hash, gzip.get(0)));
+
+		assertTrue(remote.contains(hash));
+		assertTrue(remote.contains(hash, gzip.get(0)));
+		assertFalse(remote.contains(hash, new DeflateContentEncoding()));
+		assertEquals(1000, remote.getContentLength(hash));
+		assertEquals(cas.getContentLength(hash, gzip.get(0)), remote.getContentLength(hash, gzip.get(0)));
+		assertArrayEquals(content, read(remote, hash, null));
+		assertArrayEquals(read(cas, hash, gzip.get(0)), read(remote, hash, gzip.get(0)));
+		assertEquals(Collections.singletonList(hash), remote.getHashes());
+		assertEquals(1, remote.getStatistics().getContentCount());
+		assertEquals(1, remote.getStatistics().getEncodedCount(gzip.get(0).getName()));
+
+		assertTrue(remote.delete(hash));
+		assertFalse(remote.delete(hash));
+		assertFalse(remote.contains(hash));
+		assertNull(remote.read(hash));
+		assertEquals(-1, remote.getContentLength(hash));
+		assertTrue(remote.getHashes().isEmpty());
+	}
+
+	@Test
+	public void testWriteEncoded() throws IOException {
+		byte[] content = createContent(5000);
+		Hash hash = cas.write(new ByteArrayInputStream(content), gzip);
+		byte[] encoded = read(cas, hash, gzip.get(0));
+		cas.delete(hash);
+
+		assertEquals(hash, remote.writeEncoded(new ByteArrayInputStream(encoded), gzip.get(0)));
+		assertArrayEquals(content, read(cas, hash, null));
+		assertTrue(cas.contains(hash, gzip.get(0)));
+	}
+
+	@Test
+	public void testLargeContent() throws Exception {
+		// Many more chunks than the window in each direction
+		byte[] content = createContent(RemoteProtocol.chunkSize * RemoteProtocol.window * 3 + 17);
+		Hash hash = remote.write(new ByteArrayInputStream(content));
+		assertEquals(hashOf(content), hash);
+		assertArrayEquals(content, read(remote, hash, null));
+
+		// Many frames of hashes
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 5000; i++) {
+			hashes.add(cas.write(new ByteArrayInputStream(Integer.toString(i).getBytes())));
+		}
+		hashes.add(hash);
+		assertEquals(new HashSet<Hash>(hashes), new HashSet<Hash>(remote.getHashes()));
+	}
+
+	@Test
+	public void testReadClosedEarly() throws IOException {
+		byte[] content = createContent(RemoteProtocol.chunkSize * RemoteProtocol.window * 3);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		for (int i = 0; i < 20; i++) {
+			try (InputStream inputStream = remote.read(hash)) {
+				assertEquals(content[0] & 0xff, inputStream.read());
+			}
+		}
+		// The connections are still usable
+		assertArrayEquals(content, read(remote, hash, null));
+	}
+
+	@Test
+	public void testWriteFailures() throws Exception {
+		// An encoding the server doesn't know
+		ContentEncoding unknown = new ContentEncoding() {
+			@Override
+			public String getName() {
+				return "unknown";
+			}
+
+			@Override
+			public OutputStream encode(OutputStream stream) {
+				return stream;
+			}
+
+			@Override
+			public InputStream decode(InputStream stream) {
+				return stream;
+			}
+		};
+		byte[] content = createContent(RemoteProtocol.chunkSize * 4);
+		try {
+			remote.write(new ByteArrayInputStream(content), Collections.singletonList(unknown));
+			fail("Expected IllegalArgumentException");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+
+		// A stream which fails part way through
+		InputStream failing = new InputStream() {
+			private int count;
+
+			@Override
+			public int read() throws IOException {
+				if (++count > RemoteProtocol.chunkSize * 2)
+					throw new IOException("Broken");
+				return 0;
+			}
+		};
+		try {
+			remote.write(failing);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			assertEquals("Broken", e.getMessage());
+		}
+		assertTrue(cas.getHashes().isEmpty());
+
+		// Nothing is left behind to upset later requests
+		assertEquals(hashOf(content), remote.write(new ByteArrayInputStream(content)));
+	}
+
+	@Test
+	public void testWriteExpected() throws Exception {
+		byte[] content = createContent(RemoteProtocol.chunkSize * 3);
+		Hash hash = hashOf(content);
+		Hash other = hashOf(createContent(100));
+		try {
+			remote.write(other, new ByteArrayInputStream(content), null);
+			fail("Expected HashMismatchException");
+		} catch (HashMismatchException e) {
+			assertEquals(other, e.getExpected());
+			assertEquals(hash, e.getActual());
+		}
+		assertTrue(cas.getHashes().isEmpty());
+
+		assertEquals(hash, remote.write(hash, new ByteArrayInputStream(content), gzip));
+		assertArrayEquals(content, read(cas, hash, null));
+		assertTrue(cas.contains(hash, gzip.get(0)));
+
+		// Already there, so the content isn't sent
+		InputStream unreadable = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Read");
+			}
+		};
+		assertEquals(hash, remote.write(hash, unreadable, gzip));
+	}
+
+	@Test
+	public void testDeleteAll() throws IOException {
+		// More than fit in one request
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < RemoteProtocol.hashesPerFrame + 100; i++) {
+			hashes.add(cas.write(new ByteArrayInputStream(Integer.toString(i).getBytes())));
+		}
+		Hash missing = new Hash(new byte[Hash.byteCount]);
+		List<Hash> toDelete = new ArrayList<Hash>(hashes);
+		toDelete.add(missing);
+		assertEquals(new HashSet<Hash>(hashes), new HashSet<Hash>(remote.deleteAll(toDelete)));
+		assertTrue(cas.getHashes().isEmpty());
+		assertTrue(remote.deleteAll(hashes).isEmpty());
+	}
+
+	@Test
+	public void testServerGone() throws IOException {
+		byte[] content = createContent(100);
+		Hash hash = remote.write(new ByteArrayInputStream(content));
+		server.close();
+		try {
+			remote.read(hash);
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			remote.contains(hash);
+			fail("Expected UncheckedIOException");
+		} catch (java.io.UncheckedIOException e) {
+			// Expected
+		}
+	}
+
+	private static class QueueingListener implements ContentAddressableStoreListener {
+		final BlockingQueue<Hash> added = new LinkedBlockingQueue<Hash>();
+		final BlockingQueue<Hash> removed = new LinkedBlockingQueue<Hash>();
+
+		@Override
+		public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			added.add(contentAddressableStoreEvent.getHash());
+		}
+
+		@Override
+		public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			removed.add(contentAddressableStoreEvent.getHash());
+		}
+	}
+
+	@Test
+	public void testListeners() throws IOException, InterruptedException {
+		QueueingListener listener = new QueueingListener();
+		remote.addListener(listener);
+		try (ContentAddressableStoreRemoteImpl other = createRemote()) {
+			byte[] content = createContent(100);
+			Hash hash = other.write(new ByteArrayInputStream(content));
+			assertEquals(hash, listener.added.poll(5, TimeUnit.SECONDS));
+			cas.delete(hash);
+			assertEquals(hash, listener.removed.poll(5, TimeUnit.SECONDS));
+		}
+		remote.removeListener(listener);
+		cas.write(new ByteArrayInputStream(createContent(200)));
+		assertNull(listener.added.poll(200, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testContentAddedCounted() throws IOException, InterruptedException {
+		JmxStoreMetrics metrics = new JmxStoreMetrics("test");
+		remote.setMetrics(metrics);
+		QueueingListener listener = new QueueingListener();
+		remote.addListener(listener);
+		byte[] content = createContent(100);
+		Hash hash = remote.write(new ByteArrayInputStream(content));
+		assertEquals(hash, remote.write(new ByteArrayInputStream(content)));
+		assertEquals(hash, remote.write(hash, new ByteArrayInputStream(content), null));
+		assertEquals(hash, listener.added.poll(5, TimeUnit.SECONDS));
+		// Only the first write added it, and the event isn't counted again
+		try (ContentAddressableStoreRemoteImpl other = createRemote()) {
+			Hash otherHash = other.write(new ByteArrayInputStream(createContent(200)));
+			assertEquals(otherHash, listener.added.poll(5, TimeUnit.SECONDS));
+		}
+		assertEquals(3, metrics.getWrites());
+		assertEquals(1, metrics.getContentAdded());
+	}
+
+	@Test
+	public void testSubscribeFails() throws IOException {
+		server.close();
+		QueueingListener listener = new QueueingListener();
+		try {
+			remote.addListener(listener);
+			fail("Expected UncheckedIOException");
+		} catch (java.io.UncheckedIOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testConcurrentRequests() throws Exception {
+		List<byte[]> contents = new ArrayList<byte[]>();
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 100; i++) {
+			byte[] content = createContent(random.nextInt(200000));
+			contents.add(content);
+			hashes.add(cas.write(new ByteArrayInputStream(content)));
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < 1000; i++) {
+				int n = i % contents.size();
+				futures.add(executor.submit(() -> {
+					assertTrue(remote.contains(hashes.get(n)));
+					assertArrayEquals(contents.get(n), read(remote, hashes.get(n), null));
+					assertEquals(hashes.get(n), remote.write(new ByteArrayInputStream(contents.get(n))));
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testSlowWrite() throws Exception {
+		// A store which doesn't start reading content until released
+		CountDownLatch release = new CountDownLatch(1);
+		ContentAddressableStore slow = new RecordingContentAddressableStore(cas, new StringWriter()) {
+			@Override
+			public Hash write(InputStream stream, List<ContentEncoding> encodings) throws IOException {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+				return super.write(stream, encodings);
+			}
+		};
+		Properties serverProperties = new Properties();
+		serverProperties.put(ContentAddressableStoreRemoteServer.portPropertyName, "0");
+		serverProperties.put(ContentAddressableStoreRemoteServer.bindAddressPropertyName, "127.0.0.1");
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreRemoteImpl.hostPropertyName, "127.0.0.1");
+		properties.put(ContentAddressableStoreRemoteImpl.connectionsPropertyName, "1");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try (ContentAddressableStoreRemoteServer slowServer = new ContentAddressableStoreRemoteServer(slow,
+				serverProperties)) {
+			slowServer.start();
+			properties.put(ContentAddressableStoreRemoteImpl.portPropertyName, Integer.toString(slowServer.getPort()));
+			try (ContentAddressableStoreRemoteImpl slowRemote = new ContentAddressableStoreRemoteImpl(properties)) {
+				byte[] content = createContent(RemoteProtocol.chunkSize * RemoteProtocol.window * 3);
+				Future<Hash> write = executor
+						.submit(() -> slowRemote.write(new ByteArrayInputStream(content), null));
+
+				// More of the write is waiting to be sent than the server
+				// has room for, but other requests on the connection are
+				// still answered
+				Hash hash = cas.write(new ByteArrayInputStream(createContent(100)));
+				Future<Boolean> contains = executor.submit(() -> slowRemote.contains(hash));
+				assertTrue(contains.get(10, TimeUnit.SECONDS));
+
+				release.countDown();
+				assertEquals(hashOf(content), write.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			release.countDown();
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testLatency() throws IOException {
+		Hash hash = cas.write(new ByteArrayInputStream(createContent(100)));
+		for (int i = 0; i < 1000; i++) {
+			remote.contains(hash);
+		}
+		int count = 10000;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			assertTrue(remote.contains(hash));
+		}
+		long average = (System.nanoTime() - start) / count;
+		// Loose, so as not to fail on a busy machine
+		assertTrue(average < TimeUnit.MILLISECONDS.toNanos(5));
+	}
+}
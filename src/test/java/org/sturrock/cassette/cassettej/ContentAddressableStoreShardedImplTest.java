@@ -0,0 +1,302 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ContentAddressableStoreShardedImplTest extends ContentAddressableStoreTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	private List<Path> roots = new ArrayList<Path>();
+	private ContentAddressableStoreShardedImpl shardedCas;
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws IOException {
+		for (int i = 0; i < 3; i++) {
+			roots.add(Files.createTempDirectory("ContentAddressableStoreShardedImplTest"));
+		}
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		shardedCas.close();
+		for (Path root : roots) {
+			FileUtils.deleteDirectory(root.toFile());
+		}
+	}
+
+	private static ContentAddressableStoreShardedImpl createCas(List<Path> roots) throws IOException {
+		return createCas(roots, new Properties());
+	}
+
+	private static ContentAddressableStoreShardedImpl createCas(List<Path> roots, Properties properties)
+			throws IOException {
+		StringBuilder rootPaths = new StringBuilder();
+		for (Path root : roots) {
+			rootPaths.append(rootPaths.length() == 0 ? "" : ",").append(root);
+		}
+		properties.put(ContentAddressableStoreShardedImpl.rootPathsPropertyName, rootPaths.toString());
+		return (ContentAddressableStoreShardedImpl) ContentAddressableStoreFactory
+				.createContentAddressableStore(ContentAddressableStoreFactory.ImplementationType.SHARDED, properties);
+	}
+
+	private Hash write(int length, List<ContentEncoding> encodings) throws IOException {
+		byte[] content = new byte[length];
+		random.nextBytes(content);
+		return shardedCas.write(new ByteArrayInputStream(content), encodings);
+	}
+
+	private static byte[] read(ContentAddressableStore store, Hash hash) throws IOException {
+		try (InputStream inputStream = store.read(hash)) {
+			return inputStream == null ? null : IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	/**
+	 * @return The hashes in each root's store
+	 */
+	private Map<Path, List<Hash>> getHashesByRoot() throws IOException {
+		Map<Path, List<Hash>> hashes = new HashMap<Path, List<Hash>>();
+		for (ContentAddressableStoreFileImpl shard : shardedCas.getShards()) {
+			hashes.put(shard.getRootPath(), shard.getHashes());
+		}
+		return hashes;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor() throws IOException {
+		new ContentAddressableStoreShardedImpl(new Properties());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRootListedTwice() throws IOException {
+		createCas(Collections.nCopies(2, roots.get(0)));
+	}
+
+	@Test
+	public void testContentSpread() throws IOException {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 300; i++) {
+			hashes.add(write(100, gzip));
+		}
+
+		int total = 0;
+		for (ContentAddressableStoreFileImpl shard : shardedCas.getShards()) {
+			List<Hash> shardHashes = shard.getHashes();
+			// Roughly a third each
+			assertTrue(shardHashes.size() > 50);
+			for (Hash hash : shardHashes) {
+				assertTrue(shardedCas.getShard(hash) == shard);
+				assertTrue(shard.contains(hash, gzip.get(0)));
+			}
+			total += shardHashes.size();
+		}
+		assertEquals(300, total);
+		assertEquals(new HashSet<Hash>(hashes), new HashSet<Hash>(shardedCas.getHashes()));
+		assertEquals(300, shardedCas.getStatistics().getContentCount());
+		assertEquals(300, shardedCas.getStatistics().getEncodedCount(gzip.get(0).getName()));
+	}
+
+	@Test
+	public void testRebalanceFails() throws IOException, InterruptedException {
+		write(100, gzip);
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		assertNull(shardedCas.getRebalanceException());
+		shardedCas.close();
+
+		// The new root's layout can't be replaced
+		Path root = Files.createTempDirectory("ContentAddressableStoreShardedImplTest");
+		roots.add(root);
+		Files.createDirectories(root.resolve("shards").resolve("in-the-way"));
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		assertTrue(shardedCas.isRebalancing());
+		assertNotNull(shardedCas.getRebalanceException());
+	}
+
+	@Test
+	public void testAddRoot() throws IOException, InterruptedException {
+		Map<Hash, byte[]> contents = new HashMap<Hash, byte[]>();
+		for (int i = 0; i < 400; i++) {
+			byte[] content = new byte[100];
+			random.nextBytes(content);
+			contents.put(shardedCas.write(new ByteArrayInputStream(content), gzip), content);
+		}
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		Map<Path, List<Hash>> before = getHashesByRoot();
+		shardedCas.close();
+
+		roots.add(Files.createTempDirectory("ContentAddressableStoreShardedImplTest"));
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+		// Everything can be read while it is being moved
+		for (Map.Entry<Hash, byte[]> entry : contents.entrySet()) {
+			assertArrayEquals(entry.getValue(), read(shardedCas, entry.getKey()));
+		}
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		assertFalse(shardedCas.isRebalancing());
+
+		// Content only moved to the new root, and about a quarter of it did
+		Map<Path, List<Hash>> after = getHashesByRoot();
+		List<Hash> moved = after.get(roots.get(3));
+		assertTrue(moved.size() > 50 && moved.size() < 150);
+		for (int i = 0; i < 3; i++) {
+			Path root = roots.get(i);
+			assertTrue(before.get(root).containsAll(after.get(root)));
+			assertEquals(before.get(root).size(), after.get(root).size() + moved.stream()
+					.filter(before.get(root)::contains).count());
+		}
+		for (Hash hash : moved) {
+			assertTrue(shardedCas.getShard(hash).getRootPath().equals(roots.get(3)));
+			assertTrue(shardedCas.contains(hash, gzip.get(0)));
+		}
+		assertEquals(contents.keySet(), new HashSet<Hash>(shardedCas.getHashes()));
+		for (Map.Entry<Hash, byte[]> entry : contents.entrySet()) {
+			assertArrayEquals(entry.getValue(), read(shardedCas, entry.getKey()));
+		}
+
+		// The same roots again aren't rebalanced
+		shardedCas.close();
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+		assertFalse(shardedCas.isRebalancing());
+	}
+
+	@Test
+	public void testAtomicMove() throws IOException, InterruptedException {
+		shardedCas.close();
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.atomicMovePropertyName, "true");
+		shardedCas = createCas(roots, properties);
+		cas = shardedCas;
+
+		// Written, written encoded and moved to a new root, all with atomic
+		// moves, which only work within a filesystem
+		Map<Hash, byte[]> contents = new HashMap<Hash, byte[]>();
+		for (int i = 0; i < 100; i++) {
+			byte[] content = new byte[1000];
+			random.nextBytes(content);
+			if (i % 2 == 0) {
+				contents.put(shardedCas.write(new ByteArrayInputStream(content), gzip), content);
+			} else {
+				ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+				try (OutputStream outputStream = gzip.get(0).encode(encoded)) {
+					outputStream.write(content);
+				}
+				contents.put(shardedCas.writeEncoded(new ByteArrayInputStream(encoded.toByteArray()), gzip.get(0)),
+						content);
+			}
+		}
+		shardedCas.close();
+		roots.add(Files.createTempDirectory("ContentAddressableStoreShardedImplTest"));
+		shardedCas = createCas(roots, properties);
+		cas = shardedCas;
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		assertFalse(shardedCas.getShards().get(3).getHashes().isEmpty());
+		for (Map.Entry<Hash, byte[]> entry : contents.entrySet()) {
+			assertArrayEquals(entry.getValue(), read(shardedCas, entry.getKey()));
+			assertTrue(shardedCas.contains(entry.getKey(), gzip.get(0)));
+		}
+		// Nothing is left behind in the roots
+		for (Path root : roots) {
+			try (Stream<Path> files = Files.list(root)) {
+				assertFalse(files.anyMatch(file -> file.getFileName().toString().endsWith(".tmp")));
+			}
+		}
+	}
+
+	@Test
+	public void testDeleteWhileRebalancing() throws IOException, InterruptedException {
+		List<Hash> hashes = new ArrayList<Hash>();
+		for (int i = 0; i < 400; i++) {
+			hashes.add(write(1000, gzip));
+		}
+		shardedCas.close();
+		roots.add(Files.createTempDirectory("ContentAddressableStoreShardedImplTest"));
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+		QueueingListener listener = new QueueingListener();
+		shardedCas.addListener(listener);
+		// Deleted while being moved, and not brought back by the move
+		for (Hash hash : hashes) {
+			assertTrue(shardedCas.delete(hash));
+		}
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		assertTrue(shardedCas.getHashes().isEmpty());
+		assertEquals(new HashSet<Hash>(hashes), new HashSet<Hash>(listener.removed));
+		assertEquals(0, shardedCas.getStatistics().getContentCount());
+	}
+
+	private static class QueueingListener implements ContentAddressableStoreListener {
+		final BlockingQueue<Hash> added = new LinkedBlockingQueue<Hash>();
+		final BlockingQueue<Hash> removed = new LinkedBlockingQueue<Hash>();
+
+		@Override
+		public void contentAdded(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			added.add(contentAddressableStoreEvent.getHash());
+		}
+
+		@Override
+		public void contentRemoved(ContentAddressableStoreEvent contentAddressableStoreEvent) {
+			removed.add(contentAddressableStoreEvent.getHash());
+		}
+	}
+
+	@Test
+	public void testListeners() throws IOException, InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			write(100, null);
+		}
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		shardedCas.close();
+		roots.add(Files.createTempDirectory("ContentAddressableStoreShardedImplTest"));
+		shardedCas = createCas(roots);
+		cas = shardedCas;
+		QueueingListener listener = new QueueingListener();
+		shardedCas.addListener(listener);
+		assertTrue(shardedCas.awaitRebalance(10, TimeUnit.SECONDS));
+		// Moving content isn't adding or removing it
+		assertTrue(listener.added.isEmpty());
+		assertTrue(listener.removed.isEmpty());
+
+		Hash hash = write(100, null);
+		assertEquals(hash, listener.added.poll());
+		shardedCas.delete(hash);
+		assertEquals(hash, listener.removed.poll());
+		assertNull(read(shardedCas, hash));
+	}
+}
@@ -1,16 +1,26 @@
 package org.sturrock.cassette.cassettej;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -109,6 +119,24 @@ public abstract class ContentAddressableStoreTest {
 		assertEquals(true, cas.contains(goodbyeWorldHash, encoding));
 	}
 
+	@Test
+	public void testEncodingAddedToExistingContent() throws IOException {
+		ContentEncoding encoding = new GZIPContentEncoding();
+		writeHelloWorld();
+		assertEquals(false, cas.contains(helloWorldHash, encoding));
+
+		ContentAddressableStoreListenerTestAdded contentAddressableStoreListenerTest = new ContentAddressableStoreListenerTestAdded();
+		cas.addListener(contentAddressableStoreListenerTest);
+		writeHelloWorld(encoding);
+		cas.removeListener(contentAddressableStoreListenerTest);
+
+		// The content was already there so no event should have fired
+		assertNull(contentAddressableStoreListenerTest.getEvent());
+		// But the missing encoding should have been added
+		assertEquals(true, cas.contains(helloWorldHash, encoding));
+		assertEquals(helloWorldEncodedBytes.length, cas.getContentLength(helloWorldHash, encoding));
+	}
+
 	@Test
 	public void testGetContentLength() throws IOException {
 		writeHelloWorld();
@@ -200,6 +228,110 @@ public abstract class ContentAddressableStoreTest {
 		assertEquals(0, hashes.size());
 	}
 
+	@Test
+	public void testDeleteAll() throws IOException {
+		Hash hash1 = writeHelloWorld(new GZIPContentEncoding());
+		Hash hash2 = writeString(goodbyeWorldString);
+		Hash hash3 = writeString("Hello again");
+		Hash missing = new Hash("0000000000000000000000000000000000000000");
+
+		List<Hash> deleted = cas.deleteAll(Arrays.asList(hash1, hash2, hash1, missing));
+		assertEquals(new HashSet<Hash>(Arrays.asList(hash1, hash2)), new HashSet<Hash>(deleted));
+		assertEquals(2, deleted.size());
+		assertFalse(cas.contains(hash1));
+		assertFalse(cas.contains(hash1, new GZIPContentEncoding()));
+		assertFalse(cas.contains(hash2));
+		assertEquals(Collections.singletonList(hash3), cas.getHashes());
+
+		assertTrue(cas.deleteAll(Arrays.asList(hash1, hash2)).isEmpty());
+		assertTrue(cas.deleteAll(Collections.<Hash>emptyList()).isEmpty());
+	}
+
+	@Test
+	public void testWriteExpected() throws IOException {
+		// Content which doesn't have the hash isn't stored
+		byte[] goodbyeWorldBytes = goodbyeWorldString.getBytes(StandardCharsets.UTF_8);
+		try {
+			cas.write(helloWorldHash, new ByteArrayInputStream(goodbyeWorldBytes), null);
+			fail("Expected HashMismatchException");
+		} catch (HashMismatchException e) {
+			assertEquals(helloWorldHash, e.getExpected());
+			assertEquals(goodbyeWorldHash, e.getActual());
+		}
+		assertTrue(cas.getHashes().isEmpty());
+
+		byte[] helloWorldBytes = helloWorldString.getBytes(StandardCharsets.UTF_8);
+		assertEquals(helloWorldHash, cas.write(helloWorldHash, new ByteArrayInputStream(helloWorldBytes),
+				Collections.<ContentEncoding>singletonList(new GZIPContentEncoding())));
+		assertTrue(cas.contains(helloWorldHash));
+		assertArrayEquals(helloWorldBytes, IOUtils.toByteArray(cas.read(helloWorldHash)));
+
+		// Already stored, so the stream isn't read
+		InputStream unreadable = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("Read");
+			}
+		};
+		assertEquals(helloWorldHash, cas.write(helloWorldHash, unreadable, null));
+		assertEquals(Collections.singletonList(helloWorldHash), cas.getHashes());
+
+		// Nor to add an encoding it doesn't have yet
+		ContentEncoding deflate = new DeflateContentEncoding();
+		assertEquals(helloWorldHash,
+				cas.write(helloWorldHash, unreadable, Collections.<ContentEncoding>singletonList(deflate)));
+		assertTrue(cas.contains(helloWorldHash, deflate));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriteExpectedNoHash() throws IOException {
+		cas.write(null, new ByteArrayInputStream(new byte[0]), null);
+	}
+
+	@Test
+	public void testStatistics() throws IOException {
+		// Compare with what was there before in case a test has emptied
+		// the store behind its back
+		StoreStatistics before = cas.getStatistics();
+
+		ContentEncoding encoding = new GZIPContentEncoding();
+		writeHelloWorld(encoding);
+		// Writing content that is already there doesn't count
+		writeHelloWorld();
+		writeString(goodbyeWorldString);
+		StoreStatistics statistics = cas.getStatistics();
+		assertEquals(before.getContentCount() + 2, statistics.getContentCount());
+		assertEquals(before.getContentBytes() + helloWorldString.length() + goodbyeWorldString.length(),
+				statistics.getContentBytes());
+
+		// Getting the lengths waits for any encodings still to be produced
+		long encodedCount = 0;
+		long encodedBytes = 0;
+		for (Hash hash : cas.getHashes()) {
+			long length = cas.getContentLength(hash, encoding);
+			if (length != -1) {
+				encodedCount++;
+				encodedBytes += length;
+			}
+		}
+		statistics = cas.getStatistics();
+		assertEquals(before.getEncodedCount(encoding.getName()) + encodedCount,
+				statistics.getEncodedCount(encoding.getName()));
+		assertEquals(before.getEncodedBytes(encoding.getName()) + encodedBytes,
+				statistics.getEncodedBytes(encoding.getName()));
+
+		cas.delete(helloWorldHash);
+		// Deleting content that isn't there doesn't count either
+		cas.delete(helloWorldHash);
+		statistics = cas.getStatistics();
+		assertEquals(before.getContentCount() + 1, statistics.getContentCount());
+		assertEquals(before.getContentBytes() + goodbyeWorldString.length(), statistics.getContentBytes());
+		long goodbyeWorldEncodedLength = cas.getContentLength(goodbyeWorldHash, encoding);
+		assertEquals(before.getEncodedBytes(encoding.getName())
+				+ (goodbyeWorldEncodedLength == -1 ? 0 : goodbyeWorldEncodedLength),
+				statistics.getEncodedBytes(encoding.getName()));
+	}
+
 	private static byte[] readFully(InputStream inputStream) throws IOException {
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		byte[] buffer = new byte[1024];
@@ -249,4 +381,92 @@ public abstract class ContentAddressableStoreTest {
 		// Must remove the listener as don't want it firing in other tests.
 		cas.removeListener(contentAddressableStoreListenerTest);
 	}
+
+	@Test
+	public void testEncodingPolicy() throws IOException {
+		ContentAddressableStoreImpl casImpl = (ContentAddressableStoreImpl) cas;
+		casImpl.setEncodingPolicy(new CompressibilityEncodingPolicy());
+		try {
+			ContentEncoding encoding = new GZIPContentEncoding();
+			List<ContentEncoding> encodings = new LinkedList<ContentEncoding>();
+			encodings.add(encoding);
+
+			byte[] random = new byte[10000];
+			new Random(42).nextBytes(random);
+			Hash randomHash;
+			try (InputStream stream = new ByteArrayInputStream(random);) {
+				randomHash = cas.write(stream, encodings);
+			}
+			assertEquals(true, cas.contains(randomHash));
+			assertEquals(false, cas.contains(randomHash, encoding));
+
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 1000; ++i) {
+				builder.append(helloWorldString);
+			}
+			Hash textHash = writeString(builder.toString(), encoding);
+			assertEquals(true, cas.contains(textHash, encoding));
+		} finally {
+			casImpl.setEncodingPolicy(null);
+		}
+	}
+
+	private byte[] encode(String string, ContentEncoding encoding) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream);) {
+			encodedOutputStream.write(string.getBytes(StandardCharsets.UTF_8));
+		}
+		return outputStream.toByteArray();
+	}
+
+	@Test
+	public void testWriteEncoded() throws IOException {
+		// Encode differently to how the store would, to check the given
+		// bytes are what gets stored
+		byte[] encodedBytes = encode(helloWorldString, new DeflateContentEncoding(1));
+		ContentEncoding encoding = new DeflateContentEncoding();
+
+		Hash hash;
+		try (InputStream stream = new ByteArrayInputStream(encodedBytes);) {
+			hash = cas.writeEncoded(stream, encoding);
+		}
+		assertEquals(helloWorldHash, hash);
+		assertEquals(true, cas.contains(hash));
+		assertEquals(true, cas.contains(hash, encoding));
+		assertEquals(helloWorldString.length(), cas.getContentLength(hash));
+		try (InputStream stream = cas.read(hash);) {
+			assertEquals(helloWorldString, IOUtils.toString(stream, StandardCharsets.UTF_8));
+		}
+		try (InputStream stream = cas.read(hash, encoding);) {
+			assertArrayEquals(encodedBytes, IOUtils.toByteArray(stream));
+		}
+	}
+
+	@Test
+	public void testWriteEncodedExistingContent() throws IOException {
+		writeHelloWorld();
+		ContentEncoding encoding = new GZIPContentEncoding();
+
+		ContentAddressableStoreListenerTestAdded contentAddressableStoreListenerTest = new ContentAddressableStoreListenerTestAdded();
+		cas.addListener(contentAddressableStoreListenerTest);
+		try (InputStream stream = new ByteArrayInputStream(helloWorldEncodedBytes);) {
+			assertEquals(helloWorldHash, cas.writeEncoded(stream, encoding));
+		}
+		cas.removeListener(contentAddressableStoreListenerTest);
+
+		assertNull(contentAddressableStoreListenerTest.getEvent());
+		assertEquals(true, cas.contains(helloWorldHash, encoding));
+		// A store may keep the encoding it already had, whose gzip header
+		// can differ, eg in the OS byte, so compare what it decodes to
+		try (InputStream stream = encoding.decode(cas.read(helloWorldHash, encoding));) {
+			assertEquals(helloWorldString, IOUtils.toString(stream, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testWriteEncodedBadContent() throws IOException {
+		try (InputStream stream = new ByteArrayInputStream(helloWorldString.getBytes(StandardCharsets.UTF_8));) {
+			cas.writeEncoded(stream, new GZIPContentEncoding());
+		}
+	}
 }
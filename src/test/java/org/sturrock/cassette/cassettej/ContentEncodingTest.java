@@ -0,0 +1,97 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ContentEncodingTest {
+
+	private static byte[] testContent() {
+		// Compressible but not trivially so
+		byte[] bytes = new byte[200000];
+		Random random = new Random(42);
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = (byte) ('a' + random.nextInt(8));
+		}
+		return bytes;
+	}
+
+	private static byte[] encode(ContentEncoding encoding, byte[] content) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static byte[] decode(ContentEncoding encoding, byte[] encoded) throws IOException {
+		try (InputStream inputStream = encoding.decode(new ByteArrayInputStream(encoded))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	@Test
+	public void testRoundTripAllRegistered() throws IOException {
+		byte[] content = testContent();
+		for (String name : ContentEncodingFactory.getEncodingNames()) {
+			ContentEncoding encoding = ContentEncodingFactory.createEncoding(name);
+			assertEquals(name, encoding.getName());
+			byte[] encoded = encode(encoding, content);
+			assertTrue(name + " should compress", encoded.length < content.length);
+			assertArrayEquals(name, content, decode(encoding, encoded));
+		}
+	}
+
+	@Test
+	public void testEmptyContent() throws IOException {
+		for (String name : ContentEncodingFactory.getEncodingNames()) {
+			ContentEncoding encoding = ContentEncodingFactory.createEncoding(name);
+			assertArrayEquals(name, new byte[0], decode(encoding, encode(encoding, new byte[0])));
+		}
+	}
+
+	@Test
+	public void testDeflateLevels() throws IOException {
+		byte[] content = testContent();
+		byte[] fast = encode(new DeflateContentEncoding(1), content);
+		byte[] best = encode(new DeflateContentEncoding(9), content);
+		assertTrue(best.length <= fast.length);
+		// Any level decodes the same way
+		assertArrayEquals(content, decode(new DeflateContentEncoding(), fast));
+		assertEquals(new DeflateContentEncoding(1), new DeflateContentEncoding(9));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadDeflateLevel() {
+		new DeflateContentEncoding(10);
+	}
+
+	@Test
+	public void testRegistry() {
+		assertNotNull(ContentEncodingFactory.createEncoding(GZIPContentEncoding.name));
+		assertNotNull(ContentEncodingFactory.createEncoding(DeflateContentEncoding.name));
+		assertNotNull(ContentEncodingFactory.createEncoding(SnappyContentEncoding.name));
+		assertNull(ContentEncodingFactory.createEncoding("unknown"));
+
+		ContentEncodingFactory.register("test", GZIPContentEncoding::new);
+		try {
+			assertTrue(ContentEncodingFactory.getEncodingNames().contains("test"));
+			assertTrue(ContentEncodingFactory.createEncoding("test") instanceof GZIPContentEncoding);
+		} finally {
+			assertTrue(ContentEncodingFactory.unregister("test"));
+		}
+		assertNull(ContentEncodingFactory.createEncoding("test"));
+	}
+}
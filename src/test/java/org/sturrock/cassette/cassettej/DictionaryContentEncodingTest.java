@@ -0,0 +1,155 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class DictionaryContentEncodingTest {
+
+	private static final String[] names = { "alice", "bob", "carol", "dave", "eve", "mallory", "trent" };
+	private static final String[] statuses = { "active", "suspended", "pending", "closed" };
+
+	/**
+	 * Small JSON documents with the same shape but different values.
+	 */
+	static List<byte[]> documents(int count, long seed) {
+		Random random = new Random(seed);
+		List<byte[]> documents = new ArrayList<byte[]>();
+		for (int i = 0; i < count; ++i) {
+			String document = "{\"id\":" + random.nextInt(1000000) + ",\"user\":{\"name\":\""
+					+ names[random.nextInt(names.length)] + "\",\"email\":\"" + names[random.nextInt(names.length)]
+					+ "@example.com\"},\"account\":{\"status\":\"" + statuses[random.nextInt(statuses.length)]
+					+ "\",\"balance\":" + random.nextInt(10000) + ",\"currency\":\"GBP\"},\"tags\":[\"customer\",\"retail\"],"
+					+ "\"created\":\"2018-0" + (1 + random.nextInt(9)) + "-1" + random.nextInt(10) + "T12:00:00Z\"}";
+			documents.add(document.getBytes(StandardCharsets.UTF_8));
+		}
+		return documents;
+	}
+
+	private static byte[] encode(ContentEncoding encoding, byte[] content) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static byte[] decode(ContentEncoding encoding, byte[] encoded) throws IOException {
+		try (InputStream inputStream = encoding.decode(new ByteArrayInputStream(encoded))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	private static DictionaryContentEncoding encoding(List<byte[]> samples) {
+		byte[] dictionary = DictionaryTrainer.train(samples, 4096);
+		return new DictionaryContentEncoding(new Hash(new byte[Hash.byteCount]), dictionary,
+				Deflater.DEFAULT_COMPRESSION);
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		DictionaryContentEncoding encoding = encoding(documents(200, 1));
+		for (byte[] document : documents(50, 2)) {
+			assertArrayEquals(document, decode(encoding, encode(encoding, document)));
+		}
+		assertArrayEquals(new byte[0], decode(encoding, encode(encoding, new byte[0])));
+	}
+
+	@Test
+	public void testBetterThanGZIP() throws IOException {
+		DictionaryContentEncoding encoding = encoding(documents(200, 1));
+		GZIPContentEncoding gzip = new GZIPContentEncoding();
+		long dictionaryTotal = 0;
+		long gzipTotal = 0;
+		for (byte[] document : documents(100, 2)) {
+			dictionaryTotal += encode(encoding, document).length;
+			gzipTotal += encode(gzip, document).length;
+		}
+		assertTrue(dictionaryTotal + " vs " + gzipTotal, dictionaryTotal < gzipTotal / 2);
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongDictionary() throws IOException {
+		DictionaryContentEncoding encoding = encoding(documents(200, 1));
+		DictionaryContentEncoding other = new DictionaryContentEncoding(new Hash(new byte[Hash.byteCount]),
+				"some other dictionary".getBytes(StandardCharsets.UTF_8), Deflater.DEFAULT_COMPRESSION);
+		decode(other, encode(encoding, documents(1, 2).get(0)));
+	}
+
+	@Test
+	public void testTrainerSize() {
+		assertTrue(DictionaryTrainer.train(documents(200, 1), 1000).length <= 1000);
+		assertEquals(0, DictionaryTrainer.train(Collections.<byte[]>emptyList(), 1000).length);
+	}
+
+	@Test
+	public void testTrainFromStore() throws IOException {
+		Path tempDir = Files.createTempDirectory("DictionaryContentEncodingTest");
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		try (ContentAddressableStore cas = new ContentAddressableStoreFileImpl(properties)) {
+			List<Hash> hashes = new ArrayList<Hash>();
+			for (byte[] document : documents(200, 1)) {
+				hashes.add(cas.write(new ByteArrayInputStream(document)));
+			}
+			DictionaryContentEncoding encoding = DictionaryContentEncoding.train(cas, hashes, 4096);
+			try {
+				assertTrue(cas.contains(encoding.getDictionaryHash()));
+				// So the garbage collector keeps it
+				assertEquals(1, ((ContentAddressableStoreFileImpl) cas).getPinCount(encoding.getDictionaryHash()));
+				assertEquals(encoding, ContentEncodingFactory.createEncoding(encoding.getName()));
+
+				byte[] document = documents(1, 2).get(0);
+				Hash hash = cas.write(new ByteArrayInputStream(document), Collections.singletonList(encoding));
+
+				// A fresh copy of the encoding loaded from the store, as after
+				// a restart, decodes it and is registered again
+				ContentEncodingFactory.unregister(encoding.getName());
+				DictionaryContentEncoding loaded = DictionaryContentEncoding.load(cas, encoding.getDictionaryHash());
+				assertNotNull(loaded);
+				assertEquals(loaded, ContentEncodingFactory.createEncoding(encoding.getName()));
+				try (InputStream inputStream = loaded.decode(cas.read(hash, loaded))) {
+					assertArrayEquals(document, IOUtils.toByteArray(inputStream));
+				}
+			} finally {
+				ContentEncodingFactory.unregister(encoding.getName());
+			}
+		} finally {
+			Files.walkFileTree(tempDir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FastCDCChunkerTest {
+
+	private static final int minSize = 256;
+	private static final int avgSize = 1024;
+	private static final int maxSize = 8192;
+
+	private static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(42).nextBytes(bytes);
+		return bytes;
+	}
+
+	private static List<byte[]> chunk(byte[] content) throws IOException {
+		List<byte[]> chunks = new LinkedList<byte[]>();
+		FastCDCChunker chunker = new FastCDCChunker(new ByteArrayInputStream(content), minSize, avgSize, maxSize);
+		for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+			chunks.add(chunk);
+		}
+		return chunks;
+	}
+
+	@Test
+	public void testChunksMakeUpContent() throws IOException {
+		byte[] content = randomBytes(100000);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		for (byte[] chunk : chunk(content)) {
+			outputStream.write(chunk);
+		}
+		assertArrayEquals(content, outputStream.toByteArray());
+	}
+
+	@Test
+	public void testChunkSizes() throws IOException {
+		List<byte[]> chunks = chunk(randomBytes(100000));
+		for (int i = 0; i < chunks.size(); ++i) {
+			int length = chunks.get(i).length;
+			assertTrue(length <= maxSize);
+			// Only the last chunk can be smaller than the minimum
+			if (i < chunks.size() - 1) {
+				assertTrue(length > minSize);
+			}
+		}
+		// Normalised chunking should keep the average near the target
+		int average = 100000 / chunks.size();
+		assertTrue("Average chunk size " + average, average > avgSize / 2 && average < avgSize * 2);
+	}
+
+	@Test
+	public void testEmptyStream() throws IOException {
+		FastCDCChunker chunker = new FastCDCChunker(new ByteArrayInputStream(new byte[0]), avgSize);
+		assertNull(chunker.next());
+	}
+
+	@Test
+	public void testBoundariesFollowContent() throws IOException {
+		byte[] content = randomBytes(100000);
+		// Insert some bytes near the start
+		byte[] edited = new byte[content.length + 10];
+		System.arraycopy(content, 0, edited, 0, 500);
+		System.arraycopy(content, 500, edited, 510, content.length - 500);
+
+		List<byte[]> original = chunk(content);
+		List<byte[]> changed = chunk(edited);
+
+		// The chunks at the end should be identical
+		int shared = 0;
+		for (int i = 1; i <= Math.min(original.size(), changed.size()); ++i) {
+			if (!Arrays.equals(original.get(original.size() - i), changed.get(changed.size() - i))) {
+				break;
+			}
+			++shared;
+		}
+		assertTrue("Only " + shared + " of " + original.size() + " chunks shared", shared >= original.size() - 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSizes() {
+		new FastCDCChunker(new ByteArrayInputStream(new byte[0]), avgSize, avgSize, maxSize);
+	}
+
+	@Test
+	public void testDeterministic() throws IOException {
+		byte[] content = randomBytes(50000);
+		List<byte[]> first = chunk(content);
+		List<byte[]> second = chunk(content);
+		assertEquals(first.size(), second.size());
+		for (int i = 0; i < first.size(); ++i) {
+			assertArrayEquals(first.get(i), second.get(i));
+		}
+	}
+}
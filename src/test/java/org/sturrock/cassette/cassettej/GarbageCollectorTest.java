@@ -0,0 +1,299 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GarbageCollectorTest {
+
+	private static final long twoHours = 2 * 60 * 60 * 1000;
+
+	/**
+	 * Content which is a list of hashes, one per line, refers to them.
+	 */
+	private static final ReferenceResolver listResolver = (store, hash) -> {
+		List<Hash> references = new ArrayList<Hash>();
+		try (InputStream inputStream = store.read(hash)) {
+			for (String line : IOUtils.readLines(inputStream, StandardCharsets.UTF_8)) {
+				if (line.matches("[0-9A-F]{40}")) {
+					references.add(new Hash(line));
+				}
+			}
+		}
+		return references;
+	};
+
+	private Path tempDir;
+	private ContentAddressableStoreFileImpl cas;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("GarbageCollectorTest");
+		cas = createCas(new Properties());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private ContentAddressableStoreFileImpl createCas(Properties properties) throws IOException {
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		return new ContentAddressableStoreFileImpl(properties);
+	}
+
+	private GarbageCollector createCollector(ReferenceResolver referenceResolver) {
+		Properties properties = new Properties();
+		properties.put(GarbageCollector.dutyCyclePropertyName, "1");
+		return new GarbageCollector(cas, referenceResolver, properties);
+	}
+
+	private Hash write(String content) throws IOException {
+		return cas.write(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Make everything in the store look like it was written two hours ago.
+	 */
+	private void ageStore() throws IOException {
+		FileTime old = FileTime.fromMillis(System.currentTimeMillis() - twoHours);
+		try (Stream<Path> paths = Files.walk(tempDir)) {
+			for (Object path : paths.filter(Files::isRegularFile).toArray()) {
+				Files.setLastModifiedTime((Path) path, old);
+			}
+		}
+	}
+
+	@Test
+	public void testUnreachableDeleted() throws IOException {
+		Hash pinned = write("Pinned");
+		Hash unpinned = write("Not pinned");
+		assertTrue(cas.pin(pinned));
+		ageStore();
+		Hash recent = write("Recent");
+
+		try (GarbageCollector collector = createCollector(null)) {
+			GarbageCollector.Result result = collector.collect();
+			assertEquals(1, result.getMarked());
+			assertEquals(3, result.getExamined());
+			assertEquals(1, result.getDeleted());
+			assertEquals(result, collector.getLastResult());
+		}
+		assertTrue(cas.contains(pinned));
+		assertFalse(cas.contains(unpinned));
+		assertTrue(cas.contains(recent));
+	}
+
+	@Test
+	public void testReferencesFollowed() throws IOException {
+		Hash leaf = write("Leaf");
+		Hash middle = write(leaf.getString() + "\n");
+		Hash root = write(middle.getString() + "\n");
+		Hash unreachable = write(root.getString() + "\n");
+		cas.pin(root);
+		ageStore();
+
+		try (GarbageCollector collector = createCollector(listResolver)) {
+			GarbageCollector.Result result = collector.collect();
+			assertEquals(3, result.getMarked());
+			assertEquals(1, result.getDeleted());
+		}
+		assertTrue(cas.contains(root));
+		assertTrue(cas.contains(middle));
+		assertTrue(cas.contains(leaf));
+		assertFalse(cas.contains(unreachable));
+	}
+
+	@Test
+	public void testDictionariesKept() throws IOException {
+		byte[] dictionary = "Dictionary".getBytes(StandardCharsets.UTF_8);
+		Hash dictionaryHash = cas.write(new ByteArrayInputStream(dictionary));
+		DictionaryContentEncoding encoding = new DictionaryContentEncoding(dictionaryHash, dictionary, 9);
+		Hash pinned = cas.write(new ByteArrayInputStream("Pinned Dictionary".getBytes(StandardCharsets.UTF_8)),
+				Collections.singletonList(encoding));
+		cas.pin(pinned);
+		ageStore();
+
+		try (GarbageCollector collector = createCollector(null)) {
+			GarbageCollector.Result result = collector.collect();
+			assertEquals(2, result.getMarked());
+			assertEquals(0, result.getDeleted());
+		}
+		assertTrue(cas.contains(dictionaryHash));
+		assertTrue(cas.contains(pinned, encoding));
+	}
+
+	@Test
+	public void testRewriteKeepsContent() throws IOException {
+		Hash hash = write("Written again");
+		ageStore();
+		long aged = cas.getLastModified(hash);
+		assertEquals(hash, write("Written again"));
+		assertTrue(cas.getLastModified(hash) > aged);
+
+		try (GarbageCollector collector = createCollector(null)) {
+			assertEquals(0, collector.collect().getDeleted());
+		}
+		assertTrue(cas.contains(hash));
+	}
+
+	@Test
+	public void testPinCounts() throws IOException {
+		Hash hash = write("Pin me");
+		Hash missing = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		assertFalse(cas.pin(missing));
+		assertFalse(cas.unpin(hash));
+		assertTrue(cas.pin(hash));
+		assertTrue(cas.pin(hash));
+		assertEquals(2, cas.getPinCount(hash));
+		assertEquals(1, cas.getRoots().size());
+		// Roots aren't content
+		assertEquals(1, cas.getHashes().size());
+
+		assertTrue(cas.unpin(hash));
+		ageStore();
+		try (GarbageCollector collector = createCollector(null)) {
+			assertEquals(0, collector.collect().getDeleted());
+			assertTrue(cas.unpin(hash));
+			assertEquals(0, cas.getPinCount(hash));
+			assertTrue(cas.getRoots().isEmpty());
+			assertEquals(1, collector.collect().getDeleted());
+		}
+		assertFalse(cas.contains(hash));
+	}
+
+	@Test
+	public void testUnusedChunksDeleted() throws IOException {
+		cas.close();
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		properties.put(ContentAddressableStoreFileImpl.chunkSizePropertyName, "1024");
+		cas = createCas(properties);
+
+		byte[] shared = new byte[32 * 1024];
+		new Random(0).nextBytes(shared);
+		byte[] kept = new byte[shared.length + 16 * 1024];
+		byte[] dropped = new byte[shared.length + 16 * 1024];
+		System.arraycopy(shared, 0, kept, 0, shared.length);
+		System.arraycopy(shared, 0, dropped, 0, shared.length);
+		Random random = new Random(1);
+		for (int i = shared.length; i < kept.length; i++) {
+			kept[i] = (byte) random.nextInt();
+			dropped[i] = (byte) random.nextInt();
+		}
+		Hash keptHash = cas.write(new ByteArrayInputStream(kept));
+		Hash droppedHash = cas.write(new ByteArrayInputStream(dropped));
+		cas.pin(keptHash);
+		ageStore();
+
+		try (GarbageCollector collector = createCollector(null)) {
+			GarbageCollector.Result result = collector.collect();
+			assertEquals(1, result.getDeleted());
+			assertTrue(result.getChunksDeleted() > 0);
+			assertTrue(result.getChunksDeleted() < result.getChunksExamined());
+			assertTrue(result.getChunkBytesDeleted() > 0);
+		}
+		assertFalse(cas.contains(droppedHash));
+		try (InputStream inputStream = cas.read(keptHash)) {
+			assertArrayEquals(kept, IOUtils.toByteArray(inputStream));
+		}
+	}
+
+	@Test
+	public void testDeleteRateLimited() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			write("Garbage " + i);
+		}
+		ageStore();
+		Properties properties = new Properties();
+		properties.put(GarbageCollector.dutyCyclePropertyName, "1");
+		properties.put(GarbageCollector.maxDeletesPerSecondPropertyName, "100");
+		try (GarbageCollector collector = new GarbageCollector(cas, null, properties)) {
+			GarbageCollector.Result result = collector.collect();
+			assertEquals(20, result.getDeleted());
+			assertTrue(result.getDurationNanos() >= 190000000L);
+		}
+	}
+
+	@Test
+	public void testConcurrentRewriteNeverLost() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			List<Hash> hashes = new ArrayList<Hash>();
+			for (int i = 0; i < 20; i++) {
+				hashes.add(write("Contended " + i));
+			}
+			ageStore();
+			AtomicReference<Exception> failure = new AtomicReference<Exception>();
+			try (GarbageCollector collector = createCollector(null)) {
+				Thread thread = new Thread(() -> {
+					try {
+						collector.collect();
+					} catch (IOException e) {
+						failure.set(e);
+					}
+				});
+				thread.start();
+				for (int i = 0; i < 20; i++) {
+					Hash hash = write("Contended " + i);
+					// Once a write returns the content must be there
+					assertTrue(cas.contains(hash));
+				}
+				thread.join();
+			}
+			if (failure.get() != null) {
+				throw failure.get();
+			}
+			for (Hash hash : hashes) {
+				cas.delete(hash);
+			}
+		}
+	}
+
+	@Test
+	public void testBackground() throws Exception {
+		write("Garbage");
+		ageStore();
+		Properties properties = new Properties();
+		properties.put(GarbageCollector.intervalPropertyName, "10");
+		properties.put(GarbageCollector.dutyCyclePropertyName, "1");
+		try (GarbageCollector collector = new GarbageCollector(cas, null, properties)) {
+			collector.start();
+			for (int i = 0; i < 500 && collector.getLastResult() == null; i++) {
+				Thread.sleep(10);
+			}
+			assertNotNull(collector.getLastResult());
+		}
+		assertTrue(cas.getHashes().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadDutyCycle() {
+		Properties properties = new Properties();
+		properties.put(GarbageCollector.dutyCyclePropertyName, "0");
+		new GarbageCollector(cas, null, properties);
+	}
+}
@@ -0,0 +1,74 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class InfinispanExternalizerTest {
+
+	private Hash helloWorldHash = new Hash("0A4D55A8D778E5022FAB701977C5D840BBC486D0");
+
+	@Test
+	public void testHashExternalizer() throws IOException {
+		HashExternalizer externalizer = new HashExternalizer();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes);) {
+			externalizer.writeObject(output, helloWorldHash);
+		}
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));) {
+			Hash actual = externalizer.readObject(input);
+			assertEquals(helloWorldHash, actual);
+			// Nothing but the raw hash bytes should have been written
+			assertEquals(0, input.available());
+		}
+	}
+
+	@Test
+	public void testCacheValueExternalizer() throws IOException {
+		testCacheValueExternalizer(false);
+	}
+
+	@Test
+	public void testCacheValueExternalizerOffHeap() throws IOException {
+		testCacheValueExternalizer(true);
+	}
+
+	private void testCacheValueExternalizer(boolean offHeap) throws IOException {
+		byte[] raw = "Hello World".getBytes(StandardCharsets.UTF_8);
+		byte[] encoded = { 31, -117, 8, 0 };
+		CacheValue cacheValue = new CacheValue();
+		cacheValue.raw = CacheValue.toBuffer(raw, offHeap);
+		cacheValue.encoded.put(GZIPContentEncoding.name, CacheValue.toBuffer(encoded, offHeap));
+		cacheValue.pending.add(DeflateContentEncoding.name);
+		cacheValue = cacheValue.copy();
+
+		CacheValueExternalizer externalizer = new CacheValueExternalizer(offHeap);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream output = new ObjectOutputStream(bytes);) {
+			externalizer.writeObject(output, cacheValue);
+		}
+		try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));) {
+			CacheValue actual = externalizer.readObject(input);
+			assertEquals(offHeap, actual.raw.isDirect());
+			assertArrayEquals(raw, IOUtils.toByteArray(CacheValue.toInputStream(actual.raw)));
+			assertEquals(1, actual.encoded.size());
+			ByteBuffer actualEncoded = actual.encoded.get(GZIPContentEncoding.name);
+			assertArrayEquals(encoded, IOUtils.toByteArray(CacheValue.toInputStream(actualEncoded)));
+			assertEquals(cacheValue.pending, actual.pending);
+			assertEquals(1, actual.version);
+			assertEquals(cacheValue, actual);
+			assertNotEquals(cacheValue, actual.copy());
+		}
+	}
+}
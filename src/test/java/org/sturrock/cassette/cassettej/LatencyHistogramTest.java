@@ -0,0 +1,63 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean(), 0);
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void testBuckets() {
+		long previous = -1;
+		for (long value = 0; value < 100000; value++) {
+			int index = LatencyHistogram.bucketIndex(value);
+			long upperBound = LatencyHistogram.bucketUpperBound(index);
+			assertTrue(value <= upperBound);
+			assertTrue(upperBound - value <= value / 8);
+			if (index > 0) {
+				assertTrue(value > LatencyHistogram.bucketUpperBound(index - 1));
+			}
+			assertTrue(index >= previous);
+			previous = index;
+		}
+		assertEquals(Long.MAX_VALUE,
+				LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(Long.MAX_VALUE)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 1000; i++) {
+			histogram.record(i * 1000);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getMean(), 0);
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500000, histogram.getPercentile(50), 500000 / 8);
+		assertEquals(990000, histogram.getPercentile(99), 990000 / 8);
+		assertEquals(1000000, histogram.getPercentile(100));
+		assertTrue(histogram.getPercentile(50) >= 500000);
+	}
+
+	@Test
+	public void testNegativeRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPercentile() {
+		new LatencyHistogram().getPercentile(101);
+	}
+}
@@ -0,0 +1,98 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class ParallelGZIPContentEncodingTest {
+
+	private static final int blockSize = 32 * 1024;
+	private static final ForkJoinPool pool = new ForkJoinPool(4);
+	private final ParallelGZIPContentEncoding encoding = new ParallelGZIPContentEncoding(pool, blockSize,
+			Deflater.DEFAULT_COMPRESSION);
+
+	@AfterClass
+	public static void shutdownPool() {
+		pool.shutdown();
+	}
+
+	private static byte[] compressibleContent(int length) {
+		byte[] bytes = new byte[length];
+		Random random = new Random(42);
+		for (int i = 0; i < bytes.length; ++i) {
+			bytes[i] = (byte) ('a' + random.nextInt(8));
+		}
+		return bytes;
+	}
+
+	private byte[] encode(byte[] content) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = encoding.encode(outputStream)) {
+			// Write in uneven pieces to cross block boundaries
+			int off = 0;
+			while (off < content.length) {
+				int len = Math.min(content.length - off, 10000);
+				encodedOutputStream.write(content, off, len);
+				off += len;
+			}
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static byte[] gunzip(byte[] encoded) throws IOException {
+		try (InputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+			return IOUtils.toByteArray(inputStream);
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		for (int length : new int[] { 0, 1, blockSize - 1, blockSize, blockSize + 1, 10 * blockSize + 123 }) {
+			byte[] content = compressibleContent(length);
+			assertArrayEquals("Length " + length, content, gunzip(encode(content)));
+		}
+	}
+
+	@Test
+	public void testIncompressible() throws IOException {
+		byte[] content = new byte[5 * blockSize];
+		new Random(42).nextBytes(content);
+		assertArrayEquals(content, gunzip(encode(content)));
+	}
+
+	@Test
+	public void testRatioCloseToSerial() throws IOException {
+		byte[] content = compressibleContent(20 * blockSize);
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		try (OutputStream encodedOutputStream = new GZIPContentEncoding().encode(outputStream)) {
+			encodedOutputStream.write(content);
+		}
+		int serialLength = outputStream.size();
+		int parallelLength = encode(content).length;
+		assertTrue(parallelLength + " vs " + serialLength, parallelLength < serialLength * 1.02);
+	}
+
+	@Test
+	public void testSameAsGZIP() {
+		assertEquals(GZIPContentEncoding.name, encoding.getName());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSmallBlockSize() {
+		new ParallelGZIPContentEncoding(pool, 1024, Deflater.DEFAULT_COMPRESSION);
+	}
+}
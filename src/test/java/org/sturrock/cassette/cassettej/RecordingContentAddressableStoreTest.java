@@ -0,0 +1,183 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RecordingContentAddressableStoreTest {
+
+	private Path tempDir;
+	private StringWriter trace;
+	private RecordingContentAddressableStore cas;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("RecordingContentAddressableStoreTest");
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		trace = new StringWriter();
+		cas = new RecordingContentAddressableStore(new ContentAddressableStoreFileImpl(properties), trace);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private List<TraceRecord> records() throws IOException {
+		return WorkloadReplayer.readTrace(new StringReader(trace.toString()));
+	}
+
+	@Test
+	public void testRecordParse() {
+		Hash hash = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		TraceRecord record = new TraceRecord(10, 20, StoreOperation.WRITE, hash, 30, Arrays.asList("gzip", "deflate"),
+				false);
+		TraceRecord parsed = TraceRecord.parse(record.toString());
+		assertEquals(10, parsed.getStartNanos());
+		assertEquals(20, parsed.getDurationNanos());
+		assertEquals(StoreOperation.WRITE, parsed.getOperation());
+		assertEquals(hash, parsed.getHash());
+		assertEquals(30, parsed.getSize());
+		assertEquals(Arrays.asList("gzip", "deflate"), parsed.getEncodingNames());
+		assertFalse(parsed.isFailed());
+		assertEquals(record.toString(), parsed.toString());
+
+		record = new TraceRecord(1, 2, StoreOperation.GET_HASHES, null, -1, null, true);
+		parsed = TraceRecord.parse(record.toString());
+		assertNull(parsed.getHash());
+		assertTrue(parsed.getEncodingNames().isEmpty());
+		assertTrue(parsed.isFailed());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordParseBadOperation() {
+		TraceRecord.parse("1\t2\tFROB\t-\t-1\t-\tok");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordParseTooFewFields() {
+		TraceRecord.parse("1\t2\tWRITE");
+	}
+
+	@Test
+	public void testCallsRecorded() throws IOException {
+		byte[] content = "Record me".getBytes(StandardCharsets.UTF_8);
+		ContentEncoding encoding = new GZIPContentEncoding();
+		Hash hash = cas.write(new ByteArrayInputStream(content), Collections.singletonList(encoding));
+		assertTrue(cas.contains(hash));
+		assertEquals(content.length, cas.getContentLength(hash));
+		try (InputStream inputStream = cas.read(hash)) {
+			assertEquals(content.length, IOUtils.toByteArray(inputStream).length);
+		}
+		assertEquals(1, cas.getHashes().size());
+		assertTrue(cas.delete(hash));
+
+		List<TraceRecord> records = records();
+		assertEquals(6, records.size());
+		StoreOperation[] operations = { StoreOperation.WRITE, StoreOperation.CONTAINS,
+				StoreOperation.GET_CONTENT_LENGTH, StoreOperation.READ, StoreOperation.GET_HASHES,
+				StoreOperation.DELETE };
+		for (int i = 0; i < operations.length; i++) {
+			TraceRecord record = records.get(i);
+			assertEquals(operations[i], record.getOperation());
+			assertFalse(record.isFailed());
+			assertTrue(record.getDurationNanos() >= 0);
+			if (i > 0) {
+				assertTrue(record.getStartNanos() >= records.get(i - 1).getStartNanos());
+			}
+			if (record.getOperation() != StoreOperation.GET_HASHES) {
+				assertEquals(hash, record.getHash());
+			}
+		}
+		assertEquals(Collections.singletonList(encoding.getName()), records.get(0).getEncodingNames());
+		assertEquals(content.length, records.get(0).getSize());
+		assertEquals(content.length, records.get(2).getSize());
+		assertEquals(content.length, records.get(3).getSize());
+		assertEquals(1, records.get(4).getSize());
+	}
+
+	@Test
+	public void testDeleteAllRecordedForEachHash() throws IOException {
+		Hash hash1 = cas.write(new ByteArrayInputStream("Delete me".getBytes(StandardCharsets.UTF_8)));
+		Hash hash2 = cas.write(new ByteArrayInputStream("And me".getBytes(StandardCharsets.UTF_8)));
+		assertEquals(2, cas.deleteAll(Arrays.asList(hash1, hash2)).size());
+
+		List<TraceRecord> records = records();
+		assertEquals(4, records.size());
+		for (int i = 2; i < 4; i++) {
+			assertEquals(StoreOperation.DELETE_ALL, records.get(i).getOperation());
+			assertEquals(records.get(2).getStartNanos(), records.get(i).getStartNanos());
+		}
+		assertEquals(hash1, records.get(2).getHash());
+		assertEquals(hash2, records.get(3).getHash());
+	}
+
+	@Test
+	public void testWriteExpectedRecorded() throws IOException {
+		byte[] content = "Known hash".getBytes(StandardCharsets.UTF_8);
+		Hash hash = cas.write(new ByteArrayInputStream(content));
+		cas.delete(hash);
+		assertEquals(hash, cas.write(hash, new ByteArrayInputStream(content), null));
+		assertEquals(hash, cas.write(hash, new ByteArrayInputStream(content), null));
+
+		List<TraceRecord> records = records();
+		assertEquals(4, records.size());
+		assertEquals(StoreOperation.WRITE_EXPECTED, records.get(2).getOperation());
+		assertEquals(hash, records.get(2).getHash());
+		assertEquals(content.length, records.get(2).getSize());
+		// Already stored, so none of it was read
+		assertEquals(0, records.get(3).getSize());
+	}
+
+	@Test
+	public void testReadRecordedOnClose() throws IOException {
+		Hash hash = cas.write(new ByteArrayInputStream("Read me later".getBytes(StandardCharsets.UTF_8)));
+		InputStream inputStream = cas.read(hash);
+		assertEquals(1, records().size());
+		inputStream.read(new byte[4]);
+		inputStream.close();
+		inputStream.close();
+		List<TraceRecord> records = records();
+		assertEquals(2, records.size());
+		assertEquals(StoreOperation.READ, records.get(1).getOperation());
+		assertEquals(4, records.get(1).getSize());
+	}
+
+	@Test
+	public void testMissingAndFailedRecorded() throws IOException {
+		Hash missing = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		assertNull(cas.read(missing));
+		try {
+			cas.write(null);
+		} catch (IllegalArgumentException e) {
+		}
+		List<TraceRecord> records = records();
+		assertEquals(2, records.size());
+		assertEquals(-1, records.get(0).getSize());
+		assertFalse(records.get(0).isFailed());
+		assertEquals(StoreOperation.WRITE, records.get(1).getOperation());
+		assertTrue(records.get(1).isFailed());
+	}
+}
@@ -0,0 +1,212 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ScrubberTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	private Path tempDir;
+	private ContentAddressableStoreFileImpl cas;
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("ScrubberTest");
+		cas = createCas(new Properties());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cas.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private ContentAddressableStoreFileImpl createCas(Properties properties) throws IOException {
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.toString());
+		return new ContentAddressableStoreFileImpl(properties);
+	}
+
+	private Scrubber createScrubber(boolean quarantine) {
+		Properties properties = new Properties();
+		properties.put(Scrubber.quarantinePropertyName, Boolean.toString(quarantine));
+		return new Scrubber(cas, properties);
+	}
+
+	private Hash write(int length, List<ContentEncoding> encodings) throws IOException {
+		byte[] content = new byte[length];
+		for (int i = 0; i < content.length; i += 10) {
+			content[i] = (byte) random.nextInt();
+		}
+		return cas.write(new ByteArrayInputStream(content), encodings);
+	}
+
+	/**
+	 * Flip a bit in the middle of a file, as bit rot would.
+	 */
+	private static void damage(Path file) throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		bytes[bytes.length / 2] ^= 1;
+		Files.write(file, bytes);
+	}
+
+	@Test
+	public void testIntactStore() throws IOException {
+		for (int i = 0; i < 20; i++) {
+			write(10000, gzip);
+		}
+		try (Scrubber scrubber = createScrubber(false)) {
+			Scrubber.Result result = scrubber.scrub();
+			assertEquals(40, result.getExamined());
+			assertTrue(result.getDamaged().isEmpty());
+			assertTrue(result.getBytesRead() > 20 * 10000);
+			assertEquals(result, scrubber.getLastResult());
+		}
+	}
+
+	@Test
+	public void testDamageReported() throws IOException {
+		Hash raw = write(10000, gzip);
+		Hash encoded = write(10000, gzip);
+		write(10000, gzip);
+		Path rawPath = cas.getContentPath(raw.getString());
+		Path encodedPath = cas.getContentPath(encoded.getString() + ".gzip");
+		damage(rawPath);
+		damage(encodedPath);
+
+		try (Scrubber scrubber = createScrubber(false)) {
+			Scrubber.Result result = scrubber.scrub();
+			assertEquals(new HashSet<Path>(Arrays.asList(rawPath, encodedPath)),
+					new HashSet<Path>(result.getDamaged()));
+			assertEquals(0, result.getQuarantined());
+		}
+		// Only reported, so still there
+		assertTrue(Files.exists(rawPath));
+		assertTrue(Files.exists(encodedPath));
+	}
+
+	@Test
+	public void testDamageQuarantined() throws IOException {
+		Hash raw = write(10000, gzip);
+		Hash encoded = write(10000, gzip);
+		Path rawPath = cas.getContentPath(raw.getString());
+		Path encodedPath = cas.getContentPath(encoded.getString() + ".gzip");
+		damage(rawPath);
+		damage(encodedPath);
+		long encodedLength = Files.size(encodedPath);
+		StoreStatistics before = cas.getStatistics();
+
+		try (Scrubber scrubber = createScrubber(true)) {
+			Scrubber.Result result = scrubber.scrub();
+			assertEquals(2, result.getQuarantined());
+		}
+		assertFalse(cas.contains(raw));
+		assertTrue(Files.exists(cas.getQuarantinePath().resolve(tempDir.relativize(rawPath))));
+		// The content is fine, only the encoding has gone
+		assertTrue(cas.contains(encoded));
+		assertFalse(cas.contains(encoded, new GZIPContentEncoding()));
+		assertTrue(Files.exists(cas.getQuarantinePath().resolve(tempDir.relativize(encodedPath))));
+
+		StoreStatistics after = cas.getStatistics();
+		assertEquals(before.getContentCount() - 1, after.getContentCount());
+		assertEquals(before.getEncodedBytes("gzip") - encodedLength, after.getEncodedBytes("gzip"));
+		assertEquals(after.toString(), cas.auditStatistics().toString());
+
+		// Nothing left to find
+		try (Scrubber scrubber = createScrubber(true)) {
+			assertTrue(scrubber.scrub().getDamaged().isEmpty());
+		}
+	}
+
+	@Test
+	public void testDamagedChunkAndMissingChunk() throws IOException {
+		cas.close();
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		properties.put(ContentAddressableStoreFileImpl.chunkSizePropertyName, "1024");
+		cas = createCas(properties);
+
+		Hash hash = write(100000, null);
+		Path manifestPath = cas.getContentPath(hash.getString() + ".manifest");
+		List<Hash> chunks = ContentManifest.read(manifestPath).getChunkHashes();
+		Path damagedChunk = cas.getChunkPath(chunks.get(0).getString());
+		damage(damagedChunk);
+
+		try (Scrubber scrubber = createScrubber(false)) {
+			assertEquals(Collections.singletonList(damagedChunk), scrubber.scrub().getDamaged());
+		}
+
+		// Once the damaged chunk has gone the content can't be read, so its
+		// manifest goes too
+		try (Scrubber scrubber = createScrubber(true)) {
+			assertTrue(scrubber.scrub().getDamaged().contains(damagedChunk));
+			// The manifest may have been checked before the chunk went
+			scrubber.scrub();
+		}
+		assertFalse(cas.contains(hash));
+		assertTrue(Files.exists(cas.getQuarantinePath().resolve(tempDir.relativize(manifestPath))));
+		assertTrue(Files.exists(cas.getQuarantinePath().resolve(tempDir.relativize(damagedChunk))));
+	}
+
+	@Test
+	public void testDamagedAtRestEncoding() throws IOException {
+		cas.close();
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.atRestEncodingPropertyName, "gzip");
+		cas = createCas(properties);
+
+		Hash hash = write(10000, null);
+		Path encodedPath = cas.getContentPath(hash.getString() + ".gzip");
+		damage(encodedPath);
+
+		try (Scrubber scrubber = createScrubber(true)) {
+			Scrubber.Result result = scrubber.scrub();
+			assertEquals(new HashSet<Path>(
+					Arrays.asList(encodedPath, cas.getContentPath(hash.getString() + ".manifest"))),
+					new HashSet<Path>(result.getDamaged()));
+		}
+		// Stored only encoded, so the content has gone with the encoding
+		assertFalse(cas.contains(hash));
+		assertEquals(0, cas.getStatistics().getContentCount());
+	}
+
+	@Test
+	public void testBytesPerSecond() throws IOException {
+		for (int i = 0; i < 10; i++) {
+			write(20000, null);
+		}
+		Properties properties = new Properties();
+		properties.put(Scrubber.bytesPerSecondPropertyName, "1000000");
+		properties.put(Scrubber.threadsPropertyName, "4");
+		try (Scrubber scrubber = new Scrubber(cas, properties)) {
+			Scrubber.Result result = scrubber.scrub();
+			// 200KB at 1MB/s takes at least 0.2 seconds however many threads
+			assertTrue(result.toString(), result.getDurationNanos() >= 190000000L);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadProperty() {
+		Properties properties = new Properties();
+		properties.put(Scrubber.busyBytesPerSecondPropertyName, "0");
+		new Scrubber(cas, properties);
+	}
+}
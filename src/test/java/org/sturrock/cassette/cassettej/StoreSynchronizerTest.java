@@ -0,0 +1,224 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StoreSynchronizerTest {
+
+	private final List<ContentEncoding> gzip = Collections.<ContentEncoding>singletonList(new GZIPContentEncoding());
+
+	private Path tempDir;
+	private ContentAddressableStoreFileImpl source;
+	private ContentAddressableStoreFileImpl target;
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("StoreSynchronizerTest");
+		source = createCas("source", new Properties());
+		target = createCas("target", new Properties());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		source.close();
+		target.close();
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private ContentAddressableStoreFileImpl createCas(String name, Properties properties) throws IOException {
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.resolve(name).toString());
+		return new ContentAddressableStoreFileImpl(properties);
+	}
+
+	private byte[] createContent() {
+		byte[] content = new byte[random.nextInt(50000)];
+		for (int i = 0; i < content.length; i += 10) {
+			content[i] = (byte) random.nextInt();
+		}
+		return content;
+	}
+
+	private static void assertSameContent(ContentAddressableStore expected, ContentAddressableStore actual)
+			throws IOException {
+		List<Hash> hashes = expected.getHashes();
+		Collections.sort(hashes, (hash1, hash2) -> hash1.getString().compareTo(hash2.getString()));
+		for (Hash hash : hashes) {
+			try (InputStream expectedStream = expected.read(hash); InputStream actualStream = actual.read(hash);) {
+				assertArrayEquals(IOUtils.toByteArray(expectedStream), IOUtils.toByteArray(actualStream));
+			}
+		}
+		assertEquals(hashes.size(), actual.getHashes().size());
+	}
+
+	@Test
+	public void testSummary() throws IOException {
+		StoreSummary summary = source.getSummary();
+		assertNull(summary.getRoot());
+		assertTrue(summary.getChildren("").isEmpty());
+
+		Hash hash = source.write(new ByteArrayInputStream(createContent()));
+		String group = hash.getString().substring(0, StoreSummary.groupLength);
+		String prefix = hash.getString().substring(0, source.hashPrefixLength);
+		assertEquals(Collections.singleton(group), summary.getChildren("").keySet());
+		assertEquals(Collections.singleton(prefix), summary.getChildren(group).keySet());
+		assertEquals(Collections.singleton(hash.getString()), summary.getEntries(prefix));
+
+		// The same content gives the same summary
+		target.write(new ByteArrayInputStream(IOUtils.toByteArray(source.read(hash))));
+		assertEquals(summary.getRoot(), target.getSummary().getRoot());
+
+		// Adding an encoding changes it
+		Hash root = summary.getRoot();
+		source.write(new ByteArrayInputStream(IOUtils.toByteArray(source.read(hash))), gzip);
+		assertNotEquals(root, summary.getRoot());
+		assertTrue(summary.getEntries(prefix).contains(hash.getString() + ".gzip"));
+
+		source.delete(hash);
+		assertNull(summary.getRoot());
+	}
+
+	@Test
+	public void testSummaryIgnoresLayout() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		try (ContentAddressableStoreFileImpl chunked = createCas("chunked", properties)) {
+			for (int i = 0; i < 10; i++) {
+				byte[] content = createContent();
+				source.write(new ByteArrayInputStream(content));
+				chunked.write(new ByteArrayInputStream(content));
+			}
+			assertEquals(source.getSummary().getRoot(), chunked.getSummary().getRoot());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadNode() throws IOException {
+		source.getSummary().getChildren("A");
+	}
+
+	@Test
+	public void testSynchronize() throws IOException {
+		List<byte[]> contents = new ArrayList<byte[]>();
+		for (int i = 0; i < 100; i++) {
+			contents.add(createContent());
+		}
+		long bytes = 0;
+		for (int i = 0; i < contents.size(); i++) {
+			source.write(new ByteArrayInputStream(contents.get(i)), gzip);
+			// The target has some already, but without their encodings
+			if (i % 4 == 0) {
+				target.write(new ByteArrayInputStream(contents.get(i)));
+			} else {
+				bytes += contents.get(i).length;
+			}
+		}
+		// And some of its own
+		Hash own = target.write(new ByteArrayInputStream(createContent()));
+
+		StoreSynchronizer synchronizer = new StoreSynchronizer(source, target, new Properties());
+		StoreSynchronizer.Result result = synchronizer.synchronize();
+		assertEquals(75, result.getContentCopied());
+		assertEquals(100, result.getEncodingsCopied());
+		assertTrue(result.toString(), result.getBytesCopied() > bytes);
+		assertTrue(result.getDamaged().isEmpty());
+		assertTrue(target.contains(own));
+		for (Hash hash : source.getHashes()) {
+			assertTrue(target.contains(hash, new GZIPContentEncoding()));
+			try (InputStream inputStream = target.read(hash, new GZIPContentEncoding())) {
+				assertArrayEquals(IOUtils.toByteArray(source.read(hash, new GZIPContentEncoding())),
+						IOUtils.toByteArray(inputStream));
+			}
+		}
+		assertEquals(source.getStatistics().getEncodedBytes("gzip"), target.getStatistics().getEncodedBytes("gzip"));
+
+		// Only the prefix the target's own content is in differs now
+		target.delete(own);
+		assertEquals(source.getSummary().getRoot(), target.getSummary().getRoot());
+		result = synchronizer.synchronize();
+		assertEquals(0, result.getPrefixesCompared());
+		assertEquals(0, result.getContentCopied());
+		assertSameContent(source, target);
+	}
+
+	@Test
+	public void testOnlyDifferingPrefixesListed() throws IOException {
+		for (int i = 0; i < 200; i++) {
+			byte[] content = createContent();
+			source.write(new ByteArrayInputStream(content));
+			target.write(new ByteArrayInputStream(content));
+		}
+		Hash hash = source.write(new ByteArrayInputStream(createContent()));
+
+		StoreSynchronizer.Result result = new StoreSynchronizer(source, target, new Properties()).synchronize();
+		assertEquals(1, result.getPrefixesDiffering());
+		assertTrue(result.getPrefixesCompared() < 200);
+		assertEquals(1, result.getContentCopied());
+		assertTrue(target.contains(hash));
+	}
+
+	@Test
+	public void testSynchronizeChunkedAndEncodedAtRest() throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.chunkingPropertyName, "true");
+		properties.put(ContentAddressableStoreFileImpl.chunkSizePropertyName, "1024");
+		Properties atRestProperties = new Properties();
+		atRestProperties.put(ContentAddressableStoreFileImpl.atRestEncodingPropertyName, "deflate");
+		try (ContentAddressableStoreFileImpl chunked = createCas("chunked", properties);
+				ContentAddressableStoreFileImpl atRest = createCas("atRest", atRestProperties)) {
+			for (int i = 0; i < 20; i++) {
+				chunked.write(new ByteArrayInputStream(createContent()));
+			}
+			new StoreSynchronizer(chunked, atRest, new Properties()).synchronize();
+			assertSameContent(chunked, atRest);
+
+			// And back into a plain store, with the at rest encoding
+			StoreSynchronizer.Result result = new StoreSynchronizer(atRest, source, new Properties()).synchronize();
+			assertEquals(20, result.getContentCopied());
+			assertEquals(20, result.getEncodingsCopied());
+			assertSameContent(chunked, source);
+			assertEquals(atRest.getSummary().getRoot(), source.getSummary().getRoot());
+		}
+	}
+
+	@Test
+	public void testDamagedSourceNotCopied() throws IOException {
+		Hash hash = source.write(new ByteArrayInputStream(createContent()));
+		Path contentPath = source.getContentPath(hash.getString());
+		byte[] bytes = Files.readAllBytes(contentPath);
+		bytes[0] ^= 1;
+		Files.write(contentPath, bytes);
+
+		StoreSynchronizer.Result result = new StoreSynchronizer(source, target, new Properties()).synchronize();
+		assertEquals(Collections.singletonList(hash), result.getDamaged());
+		assertFalse(target.contains(hash));
+		// Not stored under the hash of the damaged bytes either
+		assertTrue(target.getHashes().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSameStore() {
+		new StoreSynchronizer(source, source, new Properties());
+	}
+}
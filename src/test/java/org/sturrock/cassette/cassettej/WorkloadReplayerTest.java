@@ -0,0 +1,151 @@
+package org.sturrock.cassette.cassettej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WorkloadReplayerTest {
+
+	private Path tempDir;
+
+	@Before
+	public void setUp() throws IOException {
+		tempDir = Files.createTempDirectory("WorkloadReplayerTest");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(tempDir.toFile());
+	}
+
+	private ContentAddressableStore createCas(String name) throws IOException {
+		Properties properties = new Properties();
+		properties.put(ContentAddressableStoreFileImpl.rootPathPropertyName, tempDir.resolve(name).toString());
+		return ContentAddressableStoreFactory
+				.createContentAddressableStore(ContentAddressableStoreFactory.ImplementationType.FILE, properties);
+	}
+
+	@Test
+	public void testRecordAndReplay() throws IOException {
+		StringWriter trace = new StringWriter();
+		try (ContentAddressableStore cas = new RecordingContentAddressableStore(createCas("recorded"), trace)) {
+			for (int i = 0; i < 10; i++) {
+				byte[] content = ("Content " + (i % 4)).getBytes(StandardCharsets.UTF_8);
+				Hash hash = cas.write(new ByteArrayInputStream(content));
+				try (InputStream inputStream = cas.read(hash)) {
+					IOUtils.toByteArray(inputStream);
+				}
+			}
+		}
+		List<TraceRecord> records = WorkloadReplayer.readTrace(new StringReader(trace.toString()));
+		assertEquals(20, records.size());
+
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			WorkloadReplayer.Result result = new WorkloadReplayer(cas, 2, 0).replay(records);
+			assertEquals(20, result.getLatency().getCount());
+			assertEquals(10, result.getLatency(StoreOperation.WRITE).getCount());
+			assertEquals(10, result.getLatency(StoreOperation.READ).getCount());
+			assertEquals(0, result.getFailures());
+			assertTrue(result.getThroughput() > 0);
+			// The duplicates in the trace are still duplicates
+			assertEquals(4, cas.getHashes().size());
+			assertTrue(result.toString().contains("READ"));
+		}
+	}
+
+	@Test
+	public void testContentReadBeforeWrittenIsPopulated() throws IOException {
+		Hash recorded = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		List<TraceRecord> records = Arrays.asList(
+				new TraceRecord(0, 0, StoreOperation.READ, recorded, 5000, null, false),
+				new TraceRecord(0, 0, StoreOperation.GET_CONTENT_LENGTH, recorded, 5000, null, false));
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			WorkloadReplayer.Result result = new WorkloadReplayer(cas, 1, 0).replay(records);
+			assertEquals(2, result.getLatency().getCount());
+			assertEquals(0, result.getFailures());
+			List<Hash> hashes = cas.getHashes();
+			assertEquals(1, hashes.size());
+			assertEquals(5000, cas.getContentLength(hashes.get(0)));
+		}
+	}
+
+	@Test
+	public void testWriteExpectedReplayed() throws IOException {
+		Hash stored = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		Hash written = new Hash("89ABCDEF0123456789ABCDEF0123456789ABCDEF");
+		List<TraceRecord> records = Arrays.asList(
+				// Read nothing, so was already stored
+				new TraceRecord(0, 0, StoreOperation.WRITE_EXPECTED, stored, 0, null, false),
+				new TraceRecord(0, 0, StoreOperation.WRITE_EXPECTED, written, 5000, null, false));
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			WorkloadReplayer.Result result = new WorkloadReplayer(cas, 1, 0).replay(records);
+			assertEquals(2, result.getLatency(StoreOperation.WRITE_EXPECTED).getCount());
+			assertEquals(0, result.getFailures());
+			List<Hash> hashes = cas.getHashes();
+			assertEquals(2, hashes.size());
+			assertTrue(cas.getContentLength(hashes.get(0)) == 5000 || cas.getContentLength(hashes.get(1)) == 5000);
+		}
+	}
+
+	@Test
+	public void testMissingContentNotPopulated() throws IOException {
+		Hash recorded = new Hash("0123456789ABCDEF0123456789ABCDEF01234567");
+		List<TraceRecord> records = Collections
+				.singletonList(new TraceRecord(0, 0, StoreOperation.READ, recorded, -1, null, false));
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			new WorkloadReplayer(cas, 1, 0).replay(records);
+			assertTrue(cas.getHashes().isEmpty());
+		}
+	}
+
+	@Test
+	public void testSyntheticAtRate() throws IOException {
+		List<TraceRecord> records = WorkloadGenerator.generate(200, 0.3, 0.5, 10, 10000, 1);
+		assertEquals(200, records.size());
+		assertEquals(StoreOperation.WRITE, records.get(0).getOperation());
+		assertEquals(records.toString(), WorkloadGenerator.generate(200, 0.3, 0.5, 10, 10000, 1).toString());
+
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			WorkloadReplayer.Result result = new WorkloadReplayer(cas, 2, 2000).replay(records);
+			assertEquals(200, result.getLatency().getCount());
+			assertEquals(0, result.getFailures());
+			// 200 calls at 2000 per second take at least 0.1s
+			assertTrue(result.getElapsedNanos() >= 99000000L);
+			assertTrue(result.getLatency().getPercentile(99.9) >= result.getLatency().getPercentile(50));
+		}
+	}
+
+	@Test
+	public void testSyntheticContentRepeatable() throws IOException {
+		byte[] first = IOUtils.toByteArray(new SyntheticContentInputStream(42, 10000));
+		byte[] second = IOUtils.toByteArray(new SyntheticContentInputStream(42, 10000));
+		assertEquals(10000, first.length);
+		assertTrue(Arrays.equals(first, second));
+		assertTrue(!Arrays.equals(first, IOUtils.toByteArray(new SyntheticContentInputStream(43, 10000))));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadConcurrency() throws IOException {
+		try (ContentAddressableStore cas = createCas("replayed")) {
+			new WorkloadReplayer(cas, 0, 0);
+		}
+	}
+}